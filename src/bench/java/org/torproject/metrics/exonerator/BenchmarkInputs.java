@@ -0,0 +1,126 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.time.LocalDate;
+import java.util.Random;
+
+/** Generator of benchmark inputs with a fixed seed, so that runs can be
+ * compared, and with a distribution resembling real requests. */
+final class BenchmarkInputs {
+
+  /* Number of inputs per input array, which is large enough to defeat
+   * branch prediction on input types and small enough to fit in caches. */
+  static final int SIZE = 1024;
+
+  private BenchmarkInputs() {
+  }
+
+  /** Return IP address parameters as passed by clients, of which 70% are
+   * IPv4 addresses, 15% compressed IPv6 addresses, 10% IPv6 addresses in
+   * square brackets, and 5% invalid input. */
+  static String[] ipParameters() {
+    Random random = new Random(1L);
+    String[] ipParameters = new String[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      int type = random.nextInt(100);
+      if (type < 70) {
+        ipParameters[i] = ipV4Address(random);
+      } else if (type < 85) {
+        ipParameters[i] = compressedIpV6Address(random);
+      } else if (type < 95) {
+        ipParameters[i] = "[" + compressedIpV6Address(random) + "]";
+      } else {
+        ipParameters[i] = invalidInput(random);
+      }
+    }
+    return ipParameters;
+  }
+
+  /** Return IPv6 addresses without square brackets, half of which are
+   * compressed, as passed to the conversion to hex strings. */
+  static String[] ipV6Addresses() {
+    Random random = new Random(2L);
+    String[] ipV6Addresses = new String[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      ipV6Addresses[i] = random.nextBoolean()
+          ? compressedIpV6Address(random) : fullIpV6Address(random);
+    }
+    return ipV6Addresses;
+  }
+
+  /** Return OR addresses as found in consensuses, of which 80% are IPv4
+   * addresses and 20% IPv6 addresses in square brackets. */
+  static String[] orAddresses() {
+    Random random = new Random(3L);
+    String[] orAddresses = new String[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      orAddresses[i] = random.nextInt(100) < 80 ? ipV4Address(random)
+          : "[" + compressedIpV6Address(random) + "]";
+    }
+    return orAddresses;
+  }
+
+  /** Return hex-encoded relay fingerprints in upper case. */
+  static String[] fingerprints() {
+    Random random = new Random(4L);
+    String[] fingerprints = new String[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      StringBuilder sb = new StringBuilder();
+      for (int j = 0; j < 40; j++) {
+        sb.append(Character.toUpperCase(Character.forDigit(
+            random.nextInt(16), 16)));
+      }
+      fingerprints[i] = sb.toString();
+    }
+    return fingerprints;
+  }
+
+  /** Return timestamp parameters as passed by clients, of which 90% are
+   * valid dates, 5% dates with surrounding whitespace or a time, and 5%
+   * invalid input. */
+  static String[] timestampParameters() {
+    Random random = new Random(5L);
+    LocalDate firstDate = LocalDate.parse("2007-12-01");
+    String[] timestampParameters = new String[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      int type = random.nextInt(100);
+      String date = firstDate.plusDays(random.nextInt(4500)).toString();
+      if (type < 90) {
+        timestampParameters[i] = date;
+      } else if (type < 95) {
+        timestampParameters[i] = random.nextBoolean() ? " " + date + " "
+            : date + " 12:34:56";
+      } else {
+        timestampParameters[i] = invalidInput(random);
+      }
+    }
+    return timestampParameters;
+  }
+
+  private static String ipV4Address(Random random) {
+    return (1 + random.nextInt(223)) + "." + random.nextInt(256) + "."
+        + random.nextInt(256) + "." + random.nextInt(256);
+  }
+
+  private static String compressedIpV6Address(Random random) {
+    return String.format("2001:%x:%x::%x", random.nextInt(0x10000),
+        random.nextInt(0x10000), 1 + random.nextInt(0xffff));
+  }
+
+  private static String fullIpV6Address(Random random) {
+    StringBuilder sb = new StringBuilder("2a01");
+    for (int i = 0; i < 7; i++) {
+      sb.append(':').append(Integer.toHexString(random.nextInt(0x10000)));
+    }
+    return sb.toString();
+  }
+
+  private static String invalidInput(Random random) {
+    String[] invalidInputs = new String[] { "", "foo", "1.2.3", "::g",
+        "2019-13-45", "<script>alert(1)</script>", "1.2.3.4.5",
+        "[1.2.3.4]" };
+    return invalidInputs[random.nextInt(invalidInputs.length)];
+  }
+}
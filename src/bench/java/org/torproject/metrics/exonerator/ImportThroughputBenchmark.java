@@ -0,0 +1,108 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TimeZone;
+
+/** Benchmark that imports a fixed set of descriptors into a fresh database
+ * and compares import throughput to a stored baseline, failing if
+ * throughput is more than a configurable percentage below the baseline.
+ *
+ * <p>Parameters are passed as system properties with the
+ * {@code exonerator.importbench.} prefix. The database needs to be empty
+ * and contain the current schema, which is what the {@code import-bench}
+ * target in {@code build.xml} sets up before running this benchmark.</p> */
+public class ImportThroughputBenchmark {
+
+  /* Baseline property names. */
+  private static final String CONSENSUSES_PER_SECOND = "consensuses.per.second";
+
+  private static final String ROWS_PER_SECOND = "rows.per.second";
+
+  /** Run the benchmark with parameters from system properties. */
+  public static void main(String[] args) throws Exception {
+    Locale.setDefault(Locale.US);
+    TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    String jdbcString = System.getProperty("exonerator.importbench.jdbc",
+        "jdbc:postgresql:exonerator_bench");
+    String dataDirectory = System.getProperty("exonerator.importbench.data");
+    String baselineFileName = System.getProperty(
+        "exonerator.importbench.baseline");
+    if (null == dataDirectory || null == baselineFileName) {
+      System.err.println("Please set exonerator.importbench.data to a "
+          + "directory containing consensuses and exit lists, and "
+          + "exonerator.importbench.baseline to the baseline file.");
+      System.exit(1);
+    }
+    final double tolerancePercent = Double.parseDouble(System.getProperty(
+        "exonerator.importbench.tolerance", "10"));
+    boolean updateBaseline = Boolean.parseBoolean(System.getProperty(
+        "exonerator.importbench.update", "false"));
+
+    ImportStatistics statistics = ExoneraTorDatabaseImporter
+        .importDescriptors(jdbcString, new File(dataDirectory));
+    System.out.print(statistics.format());
+
+    File baselineFile = new File(baselineFileName);
+    if (updateBaseline || !baselineFile.exists()) {
+      writeBaseline(baselineFile, statistics);
+      System.out.printf("Wrote baseline to %s.%n", baselineFile);
+      return;
+    }
+    Properties baseline = new Properties();
+    try (Reader reader = new FileReader(baselineFile)) {
+      baseline.load(reader);
+    }
+    boolean regressed = false;
+    regressed |= compare("consensuses/s", statistics.getConsensusesPerSecond(),
+        Double.parseDouble(baseline.getProperty(CONSENSUSES_PER_SECOND)),
+        tolerancePercent);
+    regressed |= compare("rows/s", statistics.getRowsPerSecond(),
+        Double.parseDouble(baseline.getProperty(ROWS_PER_SECOND)),
+        tolerancePercent);
+    if (regressed) {
+      System.err.printf("Import throughput is more than %.1f%% below the "
+          + "baseline in %s. Either find out why, or rerun with "
+          + "-Dexonerator.importbench.update=true to accept the new "
+          + "throughput as baseline.%n", tolerancePercent, baselineFile);
+      System.exit(1);
+    }
+  }
+
+  /* Print how the given throughput compares to the given baseline, and
+   * return whether it is more than the given percentage below. */
+  private static boolean compare(String name, double measured,
+      double baseline, double tolerancePercent) {
+    double changePercent = 100.0 * (measured - baseline) / baseline;
+    boolean regressed = changePercent < -tolerancePercent;
+    System.out.printf("%-14s %10.1f baseline %10.1f change %+6.1f%%%s%n",
+        name, measured, baseline, changePercent,
+        regressed ? " REGRESSION" : "");
+    return regressed;
+  }
+
+  private static void writeBaseline(File baselineFile,
+      ImportStatistics statistics) throws IOException {
+    Properties baseline = new Properties();
+    baseline.setProperty(CONSENSUSES_PER_SECOND,
+        String.valueOf(statistics.getConsensusesPerSecond()));
+    baseline.setProperty(ROWS_PER_SECOND,
+        String.valueOf(statistics.getRowsPerSecond()));
+    File parentDirectory = baselineFile.getAbsoluteFile().getParentFile();
+    if (!parentDirectory.exists() && !parentDirectory.mkdirs()) {
+      throw new IOException("Unable to create " + parentDirectory + ".");
+    }
+    try (Writer writer = new FileWriter(baselineFile)) {
+      baseline.store(writer, "Import throughput baseline");
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.apache.commons.codec.DecoderException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for the conversions that the database importer makes for
+ * every status entry and exit list entry. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ImporterBenchmark {
+
+  private final String[] orAddresses = BenchmarkInputs.orAddresses();
+
+  private final String[] fingerprints = BenchmarkInputs.fingerprints();
+
+  private int index;
+
+  private int next() {
+    this.index = (this.index + 1) & (BenchmarkInputs.SIZE - 1);
+    return this.index;
+  }
+
+  @Benchmark
+  public String convertAddressToAddress24() {
+    return ExoneraTorDatabaseImporter.convertAddressToAddress24(
+        this.orAddresses[next()]);
+  }
+
+  @Benchmark
+  public String convertFingerprintToBase64() throws DecoderException {
+    return ExoneraTorDatabaseImporter.convertFingerprintToBase64(
+        this.fingerprints[next()]);
+  }
+}
@@ -0,0 +1,357 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.eclipse.jetty.server.Server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Load test that sends queries in a configurable mix of categories to the
+ * query.json endpoint and the HTML frontend at a fixed arrival rate, and
+ * reports latency percentiles, throughput, error rates, and GC pauses, as
+ * well as queue and database pool wait times if the server runs embedded.
+ *
+ * <p>Requests are sent at their scheduled times, regardless of how many
+ * earlier requests are still outstanding, and latencies are measured from
+ * the scheduled times, so that a slow server cannot slow down the load test
+ * and hide its own slowness.</p>
+ *
+ * <p>Parameters are passed as system properties with the
+ * {@code exonerator.loadtest.} prefix. Unless a base URL is given, the
+ * server is started embedded with the programmatic bootstrap and the usual
+ * server system properties, like the database connection settings.</p> */
+public class LoadTest {
+
+  /* Scheduled request, consisting of the endpoint, query category, and
+   * query address and date. */
+  private static class Request {
+
+    private final String endpoint;
+
+    private final LoadTestQueries.Category category;
+
+    private final String[] query;
+
+    private Request(String endpoint, LoadTestQueries.Category category,
+        String[] query) {
+      this.endpoint = endpoint;
+      this.category = category;
+      this.query = query;
+    }
+  }
+
+  /* Results of requests to one endpoint with queries in one category. */
+  private static class Results {
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private final LongAdder errors = new LongAdder();
+  }
+
+  private final String baseUrl;
+
+  private final LoadTestQueries queries;
+
+  /* Cumulative weights of query categories in category order. */
+  private final int[] categoryWeights;
+
+  /* Share of requests sent to the HTML frontend rather than query.json. */
+  private final double frontendShare;
+
+  /* Requests per second. */
+  private final double rate;
+
+  /* Time in seconds to send requests without recording results, followed by
+   * the time in seconds to send requests and record results. */
+  private final long warmupSeconds;
+
+  private final long durationSeconds;
+
+  /* Executor sending requests, with as many threads as requests may be
+   * outstanding at the same time before further requests are queued. */
+  private final ExecutorService executor;
+
+  private final Random random = new Random(1L);
+
+  /* Results by endpoint and category name. */
+  private final Map<String, Results> results = new ConcurrentHashMap<>();
+
+  private LoadTest(String baseUrl, LoadTestQueries queries,
+      int[] categoryWeights, double frontendShare, double rate,
+      long warmupSeconds, long durationSeconds, int threads) {
+    this.baseUrl = baseUrl;
+    this.queries = queries;
+    this.categoryWeights = categoryWeights;
+    this.frontendShare = frontendShare;
+    this.rate = rate;
+    this.warmupSeconds = warmupSeconds;
+    this.durationSeconds = durationSeconds;
+    this.executor = Executors.newFixedThreadPool(threads, (runnable) -> {
+      Thread thread = new Thread(runnable, "exonerator-loadtest");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** Run the load test with parameters from system properties. */
+  public static void main(String[] args) throws Exception {
+    Locale.setDefault(Locale.US);
+    String dataDirectory = System.getProperty("exonerator.loadtest.data");
+    if (null == dataDirectory) {
+      System.err.println("Please set exonerator.loadtest.data to a directory "
+          + "containing the consensuses that were imported into the "
+          + "database.");
+      System.exit(1);
+    }
+    Random random = new Random(1L);
+    LoadTestQueries queries = LoadTestQueries.fromConsensuses(
+        new File(dataDirectory),
+        Integer.getInteger("exonerator.loadtest.step", 6), random);
+    int[] categoryWeights = parseMix(System.getProperty(
+        "exonerator.loadtest.mix",
+        "hit=40,miss=30,nearby=10,ipv6=10,large24=10"));
+    for (LoadTestQueries.Category category
+        : LoadTestQueries.Category.values()) {
+      System.out.printf("Found %d %s queries.%n", queries.size(category),
+          category.name().toLowerCase());
+    }
+
+    String baseUrl = System.getProperty("exonerator.loadtest.url");
+    Server server = null;
+    if (null == baseUrl) {
+      if (null == System.getProperty("exonerator.redirect")) {
+        System.setProperty("exonerator.redirect", "false");
+      }
+      if (null == System.getProperty("exonerator.backend")) {
+        System.setProperty("exonerator.backend", "inprocess");
+      }
+      server = ServerMain.createServer();
+      server.start();
+      baseUrl = "http://127.0.0.1:"
+          + Integer.getInteger("exonerator.jetty.port", 8080);
+    }
+    try {
+      new LoadTest(baseUrl, queries, categoryWeights,
+          Double.parseDouble(
+          System.getProperty("exonerator.loadtest.frontend", "0.2")),
+          Double.parseDouble(
+          System.getProperty("exonerator.loadtest.rate", "50")),
+          Long.getLong("exonerator.loadtest.warmup", 10L),
+          Long.getLong("exonerator.loadtest.duration", 60L),
+          Integer.getInteger("exonerator.loadtest.threads", 256))
+          .run(null != server);
+    } finally {
+      if (null != server) {
+        server.stop();
+      }
+    }
+  }
+
+  /* Parse the given query mix consisting of comma-separated category names
+   * and weights, and return cumulative weights in category order. */
+  private static int[] parseMix(String mix) {
+    int[] weights = new int[LoadTestQueries.Category.values().length];
+    for (String part : mix.split(",")) {
+      String[] nameAndWeight = part.trim().split("=");
+      weights[LoadTestQueries.Category.valueOf(
+          nameAndWeight[0].trim().toUpperCase()).ordinal()]
+          = Integer.parseInt(nameAndWeight[1].trim());
+    }
+    for (int i = 1; i < weights.length; i++) {
+      weights[i] += weights[i - 1];
+    }
+    if (weights[weights.length - 1] <= 0) {
+      throw new IllegalArgumentException("Query mix '" + mix + "' does not "
+          + "contain any positive weights.");
+    }
+    return weights;
+  }
+
+  /* Send requests at the configured rate, and print results. */
+  private void run(boolean embedded) throws InterruptedException {
+    long periodNanos = (long) (1e9 / this.rate);
+    long warmupRequests = (long) (this.warmupSeconds * this.rate);
+    long totalRequests = warmupRequests
+        + (long) (this.durationSeconds * this.rate);
+    System.out.printf("Sending %d requests to %s at %.1f requests per "
+        + "second, recording all but the first %d.%n", totalRequests,
+        this.baseUrl, this.rate, warmupRequests);
+    long gcCountBefore = 0L;
+    long gcMillisBefore = 0L;
+    long recordingStartNanos = 0L;
+    final long startNanos = System.nanoTime();
+    for (long i = 0; i < totalRequests; i++) {
+      if (i == warmupRequests) {
+        recordingStartNanos = System.nanoTime();
+        gcCountBefore = gcCount();
+        gcMillisBefore = gcMillis();
+      }
+      long scheduledNanos = startNanos + i * periodNanos;
+      long delayNanos = scheduledNanos - System.nanoTime();
+      if (delayNanos > 0L) {
+        TimeUnit.NANOSECONDS.sleep(delayNanos);
+      }
+      Request request = this.nextRequest();
+      boolean record = i >= warmupRequests;
+      this.executor.execute(() -> this.send(request, scheduledNanos, record));
+    }
+    this.executor.shutdown();
+    this.executor.awaitTermination(1L, TimeUnit.HOURS);
+    double recordingSeconds = (System.nanoTime() - recordingStartNanos) / 1e9;
+    this.printResults(recordingSeconds, gcCount() - gcCountBefore,
+        gcMillis() - gcMillisBefore, embedded);
+  }
+
+  private Request nextRequest() {
+    String endpoint = this.random.nextDouble() < this.frontendShare
+        ? "index.html" : "query.json";
+    int weight = this.random.nextInt(
+        this.categoryWeights[this.categoryWeights.length - 1]);
+    LoadTestQueries.Category category = null;
+    for (LoadTestQueries.Category candidate
+        : LoadTestQueries.Category.values()) {
+      if (weight < this.categoryWeights[candidate.ordinal()]) {
+        category = candidate;
+        break;
+      }
+    }
+    return new Request(endpoint, category,
+        this.queries.next(category, this.random));
+  }
+
+  /* Send the given request, read the response, and, unless the request was
+   * sent during warm-up, record the latency since the scheduled time and
+   * whether the request failed. */
+  private void send(Request request, long scheduledNanos, boolean record) {
+    boolean failed;
+    HttpURLConnection connection = null;
+    try {
+      String address = request.query[0].contains(":")
+          ? "%5B" + request.query[0].replace(":", "%3A") + "%5D"
+          : request.query[0];
+      connection = (HttpURLConnection) new URL(this.baseUrl + "/"
+          + request.endpoint + "?ip=" + address + "&timestamp="
+          + request.query[1]).openConnection();
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      int responseCode = connection.getResponseCode();
+      InputStream body = responseCode < 400 ? connection.getInputStream()
+          : connection.getErrorStream();
+      if (null != body) {
+        try (InputStream in = body) {
+          byte[] buffer = new byte[8192];
+          while (in.read(buffer) >= 0) {
+            /* Read the whole body to measure the complete response. */
+          }
+        }
+      }
+      failed = responseCode >= 400;
+    } catch (IOException e) {
+      if (null != connection) {
+        connection.disconnect();
+      }
+      failed = true;
+    }
+    if (record) {
+      Results results = this.results.computeIfAbsent(request.endpoint + " "
+          + request.category.name().toLowerCase(), (key) -> new Results());
+      results.latencies.recordSince(scheduledNanos);
+      if (failed) {
+        results.errors.increment();
+      }
+    }
+  }
+
+  private static long gcCount() {
+    long count = 0L;
+    for (GarbageCollectorMXBean bean
+        : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0L, bean.getCollectionCount());
+    }
+    return count;
+  }
+
+  private static long gcMillis() {
+    long millis = 0L;
+    for (GarbageCollectorMXBean bean
+        : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0L, bean.getCollectionTime());
+    }
+    return millis;
+  }
+
+  private void printResults(double recordingSeconds, long gcCount,
+      long gcMillis, boolean embedded) {
+    SortedMap<String, Results> sortedResults = new TreeMap<>(this.results);
+    long totalRequests = 0L;
+    long totalErrors = 0L;
+    List<String> lines = new ArrayList<>();
+    lines.add(String.format("%-22s %8s %7s %9s %9s %9s %9s",
+        "endpoint category", "requests", "errors", "p50 ms", "p90 ms",
+        "p99 ms", "p99.9 ms"));
+    for (Map.Entry<String, Results> e : sortedResults.entrySet()) {
+      long requests = e.getValue().latencies.getCount();
+      long errors = e.getValue().errors.sum();
+      totalRequests += requests;
+      totalErrors += errors;
+      lines.add(String.format("%-22s %8d %6.2f%% %s", e.getKey(), requests,
+          100.0 * errors / requests,
+          formatQuantiles(e.getValue().latencies)));
+    }
+    for (String line : lines) {
+      System.out.println(line);
+    }
+    System.out.printf("Throughput: %.1f requests per second, error rate: "
+        + "%.2f%%.%n", totalRequests / recordingSeconds,
+        totalRequests > 0L ? 100.0 * totalErrors / totalRequests : 0.0);
+    System.out.printf("GC: %d collections taking %d ms in total (%.2f%% of "
+        + "the time)%s.%n", gcCount, gcMillis,
+        100.0 * gcMillis / (recordingSeconds * 1000.0),
+        embedded ? ", including the embedded server" : "");
+    if (embedded) {
+      System.out.println("Server-side phases since starting the server:");
+      for (String phase : new String[] { "queue_wait", "pool_wait",
+          "execution" }) {
+        System.out.printf("  %-10s %s%n", phase, formatQuantiles(
+            Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "query",
+            "phase", phase)));
+      }
+      for (String outcome : new String[] { "rejected", "timeout",
+          "error" }) {
+        System.out.printf("  %-10s %d requests%n", outcome,
+            Metrics.counter(Metrics.REQUESTS, "endpoint", "query", "outcome",
+            outcome).sum());
+      }
+    }
+  }
+
+  /* Format the median, 90th, 99th, and 99.9th percentiles of the given
+   * histogram as upper bounds of their buckets in milliseconds. */
+  private static String formatQuantiles(LatencyHistogram histogram) {
+    StringBuilder sb = new StringBuilder();
+    for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+      long micros = histogram.getQuantileUpperBoundMicros(quantile);
+      sb.append(micros < 0L ? String.format(" %9s", "-")
+          : String.format(" %9.1f", micros / 1000.0));
+    }
+    return sb.substring(1);
+  }
+}
@@ -0,0 +1,167 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/** Queries for load tests in several categories, derived from consensuses
+ * written by {@link SyntheticNetworkGenerator} or found elsewhere. */
+class LoadTestQueries {
+
+  /** Query categories. */
+  enum Category {
+
+    /** Address of a relay on a date when it was running. */
+    HIT,
+
+    /** Address in a network without any relays. */
+    MISS,
+
+    /** Address that was not used by a relay, but in a /24 network with
+     * relays. */
+    NEARBY,
+
+    /** IPv6 address of a relay on a date when it was running. */
+    IPV6,
+
+    /** Address in one of the /24 networks with the most relays. */
+    LARGE24
+  }
+
+  /* Number of /24 networks with the most relays to pick LARGE24 queries
+   * from. */
+  private static final int LARGE_NETWORKS = 10;
+
+  /* Queries by category, each consisting of address and date. */
+  private final Map<Category, List<String[]>> queries = new HashMap<>();
+
+  private LoadTestQueries() {
+    for (Category category : Category.values()) {
+      this.queries.put(category, new ArrayList<>());
+    }
+  }
+
+  /** Read the consensuses in the given directory and its subdirectories,
+   * using only every given number of consensuses to keep memory
+   * requirements low, and derive queries in all categories from them. */
+  static LoadTestQueries fromConsensuses(File directory, int step,
+      Random random) throws IOException {
+    LoadTestQueries loadTestQueries = new LoadTestQueries();
+    List<File> files = new ArrayList<>();
+    listFiles(directory, files);
+    files.sort(null);
+    Set<String> ipV4Addresses = new HashSet<>();
+    Map<String, Integer> relaysByNetwork = new HashMap<>();
+    Map<String, String> dateByNetwork = new HashMap<>();
+    for (int i = 0; i < files.size(); i += step) {
+      String date = null;
+      try (BufferedReader br = Files.newBufferedReader(files.get(i).toPath(),
+          StandardCharsets.US_ASCII)) {
+        String line;
+        while (null != (line = br.readLine())) {
+          if (line.startsWith("valid-after ")) {
+            date = line.substring("valid-after ".length()).split(" ")[0];
+          } else if (line.startsWith("r ") && null != date) {
+            String address = line.split(" ")[6];
+            loadTestQueries.add(Category.HIT, address, date);
+            ipV4Addresses.add(address);
+            String network = address.substring(0, address.lastIndexOf('.'));
+            relaysByNetwork.merge(network, 1, Integer::sum);
+            dateByNetwork.put(network, date);
+          } else if (line.startsWith("a [") && null != date) {
+            loadTestQueries.add(Category.IPV6,
+                line.substring(3, line.lastIndexOf(']')), date);
+          }
+        }
+      }
+    }
+    if (loadTestQueries.queries.get(Category.HIT).isEmpty()) {
+      throw new IOException("No relays found in consensuses in "
+          + directory + ".");
+    }
+
+    /* Derive NEARBY queries from unused addresses in networks with relays,
+     * and MISS queries from networks without relays. */
+    List<String> networks = new ArrayList<>(relaysByNetwork.keySet());
+    networks.sort(null);
+    for (String network : networks) {
+      for (int lastOctet = 1; lastOctet < 255; lastOctet++) {
+        String address = network + "." + lastOctet;
+        if (!ipV4Addresses.contains(address)) {
+          loadTestQueries.add(Category.NEARBY, address,
+              dateByNetwork.get(network));
+          break;
+        }
+      }
+    }
+    List<String[]> hits = loadTestQueries.queries.get(Category.HIT);
+    while (loadTestQueries.queries.get(Category.MISS).size() < 1000) {
+      String network = "198." + (18 + random.nextInt(2)) + "."
+          + random.nextInt(256);
+      if (!relaysByNetwork.containsKey(network)) {
+        loadTestQueries.add(Category.MISS,
+            network + "." + (1 + random.nextInt(254)),
+            hits.get(random.nextInt(hits.size()))[1]);
+      }
+    }
+
+    /* Derive LARGE24 queries from the networks with the most relays. */
+    networks.sort((n1, n2) -> Integer.compare(relaysByNetwork.get(n2),
+        relaysByNetwork.get(n1)));
+    Set<String> largeNetworks = new HashSet<>(networks.subList(0,
+        Math.min(LARGE_NETWORKS, networks.size())));
+    for (String[] hit : hits) {
+      if (largeNetworks.contains(hit[0].substring(0,
+          hit[0].lastIndexOf('.')))) {
+        loadTestQueries.add(Category.LARGE24, hit[0], hit[1]);
+      }
+    }
+    return loadTestQueries;
+  }
+
+  private static void listFiles(File directory, List<File> files) {
+    File[] children = directory.listFiles();
+    if (null == children) {
+      return;
+    }
+    for (File child : children) {
+      if (child.isDirectory()) {
+        listFiles(child, files);
+      } else {
+        files.add(child);
+      }
+    }
+  }
+
+  private void add(Category category, String address, String date) {
+    this.queries.get(category).add(new String[] { address, date });
+  }
+
+  /** Return the number of queries in the given category. */
+  int size(Category category) {
+    return this.queries.get(category).size();
+  }
+
+  /** Return an arbitrary query in the given category, consisting of address
+   * and date, or in the HIT category if there are no queries in the given
+   * category. */
+  String[] next(Category category, Random random) {
+    List<String[]> categoryQueries = this.queries.get(category);
+    if (categoryQueries.isEmpty()) {
+      categoryQueries = this.queries.get(Category.HIT);
+    }
+    return categoryQueries.get(random.nextInt(categoryQueries.size()));
+  }
+}
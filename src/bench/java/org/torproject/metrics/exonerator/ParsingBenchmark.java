@@ -0,0 +1,56 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for parsing request parameters and converting addresses in
+ * the frontend and backend. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParsingBenchmark {
+
+  private final String[] ipParameters = BenchmarkInputs.ipParameters();
+
+  private final String[] ipV6Addresses = BenchmarkInputs.ipV6Addresses();
+
+  private final String[] timestampParameters
+      = BenchmarkInputs.timestampParameters();
+
+  private int index;
+
+  private int next() {
+    this.index = (this.index + 1) & (BenchmarkInputs.SIZE - 1);
+    return this.index;
+  }
+
+  @Benchmark
+  public String parseIpParameter() {
+    return ExoneraTorServlet.parseIpParameter(this.ipParameters[next()]);
+  }
+
+  @Benchmark
+  public String convertIpV6ToHex() {
+    return QueryServlet.convertIpV6ToHex(this.ipV6Addresses[next()]);
+  }
+
+  @Benchmark
+  public ExoneraTorDate parseDate() {
+    return new ExoneraTorDate(this.timestampParameters[next()]);
+  }
+}
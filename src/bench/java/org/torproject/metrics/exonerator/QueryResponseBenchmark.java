@@ -0,0 +1,83 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for serializing query responses in the backend and
+ * deserializing them in the frontend. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryResponseBenchmark {
+
+  /** Number of matches in the response, where no matches is the common case
+   * of addresses that were not used by relays, and 48 is a relay that was
+   * running all day with two consensuses per hour. */
+  @Param({ "0", "24", "48" })
+  public int matches;
+
+  /** Response version, where 2.0 is the compact version with matches
+   * combined into ranges. */
+  @Param({ "1.0", "2.0" })
+  public String version;
+
+  private QueryResponse queryResponse;
+
+  private String json;
+
+  /** Create the query response and its JSON string. */
+  @Setup
+  public void setUp() throws IOException {
+    QueryResponse.Match[] matchesArray = null;
+    String[] nearbyAddresses = null;
+    if (this.matches > 0) {
+      matchesArray = new QueryResponse.Match[this.matches];
+      for (int i = 0; i < this.matches; i++) {
+        matchesArray[i] = new QueryResponse.Match(
+            String.format("2020-01-01 %02d:%02d:00", i / 2, (i % 2) * 30),
+            new TreeSet<>(Arrays.asList("86.59.21.38",
+            "2001:858:2:2:aabb:0:563b:1526")),
+            "9695DFC35FFEB861329B9F1AB04C46397020CE31", "moria1", true);
+      }
+    } else {
+      nearbyAddresses = new String[] { "86.59.21.37", "86.59.21.39" };
+    }
+    this.queryResponse = new QueryResponse("1.0", "86.59.21.38",
+        "2020-01-01", "2007-12-01", "2020-06-30", this.matches > 0,
+        matchesArray, nearbyAddresses);
+    this.json = this.toJson();
+  }
+
+  @Benchmark
+  public String toJson() throws IOException {
+    return QueryResponse.COMPACT_VERSION.equals(this.version)
+        ? QueryResponse.toCompactJson(this.queryResponse)
+        : QueryResponse.toJson(this.queryResponse);
+  }
+
+  @Benchmark
+  public QueryResponse fromJson() {
+    return QueryResponse.fromJson(new StringReader(this.json));
+  }
+}
@@ -0,0 +1,136 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Benchmarks for answering queries from the in-memory storage and from
+ * lookup index files containing the same relays, to compare query sources
+ * that do not need a database side by side. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StorageBenchmark {
+
+  /* Number of relays running throughout the month, which is a third of the
+   * network to keep the lookup index writer within default heap sizes. */
+  private static final int RELAYS = 2000;
+
+  /* Month with data, with one consensus per hour. */
+  private static final YearMonth MONTH = YearMonth.of(2020, 1);
+
+  @Param({ "memory", "index" })
+  public String storage;
+
+  private QuerySource querySource;
+
+  private final String[] addresses = new String[BenchmarkInputs.SIZE];
+
+  private final String[] addresses24 = new String[BenchmarkInputs.SIZE];
+
+  private final LocalDate[] dates = new LocalDate[BenchmarkInputs.SIZE];
+
+  private int index;
+
+  private final QueryDeadline deadline = new QueryDeadline(Instant.MAX);
+
+  /** Import the same relays into the selected query source, and pick query
+   * inputs of which half are addresses of relays. */
+  @Setup
+  public void setUp() throws IOException {
+    Random random = new Random(1L);
+    MemoryStorage memoryStorage = new MemoryStorage(null);
+    LookupIndexWriter writer = new LookupIndexWriter(
+        MONTH.atEndOfMonth().atTime(23, 0).toInstant(ZoneOffset.UTC));
+    String[] fingerprints = new String[RELAYS];
+    String[] relayAddresses = new String[RELAYS];
+    for (int relay = 0; relay < RELAYS; relay++) {
+      byte[] fingerprint = new byte[20];
+      random.nextBytes(fingerprint);
+      fingerprints[relay] = Base64.encodeBase64String(fingerprint)
+          .replace("=", "");
+      relayAddresses[relay] = (1 + random.nextInt(223)) + "."
+          + random.nextInt(256) + "." + random.nextInt(256) + "."
+          + (1 + random.nextInt(254));
+    }
+    for (LocalDateTime validAfter = MONTH.atDay(1).atStartOfDay();
+        validAfter.isBefore(MONTH.plusMonths(1L).atDay(1).atStartOfDay());
+        validAfter = validAfter.plusHours(1L)) {
+      for (int relay = 0; relay < RELAYS; relay++) {
+        String address24 = QueryServlet.convertIpV4ToHex(
+            relayAddresses[relay]).substring(0, 6);
+        if ("memory".equals(this.storage)) {
+          memoryStorage.importStatusEntry(validAfter, fingerprints[relay],
+              "relay" + relay, relay % 7 == 0, relayAddresses[relay],
+              address24);
+        } else {
+          writer.addAddress24(validAfter.toLocalDate(), address24,
+              fingerprints[relay]);
+          writer.addStatusEntry(fingerprints[relay], validAfter,
+              "relay" + relay, relay % 7 == 0, relayAddresses[relay]);
+        }
+      }
+    }
+    if ("memory".equals(this.storage)) {
+      memoryStorage.loadImportWatermark();
+      this.querySource = memoryStorage;
+    } else {
+      File indexDirectory = Files.createTempDirectory("exonerator-bench")
+          .toFile();
+      indexDirectory.deleteOnExit();
+      File indexFile = ExoneraTorIndexExporter.indexFile(indexDirectory,
+          MONTH);
+      indexFile.deleteOnExit();
+      writer.write(indexFile);
+      IndexQuerySource indexQuerySource = new IndexQuerySource(
+          indexDirectory);
+      indexQuerySource.loadImportWatermark();
+      this.querySource = indexQuerySource;
+    }
+    for (int i = 0; i < BenchmarkInputs.SIZE; i++) {
+      String address = i % 2 == 0
+          ? relayAddresses[random.nextInt(RELAYS)]
+          : "198.18." + random.nextInt(256) + ".1";
+      this.addresses[i] = address;
+      this.addresses24[i] = QueryServlet.convertIpV4ToHex(address)
+          .substring(0, 6);
+      this.dates[i] = MONTH.atDay(1 + random.nextInt(MONTH.lengthOfMonth()));
+    }
+  }
+
+  @Benchmark
+  public QueryResponseBuilder search() {
+    this.index = (this.index + 1) & (BenchmarkInputs.SIZE - 1);
+    QueryResponseBuilder builder = new QueryResponseBuilder();
+    this.querySource.search(this.dates[this.index],
+        this.addresses[this.index], this.addresses24[this.index], builder,
+        this.deadline);
+    return builder;
+  }
+}
@@ -0,0 +1,326 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/** Generator of synthetic relay network status consensuses and exit lists
+ * in the formats that the database importer reads, for load and scale
+ * testing without production data.
+ *
+ * <p>The generator simulates a relay population of a given size, in which
+ * relays leave and join at a given daily churn rate, a given share of
+ * relays has an IPv6 address or permits exiting, and a given share of
+ * relays is placed in a small number of popular hosting /24 networks. It
+ * writes one consensus and one exit list per hour of the simulated time
+ * span.</p>
+ *
+ * <p>Parameters are passed as system properties with the
+ * {@code exonerator.synthetic.} prefix, and the output directory is passed
+ * as the only argument.</p> */
+public class SyntheticNetworkGenerator {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(SyntheticNetworkGenerator.class);
+
+  private static final DateTimeFormatter DATE_TIME_FORMATTER
+      = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm:ss", Locale.US);
+
+  private static final DateTimeFormatter FILE_NAME_FORMATTER
+      = DateTimeFormatter.ofPattern("uuuu-MM-dd-HH-mm-ss", Locale.US);
+
+  /* Fake directory authority signing all consensuses. */
+  private static final String AUTHORITY_FINGERPRINT
+      = "D586D18309DED4CD6D57C18FDB97EFA96D330566";
+
+  /* Ports permitted by exit relays, as in the reduced exit policy. */
+  private static final String EXIT_PORTS = "20-23,43,53,79-81,88,110,143,"
+      + "194,220,389,443,464,531,543-544,554,563,636,706,749,873,902-904,"
+      + "981,989-995,1194,1220,1293,1500,1533,1677,1723,1755,1863,"
+      + "2082-2083,2086-2087,2095-2096,2102-2104,3128,3389,3690,4321,4643,"
+      + "5050,5190,5222-5223,5228,5900,6660-6669,6679,6697,8000,8008,8074,"
+      + "8080,8087-8088,8332-8333,8443,8888,9418,9999-10000,11371,19294,"
+      + "19638,50002,64738";
+
+  /** Simulated relay. */
+  private static class Relay {
+
+    private String fingerprint;
+
+    private String identityBase64;
+
+    private String nickname;
+
+    private String ipV4Address;
+
+    /* IPv6 address without square brackets, or null. */
+    private String ipV6Address;
+
+    private int orPort;
+
+    private boolean exit;
+
+    /* Exit address found by exit scanners, which is usually but not always
+     * the same as the OR address. */
+    private String exitAddress;
+
+    private int bandwidth;
+  }
+
+  /* Number of relays in the network at any time. */
+  private final int relayCount;
+
+  /* Share of relays replaced by new relays per day. */
+  private final double churnRate;
+
+  /* Share of relays with an IPv6 address. */
+  private final double ipV6Share;
+
+  /* Share of relays permitting exiting. */
+  private final double exitShare;
+
+  /* Share of relays placed in popular hosting /24 networks rather than in
+   * arbitrary networks. */
+  private final double clustering;
+
+  /* First simulated hour and number of simulated days. */
+  private final LocalDateTime start;
+
+  private final int days;
+
+  private final File outputDirectory;
+
+  private final Random random;
+
+  /* First three octets of popular hosting /24 networks, ordered by
+   * popularity. */
+  private final List<String> hostingNetworks = new ArrayList<>();
+
+  private final List<Relay> relays = new ArrayList<>();
+
+  SyntheticNetworkGenerator(int relayCount, double churnRate,
+      double ipV6Share, double exitShare, double clustering, LocalDate start,
+      int days, long seed, File outputDirectory) {
+    this.relayCount = relayCount;
+    this.churnRate = churnRate;
+    this.ipV6Share = ipV6Share;
+    this.exitShare = exitShare;
+    this.clustering = clustering;
+    this.start = start.atStartOfDay();
+    this.days = days;
+    this.random = new Random(seed);
+    this.outputDirectory = outputDirectory;
+  }
+
+  /** Generate consensuses and exit lists with parameters from system
+   * properties into the directory given as argument. */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: SyntheticNetworkGenerator <output directory>");
+      System.exit(1);
+    }
+    new SyntheticNetworkGenerator(
+        Integer.getInteger("exonerator.synthetic.relays", 6500),
+        Double.parseDouble(
+            System.getProperty("exonerator.synthetic.churn", "0.02")),
+        Double.parseDouble(
+            System.getProperty("exonerator.synthetic.ipv6", "0.3")),
+        Double.parseDouble(
+            System.getProperty("exonerator.synthetic.exits", "0.15")),
+        Double.parseDouble(
+            System.getProperty("exonerator.synthetic.clustering", "0.4")),
+        LocalDate.parse(
+            System.getProperty("exonerator.synthetic.start", "2019-01-01")),
+        Integer.getInteger("exonerator.synthetic.days", 7),
+        Long.getLong("exonerator.synthetic.seed", 1L),
+        new File(args[0])).generate();
+  }
+
+  /** Generate all consensuses and exit lists. */
+  void generate() throws IOException {
+    for (int i = 0; i < Math.max(1, this.relayCount / 25); i++) {
+      this.hostingNetworks.add(this.randomNetwork());
+    }
+    for (int i = 0; i < this.relayCount; i++) {
+      this.relays.add(this.createRelay());
+    }
+    LocalDateTime end = this.start.plusDays(this.days);
+    for (LocalDateTime validAfter = this.start; validAfter.isBefore(end);
+        validAfter = validAfter.plusHours(1L)) {
+      this.churn();
+      this.writeConsensus(validAfter);
+      this.writeExitList(validAfter.plusMinutes(2L));
+      if (validAfter.getHour() == 23) {
+        logger.info("Generated consensuses and exit lists for {}.",
+            validAfter.toLocalDate());
+      }
+    }
+  }
+
+  /* Replace relays by new relays at the configured churn rate, rounding
+   * the expected number of replaced relays per hour randomly. */
+  private void churn() {
+    double expectedReplacements = this.relayCount * this.churnRate / 24.0;
+    int replacements = (int) expectedReplacements;
+    if (this.random.nextDouble() < expectedReplacements - replacements) {
+      replacements++;
+    }
+    for (int i = 0; i < replacements; i++) {
+      this.relays.set(this.random.nextInt(this.relays.size()),
+          this.createRelay());
+    }
+  }
+
+  private Relay createRelay() {
+    Relay relay = new Relay();
+    byte[] identity = new byte[20];
+    this.random.nextBytes(identity);
+    relay.fingerprint = Hex.encodeHexString(identity).toUpperCase();
+    relay.identityBase64 = Base64.encodeBase64String(identity)
+        .replace("=", "");
+    relay.nickname = "Synthetic" + (1 + this.random.nextInt(999999));
+    String network;
+    int networkIndex = -1;
+    if (this.random.nextDouble() < this.clustering) {
+      /* Prefer the first, most popular hosting networks. */
+      networkIndex = (int) (Math.pow(this.random.nextDouble(), 3.0)
+          * this.hostingNetworks.size());
+      network = this.hostingNetworks.get(networkIndex);
+    } else {
+      network = this.randomNetwork();
+    }
+    relay.ipV4Address = network + "." + (1 + this.random.nextInt(254));
+    if (this.random.nextDouble() < this.ipV6Share) {
+      relay.ipV6Address = networkIndex >= 0
+          ? String.format("2001:db8:%x::%x", networkIndex,
+          1 + this.random.nextInt(0xffff))
+          : String.format("2a%02x:%x:%x::%x", 1 + this.random.nextInt(15),
+          this.random.nextInt(0x10000), this.random.nextInt(0x10000),
+          1 + this.random.nextInt(0xffff));
+    }
+    relay.orPort = this.random.nextBoolean() ? 9001
+        : 443 + this.random.nextInt(2) * 8000;
+    relay.exit = this.random.nextDouble() < this.exitShare;
+    relay.exitAddress = this.random.nextInt(20) == 0
+        ? network + "." + (1 + this.random.nextInt(254))
+        : relay.ipV4Address;
+    relay.bandwidth = 20 + (int) (Math.pow(this.random.nextDouble(), 4.0)
+        * 100000);
+    return relay;
+  }
+
+  /* Return the first three octets of an arbitrary public IPv4 network. */
+  private String randomNetwork() {
+    int firstOctet = 1 + this.random.nextInt(223);
+    while (firstOctet == 10 || firstOctet == 127) {
+      firstOctet = 1 + this.random.nextInt(223);
+    }
+    return firstOctet + "." + this.random.nextInt(256) + "."
+        + this.random.nextInt(256);
+  }
+
+  private void writeConsensus(LocalDateTime validAfter) throws IOException {
+    File file = new File(this.outputDirectory, "consensuses/"
+        + validAfter.format(FILE_NAME_FORMATTER) + "-consensus");
+    file.getParentFile().mkdirs();
+    try (BufferedWriter bw = Files.newBufferedWriter(file.toPath(),
+        StandardCharsets.US_ASCII)) {
+      bw.write("@type network-status-consensus-3 1.0\n"
+          + "network-status-version 3\n"
+          + "vote-status consensus\n"
+          + "consensus-method 28\n"
+          + "valid-after " + validAfter.format(DATE_TIME_FORMATTER) + "\n"
+          + "fresh-until " + validAfter.plusHours(1L)
+          .format(DATE_TIME_FORMATTER) + "\n"
+          + "valid-until " + validAfter.plusHours(3L)
+          .format(DATE_TIME_FORMATTER) + "\n"
+          + "voting-delay 300 300\n"
+          + "client-versions 0.4.2.6\n"
+          + "server-versions 0.4.2.6\n"
+          + "known-flags Authority BadExit Exit Fast Guard HSDir Running "
+          + "Stable V2Dir Valid\n"
+          + "dir-source synthetic " + AUTHORITY_FINGERPRINT
+          + " 192.0.2.1 192.0.2.1 80 443\n"
+          + "contact synthetic\n"
+          + "vote-digest " + this.randomHex(20) + "\n");
+      for (Relay relay : this.relays) {
+        bw.write("r " + relay.nickname + " " + relay.identityBase64 + " "
+            + Base64.encodeBase64String(this.randomBytes(20))
+            .replace("=", "") + " "
+            + validAfter.minusHours(this.random.nextInt(18))
+            .format(DATE_TIME_FORMATTER) + " " + relay.ipV4Address + " "
+            + relay.orPort + " 0\n");
+        if (null != relay.ipV6Address) {
+          bw.write("a [" + relay.ipV6Address + "]:" + relay.orPort + "\n");
+        }
+        bw.write(relay.exit ? "s Exit Fast Running Stable Valid\n"
+            : "s Fast Running Stable Valid\n");
+        bw.write("v Tor 0.4.2.6\n"
+            + "w Bandwidth=" + relay.bandwidth + "\n"
+            + (relay.exit ? "p accept " + EXIT_PORTS + "\n"
+            : "p reject 1-65535\n"));
+      }
+      bw.write("directory-footer\n"
+          + "bandwidth-weights Wbd=0 Wbe=0 Wbg=4203 Wbm=10000 Wdb=10000 "
+          + "Web=10000 Wed=10000 Wee=10000 Weg=10000 Wem=10000 Wgb=10000 "
+          + "Wgd=0 Wgg=5797 Wgm=5797 Wmb=10000 Wmd=0 Wme=0 Wmg=4203 "
+          + "Wmm=10000\n"
+          + "directory-signature sha256 " + AUTHORITY_FINGERPRINT + " "
+          + this.randomHex(20) + "\n"
+          + "-----BEGIN SIGNATURE-----\n"
+          + Base64.encodeBase64String(this.randomBytes(48)) + "\n"
+          + "-----END SIGNATURE-----\n");
+    }
+  }
+
+  private void writeExitList(LocalDateTime downloaded) throws IOException {
+    File file = new File(this.outputDirectory, "exit-lists/"
+        + downloaded.format(FILE_NAME_FORMATTER));
+    file.getParentFile().mkdirs();
+    try (BufferedWriter bw = Files.newBufferedWriter(file.toPath(),
+        StandardCharsets.US_ASCII)) {
+      bw.write("@type tordnsel 1.0\n"
+          + "Downloaded " + downloaded.format(DATE_TIME_FORMATTER) + "\n");
+      for (Relay relay : this.relays) {
+        if (!relay.exit) {
+          continue;
+        }
+        bw.write("ExitNode " + relay.fingerprint + "\n"
+            + "Published " + downloaded.minusHours(1L + this.random.nextInt(18))
+            .format(DATE_TIME_FORMATTER) + "\n"
+            + "LastStatus " + downloaded.minusMinutes(2L)
+            .format(DATE_TIME_FORMATTER) + "\n"
+            + "ExitAddress " + relay.exitAddress + " "
+            + downloaded.minusMinutes(3L + this.random.nextInt(180))
+            .format(DATE_TIME_FORMATTER) + "\n");
+      }
+    }
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    this.random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private String randomHex(int length) {
+    return Hex.encodeHexString(this.randomBytes(length)).toUpperCase();
+  }
+}
@@ -0,0 +1,109 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.nio.ByteBuffer;
+
+/** Bloom filter of hex-encoded /24 address prefixes of all relays listed or
+ * scanned on a given date, which is used to answer queries for addresses
+ * that were definitely not in use by a relay without looking at status
+ * entries or exit list entries.
+ *
+ * <p>The /24 prefix is the first three bytes of an IPv4 or IPv6 address, which
+ * is the same key that is stored in the date_address24 table and used by the
+ * search_by_date_address24 function. If the filters of all dates considered
+ * by a query do not contain the query prefix, there cannot be any matches or
+ * nearby addresses.</p> */
+final class AddressFilter {
+
+  /* False-positive probability that filters are sized for. */
+  private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+  /* Number of hash functions. */
+  private final int hashCount;
+
+  /* Filter bits. */
+  private final long[] bits;
+
+  private AddressFilter(int hashCount, long[] bits) {
+    this.hashCount = hashCount;
+    this.bits = bits;
+  }
+
+  /** Create an empty filter sized for the given number of prefixes. */
+  static AddressFilter create(int expectedPrefixes) {
+    int keys = Math.max(1, expectedPrefixes);
+    long bitCount = (long) Math.ceil(-keys * Math.log(
+        FALSE_POSITIVE_PROBABILITY) / (Math.log(2.0) * Math.log(2.0)));
+    int hashCount = Math.max(1,
+        (int) Math.round((double) bitCount / keys * Math.log(2.0)));
+    return new AddressFilter(hashCount, new long[(int) ((bitCount + 63L)
+        / 64L)]);
+  }
+
+  /** Add the given hex-encoded /24 prefix to this filter. */
+  void add(String address24Hex) {
+    long hash = hash(address24Hex);
+    long bitCount = 64L * this.bits.length;
+    for (int i = 0; i < this.hashCount; i++) {
+      long bit = index(hash, i, bitCount);
+      this.bits[(int) (bit >>> 6)] |= 1L << bit;
+    }
+  }
+
+  /** Return whether this filter might contain the given hex-encoded /24
+   * prefix, or {@code false} if it definitely does not contain it. */
+  boolean mightContain(String address24Hex) {
+    long hash = hash(address24Hex);
+    long bitCount = 64L * this.bits.length;
+    for (int i = 0; i < this.hashCount; i++) {
+      long bit = index(hash, i, bitCount);
+      if (0L == (this.bits[(int) (bit >>> 6)] & (1L << bit))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /* Hash the 24-bit prefix using the finalizer of the SplitMix64
+   * generator. */
+  private static long hash(String address24Hex) {
+    long hash = Long.parseLong(address24Hex, 16) + 0x9E3779B97F4A7C15L;
+    hash = (hash ^ (hash >>> 30)) * 0xBF58476D1CE4E5B9L;
+    hash = (hash ^ (hash >>> 27)) * 0x94D049BB133111EBL;
+    return hash ^ (hash >>> 31);
+  }
+
+  /* Derive the index of the i-th hash function from the two halves of the
+   * hash. */
+  private static long index(long hash, int index, long bitCount) {
+    int combined = (int) hash + index * (int) (hash >>> 32);
+    return (combined & Integer.MAX_VALUE) % bitCount;
+  }
+
+  /** Return a byte representation of this filter for storing it in the
+   * database. */
+  byte[] toBytes() {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 * this.bits.length);
+    buffer.putInt(this.hashCount);
+    buffer.asLongBuffer().put(this.bits);
+    return buffer.array();
+  }
+
+  /** Return a filter from the given byte representation, or {@code null} if
+   * the bytes do not represent a filter. */
+  static AddressFilter fromBytes(byte[] bytes) {
+    if (null == bytes || bytes.length < 12 || (bytes.length - 4) % 8 != 0) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    int hashCount = buffer.getInt();
+    if (hashCount < 1) {
+      return null;
+    }
+    long[] bits = new long[(bytes.length - 4) / 8];
+    buffer.asLongBuffer().get(bits);
+    return new AddressFilter(hashCount, bits);
+  }
+}
@@ -0,0 +1,41 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.time.Instant;
+
+/** Backend that answers queries of the frontend servlet, either a remote
+ * server via HTTP or the query engine in the same process. */
+interface Backend {
+
+  /** Result of querying the backend. */
+  class Result {
+
+    /* Query response, or null if the query failed. */
+    QueryResponse queryResponse;
+
+    /* Whether the query failed because it ran out of time. */
+    boolean timedOut;
+
+    /* Whether the backend confirmed that the response has not been modified
+     * since the client last requested it. */
+    boolean notModified;
+
+    /* Caching headers of the backend response, or null and 0 if unknown. */
+    String entityTag;
+
+    long lastModifiedMillis;
+
+    String cacheControl;
+  }
+
+  /** Query the backend for the given relay IP address and date, which have
+   * been validated before, and return the result, which includes whether the
+   * query did not complete before the given deadline. Pass on the given
+   * If-None-Match header value, or {@code null}, and If-Modified-Since time in
+   * milliseconds, or -1, so that the backend can tell whether its response
+   * would still be the same. */
+  Result query(String relayIp, String timestampStr, Instant deadline,
+      String ifNoneMatch, long ifModifiedSince);
+}
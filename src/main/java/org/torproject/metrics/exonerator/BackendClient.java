@@ -0,0 +1,139 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/** HTTP client for backend requests that reuses connections.
+ *
+ * <p>This client builds on the JDK's HTTP client, which keeps idle
+ * connections including established TLS sessions in a process-wide
+ * keep-alive cache, but only if response bodies are read completely and
+ * closed and if connections are not explicitly disconnected. This client
+ * makes sure to always do that, applies connect and read timeouts, and
+ * requests gzip-compressed responses.</p>
+ *
+ * <p>The number of cached idle connections per destination is taken from
+ * the JVM-wide http.maxConnections system property, which needs to be set
+ * at startup before the first HTTP connection is made, as done in
+ * {@link ServerMain}.</p> */
+class BackendClient {
+
+  /** Response of the backend with status code, caching headers, and the
+   * decompressed body. */
+  static class Response {
+
+    /* HTTP status code. */
+    int statusCode;
+
+    /* ETag header value, or {@code null} if not present. */
+    String entityTag;
+
+    /* Last-Modified header value in milliseconds since the epoch, or 0 if
+     * not present. */
+    long lastModifiedMillis;
+
+    /* Cache-Control header value, or {@code null} if not present. */
+    String cacheControl;
+
+    /* Decompressed response body, which is empty if the response does not
+     * have a body. */
+    byte[] body;
+  }
+
+  private final String baseUrl;
+
+  /* Maximum time in milliseconds for establishing a new connection. */
+  private final long connectTimeoutMillis
+      = Long.getLong("exonerator.backend.connect.timeout", 2000L);
+
+  BackendClient(String baseUrl) {
+    this.baseUrl = baseUrl;
+  }
+
+  /** Send a GET request for the given path and query with the given request
+   * headers and return the response, or throw an exception if the
+   * response including its body is not complete within the given number of
+   * milliseconds. */
+  Response get(String pathAndQuery, Map<String, String> requestHeaders,
+      long timeoutMillis) throws IOException {
+    if (timeoutMillis <= 0L) {
+      throw new SocketTimeoutException("No time left for backend request.");
+    }
+    long deadlineNanos = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    HttpURLConnection connection = (HttpURLConnection)
+        new URL(this.baseUrl + pathAndQuery).openConnection();
+    try {
+      connection.setConnectTimeout((int) Math.min(timeoutMillis,
+          this.connectTimeoutMillis));
+      connection.setReadTimeout((int) timeoutMillis);
+      connection.setUseCaches(false);
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      for (Map.Entry<String, String> e : requestHeaders.entrySet()) {
+        connection.setRequestProperty(e.getKey(), e.getValue());
+      }
+      Response response = new Response();
+      response.statusCode = connection.getResponseCode();
+      response.entityTag = connection.getHeaderField("ETag");
+      response.lastModifiedMillis = connection.getLastModified();
+      response.cacheControl = connection.getHeaderField("Cache-Control");
+      InputStream stream = response.statusCode >= 400
+          ? connection.getErrorStream() : connection.getInputStream();
+      response.body = readFully(stream,
+          "gzip".equalsIgnoreCase(connection.getContentEncoding()),
+          deadlineNanos);
+      return response;
+    } catch (IOException e) {
+      /* Don't return this connection to the keep-alive cache, because it
+       * might be in an undefined state. */
+      connection.disconnect();
+      throw e;
+    }
+  }
+
+  /* Read the given stream to the end and close it, which returns the
+   * underlying connection to the keep-alive cache, or throw an exception if
+   * the given deadline passes while reading. The read timeout only bounds
+   * the time of each single read, so that a slowly trickling body could
+   * otherwise take much longer. */
+  private static byte[] readFully(InputStream stream, boolean gzipped,
+      long deadlineNanos) throws IOException {
+    if (null == stream) {
+      return new byte[0];
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (InputStream raw = stream) {
+      if (gzipped) {
+        try (InputStream decompressed = new GZIPInputStream(raw)) {
+          copy(decompressed, baos, deadlineNanos);
+        }
+      } else {
+        copy(raw, baos, deadlineNanos);
+      }
+    }
+    return baos.toByteArray();
+  }
+
+  private static void copy(InputStream in, ByteArrayOutputStream out,
+      long deadlineNanos) throws IOException {
+    byte[] buffer = new byte[8192];
+    int length;
+    while ((length = in.read(buffer)) >= 0) {
+      if (System.nanoTime() - deadlineNanos > 0L) {
+        throw new SocketTimeoutException("Backend response not complete "
+            + "before deadline.");
+      }
+      out.write(buffer, 0, length);
+    }
+  }
+}
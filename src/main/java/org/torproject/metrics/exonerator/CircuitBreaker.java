@@ -0,0 +1,196 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+/** Circuit breaker for backend requests that opens when too many recent
+ * requests failed or were slow, rejects requests while open, and lets single
+ * probe requests through after a while to find out whether the backend has
+ * recovered.
+ *
+ * <p>Recent requests are counted in a rolling window made of a fixed number
+ * of buckets, each covering an equal share of the window. All times are in
+ * milliseconds and are passed in by callers.</p>
+ *
+ * <p>Each admitted request receives a ticket that needs to be passed back
+ * when recording its outcome. Tickets make sure that only the probe request
+ * decides whether to close or open the circuit again, and that requests
+ * admitted before the circuit last changed its state, which may complete
+ * much later, are not counted.</p> */
+class CircuitBreaker {
+
+  /** State of the circuit breaker. */
+  enum State {
+
+    /** Requests are let through and counted. */
+    CLOSED,
+
+    /** Requests are rejected until the open period has passed. */
+    OPEN,
+
+    /** A single probe request is let through, and its outcome decides
+     * whether to close or open the circuit again. */
+    HALF_OPEN
+  }
+
+  /** Ticket returned for rejected requests. */
+  static final long REJECTED = -1L;
+
+  private static final int BUCKETS = 10;
+
+  private final long bucketMillis;
+
+  private final int minRequests;
+
+  private final double maxFailureRate;
+
+  private final long slowMillis;
+
+  private final long openMillis;
+
+  /* Start times and counts of requests, failures, and slow requests per
+   * bucket, indexed by start time divided by bucket length modulo number of
+   * buckets. */
+  private final long[] bucketStarts = new long[BUCKETS];
+
+  private final int[] requests = new int[BUCKETS];
+
+  private final int[] failures = new int[BUCKETS];
+
+  private final int[] slowRequests = new int[BUCKETS];
+
+  private State state = State.CLOSED;
+
+  /* Time when the circuit was last opened. */
+  private long openedMillis;
+
+  /* Last ticket handed out to an admitted request. */
+  private long lastTicket;
+
+  /* Last ticket handed out before the circuit was last closed, or
+   * Long.MAX_VALUE while the circuit is not closed, so that only requests
+   * with later tickets are counted in closed state. */
+  private long closedAfterTicket;
+
+  /* Ticket of the probe request currently running in half-open state, or
+   * REJECTED if no probe request is running. */
+  private long probeTicket = REJECTED;
+
+  /** Create a circuit breaker that opens for the given time when at least the
+   * given number of requests were made in the given window and the given
+   * rate of them failed or took longer than the given time. */
+  CircuitBreaker(long windowMillis, int minRequests, double maxFailureRate,
+      long slowMillis, long openMillis) {
+    this.bucketMillis = Math.max(1L, windowMillis / BUCKETS);
+    this.minRequests = minRequests;
+    this.maxFailureRate = maxFailureRate;
+    this.slowMillis = slowMillis;
+    this.openMillis = openMillis;
+    for (int i = 0; i < BUCKETS; i++) {
+      this.bucketStarts[i] = Long.MIN_VALUE;
+    }
+  }
+
+  /** Return a ticket if a request may be made at the given time, which
+   * must be followed by recording its outcome with that ticket, or
+   * {@link #REJECTED} if not. */
+  synchronized long allowRequest(long nowMillis) {
+    switch (this.state) {
+      case OPEN:
+        if (nowMillis - this.openedMillis < this.openMillis) {
+          return REJECTED;
+        }
+        this.state = State.HALF_OPEN;
+        this.probeTicket = ++this.lastTicket;
+        return this.probeTicket;
+      case HALF_OPEN:
+        if (REJECTED != this.probeTicket) {
+          return REJECTED;
+        }
+        this.probeTicket = ++this.lastTicket;
+        return this.probeTicket;
+      default:
+        return ++this.lastTicket;
+    }
+  }
+
+  /** Record the outcome of a request with the given ticket that completed at
+   * the given time after taking the given time. */
+  synchronized void record(long ticket, boolean failed, long durationMillis,
+      long nowMillis) {
+    boolean slow = durationMillis >= this.slowMillis;
+    if (State.HALF_OPEN == this.state) {
+      if (ticket != this.probeTicket) {
+        /* Ignore requests that were admitted before opening the circuit and
+         * only completed now. */
+        return;
+      }
+      this.probeTicket = REJECTED;
+      if (failed || slow) {
+        this.open(nowMillis);
+      } else {
+        this.state = State.CLOSED;
+        this.closedAfterTicket = this.lastTicket;
+        for (int i = 0; i < BUCKETS; i++) {
+          this.bucketStarts[i] = Long.MIN_VALUE;
+        }
+      }
+      return;
+    } else if (State.OPEN == this.state
+        || ticket <= this.closedAfterTicket) {
+      /* Ignore requests that were admitted before the circuit was last
+       * opened or closed. */
+      return;
+    }
+    int bucket = this.bucket(nowMillis);
+    this.requests[bucket]++;
+    if (failed) {
+      this.failures[bucket]++;
+    }
+    if (slow) {
+      this.slowRequests[bucket]++;
+    }
+    int totalRequests = 0;
+    int totalFailures = 0;
+    int totalSlowRequests = 0;
+    long windowStart = nowMillis - this.bucketMillis * BUCKETS;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (this.bucketStarts[i] > windowStart) {
+        totalRequests += this.requests[i];
+        totalFailures += this.failures[i];
+        totalSlowRequests += this.slowRequests[i];
+      }
+    }
+    if (totalRequests >= this.minRequests
+        && (totalFailures >= totalRequests * this.maxFailureRate
+        || totalSlowRequests >= totalRequests * this.maxFailureRate)) {
+      this.open(nowMillis);
+    }
+  }
+
+  /* Return the index of the bucket for the given time, after resetting it if
+   * it was last used for an earlier time. Requests that are recorded late
+   * are counted in the newer bucket. */
+  private int bucket(long nowMillis) {
+    long bucketStart = nowMillis - Math.floorMod(nowMillis, this.bucketMillis);
+    int bucket = (int) Math.floorMod(bucketStart / this.bucketMillis,
+        (long) BUCKETS);
+    if (this.bucketStarts[bucket] < bucketStart) {
+      this.bucketStarts[bucket] = bucketStart;
+      this.requests[bucket] = 0;
+      this.failures[bucket] = 0;
+      this.slowRequests[bucket] = 0;
+    }
+    return bucket;
+  }
+
+  private void open(long nowMillis) {
+    this.state = State.OPEN;
+    this.openedMillis = nowMillis;
+    this.closedAfterTicket = Long.MAX_VALUE;
+  }
+
+  synchronized State getState() {
+    return this.state;
+  }
+}
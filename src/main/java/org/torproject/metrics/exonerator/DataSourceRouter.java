@@ -0,0 +1,265 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+/** Data source that routes read-only queries to a primary database and any
+ * number of read replicas.
+ *
+ * <p>Connections are taken from the eligible replica with the fewest
+ * outstanding connections, and only from the primary if no replica is
+ * eligible or if there are no replicas. A member is eligible if its last
+ * health check succeeded and its import watermark is not behind the newest
+ * import watermark of all members by more than the configured maximum lag.
+ * If obtaining a connection from a member fails, that member is marked as
+ * unhealthy until the next health check, and the next member is tried.</p> */
+class DataSourceRouter implements DataSource {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(DataSourceRouter.class);
+
+  /* Maximum time in milliseconds that a replica's import watermark may be
+   * behind the newest import watermark for the replica to be used. */
+  private static final long maxLagMillis
+      = Long.getLong("exonerator.db.replica.maxlag", 300000L);
+
+  /* Maximum time in seconds for a health check of a single member. */
+  private static final int HEALTH_CHECK_TIMEOUT_SECONDS = 5;
+
+  /** Primary database or read replica. */
+  private static class Member {
+
+    /* Name for log messages. */
+    private final String name;
+
+    /* Pooled data source of this member. */
+    private final DataSource dataSource;
+
+    /* Whether this is the primary database that the importer writes to. */
+    private final boolean primary;
+
+    /* Number of connections obtained from this member and not yet
+     * closed. */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /* Whether the last health check or connection attempt succeeded. */
+    private volatile boolean healthy = true;
+
+    /* Whether this member is healthy and not lagging behind. */
+    private volatile boolean eligible = true;
+
+    /* Import watermark found in the last health check, or null if unknown
+     * or if this member is empty. */
+    private volatile Instant watermark;
+
+    private Member(String name, DataSource dataSource, boolean primary) {
+      this.name = name;
+      this.dataSource = dataSource;
+      this.primary = primary;
+    }
+  }
+
+  private final List<Member> members = new ArrayList<>();
+
+  /** Create a router for the given primary database and read replicas by
+   * name. */
+  DataSourceRouter(DataSource primary, Map<String, DataSource> replicas) {
+    this.members.add(new Member("primary", primary, true));
+    for (Map.Entry<String, DataSource> e : replicas.entrySet()) {
+      this.members.add(new Member(e.getKey(), e.getValue(), false));
+    }
+  }
+
+  /** Return a connection from the best available member, which reduces the
+   * member's outstanding connection count again when closed. */
+  @Override
+  public Connection getConnection() throws SQLException {
+    SQLException lastException = null;
+    for (Member member : this.candidates()) {
+      try {
+        Connection connection = member.dataSource.getConnection();
+        member.outstanding.incrementAndGet();
+        return wrap(connection, member);
+      } catch (SQLException e) {
+        if (member.healthy) {
+          logger.warn("Unable to obtain connection from {}.  Marking as "
+              + "unhealthy until next health check.", member.name, e);
+        }
+        member.healthy = false;
+        member.eligible = false;
+        lastException = e;
+      }
+    }
+    throw null != lastException ? lastException
+        : new SQLException("No database available.");
+  }
+
+  @Override
+  public Connection getConnection(String username, String password)
+      throws SQLException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  /* Return members to try in order: eligible replicas with the fewest
+   * outstanding connections first, then the primary, and finally all other
+   * members as last resort. */
+  private List<Member> candidates() {
+    List<Member> replicas = new ArrayList<>();
+    List<Member> others = new ArrayList<>();
+    Member primary = null;
+    for (Member member : this.members) {
+      if (member.primary) {
+        primary = member;
+      } else if (member.eligible) {
+        replicas.add(member);
+      } else {
+        others.add(member);
+      }
+    }
+    replicas.sort(Comparator.comparingInt(m -> m.outstanding.get()));
+    List<Member> candidates = new ArrayList<>(replicas);
+    candidates.add(primary);
+    candidates.addAll(others);
+    return candidates;
+  }
+
+  private static Connection wrap(Connection connection, Member member) {
+    AtomicBoolean closed = new AtomicBoolean();
+    return (Connection) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        (proxy, method, args) -> {
+          if ("close".equals(method.getName())
+              && closed.compareAndSet(false, true)) {
+            member.outstanding.decrementAndGet();
+          }
+          try {
+            return method.invoke(connection, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+  }
+
+  /** Check the health and import watermark of all members, update which
+   * members are eligible, and return the oldest import watermark of the
+   * members that will be used, so that responses are never labeled with a
+   * newer watermark than the data they are based on. */
+  Instant checkMembers() throws SQLException {
+    Instant newestWatermark = null;
+    for (Member member : this.members) {
+      try (Connection connection = member.dataSource.getConnection();
+          CallableStatement cs = connection.prepareCall(
+              "{call import_watermark()}")) {
+        cs.setQueryTimeout(HEALTH_CHECK_TIMEOUT_SECONDS);
+        try (ResultSet rs = cs.executeQuery()) {
+          LocalDateTime watermark = rs.next()
+              ? rs.getObject(1, LocalDateTime.class) : null;
+          member.watermark = null == watermark ? null
+              : watermark.toInstant(ZoneOffset.UTC);
+        }
+        if (!member.healthy) {
+          logger.info("{} is healthy again.", member.name);
+        }
+        member.healthy = true;
+      } catch (SQLException e) {
+        if (member.healthy) {
+          logger.warn("Health check of {} failed.", member.name, e);
+        }
+        member.healthy = false;
+      }
+      if (member.healthy && null != member.watermark
+          && (null == newestWatermark
+          || member.watermark.isAfter(newestWatermark))) {
+        newestWatermark = member.watermark;
+      }
+    }
+    boolean anyEligibleReplica = false;
+    for (Member member : this.members) {
+      boolean eligible = member.healthy && (null == newestWatermark
+          || null != member.watermark && !member.watermark.plusMillis(
+          maxLagMillis).isBefore(newestWatermark));
+      if (member.eligible && !eligible && member.healthy) {
+        logger.info("{} is lagging behind with import watermark {}.",
+            member.name, member.watermark);
+      }
+      member.eligible = eligible;
+      anyEligibleReplica |= eligible && !member.primary;
+    }
+    Instant servedWatermark = null;
+    boolean anyServing = false;
+    for (Member member : this.members) {
+      if (member.eligible && member.primary != anyEligibleReplica) {
+        anyServing = true;
+        if (null == member.watermark) {
+          return null;
+        } else if (null == servedWatermark
+            || member.watermark.isBefore(servedWatermark)) {
+          servedWatermark = member.watermark;
+        }
+      }
+    }
+    if (!anyServing) {
+      throw new SQLException("No database passed the health check.");
+    }
+    return servedWatermark;
+  }
+
+  @Override
+  public PrintWriter getLogWriter() throws SQLException {
+    return this.members.get(0).dataSource.getLogWriter();
+  }
+
+  @Override
+  public void setLogWriter(PrintWriter out) throws SQLException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public void setLoginTimeout(int seconds) throws SQLException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public int getLoginTimeout() throws SQLException {
+    return this.members.get(0).dataSource.getLoginTimeout();
+  }
+
+  @Override
+  public java.util.logging.Logger getParentLogger()
+      throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public <T> T unwrap(Class<T> iface) throws SQLException {
+    throw new SQLException("Not a wrapper for " + iface + ".");
+  }
+
+  @Override
+  public boolean isWrapperFor(Class<?> iface) {
+    return false;
+  }
+}
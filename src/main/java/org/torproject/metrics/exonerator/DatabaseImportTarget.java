@@ -0,0 +1,57 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+
+/** Import target that inserts entries into the ExoneraTor database using
+ * the insert_* functions, which skip entries that are already present. */
+class DatabaseImportTarget implements ImportTarget {
+
+  /* Callable statements to import data into the database. */
+  private final CallableStatement insertStatusentryStatement;
+
+  private final CallableStatement insertExitlistentryStatement;
+
+  /** Prepare statements for importing data over the given connection.
+   *
+   * @throws SQLException if the statements cannot be prepared, for example
+   *     because the database uses a different schema
+   */
+  DatabaseImportTarget(Connection connection) throws SQLException {
+    this.insertStatusentryStatement = connection.prepareCall(
+        "{call insert_statusentry_oraddress(?, ?, ?, ?, ?, ?)}");
+    this.insertExitlistentryStatement = connection.prepareCall(
+        "{call insert_exitlistentry_exitaddress(?, ?, ?, ?)}");
+  }
+
+  @Override
+  public void importStatusEntry(LocalDateTime validAfter,
+      String fingerprintBase64, String nickname, Boolean exit,
+      String orAddress, String orAddress24) throws SQLException {
+    this.insertStatusentryStatement.clearParameters();
+    this.insertStatusentryStatement.setObject(1, validAfter);
+    this.insertStatusentryStatement.setString(2, fingerprintBase64);
+    this.insertStatusentryStatement.setString(3, orAddress);
+    this.insertStatusentryStatement.setString(4, orAddress24);
+    this.insertStatusentryStatement.setString(5, nickname);
+    this.insertStatusentryStatement.setBoolean(6, exit);
+    this.insertStatusentryStatement.execute();
+  }
+
+  @Override
+  public void importExitListEntry(String fingerprintBase64,
+      String exitAddress, String exitAddress24, LocalDateTime scanned)
+      throws SQLException {
+    this.insertExitlistentryStatement.clearParameters();
+    this.insertExitlistentryStatement.setString(1, fingerprintBase64);
+    this.insertExitlistentryStatement.setString(2, exitAddress);
+    this.insertExitlistentryStatement.setString(3, exitAddress24);
+    this.insertExitlistentryStatement.setObject(4, scanned);
+    this.insertExitlistentryStatement.execute();
+  }
+}
@@ -0,0 +1,509 @@
+/* Copyright 2017--2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Query source that runs queries against the ExoneraTor database and its
+ * read replicas, if configured, that looks up relays by fingerprint, and
+ * that exports entries through a cursor. */
+class DatabaseQuerySource
+    implements QuerySource, RelayHistorySource, ExportSource {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(DatabaseQuerySource.class);
+
+  private final DataSourceRouter router;
+
+  /* Filters of /24 prefixes by date, replaced as a whole when loading newly
+   * built filters. */
+  private volatile Map<LocalDate, AddressFilter> addressFilters
+      = new HashMap<>();
+
+  /* Build time of the most recently built filter that was loaded, or null if
+   * no filters have been loaded yet. */
+  private LocalDateTime addressFiltersBuilt;
+
+  /* Known relay addresses by date, replaced as a whole when loading
+   * addresses of more dates. */
+  private volatile Map<LocalDate, KnownAddresses> knownAddresses
+      = new HashMap<>();
+
+  /* Number of most recent dates to keep known relay addresses for, or 0 to
+   * not keep them at all. */
+  private final int knownAddressesDays = Integer.getInteger(
+      "exonerator.addresses.days", 365);
+
+  /* Maximum number of dates to load known relay addresses for at once, so
+   * that loading all dates after a restart does not delay refreshing the
+   * import watermark for too long. */
+  private static final int KNOWN_ADDRESSES_DATES_PER_LOAD = 31;
+
+  /* Date of the import watermark, or null if unknown. Filters are only used
+   * for dates that are far enough behind this date that the importer will not
+   * add any data for them anymore, so that they cannot be outdated. */
+  private volatile LocalDate watermarkDate;
+
+  /* Number of queries that were answered using filters only. */
+  private final AtomicLong filteredQueries = new AtomicLong();
+
+  private static final LatencyHistogram poolWaitDuration
+      = Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "query",
+      "phase", "pool_wait");
+
+  private static final LatencyHistogram executionDuration
+      = Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "query",
+      "phase", "execution");
+
+  /* Maximum time in seconds for obtaining a query plan, which runs the query
+   * again. */
+  private static final int EXPLAIN_TIMEOUT_SECONDS = 60;
+
+  /* Number of rows to fetch at once when exporting entries, which bounds the
+   * memory used by an export regardless of the date range. */
+  private static final int EXPORT_FETCH_SIZE = 1000;
+
+  DatabaseQuerySource(DataSourceRouter router) {
+    this.router = router;
+  }
+
+  /** Return whether the known addresses or filters of all dates considered
+   * by a query for the given date show that there cannot be any matches for
+   * the given address or nearby addresses, or {@code false} if that is not
+   * certain.
+   *
+   * <p>Known addresses show this if there are no relays with addresses in
+   * the same /24 network as the given IPv4 address or in the same /48
+   * network as the given IPv6 address, which are the networks of nearby
+   * addresses. Filters only show this if there are no relays with addresses
+   * in the given /24 prefix, which is much less specific for IPv6
+   * addresses.</p> */
+  boolean isDefinitelyNegative(LocalDate timestamp, String address,
+      String address24Hex) {
+    LocalDate currentWatermarkDate = this.watermarkDate;
+    if (null == currentWatermarkDate || !timestamp.plusDays(
+        HttpCaching.STABLE_AFTER_DAYS).isBefore(currentWatermarkDate)) {
+      return false;
+    }
+    Map<LocalDate, KnownAddresses> currentKnownAddresses
+        = this.knownAddresses;
+    boolean allDatesKnown = true;
+    for (int days = -2; days <= 1; days++) {
+      KnownAddresses dateAddresses = currentKnownAddresses.get(
+          timestamp.plusDays(days));
+      if (null == dateAddresses) {
+        allDatesKnown = false;
+      } else if (dateAddresses.containsNearbyAddress(address)) {
+        return false;
+      }
+    }
+    if (allDatesKnown) {
+      return true;
+    }
+    Map<LocalDate, AddressFilter> currentAddressFilters = this.addressFilters;
+    for (int days = -2; days <= 1; days++) {
+      AddressFilter addressFilter = currentAddressFilters.get(
+          timestamp.plusDays(days));
+      if (null == addressFilter || addressFilter.mightContain(address24Hex)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean search(LocalDate timestamp, String address,
+      String address24Hex, QueryResponseBuilder builder,
+      QueryDeadline deadline) {
+
+    /* Make the database query, unless the query has already run out of time
+     * while waiting in the queue. */
+    if (deadline.isExpired()) {
+      return false;
+    }
+    /* Only look up dates if known addresses or filters show that there
+     * cannot be any matches or nearby addresses. */
+    final boolean definitelyNegative = this.isDefinitelyNegative(timestamp,
+        address, address24Hex);
+    if (definitelyNegative) {
+      this.filteredQueries.incrementAndGet();
+    }
+    final long requestedConnectionNanos = System.nanoTime();
+    try (Connection conn = this.router.getConnection()) {
+      final long poolWaitNanos = System.nanoTime() - requestedConnectionNanos;
+      poolWaitDuration.recordNanos(poolWaitNanos);
+      try (CallableStatement cs = conn.prepareCall(definitelyNegative
+          ? "{call search_dates(?)}"
+          : "{call search_by_date_address24(?, ?)}")) {
+        cs.setObject(1, timestamp);
+        if (!definitelyNegative) {
+          cs.setString(2, address24Hex);
+        }
+        int remainingSeconds = deadline.remainingSeconds();
+        if (remainingSeconds <= 0) {
+          return false;
+        }
+        cs.setQueryTimeout(remainingSeconds);
+        deadline.statement = cs;
+        final long executionStartNanos = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try (ResultSet rs = cs.executeQuery()) {
+          while (rs.next()) {
+            rows++;
+            LocalDate date = rs.getObject(1, LocalDate.class);
+            if (definitelyNegative) {
+              if (null != date) {
+                builder.addDate(date);
+              }
+              continue;
+            }
+            String fingerprintBase64 = rs.getString(2);
+            LocalDateTime scanned = rs.getObject(3, LocalDateTime.class);
+            String exitAddress = rs.getString(4);
+            LocalDateTime validAfter = rs.getObject(5, LocalDateTime.class);
+            String nickname = rs.getString(6);
+            Boolean exit = rs.getBoolean(7);
+            String orAddress = rs.getString(8);
+            if (null != date) {
+              builder.addDate(date);
+            } else if (null != scanned) {
+              builder.addExitListEntry(fingerprintBase64, scanned,
+                  exitAddress);
+            } else if (null != validAfter) {
+              builder.addStatusEntry(fingerprintBase64, validAfter, nickname,
+                  exit, orAddress);
+            }
+          }
+          failed = false;
+        } catch (SQLException e) {
+          logger.warn("Result set error.  Returning 'false'.", e);
+          return false;
+        } finally {
+          deadline.statement = null;
+          long executionNanos = System.nanoTime() - executionStartNanos;
+          if (SlowQueryLog.isSlow(poolWaitNanos + executionNanos)) {
+            SlowQueryLog.SlowQuery slowQuery = new SlowQueryLog.SlowQuery();
+            slowQuery.queryDate = timestamp.toString();
+            slowQuery.address24 = address24Hex;
+            slowQuery.filtered = definitelyNegative;
+            slowQuery.rows = rows;
+            slowQuery.failed = failed;
+            slowQuery.poolWaitMillis = poolWaitNanos / 1.0e6;
+            slowQuery.executionMillis = executionNanos / 1.0e6;
+            SlowQueryLog.add(slowQuery, definitelyNegative ? null
+                : () -> this.explain(timestamp, address24Hex));
+          }
+        }
+        executionDuration.recordSince(executionStartNanos);
+      } catch (SQLException e) {
+        logger.warn("Callable statement error.  Returning 'false'.", e);
+        return false;
+      }
+    } catch (Throwable e) { // Catch all problems left.
+      logger.warn("Database error.  Returning 'false'.", e);
+      return false;
+    }
+    return true;
+  }
+
+  /** Run the statements of a search for the given date and /24 prefix using
+   * EXPLAIN (ANALYZE, BUFFERS) on a separate connection and return the query
+   * plan. */
+  private String explain(LocalDate timestamp, String address24Hex)
+      throws SQLException {
+    StringBuilder sb = new StringBuilder();
+    try (Connection conn = this.router.getConnection();
+        CallableStatement cs = conn.prepareCall(
+            "{call explain_search_by_date_address24(?, ?)}")) {
+      cs.setObject(1, timestamp);
+      cs.setString(2, address24Hex);
+      cs.setQueryTimeout(EXPLAIN_TIMEOUT_SECONDS);
+      try (ResultSet rs = cs.executeQuery()) {
+        while (rs.next()) {
+          sb.append(rs.getString(1)).append('\n');
+        }
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public boolean searchFingerprint(String fingerprintBase64,
+      LocalDate startDate, LocalDate endDate, RelayHistoryBuilder builder,
+      QueryDeadline deadline) {
+    if (deadline.isExpired()) {
+      return false;
+    }
+    try (Connection conn = this.router.getConnection();
+        CallableStatement cs = conn.prepareCall(
+            "{call search_by_fingerprint(?, ?, ?)}")) {
+      cs.setString(1, fingerprintBase64);
+      cs.setObject(2, startDate);
+      cs.setObject(3, endDate);
+      int remainingSeconds = deadline.remainingSeconds();
+      if (remainingSeconds <= 0) {
+        return false;
+      }
+      cs.setQueryTimeout(remainingSeconds);
+      deadline.statement = cs;
+      try (ResultSet rs = cs.executeQuery()) {
+        while (rs.next()) {
+          LocalDateTime scanned = rs.getObject(1, LocalDateTime.class);
+          LocalDateTime validAfter = rs.getObject(3, LocalDateTime.class);
+          if (null != scanned) {
+            builder.addExitListEntry(scanned, rs.getString(2));
+          } else if (null != validAfter) {
+            Boolean exit = rs.getBoolean(5);
+            if (rs.wasNull()) {
+              exit = null;
+            }
+            builder.addStatusEntry(validAfter, rs.getString(4), exit,
+                rs.getString(6));
+          }
+        }
+      } finally {
+        deadline.statement = null;
+      }
+    } catch (Throwable e) { // Catch all problems left.
+      logger.warn("Database error.  Returning 'false'.", e);
+      return false;
+    }
+    return true;
+  }
+
+  /** Export entries using cursors, which requires running both statements
+   * in a transaction. */
+  @Override
+  public void export(LocalDate startDate, LocalDate endDate,
+      ExportPosition after, ExportSource.Sink sink)
+      throws IOException, SQLException {
+    try (Connection conn = this.router.getConnection()) {
+      boolean autoCommit = conn.getAutoCommit();
+      conn.setAutoCommit(false);
+      try {
+        if (null == after || !after.exitListEntry) {
+          this.exportStatusEntries(conn, startDate, endDate, after, sink);
+          after = null;
+        }
+        this.exportExitListEntries(conn, startDate, endDate, after, sink);
+        conn.commit();
+      } finally {
+        if (!conn.getAutoCommit()) {
+          conn.rollback();
+        }
+        conn.setAutoCommit(autoCommit);
+      }
+    }
+  }
+
+  /* Export status entries, combining rows with the same valid-after time and
+   * fingerprint into a single entry with all OR addresses. */
+  private void exportStatusEntries(Connection conn, LocalDate startDate,
+      LocalDate endDate, ExportPosition after, ExportSource.Sink sink)
+      throws IOException, SQLException {
+    try (CallableStatement cs = conn.prepareCall(
+        "{call export_statusentries_after(?, ?, ?, ?)}")) {
+      cs.setObject(1, startDate);
+      cs.setObject(2, endDate);
+      cs.setObject(3, null == after ? startDate.atStartOfDay() : after.time);
+      cs.setInt(4, null == after ? 0 : after.fingerprintId);
+      cs.setFetchSize(EXPORT_FETCH_SIZE);
+      try (ResultSet rs = cs.executeQuery()) {
+        LocalDateTime validAfter = null;
+        int fingerprintId = 0;
+        String fingerprintBase64 = null;
+        String nickname = null;
+        Boolean exit = null;
+        List<String> orAddresses = new ArrayList<>();
+        while (rs.next()) {
+          LocalDateTime rowValidAfter = rs.getObject(1, LocalDateTime.class);
+          int rowFingerprintId = rs.getInt(2);
+          if (!rowValidAfter.equals(validAfter)
+              || rowFingerprintId != fingerprintId) {
+            if (null != validAfter) {
+              sink.statusEntry(validAfter, fingerprintBase64, nickname, exit,
+                  orAddresses, ExportPosition.afterStatusEntry(validAfter,
+                  fingerprintId));
+            }
+            validAfter = rowValidAfter;
+            fingerprintId = rowFingerprintId;
+            fingerprintBase64 = rs.getString(3);
+            nickname = rs.getString(4);
+            exit = rs.getBoolean(5);
+            if (rs.wasNull()) {
+              exit = null;
+            }
+            orAddresses = new ArrayList<>();
+          }
+          String orAddress = rs.getString(6);
+          orAddresses.add(orAddress.contains(":") ? "[" + orAddress + "]"
+              : orAddress);
+        }
+        if (null != validAfter) {
+          sink.statusEntry(validAfter, fingerprintBase64, nickname, exit,
+              orAddresses, ExportPosition.afterStatusEntry(validAfter,
+              fingerprintId));
+        }
+      }
+    }
+  }
+
+  private void exportExitListEntries(Connection conn, LocalDate startDate,
+      LocalDate endDate, ExportPosition after, ExportSource.Sink sink)
+      throws IOException, SQLException {
+    try (CallableStatement cs = conn.prepareCall(
+        "{call export_exitlistentries_after(?, ?, ?, ?, ?)}")) {
+      cs.setObject(1, startDate);
+      cs.setObject(2, endDate);
+      cs.setObject(3, null == after ? startDate.atStartOfDay() : after.time);
+      cs.setInt(4, null == after ? 0 : after.fingerprintId);
+      cs.setObject(5, null == after ? "0.0.0.0" : after.exitAddress,
+          Types.OTHER);
+      cs.setFetchSize(EXPORT_FETCH_SIZE);
+      try (ResultSet rs = cs.executeQuery()) {
+        while (rs.next()) {
+          LocalDateTime scanned = rs.getObject(1, LocalDateTime.class);
+          int fingerprintId = rs.getInt(2);
+          String exitAddress = rs.getString(4);
+          sink.exitListEntry(scanned, rs.getString(3), exitAddress,
+              ExportPosition.afterExitListEntry(scanned, fingerprintId,
+              exitAddress));
+        }
+      }
+    }
+  }
+
+  /** Check the health of the primary database and read replicas, load any
+   * filters that were built since the last invocation, and return the
+   * import watermark of the databases that queries are routed to. */
+  @Override
+  public Instant loadImportWatermark() throws SQLException {
+    Instant watermark = this.router.checkMembers();
+    LocalDate loadedWatermarkDate = null == watermark ? null
+        : watermark.atOffset(ZoneOffset.UTC).toLocalDate();
+    try (Connection conn = this.router.getConnection()) {
+      this.loadAddressFilters(conn);
+      if (null != loadedWatermarkDate) {
+        this.loadKnownAddresses(conn, loadedWatermarkDate);
+      }
+    }
+    this.watermarkDate = loadedWatermarkDate;
+    return watermark;
+  }
+
+  /* Load known relay addresses of the most recent dates that the importer
+   * will not add any data for anymore and that have not been loaded yet,
+   * starting with the most recent date, and forget addresses of dates that
+   * are not recent enough anymore. */
+  private void loadKnownAddresses(Connection conn,
+      LocalDate loadedWatermarkDate) {
+    if (this.knownAddressesDays <= 0) {
+      return;
+    }
+    Map<LocalDate, KnownAddresses> loadedKnownAddresses
+        = new HashMap<>(this.knownAddresses);
+    LocalDate lastDate = loadedWatermarkDate.minusDays(
+        HttpCaching.STABLE_AFTER_DAYS);
+    LocalDate firstDate = lastDate.minusDays(this.knownAddressesDays - 1);
+    loadedKnownAddresses.keySet().removeIf((date) -> date.isBefore(firstDate)
+        || date.isAfter(lastDate));
+    int loadedDates = 0;
+    try (CallableStatement cs = conn.prepareCall(
+        "{call select_addresses_by_date(?)}")) {
+      for (LocalDate date = lastDate; !date.isBefore(firstDate)
+          && loadedDates < KNOWN_ADDRESSES_DATES_PER_LOAD;
+          date = date.minusDays(1L)) {
+        if (loadedKnownAddresses.containsKey(date)) {
+          continue;
+        }
+        cs.setObject(1, date);
+        List<String> addresses = new ArrayList<>();
+        try (ResultSet rs = cs.executeQuery()) {
+          while (rs.next()) {
+            addresses.add(rs.getString(1));
+          }
+        }
+        loadedKnownAddresses.put(date, KnownAddresses.of(addresses));
+        loadedDates++;
+      }
+    } catch (SQLException e) {
+      logger.debug("Unable to load known addresses.  Keeping addresses of "
+          + "{} dates.", loadedKnownAddresses.size(), e);
+    }
+    if (loadedDates > 0) {
+      int keptAddresses = 0;
+      for (KnownAddresses dateAddresses : loadedKnownAddresses.values()) {
+        keptAddresses += dateAddresses.size();
+      }
+      logger.info("Loaded known addresses for {} more dates, now keeping {} "
+          + "addresses of {} dates.", loadedDates, keptAddresses,
+          loadedKnownAddresses.size());
+    }
+    this.knownAddresses = loadedKnownAddresses;
+  }
+
+  /* Load filters that were built since filters were last loaded, or keep
+   * using the previously loaded filters if that fails, for example because
+   * the database does not contain filters yet. */
+  private void loadAddressFilters(Connection conn) {
+    Map<LocalDate, AddressFilter> loadedAddressFilters
+        = new HashMap<>(this.addressFilters);
+    LocalDateTime loadedAddressFiltersBuilt = this.addressFiltersBuilt;
+    try (CallableStatement cs = conn.prepareCall(
+        "{call select_date_address24_filters(?)}")) {
+      cs.setObject(1, null == loadedAddressFiltersBuilt
+          ? LocalDateTime.of(1970, 1, 1, 0, 0) : loadedAddressFiltersBuilt);
+      try (ResultSet rs = cs.executeQuery()) {
+        while (rs.next()) {
+          LocalDate date = rs.getObject(1, LocalDate.class);
+          AddressFilter addressFilter = AddressFilter.fromBytes(
+              rs.getBytes(2));
+          LocalDateTime built = rs.getObject(3, LocalDateTime.class);
+          if (null == addressFilter) {
+            logger.warn("Skipping invalid filter for {}.", date);
+            loadedAddressFilters.remove(date);
+          } else {
+            loadedAddressFilters.put(date, addressFilter);
+          }
+          if (null == loadedAddressFiltersBuilt
+              || built.isAfter(loadedAddressFiltersBuilt)) {
+            loadedAddressFiltersBuilt = built;
+          }
+        }
+      }
+    } catch (SQLException e) {
+      logger.debug("Unable to load filters.  Keeping {} filters.",
+          loadedAddressFilters.size(), e);
+      return;
+    }
+    if (loadedAddressFilters.size() != this.addressFilters.size()
+        || !Objects.equals(loadedAddressFiltersBuilt,
+        this.addressFiltersBuilt)) {
+      logger.info("Loaded filters for {} dates.  Answered {} queries using "
+          + "filters only so far.", loadedAddressFilters.size(),
+          this.filteredQueries.get());
+    }
+    this.addressFilters = loadedAddressFilters;
+    this.addressFiltersBuilt = loadedAddressFiltersBuilt;
+  }
+}
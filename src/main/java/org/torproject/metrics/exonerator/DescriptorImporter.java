@@ -0,0 +1,313 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.torproject.descriptor.Descriptor;
+import org.torproject.descriptor.DescriptorReader;
+import org.torproject.descriptor.DescriptorSourceFactory;
+import org.torproject.descriptor.ExitList;
+import org.torproject.descriptor.ExitList.Entry;
+import org.torproject.descriptor.NetworkStatusEntry;
+import org.torproject.descriptor.RelayNetworkStatusConsensus;
+import org.torproject.descriptor.UnparseableDescriptor;
+
+import org.apache.commons.codec.DecoderException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** Importer of consensuses and exit lists in a descriptor directory into an
+ * import target.
+ *
+ * <p>An importer never terminates the process, which makes it usable both
+ * by the command-line database importer and inside the web server. It skips
+ * entries with fingerprints or addresses that cannot be converted, and it
+ * throws an exception if the import target fails. Each instance is meant to
+ * be used by one thread at a time.</p> */
+class DescriptorImporter {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(DescriptorImporter.class);
+
+  /* Directory from which to import descriptors. */
+  private final File importDirectory;
+
+  /* Target to import data into. */
+  private final ImportTarget importTarget;
+
+  /* Statistics of the current invocation. */
+  private ImportStatistics statistics;
+
+  /* Dates of all status entries and exit list entries imported in the last
+   * invocation. */
+  private final SortedSet<LocalDate> importedDates = new TreeSet<>();
+
+  /* Number of entries skipped in the current invocation, because their
+   * fingerprint or address could not be converted. */
+  private int skippedEntries;
+
+  /* First exception thrown by the import target in the current invocation,
+   * or null if there was none. */
+  private Exception importException;
+
+  DescriptorImporter(File importDirectory, ImportTarget importTarget) {
+    this.importDirectory = importDirectory;
+    this.importTarget = importTarget;
+  }
+
+  /** Import descriptors in the import directory that are not contained in
+   * the given parse history, add timings and counts to the given
+   * statistics, and return the parse history for the next invocation.
+   *
+   * @throws Exception if the import target failed to import an entry, in
+   *     which case descriptors may have been imported partially and should
+   *     be imported again, which has no effect on entries that were already
+   *     imported
+   */
+  SortedMap<String, Long> importDescriptors(
+      SortedMap<String, Long> importHistory, ImportStatistics statistics)
+      throws Exception {
+    this.statistics = statistics;
+    this.importedDates.clear();
+    this.skippedEntries = 0;
+    this.importException = null;
+    DescriptorReader descriptorReader =
+        DescriptorSourceFactory.createDescriptorReader();
+    descriptorReader.setMaxDescriptorsInQueue(20);
+    descriptorReader.setExcludedFiles(importHistory);
+    int parsedConsensuses = 0;
+    int parsedExitLists = 0;
+    int unparseableDescriptors = 0;
+    long readingStarted = System.nanoTime();
+    for (Descriptor descriptor : descriptorReader.readDescriptors(
+        this.importDirectory)) {
+      if (null != this.importException) {
+        /* Keep reading without importing, so that the reader can finish
+         * instead of waiting for us to take descriptors from its queue. */
+        continue;
+      }
+      long importStarted = System.nanoTime();
+      statistics.addTotalNanos(ImportStatistics.Phase.READING,
+          importStarted - readingStarted);
+      if (descriptor instanceof RelayNetworkStatusConsensus) {
+        this.parseConsensus((RelayNetworkStatusConsensus) descriptor);
+        statistics.addTotalNanos(ImportStatistics.Phase.CONSENSUSES,
+            System.nanoTime() - importStarted);
+        statistics.addConsensus();
+        parsedConsensuses++;
+      } else if (descriptor instanceof ExitList) {
+        this.parseExitList((ExitList) descriptor);
+        statistics.addTotalNanos(ImportStatistics.Phase.EXIT_LISTS,
+            System.nanoTime() - importStarted);
+        statistics.addExitList();
+        parsedExitLists++;
+      } else if (descriptor instanceof UnparseableDescriptor) {
+        logger.debug("Found descriptor in {} to be unparseable. Check the "
+            + "descriptor parse exception and/or descriptor file for details. "
+            + "Skipping.",
+            descriptor.getDescriptorFile().getAbsoluteFile(),
+            ((UnparseableDescriptor) descriptor).getDescriptorParseException());
+        unparseableDescriptors++;
+      }
+      readingStarted = System.nanoTime();
+    }
+    if (null != this.importException) {
+      throw this.importException;
+    }
+    if (unparseableDescriptors > 0) {
+      logger.warn("Found {} descriptors in {} to be unparseable and skipped "
+          + "them. Check the debug-level logs and/or descriptor files for "
+          + "details. If this happened due to a bug in the parsing code, "
+          + "reset the parse history and import descriptors again. "
+          + "Continuing.", unparseableDescriptors,
+          this.importDirectory.getAbsoluteFile());
+    }
+    if (this.skippedEntries > 0) {
+      logger.warn("Skipped {} entries in {} with fingerprints or addresses "
+          + "that could not be converted. Check the debug-level logs for "
+          + "details. Continuing.", this.skippedEntries,
+          this.importDirectory.getAbsoluteFile());
+    }
+    SortedMap<String, Long> nextImportHistory = new TreeMap<>();
+    nextImportHistory.putAll(descriptorReader.getExcludedFiles());
+    nextImportHistory.putAll(descriptorReader.getParsedFiles());
+    logger.debug("Read {} consensuses and {} exit lists from {}.",
+        parsedConsensuses, parsedExitLists,
+        this.importDirectory.getAbsoluteFile());
+    return nextImportHistory;
+  }
+
+  /** Return dates of all status entries and exit list entries imported in
+   * the last invocation, for which filters need to be rebuilt. */
+  SortedSet<LocalDate> getImportedDates() {
+    return this.importedDates;
+  }
+
+  /* Parse a consensus. */
+  private void parseConsensus(RelayNetworkStatusConsensus consensus) {
+    Instant beforeParsingConsensus = Instant.now();
+    LocalDateTime validAfter = LocalDateTime.ofInstant(Instant.ofEpochMilli(
+        consensus.getValidAfterMillis()), ZoneOffset.UTC);
+    int importedStatusEntries = 0;
+    for (NetworkStatusEntry entry : consensus.getStatusEntries().values()) {
+      if (null != this.importException) {
+        return;
+      }
+      if (entry.getFlags().contains("Running")) {
+        String fingerprintBase64;
+        try {
+          fingerprintBase64 = ExoneraTorDatabaseImporter
+              .convertFingerprintToBase64(entry.getFingerprint());
+        } catch (DecoderException e) {
+          logger.debug("Unable to convert hex fingerprint {} found in "
+              + "consensus with valid-after time {} to base64. Skipping.",
+              entry.getFingerprint(), validAfter, e);
+          this.skippedEntries++;
+          continue;
+        }
+        final String nickname = entry.getNickname();
+        Boolean exit = null;
+        if (null != entry.getDefaultPolicy() && null != entry.getPortList()) {
+          exit = "accept".equals(entry.getDefaultPolicy())
+              || !"1-65535".equals(entry.getPortList());
+        }
+        Set<String> orAddresses = new HashSet<>();
+        orAddresses.add(entry.getAddress());
+        for (String orAddressAndPort : entry.getOrAddresses()) {
+          orAddresses.add(orAddressAndPort.substring(0,
+              orAddressAndPort.lastIndexOf(':')));
+        }
+        this.importStatusentry(validAfter, fingerprintBase64, nickname,
+            exit, orAddresses);
+        importedStatusEntries++;
+      }
+    }
+    logger.debug("Parsed consensus with valid-after time {} and imported {} "
+        + "status entries with the Running flag in {}.",
+        validAfter, importedStatusEntries,
+        Duration.between(beforeParsingConsensus, Instant.now()));
+  }
+
+  /* Convert the given address to its /24 prefix, or return null if it
+   * cannot be parsed. */
+  private static String convertAddressToAddress24(String address) {
+    try {
+      return ExoneraTorDatabaseImporter.convertAddressToAddress24(address);
+    } catch (RuntimeException e) {
+      return null;
+    }
+  }
+
+  /* Import a status entry with one or more OR addresses, skipping any
+   * addresses that cannot be parsed. */
+  private void importStatusentry(LocalDateTime validAfter,
+      String fingerprintBase64, String nickname, Boolean exit,
+      Set<String> orAddresses) {
+    for (String orAddress : orAddresses) {
+      String orAddress24 = convertAddressToAddress24(orAddress);
+      if (null == orAddress24) {
+        logger.debug("Unable to parse address {} found in status entry with "
+            + "base64-encoded fingerprint {} in consensus with valid-after "
+            + "time {}. Skipping.", orAddress, fingerprintBase64, validAfter);
+        this.skippedEntries++;
+        continue;
+      }
+      this.importedDates.add(validAfter.toLocalDate());
+      try {
+        long executeStarted = System.nanoTime();
+        this.importTarget.importStatusEntry(validAfter, fingerprintBase64,
+            nickname, exit, orAddress.replaceAll("[\\[\\]]", ""),
+            orAddress24);
+        this.statistics.addDatabaseNanos(ImportStatistics.Phase.CONSENSUSES,
+            System.nanoTime() - executeStarted);
+        this.statistics.addRow(ImportStatistics.Phase.CONSENSUSES);
+      } catch (Exception e) {
+        logger.error("Caught an exception while importing status entry with "
+            + "base64-encoded fingerprint {} and valid-after time {}. Check "
+            + "the exception for details.", fingerprintBase64, validAfter, e);
+        this.importException = e;
+        return;
+      }
+    }
+  }
+
+  /* Parse an exit list. */
+  private void parseExitList(ExitList exitList) {
+    Instant beforeParsingExitList = Instant.now();
+    LocalDateTime downloaded = LocalDateTime.ofInstant(Instant.ofEpochMilli(
+        exitList.getDownloadedMillis()), ZoneOffset.UTC);
+    int importedExitListEntries = 0;
+    for (Entry entry : exitList.getEntries()) {
+      for (Map.Entry<String, Long> e : entry.getExitAddresses().entrySet()) {
+        if (null != this.importException) {
+          return;
+        }
+        String fingerprintBase64;
+        try {
+          fingerprintBase64 = ExoneraTorDatabaseImporter
+              .convertFingerprintToBase64(entry.getFingerprint());
+        } catch (DecoderException ex) {
+          logger.debug("Unable to convert hex fingerprint {} found in exit "
+              + "list downloaded (by CollecTor) at {} to base64. Skipping.",
+              entry.getFingerprint(), downloaded, ex);
+          this.skippedEntries++;
+          continue;
+        }
+        String exitAddress = e.getKey();
+        /* TODO Extend the following code for IPv6 once the exit list
+         * format supports it. */
+        String exitAddress24 = convertAddressToAddress24(exitAddress);
+        if (null == exitAddress24) {
+          logger.debug("Unable to parse exit address {} found in exit list "
+              + "downloaded (by CollecTor) at {}. Skipping.", exitAddress,
+              downloaded);
+          this.skippedEntries++;
+          continue;
+        }
+        LocalDateTime scanned = LocalDateTime.ofInstant(
+            Instant.ofEpochMilli(e.getValue()), ZoneOffset.UTC);
+        this.importExitlistentry(fingerprintBase64, exitAddress24,
+            exitAddress, scanned);
+        importedExitListEntries++;
+      }
+    }
+    logger.debug("Parsed exit list downloaded (by CollecTor) at {} and "
+        + "imported {} exit list entries in {}.", downloaded,
+        importedExitListEntries,
+        Duration.between(beforeParsingExitList, Instant.now()));
+  }
+
+  /* Import an exit list entry. */
+  private void importExitlistentry(String fingerprintBase64,
+      String exitAddress24, String exitAddress, LocalDateTime scanned) {
+    this.importedDates.add(scanned.toLocalDate());
+    try {
+      long executeStarted = System.nanoTime();
+      this.importTarget.importExitListEntry(fingerprintBase64, exitAddress,
+          exitAddress24, scanned);
+      this.statistics.addDatabaseNanos(ImportStatistics.Phase.EXIT_LISTS,
+          System.nanoTime() - executeStarted);
+      this.statistics.addRow(ImportStatistics.Phase.EXIT_LISTS);
+    } catch (Exception e) {
+      logger.error("Caught an exception while importing exit list entry "
+          + "with base64-encoded fingerprint {}, exit address {}, and scan "
+          + "time {}. Check the exception for details.",
+          fingerprintBase64, exitAddress, scanned, e);
+      this.importException = e;
+    }
+  }
+}
@@ -3,15 +3,8 @@
 
 package org.torproject.metrics.exonerator;
 
-import org.torproject.descriptor.Descriptor;
 import org.torproject.descriptor.DescriptorCollector;
-import org.torproject.descriptor.DescriptorReader;
 import org.torproject.descriptor.DescriptorSourceFactory;
-import org.torproject.descriptor.ExitList;
-import org.torproject.descriptor.ExitList.Entry;
-import org.torproject.descriptor.NetworkStatusEntry;
-import org.torproject.descriptor.RelayNetworkStatusConsensus;
-import org.torproject.descriptor.UnparseableDescriptor;
 
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Base64;
@@ -33,18 +26,20 @@ import java.nio.file.Paths;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.Duration;
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
-import java.util.HashSet;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.TimeZone;
 import java.util.TreeMap;
+import java.util.TreeSet;
 
 /* Import Tor descriptors into the ExoneraTor database. */
 public class ExoneraTorDatabaseImporter {
@@ -67,11 +62,38 @@ public class ExoneraTorDatabaseImporter {
     readImportHistoryToMemory();
     parseDescriptors();
     writeImportHistoryToDisk();
+    buildAddressFilters(connection, importedDates, statistics);
+    exportLookupIndexes();
     closeDatabaseConnection();
     deleteLockFile();
+    logger.info(statistics.format().trim());
     logger.info("Terminating ExoneraTor database importer.");
   }
 
+  /** Import all descriptors in the given directory into the database with
+   * the given JDBC string and return statistics on the import, without
+   * fetching descriptors from CollecTor, creating a lock file, reading or
+   * writing the parse history, or exporting lookup index files.
+   *
+   * @throws Exception if the database cannot be connected to or if entries
+   *     cannot be imported
+   */
+  static ImportStatistics importDescriptors(String jdbcString,
+      File importDirectory) throws Exception {
+    ImportStatistics statistics = new ImportStatistics();
+    try (Connection connection = DriverManager.getConnection(jdbcString)) {
+      DescriptorImporter descriptorImporter = new DescriptorImporter(
+          importDirectory, new DatabaseImportTarget(connection));
+      descriptorImporter.importDescriptors(new TreeMap<>(), statistics);
+      buildAddressFilters(connection, descriptorImporter.getImportedDates(),
+          statistics);
+    }
+    return statistics;
+  }
+
+  /* Statistics on this execution. */
+  private static ImportStatistics statistics = new ImportStatistics();
+
   /* JDBC string of the ExoneraTor database. Never include this in a log
    * message, because it likely contains the database password! */
   private static String jdbcString;
@@ -79,6 +101,10 @@ public class ExoneraTorDatabaseImporter {
   /* Directory from which to import descriptors. */
   private static File importDirectory;
 
+  /* Directory to export lookup index files to, or null if lookup index files
+   * should not be exported. */
+  private static File indexDirectory;
+
   /* Learn JDBC string and directory to parse descriptors from. */
   private static void readConfiguration() {
     File configFile = new File("config");
@@ -94,6 +120,8 @@ public class ExoneraTorDatabaseImporter {
           jdbcString = line.split(" ")[1];
         } else if (line.startsWith("ExoneraTorImportDirectory")) {
           importDirectory = new File(line.split(" ")[1]);
+        } else if (line.startsWith("ExoneraTorIndexDirectory")) {
+          indexDirectory = new File(line.split(" ")[1]);
         }
       }
     } catch (IOException e) {
@@ -133,18 +161,13 @@ public class ExoneraTorDatabaseImporter {
     logger.debug("Connected to the database.");
   }
 
-  /* Callable statements to import data into the database. */
-  private static CallableStatement insertStatusentryStatement;
-
-  private static CallableStatement insertExitlistentryStatement;
+  /* Target to import data into the database. */
+  private static ImportTarget importTarget;
 
   /* Prepare statements for importing data into the database. */
   private static void prepareDatabaseStatements() {
     try {
-      insertStatusentryStatement = connection.prepareCall(
-          "{call insert_statusentry_oraddress(?, ?, ?, ?, ?, ?)}");
-      insertExitlistentryStatement = connection.prepareCall(
-          "{call insert_exitlistentry_exitaddress(?, ?, ?, ?)}");
+      importTarget = new DatabaseImportTarget(connection);
     } catch (SQLException e) {
       logger.error("Caught an SQL exception while preparing callable "
           + "statements for importing data into the database. Make sure that "
@@ -263,224 +286,61 @@ public class ExoneraTorDatabaseImporter {
 
   /* Parse descriptors in the import directory and its subdirectories. */
   private static void parseDescriptors() {
-    DescriptorReader descriptorReader =
-        DescriptorSourceFactory.createDescriptorReader();
-    descriptorReader.setMaxDescriptorsInQueue(20);
-    descriptorReader.setExcludedFiles(lastImportHistory);
-    int parsedConsensuses = 0;
-    int parsedExitLists = 0;
-    int unparseableDescriptors = 0;
-    for (Descriptor descriptor : descriptorReader.readDescriptors(
-        importDirectory)) {
-      if (descriptor instanceof RelayNetworkStatusConsensus) {
-        parseConsensus((RelayNetworkStatusConsensus) descriptor);
-        parsedConsensuses++;
-      } else if (descriptor instanceof ExitList) {
-        parseExitList((ExitList) descriptor);
-        parsedExitLists++;
-      } else if (descriptor instanceof UnparseableDescriptor) {
-        logger.debug("Found descriptor in {} to be unparseable. Check the "
-            + "descriptor parse exception and/or descriptor file for details. "
-            + "Skipping.",
-            descriptor.getDescriptorFile().getAbsoluteFile(),
-            ((UnparseableDescriptor) descriptor).getDescriptorParseException());
-        unparseableDescriptors++;
-      }
-    }
-    if (unparseableDescriptors > 0) {
-      logger.warn("Found {} descriptors in {} to be unparseable and skipped "
-          + "them. Check the debug-level logs and/or descriptor files for "
-          + "details. If this happened due to a bug in the parsing code, "
-          + "manually delete the parse history file {} and run the database "
-          + "importer again. Continuing.", unparseableDescriptors,
-          importDirectory.getAbsoluteFile(),
-          parseHistoryFile.getAbsoluteFile());
+    DescriptorImporter descriptorImporter
+        = new DescriptorImporter(importDirectory, importTarget);
+    try {
+      nextImportHistory.putAll(descriptorImporter.importDescriptors(
+          lastImportHistory, statistics));
+    } catch (Exception e) {
+      logger.error("Caught an exception while importing descriptors from {} "
+          + "into the database. Check the exception for details. Exiting.",
+          importDirectory.getAbsoluteFile(), e);
+      System.exit(1);
     }
-    nextImportHistory.putAll(
-        descriptorReader.getExcludedFiles());
-    nextImportHistory.putAll(descriptorReader.getParsedFiles());
-    logger.debug("Read {} consensuses and {} exit lists from {}.",
-        parsedConsensuses, parsedExitLists, importDirectory.getAbsoluteFile());
+    importedDates.addAll(descriptorImporter.getImportedDates());
   }
 
-  /* Parse a consensus. */
-  private static void parseConsensus(RelayNetworkStatusConsensus consensus) {
-    Instant beforeParsingConsensus = Instant.now();
-    LocalDateTime validAfter = LocalDateTime.ofInstant(Instant.ofEpochMilli(
-        consensus.getValidAfterMillis()), ZoneOffset.UTC);
-    int importedStatusEntries = 0;
-    for (NetworkStatusEntry entry : consensus.getStatusEntries().values()) {
-      if (entry.getFlags().contains("Running")) {
-        String fingerprintBase64 = null;
-        try {
-          fingerprintBase64 = Base64.encodeBase64String(
-              Hex.decodeHex(entry.getFingerprint().toCharArray()))
-              .replace("=", "");
-        } catch (DecoderException e) {
-          logger.error("Caught a decoder exception while converting hex "
-              + "fingerprint {} found in consensus with valid-after time {} to "
-              + "base64. This looks like a bug. Exiting.",
-              entry.getFingerprint(), validAfter, e);
-          System.exit(1);
-        }
-        final String nickname = entry.getNickname();
-        Boolean exit = null;
-        if (null != entry.getDefaultPolicy() && null != entry.getPortList()) {
-          exit = "accept".equals(entry.getDefaultPolicy())
-              || !"1-65535".equals(entry.getPortList());
-        }
-        Set<String> orAddresses = new HashSet<>();
-        orAddresses.add(entry.getAddress());
-        for (String orAddressAndPort : entry.getOrAddresses()) {
-          orAddresses.add(orAddressAndPort.substring(0,
-              orAddressAndPort.lastIndexOf(':')));
-        }
-        importStatusentry(validAfter, fingerprintBase64, nickname,
-            exit, orAddresses);
-        importedStatusEntries++;
-      }
-    }
-    logger.debug("Parsed consensus with valid-after time {} and imported {} "
-        + "status entries with the Running flag into the database in {}.",
-        validAfter, importedStatusEntries,
-        Duration.between(beforeParsingConsensus, Instant.now()));
+  /** Convert the given hex-encoded relay fingerprint to base64 without
+   * trailing padding characters, as stored in the database. */
+  static String convertFingerprintToBase64(String fingerprintHex)
+      throws DecoderException {
+    return Base64.encodeBase64String(Hex.decodeHex(
+        fingerprintHex.toCharArray())).replace("=", "");
   }
 
-  /* Import a status entry with one or more OR addresses into the
-   * database. */
-  private static void importStatusentry(LocalDateTime validAfter,
-      String fingerprintBase64, String nickname, Boolean exit,
-      Set<String> orAddresses) {
-    try {
-      for (String orAddress : orAddresses) {
-        insertStatusentryStatement.clearParameters();
-        insertStatusentryStatement.setObject(1, validAfter);
-        insertStatusentryStatement.setString(2, fingerprintBase64);
-        if (!orAddress.contains(":")) {
-          insertStatusentryStatement.setString(3, orAddress);
-          String[] addressParts = orAddress.split("\\.");
-          byte[] address24Bytes = new byte[3];
-          address24Bytes[0] = (byte) Integer.parseInt(addressParts[0]);
-          address24Bytes[1] = (byte) Integer.parseInt(addressParts[1]);
-          address24Bytes[2] = (byte) Integer.parseInt(addressParts[2]);
-          String orAddress24 = Hex.encodeHexString(address24Bytes);
-          insertStatusentryStatement.setString(4, orAddress24);
-        } else {
-          StringBuilder addressHex = new StringBuilder();
-          int start = orAddress.startsWith("[::") ? 2 : 1;
-          int end = orAddress.length()
-              - (orAddress.endsWith("::]") ? 2 : 1);
-          String[] parts = orAddress.substring(start, end).split(":", -1);
-          for (String part : parts) {
-            if (part.length() == 0) {
-              addressHex.append("x");
-            } else if (part.length() <= 4) {
-              addressHex.append(String.format("%4s", part));
-            } else {
-              addressHex = null;
-              break;
-            }
-          }
-          String orAddress24 = null;
-          if (addressHex != null) {
-            String addressHexString = addressHex.toString();
-            addressHexString = addressHexString.replaceFirst("x",
-                String.format("%" + (33 - addressHexString.length())
-                + "s", "0"));
-            if (!addressHexString.contains("x")
-                && addressHexString.length() == 32) {
-              orAddress24 = addressHexString.replace(" ", "0")
-                  .toLowerCase().substring(0, 6);
-            }
-          }
-          if (orAddress24 != null) {
-            insertStatusentryStatement.setString(3,
-                orAddress.replaceAll("[\\[\\]]", ""));
-            insertStatusentryStatement.setString(4, orAddress24);
-          } else {
-            logger.error("Unable to parse IPv6 address {} found in status "
-                + "entry with base64-encoded fingerprint {} in consensus with "
-                + "valid-after time {}. This is likely a bug. Exiting.",
-                orAddress, fingerprintBase64, validAfter);
-            System.exit(1);
-          }
-        }
-        insertStatusentryStatement.setString(5, nickname);
-        insertStatusentryStatement.setBoolean(6, exit);
-        insertStatusentryStatement.execute();
-      }
-    } catch (SQLException e) {
-      logger.error("Caught an SQL exception while importing status entry with "
-          + "base64-encoded fingerprint {} and valid-after time {}. Check the "
-          + "exception for details. Exiting.",
-          fingerprintBase64, validAfter, e);
-      System.exit(1);
+  /** Convert the given IPv4 address or IPv6 address in square brackets to
+   * the hex-encoded first three bytes of the address as stored in the
+   * database, or return {@code null} if the IPv6 address cannot be
+   * parsed. */
+  static String convertAddressToAddress24(String address) {
+    if (!address.contains(":")) {
+      String[] addressParts = address.split("\\.");
+      byte[] address24Bytes = new byte[3];
+      address24Bytes[0] = (byte) Integer.parseInt(addressParts[0]);
+      address24Bytes[1] = (byte) Integer.parseInt(addressParts[1]);
+      address24Bytes[2] = (byte) Integer.parseInt(addressParts[2]);
+      return Hex.encodeHexString(address24Bytes);
     }
-  }
-
-  /* Parse an exit list. */
-  private static void parseExitList(ExitList exitList) {
-    Instant beforeParsingExitList = Instant.now();
-    LocalDateTime downloaded = LocalDateTime.ofInstant(Instant.ofEpochMilli(
-        exitList.getDownloadedMillis()), ZoneOffset.UTC);
-    int importedExitListEntries = 0;
-    for (Entry entry : exitList.getEntries()) {
-      for (Map.Entry<String, Long> e : entry.getExitAddresses().entrySet()) {
-        String fingerprintBase64 = null;
-        try {
-          fingerprintBase64 = Base64.encodeBase64String(
-              Hex.decodeHex(entry.getFingerprint().toCharArray()))
-              .replace("=", "");
-        } catch (DecoderException ex) {
-          logger.error("Caught a decoder exception while converting hex "
-              + "fingerprint {} found in exit list downloaded (by CollecTor) "
-              + "at {} to base64. This looks like a bug. Exiting.",
-              entry.getFingerprint(), downloaded, ex);
-          System.exit(1);
-        }
-        String exitAddress = e.getKey();
-        /* TODO Extend the following code for IPv6 once the exit list
-         * format supports it. */
-        String[] exitAddressParts = exitAddress.split("\\.");
-        byte[] exitAddress24Bytes = new byte[3];
-        exitAddress24Bytes[0] = (byte) Integer.parseInt(
-            exitAddressParts[0]);
-        exitAddress24Bytes[1] = (byte) Integer.parseInt(
-            exitAddressParts[1]);
-        exitAddress24Bytes[2] = (byte) Integer.parseInt(
-            exitAddressParts[2]);
-        String exitAddress24 = Hex.encodeHexString(
-            exitAddress24Bytes);
-        LocalDateTime scanned = LocalDateTime.ofInstant(
-            Instant.ofEpochMilli(e.getValue()), ZoneOffset.UTC);
-        importExitlistentry(fingerprintBase64, exitAddress24, exitAddress,
-            scanned);
-        importedExitListEntries++;
+    StringBuilder addressHex = new StringBuilder();
+    int start = address.startsWith("[::") ? 2 : 1;
+    int end = address.length() - (address.endsWith("::]") ? 2 : 1);
+    String[] parts = address.substring(start, end).split(":", -1);
+    for (String part : parts) {
+      if (part.length() == 0) {
+        addressHex.append("x");
+      } else if (part.length() <= 4) {
+        addressHex.append(String.format("%4s", part));
+      } else {
+        return null;
       }
     }
-    logger.debug("Parsed exit list downloaded (by CollecTor) at {} and "
-        + "imported {} exit list entries into the database in {}.", downloaded,
-        importedExitListEntries,
-        Duration.between(beforeParsingExitList, Instant.now()));
-  }
-
-  /* Import an exit list entry into the database. */
-  private static void importExitlistentry(String fingerprintBase64,
-      String exitAddress24, String exitAddress, LocalDateTime scanned) {
-    try {
-      insertExitlistentryStatement.clearParameters();
-      insertExitlistentryStatement.setString(1, fingerprintBase64);
-      insertExitlistentryStatement.setString(2, exitAddress);
-      insertExitlistentryStatement.setString(3, exitAddress24);
-      insertExitlistentryStatement.setObject(4, scanned);
-      insertExitlistentryStatement.execute();
-    } catch (SQLException e) {
-      logger.error("Caught an SQL exception while importing exit list entry "
-          + "with base64-encoded fingerprint {}, exit address {}, and scan "
-          + "time {}. Check the exception for details. Exiting.",
-          fingerprintBase64, exitAddress, scanned, e);
-      System.exit(1);
+    String addressHexString = addressHex.toString();
+    addressHexString = addressHexString.replaceFirst("x",
+        String.format("%" + (33 - addressHexString.length()) + "s", "0"));
+    if (!addressHexString.contains("x") && addressHexString.length() == 32) {
+      return addressHexString.replace(" ", "0").toLowerCase().substring(0, 6);
     }
+    return null;
   }
 
   /* Write parse history from memory to disk for the next execution. */
@@ -507,6 +367,81 @@ public class ExoneraTorDatabaseImporter {
         parseHistoryFile.getAbsoluteFile());
   }
 
+  /* Dates of all status entries and exit list entries imported in this
+   * execution, for which filters need to be rebuilt. */
+  private static SortedSet<LocalDate> importedDates = new TreeSet<>();
+
+  /* Build filters of /24 prefixes for the given dates with newly imported
+   * data and for all dates that do not have a filter yet, using the given
+   * connection, and add timings to the given statistics. */
+  private static void buildAddressFilters(Connection connection,
+      SortedSet<LocalDate> importedDates, ImportStatistics statistics) {
+    final long filtersStarted = System.nanoTime();
+    SortedSet<LocalDate> dates = new TreeSet<>(importedDates);
+    try (CallableStatement selectDatesStatement = connection.prepareCall(
+        "{call select_dates_without_address24_filter()}");
+        CallableStatement selectAddress24Statement = connection.prepareCall(
+            "{call select_address24_by_date(?)}");
+        CallableStatement upsertFilterStatement = connection.prepareCall(
+            "{call upsert_date_address24_filter(?, ?)}")) {
+      long databaseStarted = System.nanoTime();
+      try (ResultSet rs = selectDatesStatement.executeQuery()) {
+        while (rs.next()) {
+          dates.add(rs.getObject(1, LocalDate.class));
+        }
+      }
+      statistics.addDatabaseNanos(ImportStatistics.Phase.FILTERS,
+          System.nanoTime() - databaseStarted);
+      for (LocalDate date : dates) {
+        List<String> address24s = new ArrayList<>();
+        selectAddress24Statement.setObject(1, date);
+        databaseStarted = System.nanoTime();
+        try (ResultSet rs = selectAddress24Statement.executeQuery()) {
+          while (rs.next()) {
+            address24s.add(rs.getString(1));
+          }
+        }
+        statistics.addDatabaseNanos(ImportStatistics.Phase.FILTERS,
+            System.nanoTime() - databaseStarted);
+        AddressFilter addressFilter = AddressFilter.create(address24s.size());
+        for (String address24 : address24s) {
+          addressFilter.add(address24);
+        }
+        upsertFilterStatement.setObject(1, date);
+        upsertFilterStatement.setBytes(2, addressFilter.toBytes());
+        databaseStarted = System.nanoTime();
+        upsertFilterStatement.execute();
+        statistics.addDatabaseNanos(ImportStatistics.Phase.FILTERS,
+            System.nanoTime() - databaseStarted);
+        statistics.addRow(ImportStatistics.Phase.FILTERS);
+      }
+    } catch (SQLException e) {
+      logger.warn("Caught an SQL exception while building filters. Make sure "
+          + "that the database contains the functions in "
+          + "exonerator2-additions.sql. Continuing.", e);
+      return;
+    } finally {
+      statistics.addTotalNanos(ImportStatistics.Phase.FILTERS,
+          System.nanoTime() - filtersStarted);
+    }
+    logger.info("Built filters for {} dates.", dates.size());
+  }
+
+  /* Export the database to lookup index files, if configured. */
+  private static void exportLookupIndexes() {
+    if (null == indexDirectory) {
+      return;
+    }
+    try {
+      new ExoneraTorIndexExporter(connection, indexDirectory).exportIndexes();
+    } catch (IOException | SQLException e) {
+      logger.warn("Caught an exception while exporting lookup index files to "
+          + "{}. Make sure that the database contains the functions in "
+          + "exonerator2-additions.sql and that the directory is writable. "
+          + "Continuing.", indexDirectory.getAbsoluteFile(), e);
+    }
+  }
+
   /* Close the database connection. */
   private static void closeDatabaseConnection() {
     try {
@@ -0,0 +1,173 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/* Export the ExoneraTor database to lookup index files with one file per
+ * month, which can be served by IndexQuerySource without database. */
+class ExoneraTorIndexExporter {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(ExoneraTorIndexExporter.class);
+
+  /* Number of rows to fetch at once when exporting a single date. */
+  private static final int FETCH_SIZE = 10000;
+
+  /* Database connection to export from. */
+  private final Connection connection;
+
+  /* Directory to write lookup index files to. */
+  private final File indexDirectory;
+
+  ExoneraTorIndexExporter(Connection connection, File indexDirectory) {
+    this.connection = connection;
+    this.indexDirectory = indexDirectory;
+  }
+
+  /* Return the lookup index file for the given month. */
+  static File indexFile(File indexDirectory, YearMonth month) {
+    return new File(indexDirectory, "lookup-" + month + ".idx");
+  }
+
+  /* Export all months that have not been exported before or that might have
+   * changed since the last export, leaving alone months that were already
+   * exported after they became stable. */
+  void exportIndexes() throws IOException, SQLException {
+    if (!this.indexDirectory.exists() && !this.indexDirectory.mkdirs()) {
+      throw new IOException("Unable to create directory "
+          + this.indexDirectory.getAbsolutePath() + ".");
+    }
+    boolean autoCommit = this.connection.getAutoCommit();
+    this.connection.setAutoCommit(false);
+    try {
+      Instant watermark = this.loadImportWatermark();
+      SortedMap<YearMonth, List<LocalDate>> dates = this.loadDates();
+      int exportedMonths = 0;
+      for (SortedMap.Entry<YearMonth, List<LocalDate>> e
+          : dates.entrySet()) {
+        File file = indexFile(this.indexDirectory, e.getKey());
+        if (isStable(file, e.getKey())) {
+          continue;
+        }
+        LookupIndexWriter writer = new LookupIndexWriter(watermark);
+        for (LocalDate date : e.getValue()) {
+          this.exportDate(date, writer);
+        }
+        writer.write(file);
+        logger.debug("Exported {} dates to lookup index file {}.",
+            e.getValue().size(), file.getAbsoluteFile());
+        exportedMonths++;
+      }
+      this.connection.commit();
+      logger.info("Exported {} of {} months to lookup index files in {}.",
+          exportedMonths, dates.size(), this.indexDirectory.getAbsoluteFile());
+    } finally {
+      this.connection.setAutoCommit(autoCommit);
+    }
+  }
+
+  /* Return whether the given lookup index file exists and was written after
+   * its month became stable, in which case it does not have to be written
+   * again. */
+  private static boolean isStable(File file, YearMonth month) {
+    if (!file.exists()) {
+      return false;
+    }
+    try {
+      Instant fileWatermark = LookupIndex.open(file).getWatermark();
+      return null != fileWatermark && month.atEndOfMonth()
+          .plusDays(HttpCaching.STABLE_AFTER_DAYS).isBefore(
+          fileWatermark.atOffset(ZoneOffset.UTC).toLocalDate());
+    } catch (IOException e) {
+      logger.warn("Unable to read lookup index file {}. Overwriting.",
+          file.getAbsoluteFile(), e);
+      return false;
+    }
+  }
+
+  private Instant loadImportWatermark() throws SQLException {
+    try (CallableStatement cs = this.connection.prepareCall(
+        "{call import_watermark()}");
+        ResultSet rs = cs.executeQuery()) {
+      LocalDateTime watermark = rs.next()
+          ? rs.getObject(1, LocalDateTime.class) : null;
+      return null == watermark ? null : watermark.toInstant(ZoneOffset.UTC);
+    }
+  }
+
+  private SortedMap<YearMonth, List<LocalDate>> loadDates()
+      throws SQLException {
+    SortedMap<YearMonth, List<LocalDate>> dates = new TreeMap<>();
+    try (CallableStatement cs = this.connection.prepareCall(
+        "{call export_dates()}");
+        ResultSet rs = cs.executeQuery()) {
+      while (rs.next()) {
+        LocalDate date = rs.getObject(1, LocalDate.class);
+        dates.computeIfAbsent(YearMonth.from(date), m -> new ArrayList<>())
+            .add(date);
+      }
+    }
+    return dates;
+  }
+
+  private void exportDate(LocalDate date, LookupIndexWriter writer)
+      throws SQLException {
+    writer.addDate(date);
+    try (CallableStatement cs = this.connection.prepareCall(
+        "{call export_date_address24(?)}")) {
+      cs.setObject(1, date);
+      cs.setFetchSize(FETCH_SIZE);
+      try (ResultSet rs = cs.executeQuery()) {
+        while (rs.next()) {
+          String address24Hex = rs.getString(1);
+          String fingerprintBase64 = rs.getString(2);
+          if (null != address24Hex && null != fingerprintBase64) {
+            writer.addAddress24(date, address24Hex, fingerprintBase64);
+          }
+        }
+      }
+    }
+    try (CallableStatement cs = this.connection.prepareCall(
+        "{call export_statusentries(?)}")) {
+      cs.setObject(1, date);
+      cs.setFetchSize(FETCH_SIZE);
+      try (ResultSet rs = cs.executeQuery()) {
+        while (rs.next()) {
+          writer.addStatusEntry(rs.getString(1),
+              rs.getObject(2, LocalDateTime.class), rs.getString(3),
+              rs.getBoolean(4), rs.getString(5));
+        }
+      }
+    }
+    try (CallableStatement cs = this.connection.prepareCall(
+        "{call export_exitlistentries(?)}")) {
+      cs.setObject(1, date);
+      cs.setFetchSize(FETCH_SIZE);
+      try (ResultSet rs = cs.executeQuery()) {
+        while (rs.next()) {
+          writer.addExitListEntry(rs.getString(1),
+              rs.getObject(2, LocalDateTime.class), rs.getString(3));
+        }
+      }
+    }
+  }
+}
@@ -5,26 +5,25 @@ package org.torproject.metrics.exonerator;
 
 import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE;
 
-import org.apache.commons.lang3.StringEscapeUtils;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.net.URL;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 import javax.servlet.ServletConfig;
@@ -43,14 +42,94 @@ public class ExoneraTorServlet extends HttpServlet {
   private String exoneraTorHost = System.getProperty("exonerator.url",
       "https://exonerator.torproject.org");
 
+  /* Backend for answering queries, which is either a remote server or the
+   * query engine in the same process. */
+  private Backend backend;
+
+  /* Whether the backend is the query engine in the same process, which needs
+   * to be shut down together with this servlet. */
+  private boolean inProcessBackend;
+
+  /* Time budget in milliseconds for answering a request, most of which is
+   * passed on to the backend server. */
+  private long backendTimeoutMillis
+      = Long.getLong("exonerator.backend.timeout", 15000L);
+
+  /* Number of backend queries that ran out of time since starting. */
+  private final AtomicLong timedOutBackendQueries = new AtomicLong();
+
+  private static final LatencyHistogram requestDuration
+      = Metrics.histogram(Metrics.REQUEST_DURATION, "endpoint", "page");
+
+  /* Counters of requests by outcome, looked up once rather than per
+   * request. */
+  private static final LongAdder okRequests = outcomeCounter("ok");
+  private static final LongAdder cachedRequests = outcomeCounter("cached");
+  private static final LongAdder staleRequests = outcomeCounter("stale");
+  private static final LongAdder circuitOpenStaleRequests
+      = outcomeCounter("circuit_open_stale");
+  private static final LongAdder notModifiedRequests
+      = outcomeCounter("not_modified");
+  private static final LongAdder badParameterRequests
+      = outcomeCounter("bad_parameter");
+  private static final LongAdder noQueryRequests = outcomeCounter("no_query");
+  private static final LongAdder circuitOpenRequests
+      = outcomeCounter("circuit_open");
+  private static final LongAdder backendTimeoutRequests
+      = outcomeCounter("backend_timeout");
+  private static final LongAdder backendErrorRequests
+      = outcomeCounter("backend_error");
+  private static final LongAdder errorRequests = outcomeCounter("error");
+
+  private static final LatencyHistogram backendDuration
+      = Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "page",
+      "phase", "backend");
+
+  private static final LatencyHistogram renderingDuration
+      = Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "page",
+      "phase", "rendering");
+
   private List<String> availableLanguages =
       Arrays.asList("de", "en", "fr", "ro", "sv");
 
   private SortedMap<String, String> availableLanguageNames;
 
+  /* Time in milliseconds for rejecting backend requests after too many
+   * recent requests failed or were slow. */
+  private final long circuitOpenMillis
+      = Long.getLong("exonerator.circuit.open", 10000L);
+
+  /* Circuit breaker for backend requests, which opens when at least half of
+   * the requests in the past ten seconds failed or were slow. */
+  private final CircuitBreaker circuitBreaker = new CircuitBreaker(
+      Long.getLong("exonerator.circuit.window", 10000L),
+      Integer.getInteger("exonerator.circuit.requests", 20),
+      Double.parseDouble(
+          System.getProperty("exonerator.circuit.failurerate", "0.5")),
+      Long.getLong("exonerator.circuit.slow", 5000L), this.circuitOpenMillis);
+
+  /* Cache of rendered pages. */
+  private final PageCache pageCache = new PageCache(
+      Long.getLong("exonerator.pagecache.bytes", 32L * 1024L * 1024L));
+
+  /* Precompiled page templates by language. */
+  private Map<String, PageTemplates> pageTemplates;
+
   @Override
   public void init(ServletConfig config) throws ServletException {
     super.init(config);
+    String backendType = System.getProperty("exonerator.backend", "remote");
+    if ("inprocess".equals(backendType)) {
+      this.backend = new InProcessBackend(
+          QueryEngine.get(this.getServletContext()));
+      this.inProcessBackend = true;
+      logger.info("Answering queries in-process.");
+    } else if ("remote".equals(backendType)) {
+      this.backend = new RemoteBackend(this.exoneraTorHost);
+      logger.info("Answering queries via {}.", this.exoneraTorHost);
+    } else {
+      throw new ServletException("Unknown backend type: " + backendType);
+    }
     this.availableLanguageNames = new TreeMap<>();
     for (String locale : this.availableLanguages) {
       ResourceBundle rb = ResourceBundle.getBundle("ExoneraTor",
@@ -58,6 +137,18 @@ public class ExoneraTorServlet extends HttpServlet {
       this.availableLanguageNames.put(locale, rb.getString(
           "footer.language.name"));
     }
+    this.pageTemplates = new HashMap<>();
+    for (String locale : this.availableLanguages) {
+      this.pageTemplates.put(locale,
+          new PageTemplates(locale, this.availableLanguageNames));
+    }
+  }
+
+  @Override
+  public void destroy() {
+    if (this.inProcessBackend) {
+      QueryEngine.shutdown(this.getServletContext());
+    }
   }
 
   @Override
@@ -66,6 +157,9 @@ public class ExoneraTorServlet extends HttpServlet {
 
     /* Step 1: Parse the request. */
 
+    final long startNanos = System.nanoTime();
+    final Instant deadline
+        = Instant.now().plusMillis(this.backendTimeoutMillis);
     try {
       /* Parse ip parameter. */
       String ipParameter = request.getParameter("ip");
@@ -84,9 +178,37 @@ public class ExoneraTorServlet extends HttpServlet {
         langStr = langParameter;
       }
 
+      /* Look up the page in the page cache, if it's the start page or a page
+       * for a valid query, and serve it without asking the backend if it's
+       * still fresh. The start page contains the default date, so that it
+       * changes once per day. Use the request URI rather than the request URL
+       * in the key, because the latter contains the client-supplied host
+       * name, and don't cache query pages at all if their permanent link would
+       * contain that host name, because no base URL has been configured. */
+      String baseUrl = this.getServletContext().getInitParameter("baseUrl");
+      final boolean validQuery = null != relayIp && !relayIp.isEmpty()
+          && requestedDate.valid && !requestedDate.tooRecent;
+      final boolean startPage = "".equals(relayIp) && requestedDate.empty;
+      String defaultDateString = LocalDate.now(ZoneOffset.UTC)
+          .minusDays(2).toString();
+      String pageCacheKey = validQuery && null != baseUrl || startPage
+          ? PageCache.key(request.getRequestURI(), relayIp,
+          validQuery ? requestedDate.asString : defaultDateString, langStr)
+          : null;
+      PageCache.Page cachedPage = null == pageCacheKey ? null
+          : this.pageCache.get(pageCacheKey);
+      if (null != cachedPage
+          && cachedPage.isFresh(System.currentTimeMillis())) {
+        writeCachedPage(request, response, cachedPage, false);
+        recordRequest(startNanos, cachedRequests);
+        return;
+      }
+
       /* Step 2: Query the backend server. */
 
       boolean successfullyConnectedToBackend = false;
+      Backend.Result backendResult = null;
+      boolean circuitOpen = false;
       ExoneraTorDate firstDate = ExoneraTorDate.INVALID;
       ExoneraTorDate lastDate = ExoneraTorDate.INVALID;
       boolean noRelevantConsensuses = true;
@@ -94,10 +216,89 @@ public class ExoneraTorServlet extends HttpServlet {
       List<String> addressesInSameNetwork = null;
 
       /* Only query, if we received valid user input. */
-      if (null != relayIp && !relayIp.isEmpty()
-          && requestedDate.valid && !requestedDate.tooRecent) {
-        QueryResponse queryResponse
-            = this.queryBackend(relayIp, requestedDate.asString);
+      if (validQuery) {
+        /* Pass on conditional request headers, so that the backend can tell
+         * whether its response would still be the same. If we have a cached
+         * page, ask whether that page would still be the same instead, and
+         * evaluate the conditional request headers ourselves. */
+        String ifNoneMatch = null;
+        long ifModifiedSince = -1L;
+        if (null != cachedPage) {
+          ifNoneMatch = cachedPage.backendEntityTag;
+        } else {
+          String ifNoneMatchHeader = request.getHeader("If-None-Match");
+          if (null != ifNoneMatchHeader) {
+            ifNoneMatch = HttpCaching.baseEntityTags(ifNoneMatchHeader,
+                langStr);
+          } else {
+            try {
+              ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            } catch (IllegalArgumentException e) {
+              /* Ignore unparseable dates as required by RFC 7232. */
+            }
+          }
+        }
+        /* Don't query the backend while the circuit breaker is open, and
+         * record the outcome of each query otherwise. */
+        final long circuitTicket = this.circuitBreaker.allowRequest(
+            System.currentTimeMillis());
+        circuitOpen = CircuitBreaker.REJECTED == circuitTicket;
+        if (circuitOpen) {
+          backendResult = new Backend.Result();
+        } else {
+          final long backendStartNanos = System.nanoTime();
+          boolean failed = true;
+          try {
+            backendResult = this.backend.query(relayIp,
+                requestedDate.asString, deadline, ifNoneMatch,
+                ifModifiedSince);
+            failed = null == backendResult.queryResponse
+                && !backendResult.notModified;
+          } finally {
+            this.circuitBreaker.record(circuitTicket, failed,
+                (System.nanoTime() - backendStartNanos) / 1000000L,
+                System.currentTimeMillis());
+          }
+          backendDuration.recordSince(backendStartNanos);
+          if (backendResult.timedOut) {
+            logger.warn("Backend query timed out, which happened {} times "
+                + "since starting.",
+                this.timedOutBackendQueries.incrementAndGet());
+          }
+        }
+
+        /* Serve a stale page from the page cache, if available, rather than
+         * an error page if the backend failed or was not asked. */
+        if (null == backendResult.queryResponse && !backendResult.notModified
+            && null != cachedPage) {
+          writeCachedPage(request, response, cachedPage, true);
+          recordRequest(startNanos, circuitOpen ? circuitOpenStaleRequests
+              : staleRequests);
+          return;
+        }
+        if (backendResult.notModified && null != cachedPage) {
+          cachedPage = cachedPage.revalidated(backendResult.cacheControl,
+              System.currentTimeMillis());
+          this.pageCache.put(pageCacheKey, cachedPage);
+          writeCachedPage(request, response, cachedPage, false);
+          recordRequest(startNanos, cachedRequests);
+          return;
+        } else if (backendResult.notModified
+            && null != backendResult.entityTag) {
+          response.setHeader("Vary", "Accept-Encoding");
+          response.setHeader("ETag", HttpCaching.notModifiedEntityTag(
+              request.getHeader("If-None-Match"),
+              HttpCaching.variantEntityTag(backendResult.entityTag, langStr)));
+          if (backendResult.lastModifiedMillis > 0L) {
+            response.setDateHeader("Last-Modified",
+                backendResult.lastModifiedMillis);
+          }
+          response.setHeader("Cache-Control", backendResult.cacheControl);
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          recordRequest(startNanos, notModifiedRequests);
+          return;
+        }
+        QueryResponse queryResponse = backendResult.queryResponse;
         if (null != queryResponse) {
           successfullyConnectedToBackend = true;
           firstDate = new ExoneraTorDate(queryResponse.firstDateInDatabase);
@@ -128,125 +329,198 @@ public class ExoneraTorServlet extends HttpServlet {
 
       /* Step 3: Write the response. */
 
+      final long renderingStartNanos = System.nanoTime();
+
       /* Set content type, or the page doesn't render in Chrome. */
+      if (circuitOpen) {
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        response.setHeader("Retry-After", String.valueOf(Math.max(1L,
+            this.circuitOpenMillis / 1000L)));
+      } else if (null != backendResult && backendResult.timedOut) {
+        response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+      }
       response.setContentType("text/html");
       response.setCharacterEncoding("utf-8");
 
-      /* Find the right resource bundle for the user's requested language. */
-      ResourceBundle rb = ResourceBundle.getBundle("ExoneraTor",
-          Locale.forLanguageTag(langStr));
-
-      /* Start writing response. */
-      StringWriter so = new StringWriter();
-      PrintWriter out = new PrintWriter(so);
-      this.writeHeader(out);
+      /* Find the precompiled templates for the user's requested language. */
+      PageTemplates templates = this.pageTemplates.get(langStr);
 
       /* Obtain the current request URI for relative links and the configured
        * base URL for absolute links like the printed permanent link. If no base
        * URL has been configured, use the current request URL for the permanent
        * link. */
       String requestUri = request.getRequestURI();
-      String baseUrl = this.getServletContext().getInitParameter("baseUrl");
       String permanentLinkUrl = (null != baseUrl)
           ? (baseUrl + requestUri) : request.getRequestURL().toString();
 
       /* Write form. */
-      String defaultDateString = LocalDate.now(ZoneOffset.UTC)
-          .minusDays(2).toString();
       boolean timestampOutOfRange = requestedDate.valid
           && (firstDate.valid && requestedDate.date.isBefore(firstDate.date)
           || (lastDate.valid && requestedDate.date.isAfter(lastDate.date)));
-      this.writeForm(out, rb, relayIp, relayIpHasError
+
+      /* Derive caching headers from those of the backend response. Don't let
+       * clients cache the out-of-range summary for long, because it contains
+       * the current date. */
+      if (successfullyConnectedToBackend && null != backendResult.entityTag
+          && backendResult.lastModifiedMillis > 0L) {
+        response.setHeader("ETag", HttpCaching.variantEntityTag(
+            backendResult.entityTag, langStr));
+        response.setDateHeader("Last-Modified",
+            backendResult.lastModifiedMillis);
+        response.setHeader("Cache-Control",
+            timestampOutOfRange || null == backendResult.cacheControl
+            ? "public, no-cache" : backendResult.cacheControl);
+      }
+
+      /* Start writing response. */
+      ByteArrayOutputStream page = new ByteArrayOutputStream(16384);
+      HtmlWriter out = new HtmlWriter(page);
+      templates.top.write(out);
+      this.writeForm(out, templates, relayIp, relayIpHasError
           || ("".equals(relayIp) && !requestedDate.empty),
           requestedDate.valid ? requestedDate.asString : defaultDateString,
           !relayIpHasError
           && !("".equals(relayIp) && !requestedDate.valid)
           && (!requestedDate.valid || timestampOutOfRange
-          || (!"".equals(relayIp) && requestedDate.empty)), langStr);
+          || (!"".equals(relayIp) && requestedDate.empty)));
 
       /* If both parameters are empty, don't print any summary and exit.
        * This is the start page. */
       if ("".equals(relayIp) && requestedDate.empty) {
-        this.writeFooter(out, rb, requestUri, null, null);
+        this.writeFooter(out, templates, requestUri, null, null);
 
         /* If only one parameter is empty and the other is not, print summary
          * with warning message and exit. */
       } else if ("".equals(relayIp)) {
-        this.writeSummaryNoIp(out, rb);
-        this.writeFooter(out, rb, requestUri, null, null);
+        this.writeSummaryNoIp(out, templates);
+        this.writeFooter(out, templates, requestUri, null, null);
       } else if (requestedDate.empty) {
-        this.writeSummaryNoTimestamp(out, rb);
-        this.writeFooter(out, rb, requestUri, null, null);
+        this.writeSummaryNoTimestamp(out, templates);
+        this.writeFooter(out, templates, requestUri, null, null);
 
         /* If there's an issue with parsing either of the parameters, print
          * summary with error message and exit. */
       } else if (relayIpHasError) {
-        this.writeSummaryInvalidIp(out, rb, ipParameter);
-        this.writeFooter(out, rb, requestUri, null, null);
+        this.writeSummaryInvalidIp(out, templates, ipParameter);
+        this.writeFooter(out, templates, requestUri, null, null);
       } else if (!requestedDate.valid) {
-        this.writeSummaryInvalidTimestamp(out, rb, requestedDate.asRequested);
-        this.writeFooter(out, rb, requestUri, null, null);
+        this.writeSummaryInvalidTimestamp(out, templates,
+            requestedDate.asRequested);
+        this.writeFooter(out, templates, requestUri, null, null);
 
         /* If the timestamp is too recent, print summary with error message and
          * exit. */
       } else if (requestedDate.tooRecent) {
-        this.writeSummaryTimestampTooRecent(out, rb);
-        this.writeFooter(out, rb, requestUri, null, null);
+        this.writeSummaryTimestampTooRecent(out, templates);
+        this.writeFooter(out, templates, requestUri, null, null);
 
         /* If we were unable to connect to the database,
          * write an error message. */
       } else if (!successfullyConnectedToBackend) {
-        this.writeSummaryUnableToConnectToBackend(out, rb);
-        this.writeFooter(out, rb, requestUri, null, null);
+        this.writeSummaryUnableToConnectToBackend(out, templates);
+        this.writeFooter(out, templates, requestUri, null, null);
 
         /* Similarly, if we found the database to be empty,
          * write an error message, too. */
       } else if (firstDate.empty || lastDate.empty) {
-        this.writeSummaryNoData(out, rb);
-        this.writeFooter(out, rb, requestUri, null, null);
+        this.writeSummaryNoData(out, templates);
+        this.writeFooter(out, templates, requestUri, null, null);
 
         /* If the requested date is out of range, tell the user. */
       } else if (timestampOutOfRange) {
         LocalDate dayBeforeYesterday = LocalDate.now().minusDays(2);
-        this.writeSummaryTimestampOutsideRange(out, rb, requestedDate.asString,
-            firstDate.asString, lastDate.date.isBefore(dayBeforeYesterday)
-            ? lastDate.asString : dayBeforeYesterday.format(ISO_LOCAL_DATE));
-        this.writeFooter(out, rb, requestUri, relayIp, requestedDate.asString);
+        this.writeSummaryTimestampOutsideRange(out, templates,
+            requestedDate.asString, firstDate.asString,
+            lastDate.date.isBefore(dayBeforeYesterday) ? lastDate.asString
+            : dayBeforeYesterday.format(ISO_LOCAL_DATE));
+        this.writeFooter(out, templates, requestUri, relayIp,
+            requestedDate.asString);
 
       } else if (noRelevantConsensuses) {
-        this.writeSummaryNoDataForThisInterval(out, rb);
-        this.writeFooter(out, rb, requestUri, relayIp, requestedDate.asString);
+        this.writeSummaryNoDataForThisInterval(out, templates);
+        this.writeFooter(out, templates, requestUri, relayIp,
+            requestedDate.asString);
 
         /* Print out result. */
       } else {
         if (!statusEntries.isEmpty()) {
-          this.writeSummaryPositive(out, rb, relayIp, requestedDate.asString);
-          this.writeTechnicalDetails(out, rb, relayIp, requestedDate.asString,
-              statusEntries);
+          this.writeSummaryPositive(out, templates, relayIp,
+              requestedDate.asString);
+          this.writeTechnicalDetails(out, templates, relayIp,
+              requestedDate.asString, statusEntries);
         } else if (addressesInSameNetwork != null
             && !addressesInSameNetwork.isEmpty()) {
-          this.writeSummaryAddressesInSameNetwork(out, rb, requestUri, relayIp,
-              requestedDate.asString, langStr, addressesInSameNetwork);
+          this.writeSummaryAddressesInSameNetwork(out, templates, requestUri,
+              relayIp, requestedDate.asString, langStr,
+              addressesInSameNetwork);
         } else {
-          this.writeSummaryNegative(out, rb, relayIp, requestedDate.asString);
+          this.writeSummaryNegative(out, templates, relayIp,
+              requestedDate.asString);
         }
-        this.writePermanentLink(out, rb, permanentLinkUrl, relayIp,
-            requestedDate.asString, langStr);
-        this.writeFooter(out, rb, requestUri, relayIp, requestedDate.asString);
+        this.writePermanentLink(out, templates, permanentLinkUrl, relayIp,
+            requestedDate.asString);
+        this.writeFooter(out, templates, requestUri, relayIp,
+            requestedDate.asString);
       }
 
-      /* Forward to the JSP that adds header and footer. */
-      request.setAttribute("lang", langStr);
-      request.setAttribute("body", so.toString());
-      request.getRequestDispatcher("WEB-INF/exonerator.jsp").forward(request,
-          response);
+      PageTemplates.BOTTOM.write(out);
+      out.flush();
+
+      /* Add the page to the page cache if it's the start page or if it's
+       * derived from a backend response with an entity tag, except for the
+       * out-of-range summary, which contains the current date. */
+      if (startPage) {
+        cachedPage = PageCache.Page.fromStatic(page.toByteArray());
+      } else if (null != pageCacheKey && successfullyConnectedToBackend
+          && null != backendResult.entityTag
+          && backendResult.lastModifiedMillis > 0L && !timestampOutOfRange) {
+        cachedPage = PageCache.Page.fromBackend(page.toByteArray(),
+            HttpCaching.variantEntityTag(backendResult.entityTag, langStr),
+            backendResult.entityTag, backendResult.lastModifiedMillis,
+            backendResult.cacheControl, System.currentTimeMillis());
+      } else {
+        cachedPage = null;
+      }
+      if (null != cachedPage) {
+        this.pageCache.put(pageCacheKey, cachedPage);
+        writeCachedPage(request, response, cachedPage, false);
+      } else {
+        ResponseCompression.write(request, response, page.toByteArray());
+      }
+      renderingDuration.recordSince(renderingStartNanos);
+      LongAdder outcome = okRequests;
+      if (null == backendResult) {
+        outcome = relayIpHasError || requestedDate.tooRecent
+            || (!requestedDate.valid && !requestedDate.empty)
+            ? badParameterRequests : noQueryRequests;
+      } else if (circuitOpen) {
+        outcome = circuitOpenRequests;
+      } else if (backendResult.timedOut) {
+        outcome = backendTimeoutRequests;
+      } else if (!successfullyConnectedToBackend) {
+        outcome = backendErrorRequests;
+      }
+      recordRequest(startNanos, outcome);
     } catch (Throwable th) {
       logger.error("Some problem in doGet.  Returning error.", th);
       response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
           "General error.");
+      recordRequest(startNanos, errorRequests);
     }
   }
 
+  private static LongAdder outcomeCounter(String outcome) {
+    return Metrics.counter(Metrics.REQUESTS, "endpoint", "page", "outcome",
+        outcome);
+  }
+
+  /** Record the total duration and the outcome of a request that started at
+   * the given time. */
+  private static void recordRequest(long startNanos, LongAdder outcome) {
+    requestDuration.recordSince(startNanos);
+    outcome.increment();
+  }
+
   /* Helper methods for handling the request. */
 
   /** Parse an IP parameter and return either a non-{@code null} value in
@@ -306,366 +580,195 @@ public class ExoneraTorServlet extends HttpServlet {
     return relayIp;
   }
 
-  /* Helper method for fetching a query response via URL. */
-
-  private QueryResponse queryBackend(String relayIp, String timestampStr) {
-    try (InputStreamReader isr = new InputStreamReader(new URL(
-        this.exoneraTorHost + "/query.json?ip=" + relayIp + "&timestamp="
-        + timestampStr).openStream())) {
-      return QueryResponse.fromJson(isr);
-    } catch (IOException e) {
-      /* No result from backend, so that we don't have a query response to
-       * process further. */
-      logger.error("Backend query failed.", e);
-    } catch (Throwable th) {
-      logger.error("Backend query failed with general error.", th);
+  /** Write the given cached page, gzip-compressed if the client accepts
+   * that, or respond with 304 if the client has the same page already. If
+   * the page is stale, because the backend could not confirm that it's still
+   * the same, don't let clients cache it. */
+  private static void writeCachedPage(HttpServletRequest request,
+      HttpServletResponse response, PageCache.Page page, boolean stale)
+      throws IOException {
+    response.setHeader("Vary", "Accept-Encoding");
+    boolean gzip = ResponseCompression.acceptsGzip(
+        request.getHeader("Accept-Encoding"));
+    if (null != page.entityTag) {
+      response.setHeader("ETag", gzip
+          ? HttpCaching.gzipEntityTag(page.entityTag) : page.entityTag);
+      response.setDateHeader("Last-Modified", page.lastModifiedMillis);
+      if (stale) {
+        response.setHeader("Cache-Control", "public, no-cache");
+      } else if (null != page.cacheControl) {
+        response.setHeader("Cache-Control", page.cacheControl);
+      }
+      if (HttpCaching.isNotModified(request, page.entityTag,
+          Instant.ofEpochMilli(page.lastModifiedMillis))) {
+        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+    }
+    response.setContentType("text/html");
+    response.setCharacterEncoding("utf-8");
+    byte[] body = page.body;
+    if (gzip) {
+      response.setHeader("Content-Encoding", "gzip");
+      body = page.gzippedBody;
     }
-    return null;
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
   }
 
   /* Helper methods for writing the response. */
 
-  private void writeHeader(PrintWriter out) {
-    out.printf("    <div class=\"container\">\n");
-  }
-
-  private void writeForm(PrintWriter out, ResourceBundle rb,
+  private void writeForm(HtmlWriter out, PageTemplates templates,
       String relayIp, boolean relayIpHasError, String timestampStr,
-      boolean timestampHasError, String langStr) {
+      boolean timestampHasError) throws IOException {
     String ipValue = "";
     if (relayIp != null && relayIp.length() > 0) {
-      if (relayIp.contains(":")) {
-        ipValue = String.format(" value=\"[%s]\"", relayIp);
-      } else {
-        ipValue = String.format(" value=\"%s\"", relayIp);
-      }
+      ipValue = relayIp.contains(":") ? "[" + relayIp + "]" : relayIp;
     }
-    out.printf("      <div class=\"row\">\n"
-        + "        <div class=\"col-xs-12\">\n"
-        + "          <div class=\"text-center\">\n"
-        + "            <div class=\"row vbottom15\">\n"
-        + "              <p>%s</p>\n"
-        + "            </div> <!-- row -->\n"
-        + "            <form class=\"form-inline\">\n"
-        + "              <div class=\"form-group%s\">\n"
-        + "                <label for=\"inputIp\" "
-          + "class=\"control-label\">%s</label>\n"
-        + "                <input type=\"text\" class=\"form-control\" "
-          + "name=\"ip\" id=\"inputIp\" placeholder=\"86.59.21.38\"%s "
-          + "required>\n"
-        + "              </div><!-- form-group -->\n"
-        + "              <div class=\"form-group%s\">\n"
-        + "                <label for=\"inputTimestamp\" "
-          + "class=\"control-label\">%s</label>\n"
-        + "                <input type=\"date\" class=\"form-control\" "
-          + "name=\"timestamp\" id=\"inputTimestamp\" "
-          + "placeholder=\"2010-01-01\"%s required>\n"
-        + "              </div><!-- form-group -->\n"
-        + "              <input type=\"hidden\" name=\"lang\" value=\"%s\">\n"
-        + "              <button type=\"submit\" "
-          + "class=\"btn btn-primary\">%s</button>\n"
-        + "            </form>\n"
-        + "          </div><!-- text-center -->\n"
-        + "        </div><!-- col -->\n"
-        + "      </div><!-- row -->\n",
-        rb.getString("form.explanation"),
-        relayIpHasError ? " has-error" : "",
-        rb.getString("form.ip.label"),
-        ipValue,
+    templates.form.write(out, relayIpHasError ? " has-error" : "", ipValue,
         timestampHasError ? " has-error" : "",
-        rb.getString("form.timestamp.label"),
-        timestampStr != null && timestampStr.length() > 0
-            ? " value=\"" + timestampStr + "\"" : "",
-        langStr,
-        rb.getString("form.search.label"));
+        null != timestampStr ? timestampStr : "");
   }
 
-  private void writeSummaryUnableToConnectToBackend(PrintWriter out,
-      ResourceBundle rb) {
-    String contactLink =
-        "<a href=\"https://www.torproject.org/contact\">"
-        + rb.getString("summary.serverproblem.dbempty.body.link")
-        + "</a>";
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-danger",
-        rb.getString("summary.serverproblem.dbnoconnect.title"), null,
-        rb.getString("summary.serverproblem.dbnoconnect.body.text"),
-        contactLink);
+  private void writeSummaryUnableToConnectToBackend(HtmlWriter out,
+      PageTemplates templates) throws IOException {
+    templates.summaryUnableToConnectToBackend.write(out);
   }
 
-  private void writeSummaryNoData(PrintWriter out, ResourceBundle rb) {
-    String contactLink =
-        "<a href=\"https://www.torproject.org/contact\">"
-        + rb.getString("summary.serverproblem.dbempty.body.link")
-        + "</a>";
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-danger",
-        rb.getString("summary.serverproblem.dbempty.title"), null,
-        rb.getString("summary.serverproblem.dbempty.body.text"),
-        contactLink);
+  private void writeSummaryNoData(HtmlWriter out, PageTemplates templates)
+      throws IOException {
+    templates.summaryNoData.write(out);
   }
 
-  private void writeSummaryNoTimestamp(PrintWriter out, ResourceBundle rb) {
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-danger",
-        rb.getString("summary.invalidparams.notimestamp.title"), null,
-        rb.getString("summary.invalidparams.notimestamp.body"));
+  private void writeSummaryNoTimestamp(HtmlWriter out,
+      PageTemplates templates) throws IOException {
+    templates.summaryNoTimestamp.write(out);
   }
 
-  private void writeSummaryNoIp(PrintWriter out, ResourceBundle rb) {
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-danger", rb.getString("summary.invalidparams.noip.title"),
-        null, rb.getString("summary.invalidparams.noip.body"));
+  private void writeSummaryNoIp(HtmlWriter out, PageTemplates templates)
+      throws IOException {
+    templates.summaryNoIp.write(out);
   }
 
-  private void writeSummaryTimestampOutsideRange(PrintWriter out,
-      ResourceBundle rb, String timestampStr, String firstDate,
-      String lastDate) {
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-danger",
-        rb.getString("summary.invalidparams.timestamprange.title"), null,
-        rb.getString("summary.invalidparams.timestamprange.body"),
-        timestampStr, firstDate, lastDate);
+  private void writeSummaryTimestampOutsideRange(HtmlWriter out,
+      PageTemplates templates, String timestampStr, String firstDate,
+      String lastDate) throws IOException {
+    templates.summaryTimestampOutsideRange.write(out, timestampStr, firstDate,
+        lastDate);
   }
 
-  private void writeSummaryInvalidIp(PrintWriter out, ResourceBundle rb,
-      String ipParameter) {
-    String escapedIpParameter = ipParameter.length() > 40
-        ? StringEscapeUtils.escapeHtml4(ipParameter.substring(0, 40))
-        + "[...]" : StringEscapeUtils.escapeHtml4(ipParameter);
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-danger",
-        rb.getString("summary.invalidparams.invalidip.title"), null,
-        rb.getString("summary.invalidparams.invalidip.body"),
-        escapedIpParameter, "\"a.b.c.d\"", "\"[a:b:c:d:e:f:g:h]\"");
+  private void writeSummaryInvalidIp(HtmlWriter out, PageTemplates templates,
+      String ipParameter) throws IOException {
+    templates.summaryInvalidIp.write(out, ipParameter.length() > 40
+        ? ipParameter.substring(0, 40) + "[...]" : ipParameter);
   }
 
-  private void writeSummaryInvalidTimestamp(PrintWriter out,
-      ResourceBundle rb, String timestampParameter) {
-    String escapedTimestampParameter = timestampParameter.length() > 20
-        ? StringEscapeUtils.escapeHtml4(timestampParameter
-        .substring(0, 20)) + "[...]"
-        : StringEscapeUtils.escapeHtml4(timestampParameter);
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-danger",
-        rb.getString("summary.invalidparams.invalidtimestamp.title"),
-        null, rb.getString("summary.invalidparams.invalidtimestamp.body"),
-        escapedTimestampParameter, "\"YYYY-MM-DD\"");
+  private void writeSummaryInvalidTimestamp(HtmlWriter out,
+      PageTemplates templates, String timestampParameter) throws IOException {
+    templates.summaryInvalidTimestamp.write(out,
+        timestampParameter.length() > 20
+        ? timestampParameter.substring(0, 20) + "[...]" : timestampParameter);
   }
 
-  private void writeSummaryTimestampTooRecent(PrintWriter out,
-      ResourceBundle rb) {
-    this.writeSummary(out, rb.getString("summary.heading"), "panel-danger",
-        rb.getString("summary.invalidparams.timestamptoorecent.title"),
-        null, rb.getString("summary.invalidparams.timestamptoorecent.body"));
+  private void writeSummaryTimestampTooRecent(HtmlWriter out,
+      PageTemplates templates) throws IOException {
+    templates.summaryTimestampTooRecent.write(out);
   }
 
-  private void writeSummaryNoDataForThisInterval(PrintWriter out,
-      ResourceBundle rb) {
-    String contactLink =
-        "<a href=\"https://www.torproject.org/contact\">"
-        + rb.getString("summary.serverproblem.dbempty.body.link")
-        + "</a>";
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-danger",
-        rb.getString("summary.serverproblem.nodata.title"), null,
-        rb.getString("summary.serverproblem.nodata.body.text"),
-        contactLink);
+  private void writeSummaryNoDataForThisInterval(HtmlWriter out,
+      PageTemplates templates) throws IOException {
+    templates.summaryNoDataForThisInterval.write(out);
   }
 
-  void writeSummaryAddressesInSameNetwork(PrintWriter out,
-      ResourceBundle rb, String requestUri, String relayIp, String timestampStr,
-      String langStr, List<String> addressesInSameNetwork) {
-    Object[][] panelItems = new Object[addressesInSameNetwork.size()][];
-    for (int i = 0; i < addressesInSameNetwork.size(); i++) {
-      String addressInSameNetwork = addressesInSameNetwork.get(i);
+  void writeSummaryAddressesInSameNetwork(HtmlWriter out,
+      PageTemplates templates, String requestUri, String relayIp,
+      String timestampStr, String langStr,
+      List<String> addressesInSameNetwork) throws IOException {
+    templates.summaryAddressesInSameNetwork.write(out, relayIp, timestampStr,
+        relayIp.contains(":") ? "48" : "24");
+    for (String addressInSameNetwork : addressesInSameNetwork) {
       String link;
       String address;
       if (addressInSameNetwork.contains(":")) {
         address = addressInSameNetwork.replaceAll("[\\[\\]]", "");
-        link = String.format("%s?ip=[%s]&timestamp=%s&lang=%s",
-            requestUri, address.replace(":", "%3A"), timestampStr, langStr);
+        link = requestUri + "?ip=[" + address.replace(":", "%3A")
+            + "]&timestamp=" + timestampStr + "&lang=" + langStr;
         address = "[" + address + "]";
       } else {
-        link = String.format("%s?ip=%s&timestamp=%s&lang=%s",
-            requestUri, addressInSameNetwork, timestampStr, langStr);
+        link = requestUri + "?ip=" + addressInSameNetwork + "&timestamp="
+            + timestampStr + "&lang=" + langStr;
         address = addressInSameNetwork;
       }
-      panelItems[i] = new Object[] { link, address };
+      PageTemplates.SUMMARY_ITEM.write(out, link, address);
     }
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-warning",
-        rb.getString("summary.negativesamenetwork.title"), panelItems,
-        rb.getString("summary.negativesamenetwork.body"),
-        relayIp, timestampStr, relayIp.contains(":") ? 48 : 24);
+    PageTemplates.SUMMARY_ITEMS_END.write(out);
   }
 
-  private void writeSummaryPositive(PrintWriter out, ResourceBundle rb,
-      String relayIp, String timestampStr) {
+  private void writeSummaryPositive(HtmlWriter out, PageTemplates templates,
+      String relayIp, String timestampStr) throws IOException {
     String formattedRelayIp = relayIp.contains(":")
         ? "[" + relayIp + "]" : relayIp;
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-success", rb.getString("summary.positive.title"), null,
-        rb.getString("summary.positive.body"), formattedRelayIp,
-        timestampStr);
+    templates.summaryPositive.write(out, formattedRelayIp, timestampStr);
   }
 
-  private void writeSummaryNegative(PrintWriter out, ResourceBundle rb,
-      String relayIp, String timestampStr) {
+  private void writeSummaryNegative(HtmlWriter out, PageTemplates templates,
+      String relayIp, String timestampStr) throws IOException {
     String formattedRelayIp = relayIp.contains(":")
         ? "[" + relayIp + "]" : relayIp;
-    this.writeSummary(out, rb.getString("summary.heading"),
-        "panel-warning", rb.getString("summary.negative.title"), null,
-        rb.getString("summary.negative.body"), formattedRelayIp,
-        timestampStr);
-  }
-
-  private void writeSummary(PrintWriter out, String heading,
-      String panelContext, String panelTitle, Object[][] panelItems,
-      String panelBodyTemplate, Object... panelBodyArgs) {
-    out.printf("      <div class=\"row\">\n"
-        + "        <div class=\"col-xs-12\">\n"
-        + "          <h2>%s</h2>\n"
-        + "          <div class=\"panel %s\">\n"
-        + "            <div class=\"panel-heading\">\n"
-        + "              <h3 class=\"panel-title\">%s</h3>\n"
-        + "            </div><!-- panel-heading -->\n"
-        + "            <div class=\"panel-body\">\n"
-        + "              <p>%s</p>\n", heading, panelContext, panelTitle,
-        String.format(panelBodyTemplate, panelBodyArgs));
-    if (panelItems != null) {
-      out.print("              <ul>\n");
-      for (Object[] panelItem : panelItems) {
-        out.printf("                <li><a href=\"%s\">%s</a></li>\n",
-            panelItem);
-      }
-      out.print("              </ul>\n");
-    }
-    out.print("            </div><!-- panel-body -->\n"
-        + "          </div><!-- panel -->\n"
-        + "        </div><!-- col -->\n"
-        + "      </div><!-- row -->\n");
+    templates.summaryNegative.write(out, formattedRelayIp, timestampStr);
   }
 
-  private void writeTechnicalDetails(PrintWriter out, ResourceBundle rb,
-      String relayIp, String timestampStr, List<String[]> tableRows) {
+  private void writeTechnicalDetails(HtmlWriter out, PageTemplates templates,
+      String relayIp, String timestampStr, List<String[]> tableRows)
+      throws IOException {
     String formattedRelayIp = relayIp.contains(":")
         ? "[" + relayIp + "]" : relayIp;
-    out.printf("      <div class=\"row\">\n"
-        + "        <div class=\"col-xs-12\">\n"
-        + "          <h2>%s</h2>\n"
-        + "          <p>%s</p>\n"
-        + "          <table class=\"table\">\n"
-        + "            <thead>\n"
-        + "              <tr>\n"
-        + "                <th>%s</th>\n"
-        + "                <th>%s</th>\n"
-        + "                <th>%s</th>\n"
-        + "                <th>%s</th>\n"
-        + "                <th>%s</th>\n"
-        + "              </tr>\n"
-        + "            </thead>\n"
-        + "            <tbody>\n",
-        rb.getString("technicaldetails.heading"),
-        String.format(rb.getString("technicaldetails.pre"),
-            formattedRelayIp, timestampStr),
-        rb.getString("technicaldetails.colheader.timestamp"),
-        rb.getString("technicaldetails.colheader.ip"),
-        rb.getString("technicaldetails.colheader.fingerprint"),
-        rb.getString("technicaldetails.colheader.nickname"),
-        rb.getString("technicaldetails.colheader.exit"));
+    templates.technicalDetails.write(out, formattedRelayIp, timestampStr);
     for (String[] tableRow : tableRows) {
-      out.print("              <tr>");
-      for (int i = 0; i < tableRow.length; i++) {
-        String attributes = "";
-        String content = tableRow[i];
-        if (i == 2) {
-          attributes = " class=\"fingerprint\"";
-        } else if (i == 3 && content == null) {
-          content = "("
-              + rb.getString("technicaldetails.nickname.unknown") + ")";
-        } else if (i == 4) {
-          switch (content) {
-            case "U":
-              content = rb.getString("technicaldetails.exit.unknown");
-              break;
-            case "Y":
-              content = rb.getString("technicaldetails.exit.yes");
-              break;
-            case "N":
-              content = rb.getString("technicaldetails.exit.no");
-              break;
-            default: // should never happen
-              logger.warn("Unknown content: '{}'.", content);
-          }
-        }
-        out.print("                <td" + attributes + ">" + content + "</td>");
+      String exit;
+      switch (tableRow[4]) {
+        case "U":
+          exit = templates.exitUnknown;
+          break;
+        case "Y":
+          exit = templates.exitYes;
+          break;
+        case "N":
+          exit = templates.exitNo;
+          break;
+        default: // should never happen
+          logger.warn("Unknown content: '{}'.", tableRow[4]);
+          exit = tableRow[4];
       }
-      out.print("              </tr>\n");
+      PageTemplates.TECHNICAL_DETAILS_ROW.write(out, tableRow[0], tableRow[1],
+          tableRow[2], null == tableRow[3] ? templates.nicknameUnknown
+          : tableRow[3], exit);
     }
-    out.print("            </tbody>\n"
-        + "          </table>\n"
-        + "        </div><!-- col -->\n"
-        + "      </div><!-- row -->\n");
+    PageTemplates.TECHNICAL_DETAILS_END.write(out);
   }
 
-  private void writePermanentLink(PrintWriter out, ResourceBundle rb,
-      String permanentLinkUrl, String relayIp, String timestampStr,
-      String langStr) {
+  private void writePermanentLink(HtmlWriter out, PageTemplates templates,
+      String permanentLinkUrl, String relayIp, String timestampStr)
+      throws IOException {
     String encodedAddress = relayIp.contains(":")
         ? "[" + relayIp.replace(":", "%3A") + "]" : relayIp;
-    out.printf("      <div class=\"row\">\n"
-        + "        <div class=\"col-xs-12\">\n"
-        + "          <h2>%s</h2>\n"
-        + "          <pre>%s?ip=%s&amp;"
-          + "timestamp=%s&amp;lang=%s</pre>\n"
-        + "        </div><!-- col -->\n"
-        + "      </div><!-- row -->\n",
-        rb.getString("permanentlink.heading"), permanentLinkUrl,
-        encodedAddress, timestampStr, langStr);
+    templates.permanentLink.write(out, permanentLinkUrl, encodedAddress,
+        timestampStr);
   }
 
-  private void writeFooter(PrintWriter out, ResourceBundle rb,
-      String requestUri, String relayIp, String timestampStr) {
-    out.printf("    </div><!-- container -->\n"
-        + "    <div class=\"container\">\n"
-        + "      <div class=\"row\">\n"
-        + "        <div class=\"col-xs-6\">\n"
-        + "          <h3>%s</h3>\n"
-        + "          <p class=\"small\">%s</p>\n"
-        + "        </div><!-- col -->\n",
-        rb.getString("footer.abouttor.heading"),
-        String.format(rb.getString("footer.abouttor.body.text"),
-            "<a href=\"https://www.torproject.org/about\">"
-            + rb.getString("footer.abouttor.body.link1") + "</a>",
-            "<a href=\"https://www.torproject.org/contact\">"
-            + rb.getString("footer.abouttor.body.link2") + "</a>"));
-    out.printf("        <div class=\"col-xs-6\">\n"
-        + "          <h3>%s</h3>\n"
-        + "          <p class=\"small\">%s</p>\n"
-        + "        </div><!-- col -->\n"
-        + "      </div><!-- row -->\n",
-        rb.getString("footer.aboutexonerator.heading"),
-        rb.getString("footer.aboutexonerator.body"));
-    out.printf("      <div class=\"row\">\n"
-        + "        <div class=\"col-xs-12\">\n"
-        + "          <p class=\"text-center small\">%s",
-        rb.getString("footer.language.text"));
-    for (Map.Entry<String, String> entry
-        : this.availableLanguageNames.entrySet()) {
-      if (null != relayIp && null != timestampStr) {
-        out.printf(" <a href=\"%s?ip=%s&timestamp=%s&lang=%s\">%s</a>",
-            requestUri, relayIp, timestampStr, entry.getKey(),
-            entry.getValue());
-      } else {
-        out.printf(" <a href=\"%s?lang=%s\">%s</a>",
-            requestUri, entry.getKey(), entry.getValue());
+  private void writeFooter(HtmlWriter out, PageTemplates templates,
+      String requestUri, String relayIp, String timestampStr)
+      throws IOException {
+    templates.footerStart.write(out);
+    if (null != relayIp && null != timestampStr) {
+      for (PageTemplate link : templates.footerLanguageLinksWithQuery) {
+        link.write(out, requestUri, relayIp, timestampStr);
+      }
+    } else {
+      for (PageTemplate link : templates.footerLanguageLinks) {
+        link.write(out, requestUri);
       }
     }
-    out.printf("</p>\n"
-        + "        </div><!-- col -->\n"
-        + "      </div><!-- row -->\n"
-        + "    </div><!-- container -->\n");
-    out.close();
+    templates.footerEnd.write(out);
   }
 }
@@ -0,0 +1,100 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.Objects;
+
+/** Position in an export after a given status entry or exit list entry,
+ * which is passed to clients as opaque token for resuming an export. Status
+ * entries come before exit list entries, and entries of either kind are
+ * ordered by time, fingerprint identifier, and, for exit list entries, exit
+ * address, which is the order of the database's unique indexes. */
+final class ExportPosition {
+
+  /** Whether the position is after an exit list entry rather than after a
+   * status entry. */
+  final boolean exitListEntry;
+
+  /** Valid-after or scan time. */
+  final LocalDateTime time;
+
+  /** Internal fingerprint identifier of the storage. */
+  final int fingerprintId;
+
+  /** Exit address, which is null for status entries. */
+  final String exitAddress;
+
+  private ExportPosition(boolean exitListEntry, LocalDateTime time,
+      int fingerprintId, String exitAddress) {
+    this.exitListEntry = exitListEntry;
+    this.time = time;
+    this.fingerprintId = fingerprintId;
+    this.exitAddress = exitAddress;
+  }
+
+  /** Return the position after the status entry with the given valid-after
+   * time and fingerprint identifier. */
+  static ExportPosition afterStatusEntry(LocalDateTime validAfter,
+      int fingerprintId) {
+    return new ExportPosition(false, validAfter, fingerprintId, null);
+  }
+
+  /** Return the position after the exit list entry with the given scan
+   * time, fingerprint identifier, and exit address. */
+  static ExportPosition afterExitListEntry(LocalDateTime scanned,
+      int fingerprintId, String exitAddress) {
+    return new ExportPosition(true, scanned, fingerprintId, exitAddress);
+  }
+
+  /** Encode this position as URL-safe token. */
+  String toToken() {
+    String plain = (this.exitListEntry ? "e," : "s,") + this.time + ","
+        + this.fingerprintId + (this.exitListEntry ? "," + this.exitAddress
+        : "");
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(
+        plain.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  /** Decode the given token, or return {@code null} if it is not a valid
+   * token. */
+  static ExportPosition fromToken(String token) {
+    try {
+      String[] parts = new String(Base64.getUrlDecoder().decode(token),
+          StandardCharsets.US_ASCII).split(",", -1);
+      if (3 == parts.length && "s".equals(parts[0])) {
+        return afterStatusEntry(LocalDateTime.parse(parts[1]),
+            Integer.parseInt(parts[2]));
+      } else if (4 == parts.length && "e".equals(parts[0])
+          && !parts[3].isEmpty()) {
+        return afterExitListEntry(LocalDateTime.parse(parts[1]),
+            Integer.parseInt(parts[2]), parts[3]);
+      }
+    } catch (IllegalArgumentException | DateTimeParseException e) {
+      /* Handle below. */
+    }
+    return null;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof ExportPosition)) {
+      return false;
+    }
+    ExportPosition position = (ExportPosition) other;
+    return this.exitListEntry == position.exitListEntry
+        && this.time.equals(position.time)
+        && this.fingerprintId == position.fingerprintId
+        && Objects.equals(this.exitAddress, position.exitAddress);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(this.exitListEntry, this.time, this.fingerprintId,
+        this.exitAddress);
+  }
+}
@@ -0,0 +1,262 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Servlet that streams all status entries and exit list entries in a date
+ * range as newline-delimited JSON, with checkpoint lines containing tokens
+ * for resuming an interrupted export. */
+public class ExportServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 2618204950392573384L;
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(ExportServlet.class);
+
+  private static final LatencyHistogram requestDuration
+      = Metrics.histogram(Metrics.REQUEST_DURATION, "endpoint", "export");
+
+  /* Counters of requests by outcome, looked up once rather than per
+   * request. */
+  private static final LongAdder successRequests = outcomeCounter("success");
+  private static final LongAdder abortedRequests = outcomeCounter("aborted");
+  private static final LongAdder badParameterRequests
+      = outcomeCounter("bad_parameter");
+  private static final LongAdder rejectedRequests = outcomeCounter("rejected");
+  private static final LongAdder errorRequests = outcomeCounter("error");
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private static final DateTimeFormatter timeFormatter
+      = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  /* Number of entries between two checkpoint lines. */
+  private static final int CHECKPOINT_INTERVAL = 1000;
+
+  /* Maximum number of days in a single export. */
+  private final int maxDays = Integer.getInteger("exonerator.export.maxdays",
+      31);
+
+  /* Permits for concurrent exports, which each hold a database connection
+   * for as long as the client keeps reading. */
+  private final Semaphore exportPermits = new Semaphore(
+      Integer.getInteger("exonerator.export.concurrency", 2));
+
+  /* Engine for answering queries, which is shared with other servlets. */
+  private QueryEngine queryEngine;
+
+  @Override
+  public void init() {
+    this.queryEngine = QueryEngine.get(this.getServletContext());
+  }
+
+  @Override
+  public void destroy() {
+    QueryEngine.shutdown(this.getServletContext());
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    final long startNanos = System.nanoTime();
+
+    /* Parse start, end, and after parameters. */
+    LocalDate startDate = parseDateParameter(request.getParameter("start"));
+    LocalDate endDate = parseDateParameter(request.getParameter("end"));
+    if (null == startDate || null == endDate) {
+      sendError(response, startNanos, HttpServletResponse.SC_BAD_REQUEST,
+          badParameterRequests, "Missing or invalid start or end parameter.");
+      return;
+    }
+    if (endDate.isBefore(startDate)
+        || ChronoUnit.DAYS.between(startDate, endDate) >= this.maxDays) {
+      sendError(response, startNanos, HttpServletResponse.SC_BAD_REQUEST,
+          badParameterRequests, "Date range must not exceed " + this.maxDays
+          + " days.");
+      return;
+    }
+    ExportPosition after = null;
+    String afterParameter = request.getParameter("after");
+    if (null != afterParameter) {
+      after = ExportPosition.fromToken(afterParameter.trim());
+      if (null == after) {
+        sendError(response, startNanos, HttpServletResponse.SC_BAD_REQUEST,
+            badParameterRequests, "Invalid after parameter.");
+        return;
+      }
+    }
+
+    /* Make sure that the query source supports exports and that there are
+     * not too many exports running already. */
+    ExportSource exportSource = this.queryEngine.getExportSource();
+    if (null == exportSource) {
+      sendError(response, startNanos, HttpServletResponse.SC_NOT_IMPLEMENTED,
+          errorRequests, "Exports are not supported by this server.");
+      return;
+    }
+    if (!this.exportPermits.tryAcquire()) {
+      sendError(response, startNanos,
+          HttpServletResponse.SC_SERVICE_UNAVAILABLE, rejectedRequests,
+          "Too many exports running.");
+      return;
+    }
+
+    /* Stream entries, compressed if the client accepts that. */
+    try {
+      response.setContentType("application/x-ndjson");
+      response.setCharacterEncoding("utf-8");
+      response.setHeader("Cache-Control", "no-store");
+      response.setHeader("Vary", "Accept-Encoding");
+      OutputStream outputStream = response.getOutputStream();
+      if (ResponseCompression.acceptsGzip(
+          request.getHeader("Accept-Encoding"))) {
+        response.setHeader("Content-Encoding", "gzip");
+        /* Flush compressed bytes whenever the generator is flushed after a
+         * checkpoint, so that clients receive checkpoints right away. */
+        outputStream = new GZIPOutputStream(outputStream, 8192, true);
+      }
+      try (JsonGenerator generator = jsonFactory.createGenerator(
+          outputStream)) {
+        generator.setPrettyPrinter(new MinimalPrettyPrinter(""));
+        exportSource.export(startDate, endDate, after,
+            new NdjsonSink(generator));
+        generator.writeStartObject();
+        generator.writeStringField("type", "end");
+        generator.writeEndObject();
+        generator.writeRaw('\n');
+      }
+      recordRequest(startNanos, successRequests);
+    } catch (IOException e) {
+      /* The client went away, so there is nobody left to tell. */
+      recordRequest(startNanos, abortedRequests);
+    } catch (Exception e) {
+      /* We might have sent entries already and can only end the response
+       * without an end line, so that the client resumes from its last
+       * checkpoint. */
+      logger.warn("Export from {} to {} failed.", startDate, endDate, e);
+      if (!response.isCommitted()) {
+        response.reset();
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      }
+      recordRequest(startNanos, errorRequests);
+    } finally {
+      this.exportPermits.release();
+    }
+  }
+
+  /** Sink that writes entries as JSON objects, one per line, followed by a
+   * checkpoint line after every so many entries. */
+  private static class NdjsonSink implements ExportSource.Sink {
+
+    private final JsonGenerator generator;
+
+    private int entries;
+
+    NdjsonSink(JsonGenerator generator) {
+      this.generator = generator;
+    }
+
+    @Override
+    public void statusEntry(LocalDateTime validAfter, String fingerprintBase64,
+        String nickname, Boolean exit, List<String> orAddresses,
+        ExportPosition position) throws IOException {
+      this.generator.writeStartObject();
+      this.generator.writeStringField("type", "status");
+      this.generator.writeStringField("valid_after",
+          validAfter.format(timeFormatter));
+      this.generator.writeStringField("fingerprint",
+          QueryResponseBuilder.convertFingerprintToHex(fingerprintBase64));
+      this.generator.writeStringField("nickname", nickname);
+      if (null != exit) {
+        this.generator.writeBooleanField("exit", exit);
+      }
+      this.generator.writeArrayFieldStart("addresses");
+      for (String orAddress : orAddresses) {
+        this.generator.writeString(orAddress);
+      }
+      this.generator.writeEndArray();
+      this.generator.writeEndObject();
+      this.generator.writeRaw('\n');
+      this.entryWritten(position);
+    }
+
+    @Override
+    public void exitListEntry(LocalDateTime scanned, String fingerprintBase64,
+        String exitAddress, ExportPosition position) throws IOException {
+      this.generator.writeStartObject();
+      this.generator.writeStringField("type", "exit");
+      this.generator.writeStringField("scanned",
+          scanned.format(timeFormatter));
+      this.generator.writeStringField("fingerprint",
+          QueryResponseBuilder.convertFingerprintToHex(fingerprintBase64));
+      this.generator.writeStringField("address", exitAddress);
+      this.generator.writeEndObject();
+      this.generator.writeRaw('\n');
+      this.entryWritten(position);
+    }
+
+    private void entryWritten(ExportPosition position) throws IOException {
+      if (++this.entries % CHECKPOINT_INTERVAL == 0) {
+        this.generator.writeStartObject();
+        this.generator.writeStringField("type", "checkpoint");
+        this.generator.writeStringField("after", position.toToken());
+        this.generator.writeEndObject();
+        this.generator.writeRaw('\n');
+        this.generator.flush();
+      }
+    }
+  }
+
+  private static LocalDate parseDateParameter(String parameter) {
+    if (null == parameter) {
+      return null;
+    }
+    try {
+      return LocalDate.parse(parameter.trim());
+    } catch (DateTimeException e) {
+      return null;
+    }
+  }
+
+  private static void sendError(HttpServletResponse response,
+      long startNanos, int status, LongAdder outcome, String message)
+      throws IOException {
+    response.sendError(status, message);
+    recordRequest(startNanos, outcome);
+  }
+
+  private static LongAdder outcomeCounter(String outcome) {
+    return Metrics.counter(Metrics.REQUESTS, "endpoint", "export", "outcome",
+        outcome);
+  }
+
+  /** Record the total duration and the outcome of a request that started at
+   * the given time. */
+  private static void recordRequest(long startNanos, LongAdder outcome) {
+    requestDuration.recordSince(startNanos);
+    outcome.increment();
+  }
+}
@@ -0,0 +1,43 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/** Source of all status entries and exit list entries in a date range, for
+ * bulk exports, which is implemented by query sources that can scan their
+ * data sequentially. */
+interface ExportSource {
+
+  /** Receiver of exported entries. */
+  interface Sink {
+
+    /** Receive a status entry with all OR addresses of the relay, where
+     * IPv6 addresses are enclosed in square brackets, followed by the
+     * position after this entry. */
+    void statusEntry(LocalDateTime validAfter, String fingerprintBase64,
+        String nickname, Boolean exit, List<String> orAddresses,
+        ExportPosition position) throws IOException;
+
+    /** Receive an exit list entry, followed by the position after this
+     * entry. */
+    void exitListEntry(LocalDateTime scanned, String fingerprintBase64,
+        String exitAddress, ExportPosition position) throws IOException;
+  }
+
+  /** Pass all status entries with valid-after dates and then all exit list
+   * entries with scan dates between the given dates, both inclusive, that
+   * come after the given position, or from the start if the position is
+   * {@code null}, to the given sink in the order of their positions.
+   *
+   * @throws IOException if the sink cannot write an entry, in which case
+   *     the export ends
+   * @throws Exception if entries cannot be read from the source
+   */
+  void export(LocalDate startDate, LocalDate endDate, ExportPosition after,
+      Sink sink) throws Exception;
+}
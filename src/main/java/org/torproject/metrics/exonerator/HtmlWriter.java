@@ -0,0 +1,121 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/** Writer of HTML pages that writes precompiled UTF-8 encoded fragments as
+ * they are and escapes and encodes dynamic values on the fly, collecting
+ * both in its own buffer to avoid many small writes to the underlying
+ * stream. */
+final class HtmlWriter implements Flushable {
+
+  private static final byte[] AMP = ascii("&amp;");
+
+  private static final byte[] LT = ascii("&lt;");
+
+  private static final byte[] GT = ascii("&gt;");
+
+  private static final byte[] QUOT = ascii("&quot;");
+
+  private static final byte[] APOS = ascii("&#39;");
+
+  /* Maximum number of bytes written for a single character, which is the
+   * length of the longest replacement. */
+  private static final int MAX_CHAR_LENGTH = 6;
+
+  private final OutputStream out;
+
+  private final byte[] buffer = new byte[8192];
+
+  private int count;
+
+  HtmlWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  /** Write the given bytes without escaping. */
+  void write(byte[] bytes) throws IOException {
+    if (bytes.length > this.buffer.length - this.count) {
+      this.flushBuffer();
+      if (bytes.length > this.buffer.length) {
+        this.out.write(bytes);
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, this.buffer, this.count, bytes.length);
+    this.count += bytes.length;
+  }
+
+  /** Write the given value as UTF-8 after escaping characters that have a
+   * special meaning in HTML text and attribute values. */
+  void writeEscaped(String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      if (this.count > this.buffer.length - MAX_CHAR_LENGTH) {
+        this.flushBuffer();
+      }
+      char ch = value.charAt(i);
+      switch (ch) {
+        case '&':
+          this.write(AMP);
+          break;
+        case '<':
+          this.write(LT);
+          break;
+        case '>':
+          this.write(GT);
+          break;
+        case '"':
+          this.write(QUOT);
+          break;
+        case '\'':
+          this.write(APOS);
+          break;
+        default:
+          if (ch < 0x80) {
+            this.buffer[this.count++] = (byte) ch;
+          } else if (ch < 0x800) {
+            this.buffer[this.count++] = (byte) (0xc0 | (ch >> 6));
+            this.buffer[this.count++] = (byte) (0x80 | (ch & 0x3f));
+          } else if (Character.isHighSurrogate(ch) && i + 1 < value.length()
+              && Character.isLowSurrogate(value.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint(ch, value.charAt(++i));
+            this.buffer[this.count++] = (byte) (0xf0 | (codePoint >> 18));
+            this.buffer[this.count++]
+                = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            this.buffer[this.count++]
+                = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            this.buffer[this.count++] = (byte) (0x80 | (codePoint & 0x3f));
+          } else if (Character.isSurrogate(ch)) {
+            this.buffer[this.count++] = (byte) '?';
+          } else {
+            this.buffer[this.count++] = (byte) (0xe0 | (ch >> 12));
+            this.buffer[this.count++] = (byte) (0x80 | ((ch >> 6) & 0x3f));
+            this.buffer[this.count++] = (byte) (0x80 | (ch & 0x3f));
+          }
+      }
+    }
+  }
+
+  private void flushBuffer() throws IOException {
+    if (this.count > 0) {
+      this.out.write(this.buffer, 0, this.count);
+      this.count = 0;
+    }
+  }
+
+  /** Write all buffered bytes to the underlying stream and flush it. */
+  @Override
+  public void flush() throws IOException {
+    this.flushBuffer();
+    this.out.flush();
+  }
+}
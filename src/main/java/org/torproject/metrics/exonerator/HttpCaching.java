@@ -0,0 +1,202 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Helper methods for writing and evaluating HTTP caching headers that are
+ * derived from the import watermark, which is the time of the last data
+ * imported into the database. */
+final class HttpCaching {
+
+  /* Number of days after a query date when query responses are not expected to
+   * change anymore: the query considers data up to one day after the query
+   * date, and the importer may still import descriptors that are up to three
+   * days old. */
+  static final long STABLE_AFTER_DAYS = 4L;
+
+  /* Maximum age in seconds of cached responses for query dates that are well
+   * behind the import watermark. */
+  private static final long stableMaxAgeSeconds = Long.getLong(
+      "exonerator.cache.maxage", Duration.ofDays(30L).getSeconds());
+
+  /* End of entity tags of gzip-compressed responses, which differ from the
+   * uncompressed responses byte by byte and therefore need their own strong
+   * entity tags. */
+  private static final String GZIP_SUFFIX = "-gzip\"";
+
+  private HttpCaching() {
+  }
+
+  /** Return the entity tag for responses derived from data up to the given
+   * import watermark. */
+  static String entityTag(Instant watermark) {
+    return "\"" + Long.toHexString(watermark.getEpochSecond()) + "\"";
+  }
+
+  /** Return the entity tag of a variant of a resource with the given entity
+   * tag, for example, a page in a given language rendered from a query
+   * response. */
+  static String variantEntityTag(String entityTag, String variant) {
+    return entityTag.endsWith("\"")
+        ? entityTag.substring(0, entityTag.length() - 1) + "-" + variant + "\""
+        : entityTag;
+  }
+
+  /** Return the entity tag of the gzip-compressed variant of a resource with
+   * the given entity tag. */
+  static String gzipEntityTag(String entityTag) {
+    return variantEntityTag(entityTag, "gzip");
+  }
+
+  /** Return the entity tag of the resource that the given entity tag of a
+   * gzip-compressed variant was derived from, or the given entity tag, which
+   * may be {@code null}, if it's not the tag of a gzip-compressed variant. */
+  static String identityEntityTag(String entityTag) {
+    return null != entityTag && entityTag.endsWith(GZIP_SUFFIX)
+        ? entityTag.substring(0, entityTag.length() - GZIP_SUFFIX.length())
+        + "\"" : entityTag;
+  }
+
+  /** Return the entity tag to send in a 304 response for a resource with the
+   * given entity tag, which is the entity tag of its gzip-compressed variant
+   * if the given If-None-Match header value, or {@code null}, contains that,
+   * and the given entity tag otherwise. */
+  static String notModifiedEntityTag(String ifNoneMatch, String entityTag) {
+    if (null != ifNoneMatch) {
+      String gzipEntityTag = gzipEntityTag(entityTag);
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/")) {
+          tag = tag.substring(2);
+        }
+        if (gzipEntityTag.equals(tag)) {
+          return gzipEntityTag;
+        }
+      }
+    }
+    return entityTag;
+  }
+
+  /** Return an If-None-Match header value containing the entity tags of the
+   * resources that the given variant entity tags were derived from, or
+   * {@code null} if none of them were derived for the given variant,
+   * regardless of whether the variants were gzip-compressed. */
+  static String baseEntityTags(String ifNoneMatch, String variant) {
+    StringBuilder sb = new StringBuilder();
+    String suffix = "-" + variant + "\"";
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      tag = identityEntityTag(tag);
+      if ("*".equals(tag)) {
+        return tag;
+      } else if (tag.endsWith(suffix)) {
+        sb.append(sb.length() > 0 ? ", " : "")
+            .append(tag, 0, tag.length() - suffix.length()).append("\"");
+      }
+    }
+    return sb.length() > 0 ? sb.toString() : null;
+  }
+
+  /** Return the Cache-Control header value for a response to a query for the
+   * given date, which allows caching for a long time if the query date is
+   * well behind the import watermark and requires revalidation otherwise. */
+  static String cacheControl(LocalDate queryDate, Instant watermark) {
+    if (queryDate.plusDays(STABLE_AFTER_DAYS).isBefore(
+        watermark.atOffset(ZoneOffset.UTC).toLocalDate())) {
+      return "public, max-age=" + stableMaxAgeSeconds;
+    } else {
+      return "public, no-cache";
+    }
+  }
+
+  /** Return the max-age directive value in seconds of the given Cache-Control
+   * header value, or -1 if the header value is {@code null}, does not contain
+   * this directive, or requires revalidation using no-cache. */
+  static long maxAgeSeconds(String cacheControl) {
+    if (null == cacheControl) {
+      return -1L;
+    }
+    long maxAgeSeconds = -1L;
+    for (String directive : cacheControl.split(",")) {
+      directive = directive.trim();
+      if ("no-cache".equals(directive) || "no-store".equals(directive)) {
+        return -1L;
+      } else if (directive.startsWith("max-age=")) {
+        try {
+          maxAgeSeconds = Long.parseLong(directive.substring(8));
+        } catch (NumberFormatException e) {
+          return -1L;
+        }
+      }
+    }
+    return maxAgeSeconds;
+  }
+
+  /** Return whether the given If-None-Match header value contains the given
+   * entity tag, the entity tag of its gzip-compressed variant, or the
+   * wildcard, using weak comparison. */
+  static boolean matchesEntityTag(String ifNoneMatch, String entityTag) {
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      tag = identityEntityTag(tag);
+      if ("*".equals(tag) || entityTag.equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Return whether the given request is a conditional request for a resource
+   * that has not been modified, giving precedence to If-None-Match over
+   * If-Modified-Since. */
+  static boolean isNotModified(HttpServletRequest request, String entityTag,
+      Instant lastModified) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    long ifModifiedSince = -1L;
+    if (null == ifNoneMatch) {
+      try {
+        ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      } catch (IllegalArgumentException e) {
+        /* Ignore unparseable dates as required by RFC 7232. */
+      }
+    }
+    return isNotModified(ifNoneMatch, ifModifiedSince, entityTag,
+        lastModified);
+  }
+
+  /** Return whether a conditional request with the given If-None-Match header
+   * value, or {@code null}, and If-Modified-Since time in milliseconds, or -1,
+   * is for a resource that has not been modified, giving precedence to
+   * If-None-Match over If-Modified-Since. */
+  static boolean isNotModified(String ifNoneMatch, long ifModifiedSince,
+      String entityTag, Instant lastModified) {
+    if (null != ifNoneMatch) {
+      return matchesEntityTag(ifNoneMatch, entityTag);
+    }
+    return ifModifiedSince >= 0L
+        && lastModified.getEpochSecond() * 1000L <= ifModifiedSince;
+  }
+
+  /** Set entity tag, last-modified time, and Cache-Control header on the given
+   * response. */
+  static void setHeaders(HttpServletResponse response, String entityTag,
+      Instant lastModified, String cacheControl) {
+    response.setHeader("ETag", entityTag);
+    response.setDateHeader("Last-Modified", lastModified.toEpochMilli());
+    response.setHeader("Cache-Control", cacheControl);
+  }
+}
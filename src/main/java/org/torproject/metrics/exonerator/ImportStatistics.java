@@ -0,0 +1,125 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+/** Statistics on a single execution of the database importer, with time
+ * spent in the database kept apart from time spent reading, parsing, and
+ * converting descriptors, by import phase. */
+class ImportStatistics {
+
+  /** Import phases. */
+  enum Phase {
+
+    /** Waiting for the descriptor reader to read and parse the next
+     * descriptor. */
+    READING,
+
+    /** Converting and inserting status entries of consensuses. */
+    CONSENSUSES,
+
+    /** Converting and inserting entries of exit lists. */
+    EXIT_LISTS,
+
+    /** Building and storing /24 prefix filters. */
+    FILTERS
+  }
+
+  /* Total time, time spent in the database, and rows written, by phase. */
+  private final long[] totalNanos = new long[Phase.values().length];
+
+  private final long[] databaseNanos = new long[Phase.values().length];
+
+  private final long[] rows = new long[Phase.values().length];
+
+  private int consensuses;
+
+  private int exitLists;
+
+  void addTotalNanos(Phase phase, long nanos) {
+    this.totalNanos[phase.ordinal()] += nanos;
+  }
+
+  void addDatabaseNanos(Phase phase, long nanos) {
+    this.databaseNanos[phase.ordinal()] += nanos;
+  }
+
+  void addRow(Phase phase) {
+    this.rows[phase.ordinal()]++;
+  }
+
+  void addConsensus() {
+    this.consensuses++;
+  }
+
+  void addExitList() {
+    this.exitLists++;
+  }
+
+  long getTotalNanos(Phase phase) {
+    return this.totalNanos[phase.ordinal()];
+  }
+
+  long getDatabaseNanos(Phase phase) {
+    return this.databaseNanos[phase.ordinal()];
+  }
+
+  /** Return the time spent in the given phase outside of the database. */
+  long getParseNanos(Phase phase) {
+    return this.getTotalNanos(phase) - this.getDatabaseNanos(phase);
+  }
+
+  long getRows(Phase phase) {
+    return this.rows[phase.ordinal()];
+  }
+
+  int getConsensuses() {
+    return this.consensuses;
+  }
+
+  int getExitLists() {
+    return this.exitLists;
+  }
+
+  /** Return the time spent importing descriptors, which includes reading,
+   * parsing, converting, and inserting them, but not building filters. */
+  long getDescriptorNanos() {
+    return this.getTotalNanos(Phase.READING)
+        + this.getTotalNanos(Phase.CONSENSUSES)
+        + this.getTotalNanos(Phase.EXIT_LISTS);
+  }
+
+  /** Return the number of status entry and exit list entry rows written per
+   * second of importing descriptors. */
+  double getRowsPerSecond() {
+    return perSecond(this.getRows(Phase.CONSENSUSES)
+        + this.getRows(Phase.EXIT_LISTS), this.getDescriptorNanos());
+  }
+
+  /** Return the number of consensuses imported per second of importing
+   * descriptors. */
+  double getConsensusesPerSecond() {
+    return perSecond(this.consensuses, this.getDescriptorNanos());
+  }
+
+  private static double perSecond(long count, long nanos) {
+    return nanos > 0L ? count * 1e9 / nanos : 0.0;
+  }
+
+  /** Return a multi-line summary with totals and one line per phase. */
+  String format() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("Imported %d consensuses and %d exit lists in "
+        + "%.1f s: %.1f consensuses/s, %.0f rows/s.%n", this.consensuses,
+        this.exitLists, this.getDescriptorNanos() / 1e9,
+        this.getConsensusesPerSecond(), this.getRowsPerSecond()));
+    for (Phase phase : Phase.values()) {
+      sb.append(String.format("  %-12s %9d rows %9.1f s total %9.1f s parse "
+          + "%9.1f s database%n", phase.name().toLowerCase(),
+          this.getRows(phase), this.getTotalNanos(phase) / 1e9,
+          this.getParseNanos(phase) / 1e9,
+          this.getDatabaseNanos(phase) / 1e9));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,32 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.time.LocalDateTime;
+
+/** Target of importing status entries and exit list entries, like the
+ * database or an in-memory store, which complements {@link QuerySource} for
+ * answering queries from the imported data. */
+interface ImportTarget {
+
+  /** Import a status entry with a single OR address, which is either an IPv4
+   * address or an IPv6 address without square brackets, and with the
+   * hex-encoded /24 prefix of that address. Importing the same status entry
+   * more than once has no effect on query results.
+   *
+   * @throws Exception if the status entry cannot be imported
+   */
+  void importStatusEntry(LocalDateTime validAfter, String fingerprintBase64,
+      String nickname, Boolean exit, String orAddress, String orAddress24)
+      throws Exception;
+
+  /** Import an exit list entry with a single exit address and the
+   * hex-encoded /24 prefix of that address. Importing the same exit list
+   * entry more than once has no effect on query results.
+   *
+   * @throws Exception if the exit list entry cannot be imported
+   */
+  void importExitListEntry(String fingerprintBase64, String exitAddress,
+      String exitAddress24, LocalDateTime scanned) throws Exception;
+}
@@ -0,0 +1,46 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+/** Backend that passes queries directly to the query engine in the same
+ * process, without going through HTTP and JSON, and that runs queries on the
+ * calling thread. */
+class InProcessBackend implements Backend {
+
+  private final QueryEngine queryEngine;
+
+  InProcessBackend(QueryEngine queryEngine) {
+    this.queryEngine = queryEngine;
+  }
+
+  @Override
+  public Result query(String relayIp, String timestampStr, Instant deadline,
+      String ifNoneMatch, long ifModifiedSince) {
+    Result result = new Result();
+    LocalDate timestamp = LocalDate.parse(timestampStr);
+
+    /* Answer conditional requests based on the import watermark without
+     * querying the query source, like the query servlet would. */
+    final Instant watermark = this.queryEngine.getImportWatermark();
+    if (null != watermark) {
+      result.entityTag = HttpCaching.entityTag(watermark);
+      result.lastModifiedMillis = watermark.getEpochSecond() * 1000L;
+      result.cacheControl = HttpCaching.cacheControl(timestamp, watermark);
+      if (HttpCaching.isNotModified(ifNoneMatch, ifModifiedSince,
+          result.entityTag, watermark)) {
+        result.notModified = true;
+        return result;
+      }
+    }
+    QueryDeadline queryDeadline = new QueryDeadline(deadline);
+    result.queryResponse = this.queryEngine.query(relayIp, timestamp,
+        queryDeadline);
+    result.timedOut = null == result.queryResponse
+        && queryDeadline.isExpired();
+    return result;
+  }
+}
@@ -0,0 +1,167 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** Query source that answers queries from memory-mapped lookup index files
+ * exported by the database importer, without going through the database. */
+class IndexQuerySource implements QuerySource {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(IndexQuerySource.class);
+
+  private final File indexDirectory;
+
+  /* Loaded lookup indexes by month, replaced as a whole when reloading. */
+  private volatile NavigableMap<YearMonth, LoadedIndex> indexes
+      = new TreeMap<>();
+
+  /** Lookup index together with the file properties at the time of loading
+   * it, which are used to decide whether it needs to be reloaded. */
+  private static class LoadedIndex {
+
+    /* Memory-mapped lookup index. */
+    private final LookupIndex index;
+
+    /* Last-modified time of the file when it was loaded. */
+    private final long lastModified;
+
+    /* Length of the file when it was loaded. */
+    private final long length;
+
+    private LoadedIndex(LookupIndex index, long lastModified, long length) {
+      this.index = index;
+      this.lastModified = lastModified;
+      this.length = length;
+    }
+  }
+
+  private static final LatencyHistogram executionDuration
+      = Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "query",
+      "phase", "execution");
+
+  IndexQuerySource(File indexDirectory) {
+    this.indexDirectory = indexDirectory;
+  }
+
+  @Override
+  public boolean search(LocalDate timestamp, String address,
+      String address24Hex, QueryResponseBuilder builder,
+      QueryDeadline deadline) {
+    final long executionStartNanos = System.nanoTime();
+    NavigableMap<YearMonth, LoadedIndex> currentIndexes = this.indexes;
+    for (LoadedIndex loadedIndex : currentIndexes.values()) {
+      LocalDate firstDate = loadedIndex.index.getFirstDate();
+      if (null != firstDate) {
+        builder.addDate(firstDate);
+        break;
+      }
+    }
+    for (LoadedIndex loadedIndex : currentIndexes.descendingMap().values()) {
+      LocalDate lastDate = loadedIndex.index.getLastDate();
+      if (null != lastDate) {
+        builder.addDate(lastDate);
+        break;
+      }
+    }
+    for (int days = -1; days <= 1; days++) {
+      LocalDate date = timestamp.plusDays(days);
+      LookupIndex index = getIndex(currentIndexes, date);
+      if (null != index && index.containsDate(date)) {
+        builder.addDate(date);
+      }
+    }
+    Set<String> fingerprintsBase64 = new TreeSet<>();
+    for (int days = -2; days <= 1; days++) {
+      LocalDate date = timestamp.plusDays(days);
+      LookupIndex index = getIndex(currentIndexes, date);
+      if (null != index) {
+        index.findFingerprints(date, address24Hex, fingerprintsBase64);
+      }
+    }
+    for (String fingerprintBase64 : fingerprintsBase64) {
+      for (int days = -2; days <= 1; days++) {
+        LocalDate date = timestamp.plusDays(days);
+        LookupIndex index = getIndex(currentIndexes, date);
+        if (null == index) {
+          continue;
+        }
+        if (days >= -1) {
+          index.addStatusEntries(date, fingerprintBase64, builder);
+        }
+        index.addExitListEntries(date, fingerprintBase64, builder);
+      }
+    }
+    executionDuration.recordSince(executionStartNanos);
+    return true;
+  }
+
+  private static LookupIndex getIndex(
+      Map<YearMonth, LoadedIndex> currentIndexes, LocalDate date) {
+    LoadedIndex loadedIndex = currentIndexes.get(YearMonth.from(date));
+    return null == loadedIndex ? null : loadedIndex.index;
+  }
+
+  /** Reload lookup index files that have been added or changed since the
+   * last invocation, and return the latest import watermark of all lookup
+   * index files. */
+  @Override
+  public Instant loadImportWatermark() throws IOException {
+    File[] files = this.indexDirectory.listFiles();
+    if (null == files) {
+      throw new IOException("Unable to list lookup index files in "
+          + this.indexDirectory.getAbsolutePath() + ".");
+    }
+    Map<YearMonth, LoadedIndex> previousIndexes = this.indexes;
+    NavigableMap<YearMonth, LoadedIndex> loadedIndexes = new TreeMap<>();
+    Map<YearMonth, File> indexFiles = new HashMap<>();
+    for (File file : files) {
+      String name = file.getName();
+      if (!name.startsWith("lookup-") || !name.endsWith(".idx")) {
+        continue;
+      }
+      try {
+        indexFiles.put(YearMonth.parse(name.substring("lookup-".length(),
+            name.length() - ".idx".length())), file);
+      } catch (DateTimeParseException e) {
+        logger.warn("Skipping lookup index file {} with unexpected name.",
+            file);
+      }
+    }
+    Instant watermark = null;
+    for (Map.Entry<YearMonth, File> e : indexFiles.entrySet()) {
+      File file = e.getValue();
+      LoadedIndex loadedIndex = previousIndexes.get(e.getKey());
+      if (null == loadedIndex || loadedIndex.lastModified != file.lastModified()
+          || loadedIndex.length != file.length()) {
+        loadedIndex = new LoadedIndex(LookupIndex.open(file),
+            file.lastModified(), file.length());
+        logger.info("Loaded lookup index file {}.", file);
+      }
+      loadedIndexes.put(e.getKey(), loadedIndex);
+      Instant indexWatermark = loadedIndex.index.getWatermark();
+      if (null != indexWatermark && (null == watermark
+          || indexWatermark.isAfter(watermark))) {
+        watermark = indexWatermark;
+      }
+    }
+    this.indexes = loadedIndexes;
+    return watermark;
+  }
+}
@@ -0,0 +1,125 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.util.Arrays;
+
+/** All OR addresses and exit addresses of relays on a given date, kept in
+ * sorted primitive arrays for looking up in memory whether there are relays
+ * in the network of a given address. */
+final class KnownAddresses {
+
+  /* Sorted IPv4 addresses as unsigned values. */
+  private final long[] ipV4Addresses;
+
+  /* Sorted IPv6 addresses as pairs of upper and lower 64 bits, each with the
+   * sign bit flipped, so that signed comparison orders them like unsigned
+   * values. */
+  private final long[] ipV6Addresses;
+
+  private KnownAddresses(long[] ipV4Addresses, long[] ipV6Addresses) {
+    this.ipV4Addresses = ipV4Addresses;
+    this.ipV6Addresses = ipV6Addresses;
+  }
+
+  /** Return known addresses containing the given IPv4 and IPv6 addresses,
+   * skipping any addresses that cannot be parsed. */
+  static KnownAddresses of(Iterable<String> addresses) {
+    long[] ipV4Addresses = new long[64];
+    int ipV4Count = 0;
+    long[] ipV6Addresses = new long[64];
+    int ipV6Count = 0;
+    for (String address : addresses) {
+      long[] parsed = parse(address);
+      if (null == parsed) {
+        continue;
+      } else if (1 == parsed.length) {
+        if (ipV4Count == ipV4Addresses.length) {
+          ipV4Addresses = Arrays.copyOf(ipV4Addresses, 2 * ipV4Count);
+        }
+        ipV4Addresses[ipV4Count++] = parsed[0];
+      } else {
+        if (2 * ipV6Count == ipV6Addresses.length) {
+          ipV6Addresses = Arrays.copyOf(ipV6Addresses, 4 * ipV6Count);
+        }
+        ipV6Addresses[2 * ipV6Count] = parsed[0];
+        ipV6Addresses[2 * ipV6Count + 1] = parsed[1];
+        ipV6Count++;
+      }
+    }
+    return new KnownAddresses(
+        distinct(MemoryStorage.sortRecords(ipV4Addresses, ipV4Count, 1), 1),
+        distinct(MemoryStorage.sortRecords(ipV6Addresses, ipV6Count, 2), 2));
+  }
+
+  /* Parse the given address into a single long for IPv4 addresses or two
+   * longs for IPv6 addresses, or return null if it cannot be parsed. */
+  private static long[] parse(String address) {
+    if (!address.contains(":")) {
+      if (!address.matches("\\d{1,3}(\\.\\d{1,3}){3}")) {
+        return null;
+      }
+      long value = 0L;
+      for (String part : address.split("\\.")) {
+        int octet = Integer.parseInt(part);
+        if (octet > 255) {
+          return null;
+        }
+        value = (value << 8) | octet;
+      }
+      return new long[] { value };
+    }
+    String addressHex = QueryServlet.convertIpV6ToHex(address);
+    if (null == addressHex || !addressHex.matches("[0-9a-f]{32}")) {
+      return null;
+    }
+    long upper = Long.parseUnsignedLong(addressHex.substring(0, 16), 16);
+    long lower = Long.parseUnsignedLong(addressHex.substring(16), 16);
+    return new long[] { upper ^ Long.MIN_VALUE, lower ^ Long.MIN_VALUE };
+  }
+
+  /* Remove consecutive duplicate records from the given sorted records. */
+  private static long[] distinct(long[] records, int longs) {
+    int count = 0;
+    for (int i = 0; i < records.length; i += longs) {
+      boolean duplicate = count > 0;
+      for (int j = 0; duplicate && j < longs; j++) {
+        duplicate = records[i + j] == records[(count - 1) * longs + j];
+      }
+      if (!duplicate) {
+        System.arraycopy(records, i, records, count * longs, longs);
+        count++;
+      }
+    }
+    return Arrays.copyOf(records, count * longs);
+  }
+
+  /** Return the number of known addresses. */
+  int size() {
+    return this.ipV4Addresses.length + this.ipV6Addresses.length / 2;
+  }
+
+  /** Return whether there is at least one known address in the same /24
+   * network as the given IPv4 address or in the same /48 network as the
+   * given IPv6 address, which are the networks of nearby addresses in query
+   * responses, or whether the given address cannot be parsed. */
+  boolean containsNearbyAddress(String address) {
+    long[] parsed = parse(address);
+    if (null == parsed) {
+      return true;
+    } else if (1 == parsed.length) {
+      long network = parsed[0] >>> 8;
+      int index = MemoryStorage.lowerBound(this.ipV4Addresses, 1,
+          network << 8);
+      return index < this.ipV4Addresses.length
+          && this.ipV4Addresses[index] >>> 8 == network;
+    }
+    long network = (parsed[0] ^ Long.MIN_VALUE) >>> 16;
+    int index = MemoryStorage.lowerBound(this.ipV6Addresses, 2,
+        (network << 16) ^ Long.MIN_VALUE);
+    return 2 * index < this.ipV6Addresses.length
+        && (this.ipV6Addresses[2 * index] ^ Long.MIN_VALUE) >>> 16
+        == network;
+  }
+}
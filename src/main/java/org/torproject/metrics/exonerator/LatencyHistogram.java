@@ -0,0 +1,132 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Lock-free latency histogram with logarithmic buckets that are each split
+ * into a few linear sub-buckets, similar to HdrHistogram, so that recording a
+ * latency only takes a few instructions and a single atomic increment.
+ *
+ * <p>Latencies are tracked in microseconds from
+ * 2<sup>{@value #MIN_EXPONENT}</sup> to 2<sup>{@value #MAX_EXPONENT}</sup>
+ * microseconds with a relative precision of 25 percent. Shorter latencies
+ * are counted in the first bucket, and longer latencies are only counted in
+ * the total.</p> */
+final class LatencyHistogram {
+
+  /* Exponent of the upper bound of the first bucket in microseconds, which
+   * is 64 microseconds. */
+  static final int MIN_EXPONENT = 6;
+
+  /* Exponent of the upper bound of the last bucket in microseconds, which is
+   * a little over two minutes. */
+  static final int MAX_EXPONENT = 27;
+
+  /* Number of bits used for linear sub-buckets. */
+  private static final int SUB_BUCKET_BITS = 2;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /* Number of buckets with an upper bound, not including the overflow
+   * bucket. */
+  static final int BUCKETS = 1 + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS;
+
+  /* Counts by bucket, with the last element counting overflows. */
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+
+  /* Sum of all recorded latencies in nanoseconds. */
+  private final LongAdder sumNanos = new LongAdder();
+
+  /** Record the given latency in nanoseconds. */
+  void recordNanos(long nanos) {
+    long value = Math.max(0L, nanos);
+    this.counts.incrementAndGet(bucketIndex(value / 1000L));
+    this.sumNanos.add(value);
+  }
+
+  /** Record the time since the given start time as obtained from
+   * {@link System#nanoTime()}. */
+  void recordSince(long startNanos) {
+    this.recordNanos(System.nanoTime() - startNanos);
+  }
+
+  /** Return the bucket index for the given latency in microseconds. */
+  static int bucketIndex(long micros) {
+    if (micros < (1L << MIN_EXPONENT)) {
+      return 0;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    if (exponent >= MAX_EXPONENT) {
+      return BUCKETS;
+    }
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS))
+        & (SUB_BUCKETS - 1);
+    return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+  }
+
+  /** Return the exclusive upper bound of the bucket with the given index in
+   * microseconds. */
+  static long bucketUpperBoundMicros(int index) {
+    if (0 == index) {
+      return 1L << MIN_EXPONENT;
+    }
+    int exponent = MIN_EXPONENT + (index - 1) / SUB_BUCKETS;
+    int subBucket = (index - 1) % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + subBucket + 1)
+        << (exponent - SUB_BUCKET_BITS);
+  }
+
+  /** Return the total number of recorded latencies. */
+  long getCount() {
+    long count = 0L;
+    for (int i = 0; i <= BUCKETS; i++) {
+      count += this.counts.get(i);
+    }
+    return count;
+  }
+
+  /** Return the upper bound in microseconds of the bucket containing the
+   * given quantile, or {@code -1} if nothing has been recorded or the
+   * quantile lies in the overflow bucket. */
+  long getQuantileUpperBoundMicros(double quantile) {
+    long[] snapshot = new long[BUCKETS + 1];
+    long count = 0L;
+    for (int i = 0; i <= BUCKETS; i++) {
+      snapshot[i] = this.counts.get(i);
+      count += snapshot[i];
+    }
+    long rank = (long) Math.ceil(quantile * count);
+    long cumulative = 0L;
+    for (int i = 0; i < BUCKETS && count > 0L; i++) {
+      cumulative += snapshot[i];
+      if (cumulative >= rank) {
+        return bucketUpperBoundMicros(i);
+      }
+    }
+    return -1L;
+  }
+
+  /** Append this histogram in Prometheus text format using the given metric
+   * name and label string, which is either empty or a comma-separated list of
+   * labels without braces. */
+  void appendPrometheus(StringBuilder sb, String name, String labels) {
+    String separator = labels.isEmpty() ? "" : ",";
+    long cumulative = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      cumulative += this.counts.get(i);
+      sb.append(name).append("_bucket{").append(labels).append(separator)
+          .append("le=\"").append(bucketUpperBoundMicros(i) / 1.0e6)
+          .append("\"} ").append(cumulative).append('\n');
+    }
+    cumulative += this.counts.get(BUCKETS);
+    sb.append(name).append("_bucket{").append(labels).append(separator)
+        .append("le=\"+Inf\"} ").append(cumulative).append('\n');
+    sb.append(name).append("_sum{").append(labels).append("} ")
+        .append(this.sumNanos.sum() / 1.0e9).append('\n');
+    sb.append(name).append("_count{").append(labels).append("} ")
+        .append(cumulative).append('\n');
+  }
+}
@@ -0,0 +1,309 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+
+/** Read-only lookup index for one month of data that is memory-mapped from a
+ * file written by {@link LookupIndexWriter}.
+ *
+ * <p>All numbers in the file are big-endian. The file starts with a header
+ * of {@value #HEADER_LENGTH} bytes containing the magic number, the import
+ * watermark as seconds since the epoch, the number of dates, keys, and
+ * strings, and the offsets of the date table, key table, and string table.
+ * The date table contains one entry per date with data, sorted by date, with
+ * the date as days since the epoch, the number of fingerprints seen on that
+ * date, and the offset of a fingerprint table. Each fingerprint table contains
+ * fingerprint string identifiers in ascending order together with offsets of
+ * records containing the valid-after ranges, nickname, exit flag, and OR
+ * addresses from status entries as well as scan times and exit addresses from
+ * exit list entries of that relay on that date. The key table contains one
+ * entry per date and hex-encoded /24 address prefix, sorted by date and
+ * prefix, with the offset of a posting list of fingerprint string identifiers.
+ * The string table contains fingerprints, nicknames, and addresses in
+ * ascending order, so that string identifiers can be found by binary
+ * search.</p>
+ *
+ * <p>Lookups read directly from the mapped buffer using absolute reads, which
+ * is why instances can be shared between threads, and only decode strings
+ * that are part of the result.</p> */
+final class LookupIndex {
+
+  /** Magic number at the start of each file, which is "EXONIDX1" in ASCII. */
+  static final long MAGIC = 0x45584F4E49445831L;
+
+  /** Length of the file header in bytes. */
+  static final int HEADER_LENGTH = 64;
+
+  /** Length of an entry in the date table or the key table in bytes. */
+  static final int TABLE_ENTRY_LENGTH = 16;
+
+  /** Length of an entry in a fingerprint table in bytes. */
+  static final int FINGERPRINT_ENTRY_LENGTH = 12;
+
+  /** Time between two subsequent valid-after times in a valid-after range in
+   * seconds. */
+  static final long VALID_AFTER_INTERVAL_SECONDS = 3600L;
+
+  /** Encoded exit flag value if it is unknown whether the relay permitted
+   * exiting. */
+  static final byte EXIT_UNKNOWN = 2;
+
+  private final ByteBuffer buffer;
+
+  private final Instant watermark;
+
+  private final int dateCount;
+
+  private final int keyCount;
+
+  private final int stringCount;
+
+  private final int datesOffset;
+
+  private final int keysOffset;
+
+  private final int stringsOffset;
+
+  private final int stringDataOffset;
+
+  private LookupIndex(ByteBuffer buffer) throws IOException {
+    if (buffer.capacity() < HEADER_LENGTH || MAGIC != buffer.getLong(0)) {
+      throw new IOException("Not a lookup index file.");
+    }
+    this.buffer = buffer;
+    long watermarkSeconds = buffer.getLong(8);
+    this.watermark = Long.MIN_VALUE == watermarkSeconds ? null
+        : Instant.ofEpochSecond(watermarkSeconds);
+    this.dateCount = buffer.getInt(16);
+    this.keyCount = buffer.getInt(20);
+    this.stringCount = buffer.getInt(24);
+    this.datesOffset = (int) buffer.getLong(32);
+    this.keysOffset = (int) buffer.getLong(40);
+    this.stringsOffset = (int) buffer.getLong(48);
+    this.stringDataOffset = this.stringsOffset + 4 * this.stringCount;
+  }
+
+  /** Memory-map the given lookup index file. */
+  static LookupIndex open(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(),
+        StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Lookup index file " + file + " is too large.");
+      }
+      return new LookupIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0L,
+          channel.size()));
+    }
+  }
+
+  /** Return the import watermark at the time of writing this index, or
+   * {@code null} if unknown. */
+  Instant getWatermark() {
+    return this.watermark;
+  }
+
+  /** Return the first date with data in this index, or {@code null} if
+   * this index is empty. */
+  LocalDate getFirstDate() {
+    return this.dateCount > 0 ? this.getDate(0) : null;
+  }
+
+  /** Return the last date with data in this index, or {@code null} if this
+   * index is empty. */
+  LocalDate getLastDate() {
+    return this.dateCount > 0 ? this.getDate(this.dateCount - 1) : null;
+  }
+
+  /** Return whether this index contains data for the given date. */
+  boolean containsDate(LocalDate date) {
+    return this.findDate(date) >= 0;
+  }
+
+  /** Add base64-encoded fingerprints of all relays that had an address in the
+   * given hex-encoded /24 prefix on the given date to the given collection. */
+  void findFingerprints(LocalDate date, String address24Hex,
+      Collection<String> fingerprintsBase64) {
+    long epochDay = date.toEpochDay();
+    int address24 = Integer.parseInt(address24Hex, 16);
+    int low = 0;
+    int high = this.keyCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int entry = this.keysOffset + middle * TABLE_ENTRY_LENGTH;
+      int comparison = Long.compare(this.buffer.getInt(entry), epochDay);
+      if (0 == comparison) {
+        comparison = Integer.compare(this.buffer.getInt(entry + 4),
+            address24);
+      }
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        int postings = (int) this.buffer.getLong(entry + 8);
+        int postingsCount = this.buffer.getInt(postings);
+        for (int i = 0; i < postingsCount; i++) {
+          fingerprintsBase64.add(this.getString(
+              this.buffer.getInt(postings + 4 + 4 * i)));
+        }
+        return;
+      }
+    }
+  }
+
+  /** Add all status entries of the relay with the given base64-encoded
+   * fingerprint on the given date to the given builder. */
+  void addStatusEntries(LocalDate date, String fingerprintBase64,
+      QueryResponseBuilder builder) {
+    int record = this.findRecord(date, fingerprintBase64);
+    if (record < 0) {
+      return;
+    }
+    int rangesCount = this.buffer.getInt(record);
+    int position = record + 4;
+    for (int i = 0; i < rangesCount; i++) {
+      long firstValidAfter = this.buffer.getLong(position);
+      int validAfterCount = this.buffer.getShort(position + 8) & 0xFFFF;
+      byte exitByte = this.buffer.get(position + 10);
+      int addressesCount = this.buffer.get(position + 11) & 0xFF;
+      int nicknameId = this.buffer.getInt(position + 12);
+      position += 16;
+      String nickname = nicknameId < 0 ? null : this.getString(nicknameId);
+      Boolean exit = EXIT_UNKNOWN == exitByte ? null : 1 == exitByte;
+      String[] addresses = new String[addressesCount];
+      for (int j = 0; j < addressesCount; j++) {
+        addresses[j] = this.getString(this.buffer.getInt(position));
+        position += 4;
+      }
+      for (int k = 0; k < validAfterCount; k++) {
+        LocalDateTime validAfter = LocalDateTime.ofEpochSecond(
+            firstValidAfter + k * VALID_AFTER_INTERVAL_SECONDS, 0,
+            ZoneOffset.UTC);
+        for (String address : addresses) {
+          builder.addStatusEntry(fingerprintBase64, validAfter, nickname, exit,
+              address);
+        }
+      }
+    }
+  }
+
+  /** Add all exit list entries of the relay with the given base64-encoded
+   * fingerprint on the given date to the given builder. */
+  void addExitListEntries(LocalDate date, String fingerprintBase64,
+      QueryResponseBuilder builder) {
+    int record = this.findRecord(date, fingerprintBase64);
+    if (record < 0) {
+      return;
+    }
+    int position = record + 4;
+    int rangesCount = this.buffer.getInt(record);
+    for (int i = 0; i < rangesCount; i++) {
+      int addressesCount = this.buffer.get(position + 11) & 0xFF;
+      position += 16 + 4 * addressesCount;
+    }
+    int exitsCount = this.buffer.getInt(position);
+    position += 4;
+    for (int i = 0; i < exitsCount; i++) {
+      LocalDateTime scanned = LocalDateTime.ofEpochSecond(
+          this.buffer.getLong(position), 0, ZoneOffset.UTC);
+      String exitAddress = this.getString(this.buffer.getInt(position + 8));
+      builder.addExitListEntry(fingerprintBase64, scanned, exitAddress);
+      position += 12;
+    }
+  }
+
+  private LocalDate getDate(int index) {
+    return LocalDate.ofEpochDay(this.buffer.getInt(
+        this.datesOffset + index * TABLE_ENTRY_LENGTH));
+  }
+
+  /** Return the index of the given date in the date table, or a negative
+   * number if this index does not contain data for that date. */
+  private int findDate(LocalDate date) {
+    long epochDay = date.toEpochDay();
+    int low = 0;
+    int high = this.dateCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      long middleEpochDay = this.buffer.getInt(
+          this.datesOffset + middle * TABLE_ENTRY_LENGTH);
+      if (middleEpochDay < epochDay) {
+        low = middle + 1;
+      } else if (middleEpochDay > epochDay) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  /** Return the offset of the record of the relay with the given
+   * base64-encoded fingerprint on the given date, or a negative number if
+   * there is no such record. */
+  private int findRecord(LocalDate date, String fingerprintBase64) {
+    int dateIndex = this.findDate(date);
+    int fingerprintId = this.findString(fingerprintBase64);
+    if (dateIndex < 0 || fingerprintId < 0) {
+      return -1;
+    }
+    int dateEntry = this.datesOffset + dateIndex * TABLE_ENTRY_LENGTH;
+    int fingerprintsCount = this.buffer.getInt(dateEntry + 4);
+    int fingerprints = (int) this.buffer.getLong(dateEntry + 8);
+    int low = 0;
+    int high = fingerprintsCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int entry = fingerprints + middle * FINGERPRINT_ENTRY_LENGTH;
+      int middleId = this.buffer.getInt(entry);
+      if (middleId < fingerprintId) {
+        low = middle + 1;
+      } else if (middleId > fingerprintId) {
+        high = middle - 1;
+      } else {
+        return (int) this.buffer.getLong(entry + 4);
+      }
+    }
+    return -1;
+  }
+
+  /** Return the identifier of the given string, or a negative number if the
+   * string table does not contain it. */
+  private int findString(String string) {
+    int low = 0;
+    int high = this.stringCount - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      int comparison = this.getString(middle).compareTo(string);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -1;
+  }
+
+  private String getString(int id) {
+    int offset = this.stringDataOffset
+        + this.buffer.getInt(this.stringsOffset + 4 * id);
+    byte[] bytes = new byte[this.buffer.getShort(offset) & 0xFFFF];
+    ByteBuffer stringBuffer = this.buffer.duplicate();
+    stringBuffer.position(offset + 2);
+    stringBuffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,315 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** Writer for a lookup index file that can later be memory-mapped and queried
+ * by {@link LookupIndex}, containing all data for a single month. */
+class LookupIndexWriter {
+
+  /** Status entry of a relay with all OR addresses at a given valid-after
+   * time. */
+  private static class StatusEntry {
+
+    /* Relay nickname. */
+    private final String nickname;
+
+    /* Whether the relay permitted exiting, or null if unknown. */
+    private final Boolean exit;
+
+    /* OR addresses of the relay. */
+    private final SortedSet<String> addresses = new TreeSet<>();
+
+    private StatusEntry(String nickname, Boolean exit) {
+      this.nickname = nickname;
+      this.exit = exit;
+    }
+
+    private boolean sameRelayDetails(StatusEntry other) {
+      return Objects.equals(this.nickname, other.nickname)
+          && Objects.equals(this.exit, other.exit)
+          && this.addresses.equals(other.addresses);
+    }
+  }
+
+  /** Exit list entry of a relay. */
+  private static class ExitListEntry {
+
+    /* Scan time. */
+    private final LocalDateTime scanned;
+
+    /* Exit address found in the scan. */
+    private final String exitAddress;
+
+    private ExitListEntry(LocalDateTime scanned, String exitAddress) {
+      this.scanned = scanned;
+      this.exitAddress = exitAddress;
+    }
+  }
+
+  /** Data of a single relay on a single date. */
+  private static class RelayDate {
+
+    /* Status entries by valid-after time. */
+    private final SortedMap<LocalDateTime, StatusEntry> statusEntries
+        = new TreeMap<>();
+
+    /* Exit list entries in the order in which they were added. */
+    private final List<ExitListEntry> exitListEntries = new ArrayList<>();
+  }
+
+  private final Instant watermark;
+
+  private final SortedSet<LocalDate> dates = new TreeSet<>();
+
+  private final SortedMap<LocalDate, SortedMap<Integer, SortedSet<String>>>
+      address24Fingerprints = new TreeMap<>();
+
+  private final SortedMap<LocalDate, SortedMap<String, RelayDate>> relayDates
+      = new TreeMap<>();
+
+  /** Create a new writer for an index file with the given import
+   * watermark. */
+  LookupIndexWriter(Instant watermark) {
+    this.watermark = watermark;
+  }
+
+  /** Add a date with data. */
+  void addDate(LocalDate date) {
+    this.dates.add(date);
+  }
+
+  /** Add the relay with the given base64-encoded fingerprint to the relays
+   * that had an address in the given hex-encoded /24 prefix on the given
+   * date. */
+  void addAddress24(LocalDate date, String address24Hex,
+      String fingerprintBase64) {
+    this.dates.add(date);
+    this.address24Fingerprints.computeIfAbsent(date, d -> new TreeMap<>())
+        .computeIfAbsent(Integer.parseInt(address24Hex, 16),
+            a -> new TreeSet<>()).add(fingerprintBase64);
+  }
+
+  /** Add a status entry with a single OR address. */
+  void addStatusEntry(String fingerprintBase64, LocalDateTime validAfter,
+      String nickname, Boolean exit, String orAddress) {
+    this.getRelayDate(validAfter.toLocalDate(), fingerprintBase64)
+        .statusEntries.computeIfAbsent(validAfter,
+            v -> new StatusEntry(nickname, exit)).addresses.add(orAddress);
+  }
+
+  /** Add an exit list entry. */
+  void addExitListEntry(String fingerprintBase64, LocalDateTime scanned,
+      String exitAddress) {
+    this.getRelayDate(scanned.toLocalDate(), fingerprintBase64)
+        .exitListEntries.add(new ExitListEntry(scanned, exitAddress));
+  }
+
+  private RelayDate getRelayDate(LocalDate date, String fingerprintBase64) {
+    this.dates.add(date);
+    return this.relayDates.computeIfAbsent(date, d -> new TreeMap<>())
+        .computeIfAbsent(fingerprintBase64, f -> new RelayDate());
+  }
+
+  /** Write the index to a temporary file next to the given file and rename
+   * it to the given file once complete, so that readers never see partially
+   * written files. */
+  void write(File file) throws IOException {
+    SortedMap<String, Integer> stringIds = this.collectStrings();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream dos = new DataOutputStream(baos);
+    Map<Integer, Integer> patches = new HashMap<>();
+    dos.write(new byte[LookupIndex.HEADER_LENGTH]);
+
+    /* Write the date table, followed by fingerprint tables and records. */
+    final int datesOffset = dos.size();
+    List<Integer> fingerprintTablePatches = new ArrayList<>();
+    for (LocalDate date : this.dates) {
+      SortedMap<String, RelayDate> relays = this.relayDates.get(date);
+      dos.writeInt((int) date.toEpochDay());
+      dos.writeInt(null == relays ? 0 : relays.size());
+      fingerprintTablePatches.add(dos.size());
+      dos.writeLong(0L);
+    }
+    int dateIndex = 0;
+    for (LocalDate date : this.dates) {
+      patches.put(fingerprintTablePatches.get(dateIndex++), dos.size());
+      SortedMap<Integer, RelayDate> relays = new TreeMap<>();
+      if (this.relayDates.containsKey(date)) {
+        for (Map.Entry<String, RelayDate> e
+            : this.relayDates.get(date).entrySet()) {
+          relays.put(stringIds.get(e.getKey()), e.getValue());
+        }
+      }
+      List<Integer> recordPatches = new ArrayList<>();
+      for (int fingerprintId : relays.keySet()) {
+        dos.writeInt(fingerprintId);
+        recordPatches.add(dos.size());
+        dos.writeLong(0L);
+      }
+      int relayIndex = 0;
+      for (RelayDate relay : relays.values()) {
+        patches.put(recordPatches.get(relayIndex++), dos.size());
+        this.writeRecord(dos, relay, stringIds);
+      }
+    }
+
+    /* Write the key table, followed by posting lists. */
+    final int keysOffset = dos.size();
+    List<SortedSet<String>> postings = new ArrayList<>();
+    for (Map.Entry<LocalDate, SortedMap<Integer, SortedSet<String>>> e
+        : this.address24Fingerprints.entrySet()) {
+      for (Map.Entry<Integer, SortedSet<String>> f
+          : e.getValue().entrySet()) {
+        dos.writeInt((int) e.getKey().toEpochDay());
+        dos.writeInt(f.getKey());
+        dos.writeLong(0L);
+        postings.add(f.getValue());
+      }
+    }
+    for (int i = 0; i < postings.size(); i++) {
+      patches.put(keysOffset + i * LookupIndex.TABLE_ENTRY_LENGTH + 8,
+          dos.size());
+      dos.writeInt(postings.get(i).size());
+      for (String fingerprintBase64 : postings.get(i)) {
+        dos.writeInt(stringIds.get(fingerprintBase64));
+      }
+    }
+
+    /* Write the string table, followed by length-prefixed string data. */
+    final int stringsOffset = dos.size();
+    List<byte[]> stringBytes = new ArrayList<>();
+    int stringDataLength = 0;
+    for (String string : stringIds.keySet()) {
+      byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+      dos.writeInt(stringDataLength);
+      stringBytes.add(bytes);
+      stringDataLength += 2 + bytes.length;
+    }
+    for (byte[] bytes : stringBytes) {
+      dos.writeShort(bytes.length);
+      dos.write(bytes);
+    }
+    dos.close();
+
+    ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
+    buffer.putLong(0, LookupIndex.MAGIC);
+    buffer.putLong(8, null == this.watermark ? Long.MIN_VALUE
+        : this.watermark.getEpochSecond());
+    buffer.putInt(16, this.dates.size());
+    buffer.putInt(20, postings.size());
+    buffer.putInt(24, stringIds.size());
+    buffer.putLong(32, datesOffset);
+    buffer.putLong(40, keysOffset);
+    buffer.putLong(48, stringsOffset);
+    for (Map.Entry<Integer, Integer> patch : patches.entrySet()) {
+      buffer.putLong(patch.getKey(), patch.getValue());
+    }
+    File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+    Files.write(tempFile.toPath(), buffer.array());
+    Files.move(tempFile.toPath(), file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Collect all fingerprints, nicknames, and addresses and assign
+   * identifiers in ascending order. */
+  private SortedMap<String, Integer> collectStrings() {
+    SortedMap<String, Integer> stringIds = new TreeMap<>();
+    for (SortedMap<Integer, SortedSet<String>> keys
+        : this.address24Fingerprints.values()) {
+      for (SortedSet<String> fingerprints : keys.values()) {
+        for (String fingerprint : fingerprints) {
+          stringIds.put(fingerprint, 0);
+        }
+      }
+    }
+    for (SortedMap<String, RelayDate> relays : this.relayDates.values()) {
+      for (Map.Entry<String, RelayDate> e : relays.entrySet()) {
+        stringIds.put(e.getKey(), 0);
+        for (StatusEntry statusEntry : e.getValue().statusEntries.values()) {
+          if (null != statusEntry.nickname) {
+            stringIds.put(statusEntry.nickname, 0);
+          }
+          for (String address : statusEntry.addresses) {
+            stringIds.put(address, 0);
+          }
+        }
+        for (ExitListEntry exitListEntry : e.getValue().exitListEntries) {
+          stringIds.put(exitListEntry.exitAddress, 0);
+        }
+      }
+    }
+    int id = 0;
+    for (Map.Entry<String, Integer> e : stringIds.entrySet()) {
+      e.setValue(id++);
+    }
+    return stringIds;
+  }
+
+  /** Write a record with status entries, collapsed into ranges of subsequent
+   * valid-after times with the same relay details, followed by exit list
+   * entries. */
+  private void writeRecord(DataOutputStream dos, RelayDate relay,
+      Map<String, Integer> stringIds) throws IOException {
+    List<LocalDateTime> rangeStarts = new ArrayList<>();
+    List<Integer> rangeLengths = new ArrayList<>();
+    StatusEntry previous = null;
+    LocalDateTime previousValidAfter = null;
+    for (Map.Entry<LocalDateTime, StatusEntry> e
+        : relay.statusEntries.entrySet()) {
+      int last = rangeLengths.size() - 1;
+      if (null != previous && previous.sameRelayDetails(e.getValue())
+          && previousValidAfter.plusSeconds(
+          LookupIndex.VALID_AFTER_INTERVAL_SECONDS).equals(e.getKey())
+          && rangeLengths.get(last) < 0xFFFF) {
+        rangeLengths.set(last, rangeLengths.get(last) + 1);
+      } else {
+        rangeStarts.add(e.getKey());
+        rangeLengths.add(1);
+      }
+      previous = e.getValue();
+      previousValidAfter = e.getKey();
+    }
+    dos.writeInt(rangeStarts.size());
+    for (int i = 0; i < rangeStarts.size(); i++) {
+      StatusEntry statusEntry = relay.statusEntries.get(rangeStarts.get(i));
+      dos.writeLong(rangeStarts.get(i).toEpochSecond(ZoneOffset.UTC));
+      dos.writeShort(rangeLengths.get(i));
+      dos.writeByte(null == statusEntry.exit ? LookupIndex.EXIT_UNKNOWN
+          : statusEntry.exit ? 1 : 0);
+      dos.writeByte(statusEntry.addresses.size());
+      dos.writeInt(null == statusEntry.nickname ? -1
+          : stringIds.get(statusEntry.nickname));
+      for (String address : statusEntry.addresses) {
+        dos.writeInt(stringIds.get(address));
+      }
+    }
+    dos.writeInt(relay.exitListEntries.size());
+    for (ExitListEntry exitListEntry : relay.exitListEntries) {
+      dos.writeLong(exitListEntry.scanned.toEpochSecond(ZoneOffset.UTC));
+      dos.writeInt(stringIds.get(exitListEntry.exitAddress));
+    }
+  }
+}
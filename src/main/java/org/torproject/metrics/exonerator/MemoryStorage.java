@@ -0,0 +1,434 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** Storage that keeps all imported entries in memory, packed into primitive
+ * arrays, and answers queries from sorted copies of these arrays without
+ * needing a database.
+ *
+ * <p>Entries are appended to unsorted arrays when they are imported. The
+ * next call to {@link #loadImportWatermark()} first imports any descriptors
+ * that were added to the descriptor directory, if one is configured, and
+ * then replaces the sorted arrays that queries are answered from, which
+ * makes newly imported entries visible to queries.</p> */
+class MemoryStorage implements ImportTarget, QuerySource {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(MemoryStorage.class);
+
+  /* Encoded exit flag values. */
+  private static final long EXIT_FALSE = 0L;
+
+  private static final long EXIT_TRUE = 1L;
+
+  private static final long EXIT_UNKNOWN = 2L;
+
+  /* Number of longs per status entry, which are (1) fingerprint identifier
+   * and valid-after time in seconds, (2) nickname identifier and address
+   * identifier, and (3) exit flag and /24 prefix. */
+  private static final int STATUS_ENTRY_LONGS = 3;
+
+  /* Number of longs per exit list entry, which are (1) fingerprint
+   * identifier and scan time in seconds and (2) address identifier and /24
+   * prefix. */
+  private static final int EXIT_LIST_ENTRY_LONGS = 2;
+
+  /** Strings with numeric identifiers in the order of adding them. */
+  private static class StringPool {
+
+    private final Map<String, Integer> identifiers = new HashMap<>();
+
+    private final List<String> strings = new ArrayList<>();
+
+    private int add(String string) {
+      Integer identifier = this.identifiers.get(string);
+      if (null == identifier) {
+        identifier = this.strings.size();
+        this.identifiers.put(string, identifier);
+        this.strings.add(string);
+      }
+      return identifier;
+    }
+
+    private String[] toArray() {
+      return this.strings.toArray(new String[0]);
+    }
+  }
+
+  /** Immutable sorted copies of imported entries that queries are answered
+   * from. */
+  private static class Snapshot {
+
+    /* Status entries sorted by fingerprint identifier and valid-after
+     * time. */
+    private final long[] statusEntries;
+
+    /* Exit list entries sorted by fingerprint identifier and scan time. */
+    private final long[] exitListEntries;
+
+    /* Distinct combinations of date and /24 prefix, sorted, with the
+     * fingerprint identifier of each combination in prefixFingerprints. */
+    private final long[] prefixKeys;
+
+    private final int[] prefixFingerprints;
+
+    /* Dates as days since the epoch for which data is available. */
+    private final BitSet dates;
+
+    /* Latest valid-after or scan time, or null if there is no data. */
+    private final Instant watermark;
+
+    /* Pooled strings by identifier. */
+    private final String[] fingerprints;
+
+    private final String[] nicknames;
+
+    private final String[] addresses;
+
+    private Snapshot(long[] statusEntries, long[] exitListEntries,
+        long[] prefixKeys, int[] prefixFingerprints, BitSet dates,
+        Instant watermark, String[] fingerprints, String[] nicknames,
+        String[] addresses) {
+      this.statusEntries = statusEntries;
+      this.exitListEntries = exitListEntries;
+      this.prefixKeys = prefixKeys;
+      this.prefixFingerprints = prefixFingerprints;
+      this.dates = dates;
+      this.watermark = watermark;
+      this.fingerprints = fingerprints;
+      this.nicknames = nicknames;
+      this.addresses = addresses;
+    }
+  }
+
+  /* Directory to import descriptors from, or null if entries are only
+   * imported by calling the import methods directly. */
+  private final File descriptorDirectory;
+
+  /* Importer of descriptors from the descriptor directory into this
+   * storage, or null if there is no descriptor directory. */
+  private final DescriptorImporter descriptorImporter;
+
+  /* Parse history of descriptor files imported from the descriptor
+   * directory, guarded by the descriptor importer. */
+  private SortedMap<String, Long> importHistory = new TreeMap<>();
+
+  /* Imported entries in the order of importing them, and pooled strings,
+   * guarded by this. */
+  private long[] statusEntries = new long[1024 * STATUS_ENTRY_LONGS];
+
+  private int statusEntriesCount;
+
+  private long[] exitListEntries = new long[1024 * EXIT_LIST_ENTRY_LONGS];
+
+  private int exitListEntriesCount;
+
+  private final StringPool fingerprints = new StringPool();
+
+  private final StringPool nicknames = new StringPool();
+
+  private final StringPool addresses = new StringPool();
+
+  /* Whether entries were imported since creating the last snapshot. */
+  private boolean modified = true;
+
+  /* Sorted entries that queries are answered from, replaced as a whole. */
+  private volatile Snapshot snapshot = new Snapshot(new long[0], new long[0],
+      new long[0], new int[0], new BitSet(), null, new String[0],
+      new String[0], new String[0]);
+
+  private static final LatencyHistogram executionDuration
+      = Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "query",
+      "phase", "execution");
+
+  MemoryStorage(File descriptorDirectory) {
+    this.descriptorDirectory = descriptorDirectory;
+    this.descriptorImporter = null == descriptorDirectory ? null
+        : new DescriptorImporter(descriptorDirectory, this);
+  }
+
+  @Override
+  public synchronized void importStatusEntry(LocalDateTime validAfter,
+      String fingerprintBase64, String nickname, Boolean exit,
+      String orAddress, String orAddress24) {
+    if (this.statusEntries.length
+        < (this.statusEntriesCount + 1) * STATUS_ENTRY_LONGS) {
+      this.statusEntries = Arrays.copyOf(this.statusEntries,
+          2 * this.statusEntries.length);
+    }
+    int offset = this.statusEntriesCount++ * STATUS_ENTRY_LONGS;
+    this.statusEntries[offset] = ((long) this.fingerprints.add(
+        fingerprintBase64) << 32) | validAfter.toEpochSecond(ZoneOffset.UTC);
+    this.statusEntries[offset + 1] = ((long) this.nicknames.add(nickname)
+        << 32) | this.addresses.add(orAddress);
+    this.statusEntries[offset + 2] = ((null == exit ? EXIT_UNKNOWN
+        : exit ? EXIT_TRUE : EXIT_FALSE) << 32)
+        | Integer.parseInt(orAddress24, 16);
+    this.modified = true;
+  }
+
+  @Override
+  public synchronized void importExitListEntry(String fingerprintBase64,
+      String exitAddress, String exitAddress24, LocalDateTime scanned) {
+    if (this.exitListEntries.length
+        < (this.exitListEntriesCount + 1) * EXIT_LIST_ENTRY_LONGS) {
+      this.exitListEntries = Arrays.copyOf(this.exitListEntries,
+          2 * this.exitListEntries.length);
+    }
+    int offset = this.exitListEntriesCount++ * EXIT_LIST_ENTRY_LONGS;
+    this.exitListEntries[offset] = ((long) this.fingerprints.add(
+        fingerprintBase64) << 32) | scanned.toEpochSecond(ZoneOffset.UTC);
+    this.exitListEntries[offset + 1] = ((long) this.addresses.add(exitAddress)
+        << 32) | Integer.parseInt(exitAddress24, 16);
+    this.modified = true;
+  }
+
+  /** Import descriptors that were added to the descriptor directory since
+   * the last invocation, if configured, make all imported entries visible
+   * to queries, and return the latest valid-after or scan time, or
+   * {@code null} if nothing has been imported yet. If importing fails, all
+   * descriptors since the last successful import are imported again on the
+   * next call, and entries imported so far become visible anyway. */
+  @Override
+  public Instant loadImportWatermark() {
+    if (null != this.descriptorImporter) {
+      synchronized (this.descriptorImporter) {
+        try {
+          this.importHistory = this.descriptorImporter.importDescriptors(
+              this.importHistory, new ImportStatistics());
+        } catch (Exception e) {
+          logger.warn("Caught an exception while importing descriptors from "
+              + "{}. Trying again next time.",
+              this.descriptorDirectory.getAbsoluteFile(), e);
+        }
+      }
+    }
+    synchronized (this) {
+      if (this.modified) {
+        this.snapshot = this.createSnapshot();
+        this.modified = false;
+        logger.info("Keeping {} status entries and {} exit list entries of {} "
+            + "relays in memory.", this.statusEntriesCount,
+            this.exitListEntriesCount, this.fingerprints.strings.size());
+      }
+      return this.snapshot.watermark;
+    }
+  }
+
+  /* Sort imported entries into a new snapshot. */
+  private Snapshot createSnapshot() {
+    long[] sortedStatusEntries = sortRecords(this.statusEntries,
+        this.statusEntriesCount, STATUS_ENTRY_LONGS);
+    long[] sortedExitListEntries = sortRecords(this.exitListEntries,
+        this.exitListEntriesCount, EXIT_LIST_ENTRY_LONGS);
+
+    /* Collect dates, the latest time, and date and /24 prefix combinations
+     * with fingerprint identifiers. */
+    BitSet dates = new BitSet();
+    long watermarkSeconds = Long.MIN_VALUE;
+    int prefixes = this.statusEntriesCount + this.exitListEntriesCount;
+    long[] prefixRecords = new long[2 * prefixes];
+    int prefix = 0;
+    for (int offset = 0; offset < sortedStatusEntries.length;
+        offset += STATUS_ENTRY_LONGS) {
+      long seconds = sortedStatusEntries[offset] & 0xffffffffL;
+      watermarkSeconds = Math.max(watermarkSeconds, seconds);
+      long day = seconds / 86400L;
+      dates.set((int) day);
+      prefixRecords[prefix++] = (day << 24)
+          | (sortedStatusEntries[offset + 2] & 0xffffffL);
+      prefixRecords[prefix++] = sortedStatusEntries[offset] >>> 32;
+    }
+    for (int offset = 0; offset < sortedExitListEntries.length;
+        offset += EXIT_LIST_ENTRY_LONGS) {
+      long seconds = sortedExitListEntries[offset] & 0xffffffffL;
+      watermarkSeconds = Math.max(watermarkSeconds, seconds);
+      long day = seconds / 86400L;
+      dates.set((int) day);
+      prefixRecords[prefix++] = (day << 24)
+          | (sortedExitListEntries[offset + 1] & 0xffffffL);
+      prefixRecords[prefix++] = sortedExitListEntries[offset] >>> 32;
+    }
+
+    /* Sort date and /24 prefix combinations, and skip duplicates. */
+    prefixRecords = sortRecords(prefixRecords, prefixes, 2);
+    long[] prefixKeys = new long[prefixes];
+    int[] prefixFingerprints = new int[prefixes];
+    int distinctPrefixes = 0;
+    for (int offset = 0; offset < prefixRecords.length; offset += 2) {
+      if (distinctPrefixes > 0
+          && prefixKeys[distinctPrefixes - 1] == prefixRecords[offset]
+          && prefixFingerprints[distinctPrefixes - 1]
+          == (int) prefixRecords[offset + 1]) {
+        continue;
+      }
+      prefixKeys[distinctPrefixes] = prefixRecords[offset];
+      prefixFingerprints[distinctPrefixes++] = (int) prefixRecords[offset + 1];
+    }
+    return new Snapshot(sortedStatusEntries, sortedExitListEntries,
+        Arrays.copyOf(prefixKeys, distinctPrefixes),
+        Arrays.copyOf(prefixFingerprints, distinctPrefixes), dates,
+        Long.MIN_VALUE == watermarkSeconds ? null
+        : Instant.ofEpochSecond(watermarkSeconds),
+        this.fingerprints.toArray(), this.nicknames.toArray(),
+        this.addresses.toArray());
+  }
+
+  /** Return a copy of the first given number of records with the given
+   * number of longs each, sorted by their longs in order. */
+  static long[] sortRecords(long[] records, int count, int longs) {
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    mergeSort(records, longs, order, new int[count], 0, count);
+    long[] sorted = new long[count * longs];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(records, order[i] * longs, sorted, i * longs, longs);
+    }
+    return sorted;
+  }
+
+  /* Sort record indexes in the given range of the order array, using the
+   * buffer array for merging. */
+  private static void mergeSort(long[] records, int longs, int[] order,
+      int[] buffer, int from, int to) {
+    if (to - from < 2) {
+      return;
+    }
+    int middle = (from + to) >>> 1;
+    mergeSort(records, longs, order, buffer, from, middle);
+    mergeSort(records, longs, order, buffer, middle, to);
+    if (compareRecords(records, longs, order[middle - 1], order[middle])
+        <= 0) {
+      return;
+    }
+    System.arraycopy(order, from, buffer, from, to - from);
+    int left = from;
+    int right = middle;
+    for (int i = from; i < to; i++) {
+      if (right >= to || (left < middle && compareRecords(records, longs,
+          buffer[left], buffer[right]) <= 0)) {
+        order[i] = buffer[left++];
+      } else {
+        order[i] = buffer[right++];
+      }
+    }
+  }
+
+  private static int compareRecords(long[] records, int longs, int first,
+      int second) {
+    for (int i = 0; i < longs; i++) {
+      int result = Long.compare(records[first * longs + i],
+          records[second * longs + i]);
+      if (0 != result) {
+        return result;
+      }
+    }
+    return 0;
+  }
+
+  /** Return the index of the first record with the given number of longs
+   * each whose first long is not less than the given key, or the number of
+   * records if there is no such record. */
+  static int lowerBound(long[] records, int longs, long key) {
+    int low = 0;
+    int high = records.length / longs;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (records[middle * longs] < key) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  @Override
+  public boolean search(LocalDate timestamp, String address,
+      String address24Hex, QueryResponseBuilder builder,
+      QueryDeadline deadline) {
+    final long executionStartNanos = System.nanoTime();
+    Snapshot currentSnapshot = this.snapshot;
+    BitSet dates = currentSnapshot.dates;
+    if (!dates.isEmpty()) {
+      builder.addDate(LocalDate.ofEpochDay(dates.nextSetBit(0)));
+      builder.addDate(LocalDate.ofEpochDay(dates.length() - 1));
+    }
+    long queryDay = timestamp.toEpochDay();
+    for (long day = queryDay - 1L; day <= queryDay + 1L; day++) {
+      if (day >= 0L && dates.get((int) day)) {
+        builder.addDate(LocalDate.ofEpochDay(day));
+      }
+    }
+
+    /* Look up fingerprints of relays with addresses in the given /24 prefix
+     * within a few days of the given date. */
+    long address24 = Long.parseLong(address24Hex, 16);
+    SortedSet<Integer> fingerprintIdentifiers = new TreeSet<>();
+    for (long day = queryDay - 2L; day <= queryDay + 1L; day++) {
+      long key = (day << 24) | address24;
+      for (int i = lowerBound(currentSnapshot.prefixKeys, 1, key);
+          i < currentSnapshot.prefixKeys.length
+          && currentSnapshot.prefixKeys[i] == key; i++) {
+        fingerprintIdentifiers.add(currentSnapshot.prefixFingerprints[i]);
+      }
+    }
+
+    /* Add status entries with valid-after dates within a day and exit list
+     * entries with scan dates from two days before to one day after the
+     * given date. */
+    for (int fingerprintIdentifier : fingerprintIdentifiers) {
+      String fingerprintBase64
+          = currentSnapshot.fingerprints[fingerprintIdentifier];
+      long fingerprintKey = (long) fingerprintIdentifier << 32;
+      long[] entries = currentSnapshot.statusEntries;
+      long endKey = fingerprintKey | ((queryDay + 2L) * 86400L);
+      for (int i = lowerBound(entries, STATUS_ENTRY_LONGS,
+          fingerprintKey | ((queryDay - 1L) * 86400L));
+          i < entries.length / STATUS_ENTRY_LONGS
+          && entries[i * STATUS_ENTRY_LONGS] < endKey; i++) {
+        int offset = i * STATUS_ENTRY_LONGS;
+        long exit = entries[offset + 2] >>> 32;
+        builder.addStatusEntry(fingerprintBase64, LocalDateTime.ofEpochSecond(
+            entries[offset] & 0xffffffffL, 0, ZoneOffset.UTC),
+            currentSnapshot.nicknames[(int) (entries[offset + 1] >>> 32)],
+            EXIT_UNKNOWN == exit ? null : EXIT_TRUE == exit,
+            currentSnapshot.addresses[(int) entries[offset + 1]]);
+      }
+      entries = currentSnapshot.exitListEntries;
+      for (int i = lowerBound(entries, EXIT_LIST_ENTRY_LONGS,
+          fingerprintKey | ((queryDay - 2L) * 86400L));
+          i < entries.length / EXIT_LIST_ENTRY_LONGS
+          && entries[i * EXIT_LIST_ENTRY_LONGS] < endKey; i++) {
+        int offset = i * EXIT_LIST_ENTRY_LONGS;
+        builder.addExitListEntry(fingerprintBase64, LocalDateTime.ofEpochSecond(
+            entries[offset] & 0xffffffffL, 0, ZoneOffset.UTC),
+            currentSnapshot.addresses[(int) (entries[offset + 1] >>> 32)]);
+      }
+    }
+    executionDuration.recordSince(executionStartNanos);
+    return true;
+  }
+}
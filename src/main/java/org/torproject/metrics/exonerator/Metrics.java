@@ -0,0 +1,130 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Registry of counters and latency histograms shared by all servlets in this
+ * web application, which are exported in Prometheus text format by
+ * {@link MetricsServlet}.
+ *
+ * <p>Metrics are identified by name and label values. Callers on hot paths
+ * are supposed to look up metrics once and keep references to them, because
+ * recording values is cheap but looking up metrics is not.</p> */
+final class Metrics {
+
+  /** Name of the histogram of request latencies by endpoint. */
+  static final String REQUEST_DURATION = "exonerator_request_duration_seconds";
+
+  /** Name of the histogram of latencies of request processing phases by
+   * endpoint and phase. */
+  static final String PHASE_DURATION = "exonerator_phase_duration_seconds";
+
+  /** Name of the counter of requests by endpoint and outcome. */
+  static final String REQUESTS = "exonerator_requests_total";
+
+  /** Metrics with the same name but different label values, with one
+   * description and type. */
+  private static class Family {
+
+    /* Metric description. */
+    private final String help;
+
+    /* Prometheus metric type, either "counter" or "histogram". */
+    private final String type;
+
+    /* Metrics by label string. */
+    private final ConcurrentMap<String, Object> metrics
+        = new ConcurrentSkipListMap<>();
+
+    private Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+  }
+
+  private static final ConcurrentMap<String, Family> families
+      = new ConcurrentSkipListMap<>();
+
+  static {
+    families.put(REQUEST_DURATION, new Family(
+        "Time from receiving a request to completing the response.",
+        "histogram"));
+    families.put(PHASE_DURATION, new Family(
+        "Time spent in a phase of processing a request.", "histogram"));
+    families.put(REQUESTS, new Family(
+        "Number of completed requests by outcome.", "counter"));
+  }
+
+  private Metrics() {
+  }
+
+  /** Return the latency histogram with the given name and label names and
+   * values, creating it if necessary. */
+  static LatencyHistogram histogram(String name, String... labels) {
+    return (LatencyHistogram) family(name, "histogram").metrics
+        .computeIfAbsent(labelString(labels), l -> new LatencyHistogram());
+  }
+
+  /** Return the counter with the given name and label names and values,
+   * creating it if necessary. */
+  static LongAdder counter(String name, String... labels) {
+    return (LongAdder) family(name, "counter").metrics
+        .computeIfAbsent(labelString(labels), l -> new LongAdder());
+  }
+
+  private static Family family(String name, String type) {
+    Family family = families.computeIfAbsent(name,
+        n -> new Family(n, type));
+    if (!type.equals(family.type)) {
+      throw new IllegalArgumentException("Metric " + name + " is a "
+          + family.type + ", not a " + type + ".");
+    }
+    return family;
+  }
+
+  /* Format the given alternating label names and values as Prometheus label
+   * string without braces. */
+  private static String labelString(String... labels) {
+    if (labels.length % 2 != 0) {
+      throw new IllegalArgumentException("Labels must be name-value pairs.");
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < labels.length; i += 2) {
+      sb.append(i > 0 ? "," : "").append(labels[i]).append("=\"")
+          .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\""))
+          .append('"');
+    }
+    return sb.toString();
+  }
+
+  /** Return all metrics in Prometheus text format. */
+  static String toPrometheus() {
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Family> e : families.entrySet()) {
+      Family family = e.getValue();
+      if (family.metrics.isEmpty()) {
+        continue;
+      }
+      sb.append("# HELP ").append(e.getKey()).append(' ')
+          .append(family.help).append('\n');
+      sb.append("# TYPE ").append(e.getKey()).append(' ')
+          .append(family.type).append('\n');
+      for (Map.Entry<String, Object> m : family.metrics.entrySet()) {
+        if (m.getValue() instanceof LatencyHistogram) {
+          ((LatencyHistogram) m.getValue()).appendPrometheus(sb, e.getKey(),
+              m.getKey());
+        } else {
+          sb.append(e.getKey()).append(m.getKey().isEmpty() ? ""
+              : "{" + m.getKey() + "}").append(' ')
+              .append(((LongAdder) m.getValue()).sum()).append('\n');
+        }
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,26 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Servlet that exports request counters and latency histograms in
+ * Prometheus text format. */
+public class MetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = -2441283539283613387L;
+
+  @Override
+  public void doGet(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("utf-8");
+    response.setHeader("Cache-Control", "no-store");
+    response.getWriter().write(Metrics.toPrometheus());
+  }
+}
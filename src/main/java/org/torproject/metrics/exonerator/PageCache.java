@@ -0,0 +1,149 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Cache of rendered pages, including gzip-compressed copies, by request URL,
+ * normalized IP address, date, and language, which is bounded by the total
+ * size of cached pages and evicts least recently used pages first. */
+class PageCache {
+
+  /** Rendered page with caching headers derived from the backend response
+   * it was rendered from. */
+  static class Page {
+
+    /* Uncompressed and gzip-compressed page. */
+    final byte[] body;
+
+    final byte[] gzippedBody;
+
+    /* Entity tag of the page, or null if the page does not have one, in
+     * which case there is no last-modified time either. */
+    final String entityTag;
+
+    /* Entity tag of the backend response, which is passed to the backend to
+     * find out whether the page would still be the same, or null. */
+    final String backendEntityTag;
+
+    /* Last-modified time in milliseconds, or 0 if the page does not have an
+     * entity tag. */
+    final long lastModifiedMillis;
+
+    /* Cache-Control header value, or null. */
+    final String cacheControl;
+
+    /* Time in milliseconds until the page can be served without asking the
+     * backend whether it would still be the same. */
+    final long freshUntilMillis;
+
+    private Page(byte[] body, byte[] gzippedBody, String entityTag,
+        String backendEntityTag, long lastModifiedMillis, String cacheControl,
+        long freshUntilMillis) {
+      this.body = body;
+      this.gzippedBody = gzippedBody;
+      this.entityTag = entityTag;
+      this.backendEntityTag = backendEntityTag;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.cacheControl = cacheControl;
+      this.freshUntilMillis = freshUntilMillis;
+    }
+
+    /** Create a page that depends on a backend response with the given entity
+     * tag and caching headers and that is fresh as long as the Cache-Control
+     * header value permits, starting at the given time in milliseconds. */
+    static Page fromBackend(byte[] body, String entityTag,
+        String backendEntityTag, long lastModifiedMillis, String cacheControl,
+        long nowMillis) {
+      return new Page(body, ResponseCompression.gzip(body), entityTag,
+          backendEntityTag, lastModifiedMillis, cacheControl,
+          freshUntilMillis(cacheControl, nowMillis));
+    }
+
+    /** Create a page that does not depend on any backend response and that is
+     * therefore always fresh. */
+    static Page fromStatic(byte[] body) {
+      return new Page(body, ResponseCompression.gzip(body), null, null, 0L,
+          null, Long.MAX_VALUE);
+    }
+
+    /** Return a copy of this page after the backend confirmed that it would
+     * still be the same, with the given new Cache-Control header value and
+     * starting at the given time in milliseconds. */
+    Page revalidated(String newCacheControl, long nowMillis) {
+      String cacheControl = null != newCacheControl ? newCacheControl
+          : this.cacheControl;
+      return new Page(this.body, this.gzippedBody, this.entityTag,
+          this.backendEntityTag, this.lastModifiedMillis, cacheControl,
+          freshUntilMillis(cacheControl, nowMillis));
+    }
+
+    boolean isFresh(long nowMillis) {
+      return nowMillis < this.freshUntilMillis;
+    }
+
+    private long size() {
+      return this.body.length + this.gzippedBody.length;
+    }
+
+    private static long freshUntilMillis(String cacheControl,
+        long nowMillis) {
+      long maxAgeSeconds = HttpCaching.maxAgeSeconds(cacheControl);
+      return maxAgeSeconds > 0L ? nowMillis + maxAgeSeconds * 1000L : 0L;
+    }
+  }
+
+  /* Maximum total size of cached pages in bytes. */
+  private final long maxBytes;
+
+  /* Total size of cached pages in bytes. */
+  private long bytes;
+
+  /* Cached pages in access order. */
+  private final LinkedHashMap<String, Page> pages
+      = new LinkedHashMap<>(16, 0.75f, true);
+
+  PageCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /** Return the cache key for a page with the given request URI, normalized
+   * IP address, which is empty for the start page, date, and language. */
+  static String key(String requestUri, String relayIp, String timestampStr,
+      String langStr) {
+    return requestUri + "\n" + relayIp + "\n" + timestampStr + "\n" + langStr;
+  }
+
+  /** Return the cached page with the given key, or {@code null} if there is
+   * no such page. */
+  synchronized Page get(String key) {
+    return this.pages.get(key);
+  }
+
+  /** Add or replace the page with the given key, unless it is too large to
+   * be cached, and evict least recently used pages until all pages fit. */
+  synchronized void put(String key, Page page) {
+    Page previousPage = this.pages.remove(key);
+    if (null != previousPage) {
+      this.bytes -= previousPage.size();
+    }
+    if (page.size() > this.maxBytes / 16L) {
+      return;
+    }
+    this.pages.put(key, page);
+    this.bytes += page.size();
+    Iterator<Map.Entry<String, Page>> iterator
+        = this.pages.entrySet().iterator();
+    while (this.bytes > this.maxBytes && iterator.hasNext()) {
+      this.bytes -= iterator.next().getValue().size();
+      iterator.remove();
+    }
+  }
+
+  synchronized int size() {
+    return this.pages.size();
+  }
+}
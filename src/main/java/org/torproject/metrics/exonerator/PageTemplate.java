@@ -0,0 +1,97 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Fragment of an HTML page with placeholders for dynamic values, which is
+ * precompiled into UTF-8 encoded byte arrays once, so that writing it only
+ * requires escaping and encoding the dynamic values. */
+final class PageTemplate {
+
+  /* Static parts before, between, and after placeholders. */
+  private final byte[][] parts;
+
+  private PageTemplate(byte[][] parts) {
+    this.parts = parts;
+  }
+
+  /** Return the number of dynamic values to be passed when writing this
+   * template. */
+  int getPlaceholders() {
+    return this.parts.length - 1;
+  }
+
+  /** Write this template with the given dynamic values in place of its
+   * placeholders, escaping these values. */
+  void write(HtmlWriter out, String... values) throws IOException {
+    if (values.length != this.parts.length - 1) {
+      throw new IllegalArgumentException("Expected "
+          + (this.parts.length - 1) + " values, got " + values.length + ".");
+    }
+    out.write(this.parts[0]);
+    for (int i = 0; i < values.length; i++) {
+      out.writeEscaped(values[i]);
+      out.write(this.parts[i + 1]);
+    }
+  }
+
+  /** Builder for a template from static text and placeholders. */
+  static class Builder {
+
+    private final List<byte[]> parts = new ArrayList<>();
+
+    private final StringBuilder currentPart = new StringBuilder();
+
+    /** Append the given static text, which is not escaped. */
+    Builder append(String text) {
+      this.currentPart.append(text);
+      return this;
+    }
+
+    /** Append a placeholder for a dynamic value. */
+    Builder appendPlaceholder() {
+      this.parts.add(this.currentPart.toString()
+          .getBytes(StandardCharsets.UTF_8));
+      this.currentPart.setLength(0);
+      return this;
+    }
+
+    /** Append the given format string, like a localized string, after
+     * replacing its {@code %s} and {@code %d} specifiers in the order of
+     * their occurrence with the given static values, or with placeholders
+     * where values are missing or {@code null}. */
+    Builder appendFormat(String format, String... values) {
+      int valueIndex = 0;
+      int start = 0;
+      for (int i = 0; i < format.length() - 1; i++) {
+        if ('%' == format.charAt(i) && ('s' == format.charAt(i + 1)
+            || 'd' == format.charAt(i + 1))) {
+          this.currentPart.append(format, start, i);
+          String value = valueIndex < values.length ? values[valueIndex]
+              : null;
+          valueIndex++;
+          if (null == value) {
+            this.appendPlaceholder();
+          } else {
+            this.currentPart.append(value);
+          }
+          start = ++i + 1;
+        }
+      }
+      this.currentPart.append(format, start, format.length());
+      return this;
+    }
+
+    PageTemplate build() {
+      List<byte[]> builtParts = new ArrayList<>(this.parts);
+      builtParts.add(this.currentPart.toString()
+          .getBytes(StandardCharsets.UTF_8));
+      return new PageTemplate(builtParts.toArray(new byte[0][]));
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.SortedMap;
+
+/** Precompiled templates of all fragments of the ExoneraTor page in a given
+ * language, with localized strings already filled in. */
+final class PageTemplates {
+
+  /* Fragments that are the same in all languages. */
+
+  static final PageTemplate SUMMARY_ITEM = new PageTemplate.Builder()
+      .append("                <li><a href=\"").appendPlaceholder()
+      .append("\">").appendPlaceholder().append("</a></li>\n").build();
+
+  static final PageTemplate SUMMARY_ITEMS_END = new PageTemplate.Builder()
+      .append("              </ul>\n"
+          + "            </div><!-- panel-body -->\n"
+          + "          </div><!-- panel -->\n"
+          + "        </div><!-- col -->\n"
+          + "      </div><!-- row -->\n").build();
+
+  static final PageTemplate TECHNICAL_DETAILS_ROW = new PageTemplate.Builder()
+      .append("              <tr>                <td>").appendPlaceholder()
+      .append("</td>                <td>").appendPlaceholder()
+      .append("</td>                <td class=\"fingerprint\">")
+      .appendPlaceholder()
+      .append("</td>                <td>").appendPlaceholder()
+      .append("</td>                <td>").appendPlaceholder()
+      .append("</td>              </tr>\n").build();
+
+  static final PageTemplate TECHNICAL_DETAILS_END = new PageTemplate.Builder()
+      .append("            </tbody>\n"
+          + "          </table>\n"
+          + "        </div><!-- col -->\n"
+          + "      </div><!-- row -->\n").build();
+
+  static final PageTemplate BOTTOM = new PageTemplate.Builder()
+      .append("    <div class=\"footer\">\n"
+          + "      <div class=\"container\">\n"
+          + "        <div class=\"row\">\n"
+          + "          <div class=\"col-xs-12\">\n"
+          + "            <p class=\"text-center small\">\"Tor\" and the "
+          + "\"Onion Logo\" are <a href=\"https://www.torproject.org/docs/"
+          + "trademark-faq.html.en\">registered trademarks</a> of The Tor "
+          + "Project, Inc.</p>\n"
+          + "          </div><!-- col -->\n"
+          + "        </div><!-- row -->\n"
+          + "      </div><!-- container -->\n"
+          + "    </div><!-- footer -->\n"
+          + "  </body>\n"
+          + "</html>\n").build();
+
+  /* Fragments in the given language. */
+
+  final PageTemplate top;
+
+  final PageTemplate form;
+
+  final PageTemplate summaryUnableToConnectToBackend;
+
+  final PageTemplate summaryNoData;
+
+  final PageTemplate summaryNoTimestamp;
+
+  final PageTemplate summaryNoIp;
+
+  final PageTemplate summaryTimestampOutsideRange;
+
+  final PageTemplate summaryInvalidIp;
+
+  final PageTemplate summaryInvalidTimestamp;
+
+  final PageTemplate summaryTimestampTooRecent;
+
+  final PageTemplate summaryNoDataForThisInterval;
+
+  final PageTemplate summaryAddressesInSameNetwork;
+
+  final PageTemplate summaryPositive;
+
+  final PageTemplate summaryNegative;
+
+  final PageTemplate technicalDetails;
+
+  final PageTemplate permanentLink;
+
+  final PageTemplate footerStart;
+
+  final PageTemplate[] footerLanguageLinks;
+
+  final PageTemplate[] footerLanguageLinksWithQuery;
+
+  final PageTemplate footerEnd;
+
+  /* Localized table cell contents. */
+
+  final String nicknameUnknown;
+
+  final String exitUnknown;
+
+  final String exitYes;
+
+  final String exitNo;
+
+  /** Compile templates for the given language, including links to the page
+   * in all given languages. */
+  PageTemplates(String langStr, SortedMap<String, String> languageNames) {
+    ResourceBundle rb = ResourceBundle.getBundle("ExoneraTor",
+        Locale.forLanguageTag(langStr));
+
+    this.top = new PageTemplate.Builder()
+        .append("<!DOCTYPE html>\n"
+            + "<html lang=\"" + langStr + "\">\n"
+            + "  <head>\n"
+            + "    <meta charset=\"utf-8\">\n"
+            + "    <meta http-equiv=\"X-UA-Compatible\" content=\"IE=edge\">\n"
+            + "    <meta name=\"viewport\" content=\"width=device-width, "
+            + "initial-scale=1\">\n"
+            + "    <title>ExoneraTor</title>\n"
+            + "    <link rel=\"stylesheet\" href=\"css/bootstrap.min.css\">\n"
+            + "    <link rel=\"stylesheet\" href=\"css/exonerator.css\">\n"
+            + "    <link href=\"images/favicon.ico\" type=\"image/x-icon\" "
+            + "rel=\"icon\">\n"
+            + "  </head>\n"
+            + "  <body>\n"
+            + "    <div class=\"container\">\n"
+            + "      <div class=\"row\">\n"
+            + "        <div class=\"col-xs-12\">\n"
+            + "          <div class=\"page-header\">\n"
+            + "            <h1>\n"
+            + "              <div class=\"text-center\">\n"
+            + "                <a href=\"/?lang=" + langStr + "\"><img "
+            + "src=\"images/exonerator-logo.png\" width=\"334\" "
+            + "height=\"252\" alt=\"ExoneraTor logo\"><img "
+            + "src=\"images/exonerator-wordmark.png\" width=\"428\" "
+            + "height=\"63\" alt=\"ExoneraTor wordmark\"></a>\n"
+            + "              </div><!-- text-center -->\n"
+            + "            </h1>\n"
+            + "          </div><!-- page-header -->\n"
+            + "        </div><!-- col -->\n"
+            + "      </div><!-- row -->\n"
+            + "    </div><!-- container -->\n"
+            + "    <div class=\"container\">\n").build();
+
+    this.form = new PageTemplate.Builder()
+        .append("      <div class=\"row\">\n"
+            + "        <div class=\"col-xs-12\">\n"
+            + "          <div class=\"text-center\">\n"
+            + "            <div class=\"row vbottom15\">\n"
+            + "              <p>" + rb.getString("form.explanation") + "</p>\n"
+            + "            </div> <!-- row -->\n"
+            + "            <form class=\"form-inline\">\n"
+            + "              <div class=\"form-group").appendPlaceholder()
+        .append("\">\n"
+            + "                <label for=\"inputIp\" "
+            + "class=\"control-label\">" + rb.getString("form.ip.label")
+            + "</label>\n"
+            + "                <input type=\"text\" class=\"form-control\" "
+            + "name=\"ip\" id=\"inputIp\" placeholder=\"86.59.21.38\" "
+            + "value=\"").appendPlaceholder()
+        .append("\" required>\n"
+            + "              </div><!-- form-group -->\n"
+            + "              <div class=\"form-group").appendPlaceholder()
+        .append("\">\n"
+            + "                <label for=\"inputTimestamp\" "
+            + "class=\"control-label\">" + rb.getString("form.timestamp.label")
+            + "</label>\n"
+            + "                <input type=\"date\" class=\"form-control\" "
+            + "name=\"timestamp\" id=\"inputTimestamp\" "
+            + "placeholder=\"2010-01-01\" value=\"").appendPlaceholder()
+        .append("\" required>\n"
+            + "              </div><!-- form-group -->\n"
+            + "              <input type=\"hidden\" name=\"lang\" value=\""
+            + langStr + "\">\n"
+            + "              <button type=\"submit\" "
+            + "class=\"btn btn-primary\">" + rb.getString("form.search.label")
+            + "</button>\n"
+            + "            </form>\n"
+            + "          </div><!-- text-center -->\n"
+            + "        </div><!-- col -->\n"
+            + "      </div><!-- row -->\n").build();
+
+    String contactLink = "<a href=\"https://www.torproject.org/contact\">"
+        + rb.getString("summary.serverproblem.dbempty.body.link") + "</a>";
+    this.summaryUnableToConnectToBackend = summary(rb, "panel-danger",
+        "summary.serverproblem.dbnoconnect.title",
+        "summary.serverproblem.dbnoconnect.body.text", false, contactLink);
+    this.summaryNoData = summary(rb, "panel-danger",
+        "summary.serverproblem.dbempty.title",
+        "summary.serverproblem.dbempty.body.text", false, contactLink);
+    this.summaryNoTimestamp = summary(rb, "panel-danger",
+        "summary.invalidparams.notimestamp.title",
+        "summary.invalidparams.notimestamp.body", false);
+    this.summaryNoIp = summary(rb, "panel-danger",
+        "summary.invalidparams.noip.title",
+        "summary.invalidparams.noip.body", false);
+    this.summaryTimestampOutsideRange = summary(rb, "panel-danger",
+        "summary.invalidparams.timestamprange.title",
+        "summary.invalidparams.timestamprange.body", false);
+    this.summaryInvalidIp = summary(rb, "panel-danger",
+        "summary.invalidparams.invalidip.title",
+        "summary.invalidparams.invalidip.body", false, null, "\"a.b.c.d\"",
+        "\"[a:b:c:d:e:f:g:h]\"");
+    this.summaryInvalidTimestamp = summary(rb, "panel-danger",
+        "summary.invalidparams.invalidtimestamp.title",
+        "summary.invalidparams.invalidtimestamp.body", false, null,
+        "\"YYYY-MM-DD\"");
+    this.summaryTimestampTooRecent = summary(rb, "panel-danger",
+        "summary.invalidparams.timestamptoorecent.title",
+        "summary.invalidparams.timestamptoorecent.body", false);
+    this.summaryNoDataForThisInterval = summary(rb, "panel-danger",
+        "summary.serverproblem.nodata.title",
+        "summary.serverproblem.nodata.body.text", false, contactLink);
+    this.summaryAddressesInSameNetwork = summary(rb, "panel-warning",
+        "summary.negativesamenetwork.title",
+        "summary.negativesamenetwork.body", true);
+    this.summaryPositive = summary(rb, "panel-success",
+        "summary.positive.title", "summary.positive.body", false);
+    this.summaryNegative = summary(rb, "panel-warning",
+        "summary.negative.title", "summary.negative.body", false);
+
+    this.technicalDetails = new PageTemplate.Builder()
+        .append("      <div class=\"row\">\n"
+            + "        <div class=\"col-xs-12\">\n"
+            + "          <h2>" + rb.getString("technicaldetails.heading")
+            + "</h2>\n"
+            + "          <p>")
+        .appendFormat(rb.getString("technicaldetails.pre"))
+        .append("</p>\n"
+            + "          <table class=\"table\">\n"
+            + "            <thead>\n"
+            + "              <tr>\n"
+            + "                <th>"
+            + rb.getString("technicaldetails.colheader.timestamp") + "</th>\n"
+            + "                <th>"
+            + rb.getString("technicaldetails.colheader.ip") + "</th>\n"
+            + "                <th>"
+            + rb.getString("technicaldetails.colheader.fingerprint")
+            + "</th>\n"
+            + "                <th>"
+            + rb.getString("technicaldetails.colheader.nickname") + "</th>\n"
+            + "                <th>"
+            + rb.getString("technicaldetails.colheader.exit") + "</th>\n"
+            + "              </tr>\n"
+            + "            </thead>\n"
+            + "            <tbody>\n").build();
+    this.nicknameUnknown = "("
+        + rb.getString("technicaldetails.nickname.unknown") + ")";
+    this.exitUnknown = rb.getString("technicaldetails.exit.unknown");
+    this.exitYes = rb.getString("technicaldetails.exit.yes");
+    this.exitNo = rb.getString("technicaldetails.exit.no");
+
+    this.permanentLink = new PageTemplate.Builder()
+        .append("      <div class=\"row\">\n"
+            + "        <div class=\"col-xs-12\">\n"
+            + "          <h2>" + rb.getString("permanentlink.heading")
+            + "</h2>\n"
+            + "          <pre>").appendPlaceholder()
+        .append("?ip=").appendPlaceholder()
+        .append("&amp;timestamp=").appendPlaceholder()
+        .append("&amp;lang=" + langStr + "</pre>\n"
+            + "        </div><!-- col -->\n"
+            + "      </div><!-- row -->\n").build();
+
+    this.footerStart = new PageTemplate.Builder()
+        .append("    </div><!-- container -->\n"
+            + "    <div class=\"container\">\n"
+            + "      <div class=\"row\">\n"
+            + "        <div class=\"col-xs-6\">\n"
+            + "          <h3>" + rb.getString("footer.abouttor.heading")
+            + "</h3>\n"
+            + "          <p class=\"small\">")
+        .appendFormat(rb.getString("footer.abouttor.body.text"),
+            "<a href=\"https://www.torproject.org/about\">"
+            + rb.getString("footer.abouttor.body.link1") + "</a>",
+            "<a href=\"https://www.torproject.org/contact\">"
+            + rb.getString("footer.abouttor.body.link2") + "</a>")
+        .append("</p>\n"
+            + "        </div><!-- col -->\n"
+            + "        <div class=\"col-xs-6\">\n"
+            + "          <h3>" + rb.getString("footer.aboutexonerator.heading")
+            + "</h3>\n"
+            + "          <p class=\"small\">"
+            + rb.getString("footer.aboutexonerator.body") + "</p>\n"
+            + "        </div><!-- col -->\n"
+            + "      </div><!-- row -->\n"
+            + "      <div class=\"row\">\n"
+            + "        <div class=\"col-xs-12\">\n"
+            + "          <p class=\"text-center small\">"
+            + rb.getString("footer.language.text")).build();
+    this.footerLanguageLinks = new PageTemplate[languageNames.size()];
+    this.footerLanguageLinksWithQuery
+        = new PageTemplate[languageNames.size()];
+    int linkIndex = 0;
+    for (Map.Entry<String, String> e : languageNames.entrySet()) {
+      this.footerLanguageLinks[linkIndex] = new PageTemplate.Builder()
+          .append(" <a href=\"").appendPlaceholder()
+          .append("?lang=" + e.getKey() + "\">" + e.getValue() + "</a>")
+          .build();
+      this.footerLanguageLinksWithQuery[linkIndex] = new PageTemplate.Builder()
+          .append(" <a href=\"").appendPlaceholder()
+          .append("?ip=").appendPlaceholder()
+          .append("&amp;timestamp=").appendPlaceholder()
+          .append("&amp;lang=" + e.getKey() + "\">" + e.getValue() + "</a>")
+          .build();
+      linkIndex++;
+    }
+    this.footerEnd = new PageTemplate.Builder()
+        .append("</p>\n"
+            + "        </div><!-- col -->\n"
+            + "      </div><!-- row -->\n"
+            + "    </div><!-- container -->\n").build();
+  }
+
+  /* Compile a summary panel with the given context class, localized title,
+   * and localized body with the given static values and placeholders for
+   * missing values, which either ends after the body or is followed by a
+   * list of items and SUMMARY_ITEMS_END. */
+  private static PageTemplate summary(ResourceBundle rb, String panelContext,
+      String titleKey, String bodyKey, boolean items, String... values) {
+    PageTemplate.Builder builder = new PageTemplate.Builder()
+        .append("      <div class=\"row\">\n"
+            + "        <div class=\"col-xs-12\">\n"
+            + "          <h2>" + rb.getString("summary.heading") + "</h2>\n"
+            + "          <div class=\"panel " + panelContext + "\">\n"
+            + "            <div class=\"panel-heading\">\n"
+            + "              <h3 class=\"panel-title\">"
+            + rb.getString(titleKey) + "</h3>\n"
+            + "            </div><!-- panel-heading -->\n"
+            + "            <div class=\"panel-body\">\n"
+            + "              <p>")
+        .appendFormat(rb.getString(bodyKey), values)
+        .append("</p>\n");
+    if (items) {
+      builder.append("              <ul>\n");
+    } else {
+      builder.append("            </div><!-- panel-body -->\n"
+          + "          </div><!-- panel -->\n"
+          + "        </div><!-- col -->\n"
+          + "      </div><!-- row -->\n");
+    }
+    return builder.build();
+  }
+}
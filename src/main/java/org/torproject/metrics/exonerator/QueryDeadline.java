@@ -0,0 +1,59 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.Instant;
+
+/** Deadline for answering a query together with the database statement to
+ * cancel when the deadline passes while the statement is still running. */
+class QueryDeadline {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(QueryDeadline.class);
+
+  private final Instant deadline;
+
+  /** Statement that is currently executed on behalf of the query, or
+   * {@code null} if none is running. */
+  volatile Statement statement;
+
+  QueryDeadline(Instant deadline) {
+    this.deadline = deadline;
+  }
+
+  /** Return the remaining time until the deadline, which may be negative. */
+  Duration remaining() {
+    return Duration.between(Instant.now(), this.deadline);
+  }
+
+  boolean isExpired() {
+    return this.remaining().isNegative();
+  }
+
+  /** Return the remaining time in whole seconds, rounded up, for use as
+   * statement query timeout, or 0 if the deadline has already passed. */
+  int remainingSeconds() {
+    long remainingMillis = this.remaining().toMillis();
+    return remainingMillis <= 0L ? 0
+        : (int) Math.max(1L, (remainingMillis + 999L) / 1000L);
+  }
+
+  /** Cancel the currently running statement, if any. */
+  void cancelStatement() {
+    Statement runningStatement = this.statement;
+    if (null != runningStatement) {
+      try {
+        runningStatement.cancel();
+      } catch (SQLException e) {
+        logger.warn("Unable to cancel statement after timeout.", e);
+      }
+    }
+  }
+}
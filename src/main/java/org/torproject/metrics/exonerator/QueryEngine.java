@@ -0,0 +1,212 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletContext;
+import javax.sql.DataSource;
+
+/** Query engine that answers queries from a query source and keeps track of
+ * the import watermark, shared by all servlets of a web application that
+ * answer queries, either via HTTP or in-process. */
+class QueryEngine {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(QueryEngine.class);
+
+  /* Name of the servlet context attribute holding the shared engine. */
+  private static final String ATTRIBUTE_NAME = QueryEngine.class.getName();
+
+  /** Name of the servlet context attribute holding the primary data source
+   * if it was created by the server rather than bound via JNDI. */
+  static final String DATA_SOURCE_ATTRIBUTE
+      = QueryEngine.class.getName() + ".dataSource";
+
+  private static final LatencyHistogram assemblyDuration
+      = Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "query",
+      "phase", "assembly");
+
+  /* Source for looking up data to answer queries, which is either the
+   * database or a directory of exported lookup index files, or null if the
+   * data source could not be looked up. */
+  private QuerySource querySource;
+
+  /* Executor for periodic maintenance tasks like refreshing the import
+   * watermark. */
+  private ScheduledExecutorService maintenanceExecutor;
+
+  /* Time of the last data imported into the database, or null if unknown. */
+  private volatile Instant importWatermark;
+
+  /** Return the query engine shared by all servlets of the web application
+   * with the given context, and create it if it does not exist yet. */
+  static QueryEngine get(ServletContext context) {
+    synchronized (context) {
+      QueryEngine engine = (QueryEngine) context.getAttribute(ATTRIBUTE_NAME);
+      if (null == engine) {
+        engine = new QueryEngine();
+        engine.start(context);
+        context.setAttribute(ATTRIBUTE_NAME, engine);
+      }
+      return engine;
+    }
+  }
+
+  /** Shut down the query engine of the web application with the given
+   * context, if it exists. */
+  static void shutdown(ServletContext context) {
+    synchronized (context) {
+      QueryEngine engine = (QueryEngine) context.getAttribute(ATTRIBUTE_NAME);
+      if (null != engine) {
+        context.removeAttribute(ATTRIBUTE_NAME);
+        engine.maintenanceExecutor.shutdownNow();
+      }
+    }
+  }
+
+  private void start(ServletContext context) {
+    String indexDirectory = System.getProperty("exonerator.index.directory");
+    String memoryDirectory = System.getProperty("exonerator.memory.directory");
+    if (null != indexDirectory) {
+      /* Answer queries from exported lookup index files. */
+      this.querySource = new IndexQuerySource(new File(indexDirectory));
+      logger.info("Answering queries from lookup index files in {}.",
+          indexDirectory);
+      this.refreshImportWatermark();
+    } else if (null != memoryDirectory) {
+      /* Import descriptors into memory and answer queries from there. */
+      this.querySource = new MemoryStorage(new File(memoryDirectory));
+      logger.info("Answering queries from descriptors in {} kept in memory.",
+          memoryDirectory);
+      this.refreshImportWatermark();
+    } else {
+      /* Look up data source and read replica data sources, if any. */
+      try {
+        DataSource primary
+            = (DataSource) context.getAttribute(DATA_SOURCE_ATTRIBUTE);
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        String replicaNames = System.getProperty("exonerator.db.replicas", "");
+        if (null == primary || !replicaNames.trim().isEmpty()) {
+          Context cxt = new InitialContext();
+          if (null == primary) {
+            primary = (DataSource) cxt.lookup("java:comp/env/jdbc/exonerator");
+          }
+          for (String replicaName : replicaNames.split(",")) {
+            if (!replicaName.trim().isEmpty()) {
+              replicas.put(replicaName.trim(),
+                  lookUpDataSource(cxt, replicaName.trim()));
+            }
+          }
+        }
+        this.querySource = new DatabaseQuerySource(
+            new DataSourceRouter(primary, replicas));
+        logger.info("Successfully looked up data source and {} read replica "
+            + "data sources.", replicas.size());
+      } catch (NamingException e) {
+        logger.warn("Could not look up data source", e);
+      }
+    }
+
+    /* Periodically refresh the import watermark. */
+    this.maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(
+        (runnable) -> {
+          Thread thread = new Thread(runnable, "exonerator-maintenance");
+          thread.setDaemon(true);
+          return thread;
+        });
+    if (null != this.querySource) {
+      this.maintenanceExecutor.scheduleWithFixedDelay(
+          this::refreshImportWatermark, 0L,
+          Long.getLong("exonerator.watermark.refresh", 60L), TimeUnit.SECONDS);
+    }
+  }
+
+  /** Look up the data source with the given name, either in the web
+   * application's environment or as global resource. */
+  private static DataSource lookUpDataSource(Context cxt, String name)
+      throws NamingException {
+    try {
+      return (DataSource) cxt.lookup("java:comp/env/" + name);
+    } catch (NamingException e) {
+      return (DataSource) cxt.lookup(name);
+    }
+  }
+
+  /** Refresh the import watermark from the query source, or keep the previous
+   * watermark if that fails. */
+  private void refreshImportWatermark() {
+    try {
+      this.importWatermark = this.querySource.loadImportWatermark();
+    } catch (Throwable e) { // Catch all problems, or we won't run again.
+      logger.warn("Unable to refresh import watermark.  Keeping {}.",
+          this.importWatermark, e);
+    }
+  }
+
+  /** Return the time of the last data imported into the database, or
+   * {@code null} if unknown. */
+  Instant getImportWatermark() {
+    return this.importWatermark;
+  }
+
+  /** Return the query source as relay history source, or {@code null} if
+   * it does not support looking up relays by fingerprint or if the data
+   * source could not be looked up. */
+  RelayHistorySource getRelayHistorySource() {
+    return this.querySource instanceof RelayHistorySource
+        ? (RelayHistorySource) this.querySource : null;
+  }
+
+  /** Return the query source as export source, or {@code null} if it does
+   * not support exports or if the data source could not be looked up. */
+  ExportSource getExportSource() {
+    return this.querySource instanceof ExportSource
+        ? (ExportSource) this.querySource : null;
+  }
+
+  /** Query the query source for the given relay IP address and date, and
+   * return the query response, or {@code null} if the query failed or did
+   * not complete before the given deadline. */
+  QueryResponse query(String relayIp, LocalDate timestamp,
+      QueryDeadline deadline) {
+    if (null == this.querySource) {
+      return null;
+    }
+
+    /* Convert address to hex. */
+    String addressHex = !relayIp.contains(":")
+        ? QueryServlet.convertIpV4ToHex(relayIp)
+        : QueryServlet.convertIpV6ToHex(relayIp);
+    if (addressHex == null) {
+      return null;
+    }
+    String address24Hex = addressHex.substring(0, 6);
+
+    /* Look up all relevant data and write results to a new QueryResponse
+     * object. */
+    QueryResponseBuilder builder = new QueryResponseBuilder();
+    if (!this.querySource.search(timestamp, relayIp, address24Hex, builder,
+        deadline)) {
+      return null;
+    }
+    final long assemblyStartNanos = System.nanoTime();
+    QueryResponse queryResponse = builder.build(relayIp, timestamp);
+    assemblyDuration.recordSince(assemblyStartNanos);
+    return queryResponse;
+  }
+}
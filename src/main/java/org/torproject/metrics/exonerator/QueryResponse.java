@@ -13,9 +13,22 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.SortedSet;
+import java.util.TreeSet;
 
-/** Query response from the ExoneraTor database. */
+/** Query response from the ExoneraTor database, which is written either in
+ * version 1.0 with one match per status, or in the compact version 2.0 with
+ * consecutive matches of the same relay combined into ranges. */
 public class QueryResponse {
 
   private static final Logger logger
@@ -27,8 +40,26 @@ public class QueryResponse {
   /* Don't accept query responses with versions lower than this. */
   private static final String FIRSTRECOGNIZEDVERSION = "1.0";
 
+  /* Compact version with matches combined into ranges. */
+  static final String COMPACT_VERSION = "2.0";
+
   /* Don't accept query responses with this version or higher. */
-  private static final String FIRSTUNRECOGNIZEDVERSION = "2.0";
+  private static final String FIRSTUNRECOGNIZEDVERSION = "3.0";
+
+  private static final DateTimeFormatter timestampFormatter
+      = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+  /* Order of matches in responses, which is by timestamp and then by
+   * fingerprint. */
+  static final Comparator<Match> MATCH_ORDER = (m1, m2) -> {
+    if (m1 == m2) {
+      return 0;
+    } else if (!m1.timestamp.equals(m2.timestamp)) {
+      return m1.timestamp.compareTo(m2.timestamp);
+    } else {
+      return m1.fingerprint.compareTo(m2.fingerprint);
+    }
+  };
 
   private static ObjectMapper objectMapper = new ObjectMapper()
       .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
@@ -62,9 +93,19 @@ public class QueryResponse {
   Boolean relevantStatuses;
 
   /** All matches for the given IP address and date; {@code null} if there
-   * were no matches at all. */
+   * were no matches at all, or in compact responses before expanding
+   * them. */
   Match[] matches;
 
+  /** All addresses of relays in compact responses, referenced by their
+   * index; {@code null} if there were no matches or in responses with
+   * version 1.x. */
+  String[] addresses;
+
+  /** All matches in compact responses, combined into ranges; {@code null}
+   * if there were no matches or in responses with version 1.x. */
+  Relay[] relays;
+
   /** Constructor for Gson. */
   public QueryResponse() {}
 
@@ -87,6 +128,12 @@ public class QueryResponse {
     return objectMapper.writeValueAsString(response);
   }
 
+  /** Return JSON string for given QueryResponse in the compact version. */
+  public static String toCompactJson(QueryResponse response)
+      throws IOException {
+    return objectMapper.writeValueAsString(compact(response));
+  }
+
   /** Return QueryResponse parsed from the given input stream, or
    * {@code null} if something fails or an unrecognized version is found. */
   public static QueryResponse fromJson(Reader reader) {
@@ -104,6 +151,9 @@ public class QueryResponse {
             FIRSTRECOGNIZEDVERSION, FIRSTUNRECOGNIZEDVERSION);
         return null;
       }
+      if (response.version.compareTo(COMPACT_VERSION) >= 0) {
+        response.expand();
+      }
       return response;
     } catch (IOException | RuntimeException e) {
       /* We're catching RuntimeException here, rather than IOException, so that
@@ -150,5 +200,222 @@ public class QueryResponse {
   /** All known IP addresses in the same /24 or /48 network; {@code null}
    * if there were direct matches for the given IP address. */
   String[] nearbyAddresses;
+
+  /** Matches of a relay with the same addresses, nickname, and exit flag in
+   * compact responses. */
+  static class Relay {
+
+    /** Relay fingerprint. */
+    String fingerprint;
+
+    /** Relay nickname. */
+    String nickname;
+
+    /** Whether this relay permitted exiting or not; {@code null} if
+     * unknown. */
+    Boolean exit;
+
+    /** Indexes of all known IP addresses of the relay in the response's
+     * address table. */
+    int[] addresses;
+
+    /** Ranges of timestamps of statuses containing matches. */
+    Range[] ranges;
+
+    /** Constructor for JSON library. */
+    public Relay() {
+    }
+  }
+
+  /** Range of evenly spaced timestamps. */
+  static class Range {
+
+    /** ISO-formatted valid-after time of the first status in this range. */
+    String first;
+
+    /** Seconds between two statuses in this range; {@code null} if there
+     * is only one status. */
+    Integer interval;
+
+    /** Number of statuses in this range; {@code null} if there is only one
+     * status. */
+    Integer count;
+
+    /** Constructor for JSON library. */
+    public Range() {
+    }
+  }
+
+  /** Return a copy of the given response in the compact version, which
+   * contains each relay's addresses, nickname, and exit flag only once per
+   * range of matches. */
+  static QueryResponse compact(QueryResponse response) {
+    QueryResponse compact = new QueryResponse(COMPACT_VERSION,
+        response.queryAddress, response.queryDate,
+        response.firstDateInDatabase, response.lastDateInDatabase,
+        response.relevantStatuses, null, response.nearbyAddresses);
+    if (null == response.matches || response.matches.length == 0) {
+      return compact;
+    }
+    /* Go through matches in order and either extend the last range of the
+     * relay with the same fingerprint, nickname, exit flag, and addresses or
+     * start a new range. */
+    List<RelayRanges> relays = new ArrayList<>();
+    Map<String, List<RelayRanges>> relaysByFingerprint = new HashMap<>();
+    for (Match match : response.matches) {
+      List<RelayRanges> candidates = relaysByFingerprint.computeIfAbsent(
+          match.fingerprint, (key) -> new ArrayList<>(1));
+      RelayRanges relay = null;
+      for (RelayRanges candidate : candidates) {
+        if (Objects.equals(candidate.match.nickname, match.nickname)
+            && Objects.equals(candidate.match.exit, match.exit)
+            && (candidate.match.addresses == match.addresses
+            || candidate.match.addresses.equals(match.addresses))) {
+          relay = candidate;
+          break;
+        }
+      }
+      if (null == relay) {
+        relay = new RelayRanges(match);
+        candidates.add(relay);
+        relays.add(relay);
+      }
+      relay.add(match.timestamp);
+    }
+
+    /* Write addresses to a table and reference them by index. */
+    SortedSet<String> allAddresses = new TreeSet<>();
+    for (RelayRanges relay : relays) {
+      allAddresses.addAll(relay.match.addresses);
+    }
+    compact.addresses = allAddresses.toArray(new String[0]);
+    Map<String, Integer> addressIndexes = new HashMap<>();
+    for (int i = 0; i < compact.addresses.length; i++) {
+      addressIndexes.put(compact.addresses[i], i);
+    }
+    compact.relays = new Relay[relays.size()];
+    for (int i = 0; i < compact.relays.length; i++) {
+      compact.relays[i] = relays.get(i).toRelay(addressIndexes);
+    }
+    return compact;
+  }
+
+  /* Ranges of matches of a relay while compacting a response. */
+  private static class RelayRanges {
+
+    /* First match of the relay, which has the same fingerprint, nickname,
+     * exit flag, and addresses as all other matches. */
+    private final Match match;
+
+    private final List<Range> ranges = new ArrayList<>();
+
+    /* Timestamp of the last match in seconds since the epoch, or -1 if it
+     * has an unknown format and cannot be extended. */
+    private long lastSeconds = -1L;
+
+    private RelayRanges(Match match) {
+      this.match = match;
+    }
+
+    /* Extend the last range by the given timestamp if it follows after the
+     * same interval as previous timestamps, or start a new range. */
+    private void add(String timestamp) {
+      long seconds = parseTimestamp(timestamp);
+      Range range = this.ranges.isEmpty() ? null
+          : this.ranges.get(this.ranges.size() - 1);
+      if (null != range && this.lastSeconds >= 0L
+          && seconds > this.lastSeconds
+          && seconds - this.lastSeconds <= Integer.MAX_VALUE
+          && (null == range.interval
+          || seconds - this.lastSeconds == range.interval)) {
+        range.interval = (int) (seconds - this.lastSeconds);
+        range.count = null == range.count ? 2 : range.count + 1;
+      } else {
+        range = new Range();
+        range.first = timestamp;
+        this.ranges.add(range);
+      }
+      this.lastSeconds = seconds;
+    }
+
+    private Relay toRelay(Map<String, Integer> addressIndexes) {
+      Relay relay = new Relay();
+      relay.fingerprint = this.match.fingerprint;
+      relay.nickname = this.match.nickname;
+      relay.exit = this.match.exit;
+      relay.addresses = new int[this.match.addresses.size()];
+      int index = 0;
+      for (String address : this.match.addresses) {
+        relay.addresses[index++] = addressIndexes.get(address);
+      }
+      relay.ranges = this.ranges.toArray(new Range[0]);
+      return relay;
+    }
+  }
+
+  /* Parse the given timestamp in the format yyyy-MM-dd HH:mm:ss into seconds
+   * since the epoch, or return -1 if it has a different format. */
+  private static long parseTimestamp(String timestamp) {
+    if (null == timestamp || timestamp.length() != 19
+        || timestamp.charAt(4) != '-' || timestamp.charAt(7) != '-'
+        || timestamp.charAt(10) != ' ' || timestamp.charAt(13) != ':'
+        || timestamp.charAt(16) != ':') {
+      return -1L;
+    }
+    try {
+      return LocalDate.of(parseDigits(timestamp, 0, 4),
+          parseDigits(timestamp, 5, 7), parseDigits(timestamp, 8, 10))
+          .toEpochDay() * 86400L + parseDigits(timestamp, 11, 13) * 3600L
+          + parseDigits(timestamp, 14, 16) * 60L
+          + parseDigits(timestamp, 17, 19);
+    } catch (RuntimeException e) {
+      return -1L;
+    }
+  }
+
+  /* Parse the decimal digits in the given part of a string without creating
+   * substrings, or throw an exception if there are other characters. */
+  private static int parseDigits(String string, int from, int to) {
+    int value = 0;
+    for (int i = from; i < to; i++) {
+      char digit = string.charAt(i);
+      if (digit < '0' || digit > '9') {
+        throw new NumberFormatException(string);
+      }
+      value = 10 * value + digit - '0';
+    }
+    return value;
+  }
+
+  /* Expand relays in a compact response into matches, and drop relays and
+   * addresses afterwards. */
+  private void expand() {
+    if (null == this.relays) {
+      return;
+    }
+    List<Match> expandedMatches = new ArrayList<>();
+    for (Relay relay : this.relays) {
+      SortedSet<String> relayAddresses = new TreeSet<>();
+      for (int index : relay.addresses) {
+        relayAddresses.add(this.addresses[index]);
+      }
+      for (Range range : relay.ranges) {
+        int count = null == range.count ? 1 : range.count;
+        long firstSeconds = count > 1 ? parseTimestamp(range.first) : -1L;
+        for (int i = 0; i < count; i++) {
+          String timestamp = 0 == i || firstSeconds < 0L ? range.first
+              : LocalDateTime.ofEpochSecond(firstSeconds
+              + (long) i * range.interval, 0, ZoneOffset.UTC)
+              .format(timestampFormatter);
+          expandedMatches.add(new Match(timestamp, relayAddresses,
+              relay.fingerprint, relay.nickname, relay.exit));
+        }
+      }
+    }
+    expandedMatches.sort(MATCH_ORDER);
+    this.matches = expandedMatches.toArray(new Match[0]);
+    this.addresses = null;
+    this.relays = null;
+  }
 }
 
@@ -0,0 +1,177 @@
+/* Copyright 2017--2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** Builder for a query response from dates, status entries, and exit list
+ * entries that a query source found for a given date and address prefix. */
+class QueryResponseBuilder {
+
+  private static final DateTimeFormatter validAfterTimeFormatter
+      = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+      .withZone(ZoneOffset.UTC);
+
+  /* Store all dates contained in the query response in order to populate the
+   * {first|last}_date_in_database and relevant_statuses fields. */
+  private final SortedSet<LocalDate> allDates = new TreeSet<>();
+
+  /* Store all possible matches for the results table by base64-encoded
+   * fingerprint and valid-after time. This map is first populated by going
+   * through the result set and adding or updating map entries, so that
+   * there's one entry per fingerprint and valid-after time with one or more
+   * addresses. In a second step, exit addresses are added to map entries. */
+  private final SortedMap<String, SortedMap<LocalDateTime, QueryResponse.Match>>
+      matchesByFingerprintBase64AndValidAfter = new TreeMap<>();
+
+  /* Store all possible matches by address. This map has two purposes: First,
+   * the query returns all entries matching the first 24 bits of an address,
+   * which may include other addresses than the one being looked for. This map
+   * then has only those matches that are relevant. Second, if there are no
+   * matches for the given address, this map may contain nearby addresses in
+   * the same /24 or /48 that can be included in the nearby_addresses
+   * field. */
+  private final SortedMap<String, Set<QueryResponse.Match>>
+      matchesByAddress = new TreeMap<>();
+
+  /* Store all exit addresses by base64-encoded fingerprint and scanned
+   * time. These addresses are added to this map while going through the
+   * result set and later added to the two maps above containing matches. The
+   * reason for separating these steps is that the result set may contain
+   * status entries and exit list entries in any specific order. */
+  private final SortedMap<String, SortedMap<LocalDateTime, String>>
+      exitAddressesByFingeprintBase64AndScanned = new TreeMap<>();
+
+  /** Add a date for which the query source contains data, which is either the
+   * first or last date overall or a date within a day of the query date. */
+  void addDate(LocalDate date) {
+    this.allDates.add(date);
+  }
+
+  /** Add an exit list entry of a relay with a fingerprint found for the
+   * queried address prefix. */
+  void addExitListEntry(String fingerprintBase64, LocalDateTime scanned,
+      String exitAddress) {
+    this.exitAddressesByFingeprintBase64AndScanned.putIfAbsent(
+        fingerprintBase64, new TreeMap<>());
+    this.exitAddressesByFingeprintBase64AndScanned.get(fingerprintBase64)
+        .put(scanned, exitAddress);
+  }
+
+  /** Add a status entry with a single OR address of a relay with a
+   * fingerprint found for the queried address prefix. */
+  void addStatusEntry(String fingerprintBase64, LocalDateTime validAfter,
+      String nickname, Boolean exit, String orAddress) {
+    this.matchesByFingerprintBase64AndValidAfter.putIfAbsent(
+        fingerprintBase64, new TreeMap<>());
+    if (!this.matchesByFingerprintBase64AndValidAfter
+        .get(fingerprintBase64).containsKey(validAfter)) {
+      String validAfterString = validAfter.format(validAfterTimeFormatter);
+      String fingerprint = convertFingerprintToHex(fingerprintBase64);
+      this.matchesByFingerprintBase64AndValidAfter.get(fingerprintBase64)
+          .put(validAfter, new QueryResponse.Match(validAfterString,
+          new TreeSet<>(), fingerprint, nickname, exit));
+    }
+    QueryResponse.Match match = this.matchesByFingerprintBase64AndValidAfter
+        .get(fingerprintBase64).get(validAfter);
+    if (orAddress.contains(":")) {
+      match.addresses.add("[" + orAddress + "]");
+    } else {
+      match.addresses.add(orAddress);
+    }
+    this.matchesByAddress.putIfAbsent(orAddress, new HashSet<>());
+    this.matchesByAddress.get(orAddress).add(match);
+  }
+
+  /** Convert the given base64-encoded relay fingerprint without trailing
+   * padding characters, as stored in the database, to upper-case hex. */
+  static String convertFingerprintToHex(String fingerprintBase64) {
+    return Hex.encodeHexString(Base64.decodeBase64(fingerprintBase64 + "="))
+        .toUpperCase();
+  }
+
+  /** Build the query response for the given relay IP address and date. */
+  QueryResponse build(String relayIp, LocalDate timestamp) {
+
+    /* Go through exit addresses and update possible matches. */
+    for (Map.Entry<String, SortedMap<LocalDateTime, String>> e
+        : this.exitAddressesByFingeprintBase64AndScanned.entrySet()) {
+      String fingerprintBase64 = e.getKey();
+      if (!this.matchesByFingerprintBase64AndValidAfter.containsKey(
+          fingerprintBase64)) {
+        /* This is a rare edge case where an exit list entry exists, but where
+         * that relay was not included in any consensus with a valid-after time
+         * of up to 24 hours after the scan time. This match is not supposed to
+         * show up in the results, nor should the exit address show up in
+         * nearby matches. We'll just skip it. */
+        continue;
+      }
+      for (Map.Entry<LocalDateTime, String> e1 : e.getValue().entrySet()) {
+        LocalDateTime scanned = e1.getKey();
+        String exitAddress = e1.getValue();
+        for (QueryResponse.Match match
+            : this.matchesByFingerprintBase64AndValidAfter
+            .get(fingerprintBase64).subMap(scanned, scanned.plusDays(1L))
+            .values()) {
+          match.addresses.add(exitAddress);
+          this.matchesByAddress.putIfAbsent(exitAddress, new HashSet<>());
+          this.matchesByAddress.get(exitAddress).add(match);
+        }
+      }
+    }
+
+    /* Write all results to a new QueryResponse object. */
+    final QueryResponse response = new QueryResponse();
+    response.queryAddress = relayIp;
+    response.queryDate = timestamp.format(DateTimeFormatter.ISO_DATE);
+    if (!this.allDates.isEmpty()) {
+      response.firstDateInDatabase = this.allDates.first()
+          .format(DateTimeFormatter.ISO_DATE);
+      response.lastDateInDatabase = this.allDates.last()
+          .format(DateTimeFormatter.ISO_DATE);
+      response.relevantStatuses = this.allDates.contains(timestamp)
+          || this.allDates.contains(timestamp.minusDays(1L))
+          || this.allDates.contains(timestamp.plusDays(1L));
+    }
+    if (this.matchesByAddress.containsKey(relayIp)) {
+      List<QueryResponse.Match> matchesList
+          = new ArrayList<>(this.matchesByAddress.get(relayIp));
+      matchesList.sort(QueryResponse.MATCH_ORDER);
+      response.matches = matchesList.toArray(new QueryResponse.Match[0]);
+    } else {
+      SortedSet<String> nearbyAddresses = new TreeSet<>();
+      String relayIpHex24Or48 = !relayIp.contains(":")
+          ? QueryServlet.convertIpV4ToHex(relayIp).substring(0, 6)
+          : QueryServlet.convertIpV6ToHex(relayIp).substring(0, 12);
+      for (String address : this.matchesByAddress.keySet()) {
+        String nearbyAddressHex24Or48 = !address.contains(":")
+            ? QueryServlet.convertIpV4ToHex(address).substring(0, 6)
+            : QueryServlet.convertIpV6ToHex(address).substring(0, 12);
+        if (relayIpHex24Or48.equals(nearbyAddressHex24Or48)) {
+          nearbyAddresses.add(address);
+        }
+      }
+      if (!nearbyAddresses.isEmpty()) {
+        response.nearbyAddresses = nearbyAddresses.toArray(new String[0]);
+      }
+    }
+
+    return response;
+  }
+}
@@ -3,43 +3,35 @@
 
 package org.torproject.metrics.exonerator;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.sql.CallableStatement;
-import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.time.DateTimeException;
-import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDate;
-import java.time.LocalDateTime;
 import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.SortedMap;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
-import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.sql.DataSource;
 
 public class QueryServlet extends HttpServlet {
 
@@ -48,76 +40,318 @@ public class QueryServlet extends HttpServlet {
   private static final Logger logger
       = LoggerFactory.getLogger(QueryServlet.class);
 
-  private DataSource ds;
+  private static final LatencyHistogram requestDuration
+      = Metrics.histogram(Metrics.REQUEST_DURATION, "endpoint", "query");
 
-  private static final DateTimeFormatter validAfterTimeFormatter
-      = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
-      .withZone(ZoneOffset.UTC);
+  /* Counters of requests by outcome, looked up once rather than per
+   * request. */
+  private static final LongAdder okRequests = outcomeCounter("ok");
+  private static final LongAdder notModifiedRequests
+      = outcomeCounter("not_modified");
+  private static final LongAdder badParameterRequests
+      = outcomeCounter("bad_parameter");
+  private static final LongAdder rejectedRequests = outcomeCounter("rejected");
+  private static final LongAdder timeoutRequests = outcomeCounter("timeout");
+  private static final LongAdder dbErrorRequests = outcomeCounter("db_error");
+  private static final LongAdder errorRequests = outcomeCounter("error");
+
+  private static final LatencyHistogram queueWaitDuration
+      = Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "query",
+      "phase", "queue_wait");
+
+  private static final LatencyHistogram renderingDuration
+      = Metrics.histogram(Metrics.PHASE_DURATION, "endpoint", "query",
+      "phase", "rendering");
+
+  /** Request header containing the remaining time budget in milliseconds that
+   * the caller is willing to wait for a response. */
+  static final String TIMEOUT_HEADER = "X-ExoneraTor-Timeout";
+
+  /* Maximum time budget in milliseconds for answering a query, regardless of
+   * what the caller is willing to wait. */
+  private final long maxQueryTimeoutMillis
+      = Long.getLong("exonerator.query.timeout", 20000L);
+
+  /* Number of queries that ran out of time since starting. */
+  private final AtomicLong timedOutQueries = new AtomicLong();
+
+  /* Engine for answering queries, which is shared with other servlets. */
+  private QueryEngine queryEngine;
+
+  /* Executor for database queries, so that container threads are not blocked
+   * while waiting for a pooled connection or for query results. */
+  private ExecutorService queryExecutor;
 
   @Override
   public void init() {
-    /* Look up data source. */
-    try {
-      Context cxt = new InitialContext();
-      this.ds = (DataSource) cxt.lookup("java:comp/env/jdbc/exonerator");
-      logger.info("Successfully looked up data source.");
-    } catch (NamingException e) {
-      logger.warn("Could not look up data source", e);
+    this.queryEngine = QueryEngine.get(this.getServletContext());
+
+    /* Create a bounded query executor with as many threads as there are
+     * database connections in the pool. Queries that don't fit into the queue
+     * are rejected right away rather than piling up. */
+    int queryThreads = Integer.getInteger("exonerator.db.connections", 8);
+    int queryQueueSize = Integer.getInteger("exonerator.query.queue", 64);
+    final AtomicInteger queryThreadNumber = new AtomicInteger();
+    this.queryExecutor = new ThreadPoolExecutor(queryThreads, queryThreads,
+        0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queryQueueSize),
+        (runnable) -> {
+          Thread thread = new Thread(runnable,
+              "exonerator-query-" + queryThreadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    logger.info("Created query executor with {} threads and a queue size of "
+        + "{}.", queryThreads, queryQueueSize);
+  }
+
+  @Override
+  public void destroy() {
+    if (null != this.queryExecutor) {
+      this.queryExecutor.shutdownNow();
     }
+    QueryEngine.shutdown(this.getServletContext());
   }
 
   @Override
   public void doGet(HttpServletRequest request,
       HttpServletResponse response) throws IOException {
+    final long startNanos = System.nanoTime();
     try {
       /* Parse ip parameter. */
       String ipParameter = request.getParameter("ip");
       if (null == ipParameter) {
-        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-            "Missing ip parameter.");
+        sendBadRequest(response, startNanos, "Missing ip parameter.");
         return;
       }
       String relayIp = this.parseIpParameter(ipParameter);
       if (null == relayIp) {
-        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-            "Invalid ip parameter.");
+        sendBadRequest(response, startNanos, "Invalid ip parameter.");
         return;
       }
 
       /* Parse timestamp parameter. */
       String timestampParameter = request.getParameter("timestamp");
       if (null == timestampParameter) {
-        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-            "Missing timestamp parameter.");
+        sendBadRequest(response, startNanos, "Missing timestamp parameter.");
         return;
       }
       LocalDate timestamp = this.parseTimestampParameter(timestampParameter);
       if (null == timestamp) {
-        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-            "Invalid timestamp parameter.");
+        sendBadRequest(response, startNanos, "Invalid timestamp parameter.");
         return;
       }
       if (this.checkTimestampTooRecent(timestampParameter)) {
-        response.sendError(HttpServletResponse.SC_BAD_REQUEST,
-            "Timestamp too recent.");
+        sendBadRequest(response, startNanos, "Timestamp too recent.");
         return;
       }
 
-      /* Query the database. */
-      QueryResponse queryResponse = this.queryDatabase(relayIp, timestamp);
-      if (null == queryResponse) {
+      /* Parse optional version parameter, which selects the compact response
+       * format if it has major version 2, and 1.0 otherwise. */
+      String versionParameter = request.getParameter("version");
+      final boolean compact;
+      if (null == versionParameter
+          || versionParameter.matches("1(\\..*)?")) {
+        compact = false;
+      } else if (versionParameter.matches("2(\\..*)?")) {
+        compact = true;
+      } else {
+        sendBadRequest(response, startNanos, "Unsupported version parameter.");
+        return;
+      }
+
+      /* Answer conditional requests based on the import watermark without
+       * querying the database, with the same Vary header as full responses,
+       * which may be compressed. */
+      response.setHeader("Vary", "Accept-Encoding");
+      final Instant watermark = this.queryEngine.getImportWatermark();
+      if (null != watermark) {
+        String entityTag = HttpCaching.entityTag(watermark);
+        if (HttpCaching.isNotModified(request, entityTag, watermark)) {
+          HttpCaching.setHeaders(response, HttpCaching.notModifiedEntityTag(
+              request.getHeader("If-None-Match"), entityTag), watermark,
+              HttpCaching.cacheControl(timestamp, watermark));
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          recordRequest(startNanos, notModifiedRequests);
+          return;
+        }
+      }
+
+      /* Determine the deadline for answering this query, which starts
+       * counting now, so that time spent in the executor queue is included. */
+      long timeoutMillis = this.maxQueryTimeoutMillis;
+      String timeoutHeader = request.getHeader(TIMEOUT_HEADER);
+      if (null != timeoutHeader) {
+        try {
+          timeoutMillis = Math.min(timeoutMillis,
+              Math.max(1L, Long.parseLong(timeoutHeader.trim())));
+        } catch (NumberFormatException e) {
+          sendBadRequest(response, startNanos,
+              "Invalid " + TIMEOUT_HEADER + " header.");
+          return;
+        }
+      }
+
+      /* Query the database on a query executor thread and release the
+       * container thread in the meantime. */
+      final PendingQuery pendingQuery = new PendingQuery(request.startAsync(),
+          Instant.now().plusMillis(timeoutMillis), startNanos);
+      pendingQuery.asyncContext.setTimeout(timeoutMillis + 1000L);
+      pendingQuery.asyncContext.addListener(pendingQuery);
+      final long submittedNanos = System.nanoTime();
+      try {
+        this.queryExecutor.execute(() -> {
+          queueWaitDuration.recordSince(submittedNanos);
+          this.writeQueryResponse(pendingQuery, relayIp, timestamp, watermark,
+              compact);
+        });
+      } catch (RejectedExecutionException e) {
+        logger.warn("Query executor is saturated.  Returning error.");
+        if (pendingQuery.complete()) {
+          response.setHeader("Retry-After", "10");
+          response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+              "Too many concurrent queries.");
+          pendingQuery.asyncContext.complete();
+          recordRequest(startNanos, rejectedRequests);
+        }
+      }
+    } catch (Throwable th) {
+      logger.error("Some problem in doGet.  Returning error.", th);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "General backend error.");
+      recordRequest(startNanos, errorRequests);
+    }
+  }
+
+  /** Send a response indicating that the request was invalid. */
+  private static void sendBadRequest(HttpServletResponse response,
+      long startNanos, String message) throws IOException {
+    response.sendError(HttpServletResponse.SC_BAD_REQUEST, message);
+    recordRequest(startNanos, badParameterRequests);
+  }
+
+  private static LongAdder outcomeCounter(String outcome) {
+    return Metrics.counter(Metrics.REQUESTS, "endpoint", "query", "outcome",
+        outcome);
+  }
+
+  /** Record the total duration and the outcome of a request that started at
+   * the given time. */
+  private static void recordRequest(long startNanos, LongAdder outcome) {
+    requestDuration.recordSince(startNanos);
+    outcome.increment();
+  }
+
+  /** Query the database and write the response, in the compact version if
+   * requested, including caching headers derived from the given import
+   * watermark, if known, which is supposed to run on a query executor
+   * thread. */
+  private void writeQueryResponse(PendingQuery pendingQuery, String relayIp,
+      LocalDate timestamp, Instant watermark, boolean compact) {
+    HttpServletResponse response
+        = (HttpServletResponse) pendingQuery.asyncContext.getResponse();
+    try {
+      QueryResponse queryResponse = this.queryEngine.query(relayIp,
+          timestamp, pendingQuery);
+      if (!pendingQuery.complete()) {
+        /* The response has already been written by the timeout listener. */
+        return;
+      }
+      if (null == queryResponse && pendingQuery.isExpired()) {
+        this.sendTimeoutError(response);
+        recordRequest(pendingQuery.startNanos, timeoutRequests);
+      } else if (null == queryResponse) {
         response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
             "Database error.");
+        recordRequest(pendingQuery.startNanos, dbErrorRequests);
       } else {
         /* Write the response. */
+        if (null != watermark) {
+          HttpCaching.setHeaders(response, HttpCaching.entityTag(watermark),
+              watermark, HttpCaching.cacheControl(timestamp, watermark));
+        }
+        final long renderingStartNanos = System.nanoTime();
         response.setContentType("application/json");
         response.setCharacterEncoding("utf-8");
-        response.getWriter().write(QueryResponse.toJson(queryResponse));
+        ResponseCompression.write(
+            (HttpServletRequest) pendingQuery.asyncContext.getRequest(),
+            response, (compact ? QueryResponse.toCompactJson(queryResponse)
+            : QueryResponse.toJson(queryResponse))
+            .getBytes(StandardCharsets.UTF_8));
+        renderingDuration.recordSince(renderingStartNanos);
+        recordRequest(pendingQuery.startNanos, okRequests);
       }
+      pendingQuery.asyncContext.complete();
     } catch (Throwable th) {
-      logger.error("Some problem in doGet.  Returning error.", th);
-      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-          "General backend error.");
+      logger.error("Some problem in writeQueryResponse.  Returning error.", th);
+      try {
+        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+            "General backend error.");
+      } catch (IOException | IllegalStateException e) {
+        logger.warn("Unable to send error response.", e);
+      }
+      pendingQuery.asyncContext.complete();
+      recordRequest(pendingQuery.startNanos, errorRequests);
+    }
+  }
+
+  /** Send a response indicating that the query ran out of time. */
+  private void sendTimeoutError(HttpServletResponse response)
+      throws IOException {
+    logger.warn("Query timed out, which happened {} times since starting.",
+        this.timedOutQueries.incrementAndGet());
+    response.sendError(HttpServletResponse.SC_GATEWAY_TIMEOUT,
+        "Query timed out.");
+  }
+
+  /** Query waiting on or being executed by the query executor, including its
+   * deadline and, while it runs, the database statement to cancel when the
+   * deadline passes. */
+  private class PendingQuery extends QueryDeadline implements AsyncListener {
+
+    private final AsyncContext asyncContext;
+
+    private final AtomicBoolean completed = new AtomicBoolean();
+
+    /* Time when the request was received, as obtained from
+     * System.nanoTime(). */
+    private final long startNanos;
+
+    PendingQuery(AsyncContext asyncContext, Instant deadline,
+        long startNanos) {
+      super(deadline);
+      this.asyncContext = asyncContext;
+      this.startNanos = startNanos;
+    }
+
+    /** Mark this query as completed and return whether the caller is the first
+     * to do so and is therefore responsible for writing the response. */
+    boolean complete() {
+      return this.completed.compareAndSet(false, true);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+      this.cancelStatement();
+      if (this.complete()) {
+        sendTimeoutError((HttpServletResponse) this.asyncContext.getResponse());
+        this.asyncContext.complete();
+        recordRequest(this.startNanos, timeoutRequests);
+      }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+      /* Nothing to do. */
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+      /* Nothing to do. */
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+      /* Nothing to do. */
     }
   }
 
@@ -177,7 +411,7 @@ public class QueryServlet extends HttpServlet {
     return relayIp;
   }
 
-  private String convertIpV4ToHex(String relayIp) {
+  static String convertIpV4ToHex(String relayIp) {
     String[] relayIpParts = relayIp.split("\\.");
     byte[] address24Bytes = new byte[4];
     for (int i = 0; i < address24Bytes.length; i++) {
@@ -186,7 +420,7 @@ public class QueryServlet extends HttpServlet {
     return Hex.encodeHexString(address24Bytes);
   }
 
-  private String convertIpV6ToHex(String relayIp) {
+  static String convertIpV6ToHex(String relayIp) {
     if (relayIp.startsWith("[") && relayIp.endsWith("]")) {
       relayIp = relayIp.substring(1, relayIp.length() - 1);
     }
@@ -244,185 +478,4 @@ public class QueryServlet extends HttpServlet {
     return timestampParameter.compareTo(LocalDate.now(ZoneOffset.UTC)
         .minusDays(1).toString()) >= 0;
   }
-
-  /* Helper methods for querying the database. */
-
-  private QueryResponse queryDatabase(String relayIp, LocalDate timestamp) {
-
-    /* Convert address to hex. */
-    String addressHex = !relayIp.contains(":")
-        ? this.convertIpV4ToHex(relayIp) : this.convertIpV6ToHex(relayIp);
-    if (addressHex == null) {
-      return null;
-    }
-    String address24Hex = addressHex.substring(0, 6);
-
-    /* Store all dates contained in the query response in order to populate the
-     * {first|last}_date_in_database and relevant_statuses fields. */
-    SortedSet<LocalDate> allDates = new TreeSet<>();
-
-    /* Store all possible matches for the results table by base64-encoded
-     * fingerprint and valid-after time. This map is first populated by going
-     * through the result set and adding or updating map entries, so that
-     * there's one entry per fingerprint and valid-after time with one or more
-     * addresses. In a second step, exit addresses are added to map entries. */
-    SortedMap<String, SortedMap<LocalDateTime, QueryResponse.Match>>
-        matchesByFingerprintBase64AndValidAfter = new TreeMap<>();
-
-    /* Store all possible matches by address. This map has two purposes: First,
-     * the query returns all entries matching the first 24 bits of an address,
-     * which may include other addresses than the one being looked for. This map
-     * then has only those matches that are relevant. Second, if there are no
-     * matches for the given address, this map may contain nearby addresses in
-     * the same /24 or /48 that can be included in the nearby_addresses
-     * field. */
-    SortedMap<String, Set<QueryResponse.Match>>
-        matchesByAddress = new TreeMap<>();
-
-    /* Store all exit addresses by base64-encoded fingerprint and scanned
-     * time. These addresses are added to this map while going through the
-     * result set and later added to the two maps above containing matches. The
-     * reason for separating these steps is that the result set may contain
-     * status entries and exit list entries in any specific order. */
-    SortedMap<String, SortedMap<LocalDateTime, String>>
-        exitAddressesByFingeprintBase64AndScanned = new TreeMap<>();
-
-    /* Make the database query to populate the sets and maps above. */
-    final Instant requestedConnection = Instant.now();
-    try (Connection conn = this.ds.getConnection()) {
-      try (CallableStatement cs = conn.prepareCall(
-          "{call search_by_date_address24(?, ?)}")) {
-        cs.setObject(1, timestamp);
-        cs.setString(2, address24Hex);
-        try (ResultSet rs = cs.executeQuery()) {
-          while (rs.next()) {
-            LocalDate date = rs.getObject(1, LocalDate.class);
-            String fingerprintBase64 = rs.getString(2);
-            LocalDateTime scanned = rs.getObject(3, LocalDateTime.class);
-            String exitAddress = rs.getString(4);
-            LocalDateTime validAfter = rs.getObject(5, LocalDateTime.class);
-            String nickname = rs.getString(6);
-            Boolean exit = rs.getBoolean(7);
-            String orAddress = rs.getString(8);
-            if (null != date) {
-              allDates.add(date);
-            } else if (null != scanned) {
-              exitAddressesByFingeprintBase64AndScanned.putIfAbsent(
-                  fingerprintBase64, new TreeMap<>());
-              exitAddressesByFingeprintBase64AndScanned.get(fingerprintBase64)
-                  .put(scanned, exitAddress);
-            } else if (null != validAfter) {
-              matchesByFingerprintBase64AndValidAfter.putIfAbsent(
-                  fingerprintBase64, new TreeMap<>());
-              if (!matchesByFingerprintBase64AndValidAfter
-                  .get(fingerprintBase64).containsKey(validAfter)) {
-                String validAfterString = validAfter.format(
-                    validAfterTimeFormatter);
-                String fingerprint = Hex.encodeHexString(Base64.decodeBase64(
-                    fingerprintBase64 + "=")).toUpperCase();
-                matchesByFingerprintBase64AndValidAfter.get(fingerprintBase64)
-                    .put(validAfter, new QueryResponse.Match(
-                        validAfterString, new TreeSet<>(), fingerprint,
-                        nickname, exit));
-              }
-              QueryResponse.Match match
-                  = matchesByFingerprintBase64AndValidAfter
-                  .get(fingerprintBase64).get(validAfter);
-              if (orAddress.contains(":")) {
-                match.addresses.add("[" + orAddress + "]");
-              } else {
-                match.addresses.add(orAddress);
-              }
-              matchesByAddress.putIfAbsent(orAddress, new HashSet<>());
-              matchesByAddress.get(orAddress).add(match);
-            }
-          }
-        } catch (SQLException e) {
-          logger.warn("Result set error.  Returning 'null'.", e);
-          return null;
-        }
-        logger.info("Returned a database connection to the pool after {}.",
-            Duration.between(requestedConnection, Instant.now()));
-      } catch (SQLException e) {
-        logger.warn("Callable statement error.  Returning 'null'.", e);
-        return null;
-      }
-    } catch (Throwable e) { // Catch all problems left.
-      logger.warn("Database error.  Returning 'null'.", e);
-      return null;
-    }
-
-    /* Go through exit addresses and update possible matches. */
-    for (Map.Entry<String, SortedMap<LocalDateTime, String>> e
-        : exitAddressesByFingeprintBase64AndScanned.entrySet()) {
-      String fingerprintBase64 = e.getKey();
-      if (!matchesByFingerprintBase64AndValidAfter.containsKey(
-          fingerprintBase64)) {
-        /* This is a rare edge case where an exit list entry exists, but where
-         * that relay was not included in any consensus with a valid-after time
-         * of up to 24 hours after the scan time. This match is not supposed to
-         * show up in the results, nor should the exit address show up in
-         * nearby matches. We'll just skip it. */
-        continue;
-      }
-      for (Map.Entry<LocalDateTime, String> e1 : e.getValue().entrySet()) {
-        LocalDateTime scanned = e1.getKey();
-        String exitAddress = e1.getValue();
-        for (QueryResponse.Match match
-            : matchesByFingerprintBase64AndValidAfter.get(fingerprintBase64)
-            .subMap(scanned, scanned.plusDays(1L)).values()) {
-          match.addresses.add(exitAddress);
-          matchesByAddress.putIfAbsent(exitAddress, new HashSet<>());
-          matchesByAddress.get(exitAddress).add(match);
-        }
-      }
-    }
-
-    /* Write all results to a new QueryResponse object. */
-    final QueryResponse response = new QueryResponse();
-    response.queryAddress = relayIp;
-    response.queryDate = timestamp.format(DateTimeFormatter.ISO_DATE);
-    if (!allDates.isEmpty()) {
-      response.firstDateInDatabase = allDates.first()
-          .format(DateTimeFormatter.ISO_DATE);
-      response.lastDateInDatabase = allDates.last()
-          .format(DateTimeFormatter.ISO_DATE);
-      response.relevantStatuses = allDates.contains(timestamp)
-          || allDates.contains(timestamp.minusDays(1L))
-          || allDates.contains(timestamp.plusDays(1L));
-    }
-    if (matchesByAddress.containsKey(relayIp)) {
-      List<QueryResponse.Match> matchesList
-          = new ArrayList<>(matchesByAddress.get(relayIp));
-      matchesList.sort((m1, m2) -> {
-        if (m1 == m2) {
-          return 0;
-        } else if (!m1.timestamp.equals(m2.timestamp)) {
-          return m1.timestamp.compareTo(m2.timestamp);
-        } else {
-          return m1.fingerprint.compareTo(m2.fingerprint);
-        }
-      });
-      response.matches = matchesList.toArray(new QueryResponse.Match[0]);
-    } else {
-      SortedSet<String> nearbyAddresses = new TreeSet<>();
-      String relayIpHex24Or48 = !relayIp.contains(":")
-          ? this.convertIpV4ToHex(relayIp).substring(0, 6)
-          : this.convertIpV6ToHex(relayIp).substring(0, 12);
-      for (String address : matchesByAddress.keySet()) {
-        String nearbyAddressHex24Or48 = !address.contains(":")
-            ? this.convertIpV4ToHex(address).substring(0, 6)
-            : this.convertIpV6ToHex(address).substring(0, 12);
-        if (relayIpHex24Or48.equals(nearbyAddressHex24Or48)) {
-          nearbyAddresses.add(address);
-        }
-      }
-      if (!nearbyAddresses.isEmpty()) {
-        response.nearbyAddresses = nearbyAddresses.toArray(new String[0]);
-      }
-    }
-
-    return response;
-  }
 }
-
@@ -0,0 +1,30 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+/** Source of dates, status entries, and exit list entries for answering
+ * queries, like the database or exported lookup index files. */
+interface QuerySource {
+
+  /** Look up (1) status entries of relays that had an address in the given
+   * hex-encoded /24 prefix of the given IP address within a few days of the
+   * given date, with valid-after dates within a day of the given date, (2)
+   * exit list entries of the same relays with scan dates between two days
+   * before and one day after the given date, and (3) the first and last date
+   * overall and the dates within a day of the given date for which data is
+   * available. Add all findings to the given builder, and return whether the
+   * lookup succeeded before the given deadline. */
+  boolean search(LocalDate date, String address, String address24Hex,
+      QueryResponseBuilder builder, QueryDeadline deadline);
+
+  /** Load the time of the last imported data, which may include reloading
+   * underlying data, or return {@code null} if the source is empty.
+   *
+   * @throws Exception if the time cannot be determined
+   */
+  Instant loadImportWatermark() throws Exception;
+}
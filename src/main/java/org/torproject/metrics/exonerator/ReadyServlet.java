@@ -0,0 +1,39 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Servlet that tells load balancers whether this server has finished
+ * warming up and is ready to receive traffic. */
+public class ReadyServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 2953181254430771716L;
+
+  /** Name of the servlet context attribute that is set to
+   * {@link Boolean#FALSE} while the server is warming up. The server is
+   * considered ready if the attribute is not set at all, which is the case
+   * when the web application is not started by {@link ServerMain}. */
+  static final String READY_ATTRIBUTE = ReadyServlet.class.getName()
+      + ".ready";
+
+  @Override
+  public void doGet(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    response.setContentType("text/plain");
+    response.setCharacterEncoding("utf-8");
+    response.setHeader("Cache-Control", "no-store");
+    if (Boolean.FALSE.equals(
+        this.getServletContext().getAttribute(READY_ATTRIBUTE))) {
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      response.getWriter().write("warming up\n");
+    } else {
+      response.getWriter().write("ready\n");
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+
+import java.io.IOException;
+import java.util.SortedSet;
+
+/** Address, nickname, and exit flag history of a single relay in a date
+ * range, with consecutive status entries and exit list entries that only
+ * differ in time combined into ranges. */
+public class RelayHistory {
+
+  /* Actual version implemented by this class. */
+  private static final String VERSION = "1.0";
+
+  private static ObjectMapper objectMapper = new ObjectMapper()
+      .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
+      .setSerializationInclusion(JsonInclude.Include.NON_EMPTY)
+      .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+      .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+
+  /** Version of this response format. */
+  String version = VERSION;
+
+  /** Relay fingerprint passed in the request, in upper-case hex; never
+   * {@code null}. */
+  String fingerprint;
+
+  /**
+   * First date passed in the request; never {@code null}.
+   */
+  String startDate;
+
+  /**
+   * Last date passed in the request; never {@code null}.
+   */
+  String endDate;
+
+  /** Status ranges ordered by time; {@code null} if the relay was not
+   * listed in any consensus in the date range. */
+  StatusRange[] statuses;
+
+  /** Exit address ranges ordered by first scan time; {@code null} if the
+   * relay was not found in any exit list in the date range. */
+  ExitRange[] exitAddresses;
+
+  /** Constructor for JSON library. */
+  public RelayHistory() {
+  }
+
+  /** Return JSON string for given relay history. */
+  public static String toJson(RelayHistory history) throws IOException {
+    return objectMapper.writeValueAsString(history);
+  }
+
+  /** Consecutive status entries of the relay with the same addresses,
+   * nickname, and exit flag. */
+  static class StatusRange {
+
+    /** ISO-formatted valid-after time of the first status in this range. */
+    String firstValidAfter;
+
+    /** ISO-formatted valid-after time of the last status in this range. */
+    String lastValidAfter;
+
+    /** Number of statuses in this range. */
+    int statuses;
+
+    /** All OR addresses of the relay in this range. */
+    SortedSet<String> addresses;
+
+    /** Relay nickname. */
+    String nickname;
+
+    /** Whether this relay permitted exiting or not; {@code null} if
+     * unknown. */
+    Boolean exit;
+
+    /** Constructor for JSON library. */
+    public StatusRange() {
+    }
+  }
+
+  /** Consecutive exit list scans of the relay that found the same exit
+   * address. */
+  static class ExitRange {
+
+    /** Exit address found by the scans in this range. */
+    String address;
+
+    /** ISO-formatted time of the first scan in this range. */
+    String firstScanned;
+
+    /** ISO-formatted time of the last scan in this range. */
+    String lastScanned;
+
+    /** Number of scans in this range. */
+    int scans;
+
+    /** Constructor for JSON library. */
+    public ExitRange() {
+    }
+  }
+}
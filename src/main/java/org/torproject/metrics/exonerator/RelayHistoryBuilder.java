@@ -0,0 +1,142 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** Builder for the history of a relay from status entries and exit list
+ * entries that a query source found for its fingerprint. */
+class RelayHistoryBuilder {
+
+  private static final DateTimeFormatter timeFormatter
+      = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+      .withZone(ZoneOffset.UTC);
+
+  /* Maximum time between two consecutive statuses in the same range, which
+   * is longer than the consensus interval, so that a missing consensus or
+   * two do not split a range. */
+  private static final Duration MAX_STATUS_GAP = Duration.ofHours(3L);
+
+  /* Status entry of the relay with all OR addresses. */
+  private static class Status {
+
+    private final String nickname;
+
+    private final Boolean exit;
+
+    private final SortedSet<String> addresses = new TreeSet<>();
+
+    private Status(String nickname, Boolean exit) {
+      this.nickname = nickname;
+      this.exit = exit;
+    }
+  }
+
+  /* Store all statuses by valid-after time. */
+  private final SortedMap<LocalDateTime, Status> statusesByValidAfter
+      = new TreeMap<>();
+
+  /* Store all exit addresses by scan time. */
+  private final SortedMap<LocalDateTime, SortedSet<String>>
+      exitAddressesByScanned = new TreeMap<>();
+
+  /** Add a status entry with a single OR address of the relay. */
+  void addStatusEntry(LocalDateTime validAfter, String nickname, Boolean exit,
+      String orAddress) {
+    Status status = this.statusesByValidAfter.computeIfAbsent(validAfter,
+        (key) -> new Status(nickname, exit));
+    status.addresses.add(orAddress.contains(":") ? "[" + orAddress + "]"
+        : orAddress);
+  }
+
+  /** Add an exit list entry of the relay. */
+  void addExitListEntry(LocalDateTime scanned, String exitAddress) {
+    this.exitAddressesByScanned.computeIfAbsent(scanned,
+        (key) -> new TreeSet<>()).add(exitAddress);
+  }
+
+  /** Build the history for the given fingerprint and date range. */
+  RelayHistory build(String fingerprint, LocalDate startDate,
+      LocalDate endDate) {
+    RelayHistory history = new RelayHistory();
+    history.fingerprint = fingerprint;
+    history.startDate = startDate.toString();
+    history.endDate = endDate.toString();
+
+    /* Combine consecutive statuses that only differ in time. */
+    List<RelayHistory.StatusRange> statusRanges = new ArrayList<>();
+    RelayHistory.StatusRange statusRange = null;
+    LocalDateTime lastValidAfter = null;
+    for (Map.Entry<LocalDateTime, Status> e
+        : this.statusesByValidAfter.entrySet()) {
+      LocalDateTime validAfter = e.getKey();
+      Status status = e.getValue();
+      if (null == statusRange
+          || validAfter.isAfter(lastValidAfter.plus(MAX_STATUS_GAP))
+          || !statusRange.addresses.equals(status.addresses)
+          || !Objects.equals(statusRange.nickname, status.nickname)
+          || !Objects.equals(statusRange.exit, status.exit)) {
+        statusRange = new RelayHistory.StatusRange();
+        statusRange.firstValidAfter = validAfter.format(timeFormatter);
+        statusRange.addresses = status.addresses;
+        statusRange.nickname = status.nickname;
+        statusRange.exit = status.exit;
+        statusRanges.add(statusRange);
+      }
+      statusRange.lastValidAfter = validAfter.format(timeFormatter);
+      statusRange.statuses++;
+      lastValidAfter = validAfter;
+    }
+    if (!statusRanges.isEmpty()) {
+      history.statuses = statusRanges.toArray(
+          new RelayHistory.StatusRange[0]);
+    }
+
+    /* Combine consecutive scans that found the same exit address, and end a
+     * range as soon as a scan does not find that address anymore. */
+    List<RelayHistory.ExitRange> exitRanges = new ArrayList<>();
+    Map<String, RelayHistory.ExitRange> openExitRanges = new HashMap<>();
+    for (Map.Entry<LocalDateTime, SortedSet<String>> e
+        : this.exitAddressesByScanned.entrySet()) {
+      String scanned = e.getKey().format(timeFormatter);
+      for (String exitAddress : e.getValue()) {
+        RelayHistory.ExitRange exitRange = openExitRanges.get(exitAddress);
+        if (null == exitRange) {
+          exitRange = new RelayHistory.ExitRange();
+          exitRange.address = exitAddress;
+          exitRange.firstScanned = scanned;
+          exitRanges.add(exitRange);
+          openExitRanges.put(exitAddress, exitRange);
+        }
+        exitRange.lastScanned = scanned;
+        exitRange.scans++;
+      }
+      for (Iterator<String> it = openExitRanges.keySet().iterator();
+          it.hasNext(); ) {
+        if (!e.getValue().contains(it.next())) {
+          it.remove();
+        }
+      }
+    }
+    if (!exitRanges.isEmpty()) {
+      history.exitAddresses = exitRanges.toArray(
+          new RelayHistory.ExitRange[0]);
+    }
+    return history;
+  }
+}
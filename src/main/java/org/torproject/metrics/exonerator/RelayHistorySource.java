@@ -0,0 +1,19 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.time.LocalDate;
+
+/** Source of status entries and exit list entries of a single relay, which
+ * is implemented by query sources that can look up entries by fingerprint
+ * without scanning all entries in a date range. */
+interface RelayHistorySource {
+
+  /** Look up all status entries and exit list entries of the relay with the
+   * given base64-encoded fingerprint with dates between the given dates, both
+   * inclusive, and add them to the given builder, and return whether the
+   * lookup succeeded before the given deadline. */
+  boolean searchFingerprint(String fingerprintBase64, LocalDate startDate,
+      LocalDate endDate, RelayHistoryBuilder builder, QueryDeadline deadline);
+}
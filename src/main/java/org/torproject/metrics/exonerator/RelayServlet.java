@@ -0,0 +1,199 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Servlet that returns the address, nickname, and exit flag history of the
+ * relay with a given fingerprint in a date range as JSON. */
+public class RelayServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 5312790487313218052L;
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(RelayServlet.class);
+
+  private static final LatencyHistogram requestDuration
+      = Metrics.histogram(Metrics.REQUEST_DURATION, "endpoint", "relay");
+
+  /* Counters of requests by outcome, looked up once rather than per
+   * request. */
+  private static final LongAdder successRequests = outcomeCounter("success");
+  private static final LongAdder notModifiedRequests
+      = outcomeCounter("not_modified");
+  private static final LongAdder badParameterRequests
+      = outcomeCounter("bad_parameter");
+  private static final LongAdder errorRequests = outcomeCounter("error");
+
+  private static final Pattern fingerprintPattern
+      = Pattern.compile("^[0-9a-fA-F]{40}$");
+
+  /* Maximum number of days in a single lookup, which can be much larger than
+   * for address queries, because entries are looked up by fingerprint and
+   * combined into ranges. */
+  private final int maxDays = Integer.getInteger("exonerator.relay.maxdays",
+      366);
+
+  /* Maximum time budget in milliseconds for looking up a relay. */
+  private final long timeoutMillis
+      = Long.getLong("exonerator.query.timeout", 20000L);
+
+  /* Engine for answering queries, which is shared with other servlets. */
+  private QueryEngine queryEngine;
+
+  @Override
+  public void init() {
+    this.queryEngine = QueryEngine.get(this.getServletContext());
+  }
+
+  @Override
+  public void destroy() {
+    QueryEngine.shutdown(this.getServletContext());
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    final long startNanos = System.nanoTime();
+    try {
+      /* Parse fingerprint, start, and end parameters. */
+      String fingerprint = parseFingerprintParameter(
+          request.getParameter("fingerprint"));
+      if (null == fingerprint) {
+        sendError(response, startNanos, HttpServletResponse.SC_BAD_REQUEST,
+            badParameterRequests, "Missing or invalid fingerprint parameter.");
+        return;
+      }
+      LocalDate startDate = parseDateParameter(request.getParameter("start"));
+      LocalDate endDate = parseDateParameter(request.getParameter("end"));
+      if (null == startDate || null == endDate) {
+        sendError(response, startNanos, HttpServletResponse.SC_BAD_REQUEST,
+            badParameterRequests, "Missing or invalid start or end parameter.");
+        return;
+      }
+      if (endDate.isBefore(startDate)
+          || ChronoUnit.DAYS.between(startDate, endDate) >= this.maxDays) {
+        sendError(response, startNanos, HttpServletResponse.SC_BAD_REQUEST,
+            badParameterRequests, "Date range must not exceed " + this.maxDays
+            + " days.");
+        return;
+      }
+      RelayHistorySource relayHistorySource
+          = this.queryEngine.getRelayHistorySource();
+      if (null == relayHistorySource) {
+        sendError(response, startNanos,
+            HttpServletResponse.SC_NOT_IMPLEMENTED, errorRequests,
+            "Relay lookups are not supported by this server.");
+        return;
+      }
+
+      /* Answer conditional requests based on the import watermark without
+       * querying the database, with the same Vary header as full responses,
+       * which may be compressed. */
+      response.setHeader("Vary", "Accept-Encoding");
+      Instant watermark = this.queryEngine.getImportWatermark();
+      String entityTag = null;
+      if (null != watermark) {
+        entityTag = HttpCaching.entityTag(watermark);
+        if (HttpCaching.isNotModified(request, entityTag, watermark)) {
+          HttpCaching.setHeaders(response, HttpCaching.notModifiedEntityTag(
+              request.getHeader("If-None-Match"), entityTag), watermark,
+              HttpCaching.cacheControl(endDate, watermark));
+          response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+          recordRequest(startNanos, notModifiedRequests);
+          return;
+        }
+      }
+
+      /* Look up the relay and write the response. */
+      RelayHistoryBuilder builder = new RelayHistoryBuilder();
+      if (!relayHistorySource.searchFingerprint(
+          ExoneraTorDatabaseImporter.convertFingerprintToBase64(fingerprint),
+          startDate, endDate, builder,
+          new QueryDeadline(Instant.now().plusMillis(this.timeoutMillis)))) {
+        sendError(response, startNanos,
+            HttpServletResponse.SC_SERVICE_UNAVAILABLE, errorRequests,
+            "Database error.");
+        return;
+      }
+      final String historyString = RelayHistory.toJson(
+          builder.build(fingerprint, startDate, endDate));
+      response.setContentType("application/json");
+      response.setCharacterEncoding("utf-8");
+      if (null != entityTag) {
+        HttpCaching.setHeaders(response, entityTag, watermark,
+            HttpCaching.cacheControl(endDate, watermark));
+      }
+      ResponseCompression.write(request, response,
+          historyString.getBytes(StandardCharsets.UTF_8));
+      recordRequest(startNanos, successRequests);
+    } catch (Throwable th) {
+      logger.error("Some problem in doGet.  Returning error.", th);
+      response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "General backend error.");
+      recordRequest(startNanos, errorRequests);
+    }
+  }
+
+  /** Return the given fingerprint parameter in upper-case hex without
+   * leading dollar sign or spaces, or {@code null} if it is not a valid
+   * fingerprint. */
+  static String parseFingerprintParameter(String parameter) {
+    if (null == parameter) {
+      return null;
+    }
+    String fingerprint = parameter.replace(" ", "").trim();
+    if (fingerprint.startsWith("$")) {
+      fingerprint = fingerprint.substring(1);
+    }
+    if (!fingerprintPattern.matcher(fingerprint).matches()) {
+      return null;
+    }
+    return fingerprint.toUpperCase();
+  }
+
+  private static LocalDate parseDateParameter(String parameter) {
+    if (null == parameter) {
+      return null;
+    }
+    try {
+      return LocalDate.parse(parameter.trim());
+    } catch (DateTimeException e) {
+      return null;
+    }
+  }
+
+  private static void sendError(HttpServletResponse response,
+      long startNanos, int status, LongAdder outcome, String message)
+      throws IOException {
+    response.sendError(status, message);
+    recordRequest(startNanos, outcome);
+  }
+
+  private static LongAdder outcomeCounter(String outcome) {
+    return Metrics.counter(Metrics.REQUESTS, "endpoint", "relay", "outcome",
+        outcome);
+  }
+
+  /** Record the total duration and the outcome of a request that started at
+   * the given time. */
+  private static void recordRequest(long startNanos, LongAdder outcome) {
+    requestDuration.recordSince(startNanos);
+    outcome.increment();
+  }
+}
@@ -0,0 +1,95 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Backend that sends queries to a remote server via HTTP and parses query
+ * responses from JSON, requesting the compact version, which older servers
+ * ignore by responding with version 1.0. */
+class RemoteBackend implements Backend {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(RemoteBackend.class);
+
+  /* Time in milliseconds to subtract from the remaining time budget before
+   * passing it on to the backend server, so that the backend gives up before
+   * we do and we learn about the timeout. */
+  private static final long BACKEND_TIMEOUT_ALLOWANCE_MILLIS = 500L;
+
+  /* Client for backend requests, which reuses connections. */
+  private final BackendClient backendClient;
+
+  RemoteBackend(String baseUrl) {
+    this.backendClient = new BackendClient(baseUrl);
+  }
+
+  @Override
+  public Result query(String relayIp, String timestampStr, Instant deadline,
+      String ifNoneMatch, long ifModifiedSince) {
+    Result result = new Result();
+    long remainingMillis = Duration.between(Instant.now(), deadline)
+        .toMillis();
+    try {
+      Map<String, String> requestHeaders = new HashMap<>();
+      requestHeaders.put(QueryServlet.TIMEOUT_HEADER, String.valueOf(
+          Math.max(1L, remainingMillis - BACKEND_TIMEOUT_ALLOWANCE_MILLIS)));
+      if (null != ifNoneMatch) {
+        requestHeaders.put("If-None-Match", ifNoneMatch);
+      }
+      if (ifModifiedSince >= 0L) {
+        requestHeaders.put("If-Modified-Since",
+            DateTimeFormatter.RFC_1123_DATE_TIME.format(
+            Instant.ofEpochMilli(ifModifiedSince).atOffset(ZoneOffset.UTC)));
+      }
+      BackendClient.Response response = this.backendClient.get(
+          "/query.json?ip=" + relayIp + "&timestamp=" + timestampStr
+          + "&version=" + QueryResponse.COMPACT_VERSION,
+          requestHeaders, remainingMillis);
+      final int responseCode = response.statusCode;
+      /* Use the entity tag of the uncompressed response, because that's what
+       * the body has been decompressed to. */
+      result.entityTag = HttpCaching.identityEntityTag(response.entityTag);
+      result.lastModifiedMillis = response.lastModifiedMillis;
+      result.cacheControl = response.cacheControl;
+      if (HttpURLConnection.HTTP_OK == responseCode) {
+        try (InputStreamReader isr = new InputStreamReader(
+            new ByteArrayInputStream(response.body),
+            StandardCharsets.UTF_8)) {
+          result.queryResponse = QueryResponse.fromJson(isr);
+        }
+      } else if (HttpURLConnection.HTTP_NOT_MODIFIED == responseCode) {
+        result.notModified = true;
+      } else if (HttpURLConnection.HTTP_GATEWAY_TIMEOUT == responseCode) {
+        result.timedOut = true;
+      } else {
+        logger.error("Backend query failed with response code {}.",
+            responseCode);
+      }
+    } catch (SocketTimeoutException e) {
+      result.timedOut = true;
+    } catch (IOException e) {
+      /* No result from backend, so that we don't have a query response to
+       * process further. */
+      logger.error("Backend query failed.", e);
+    } catch (Throwable th) {
+      logger.error("Backend query failed with general error.", th);
+    }
+    return result;
+  }
+}
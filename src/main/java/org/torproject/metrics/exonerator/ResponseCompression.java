@@ -0,0 +1,136 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Gzip compression of dynamic responses, negotiated via the Accept-Encoding
+ * request header, which reuses deflaters and buffers across responses rather
+ * than allocating them for every response. */
+final class ResponseCompression {
+
+  /* Minimum size of response bodies in bytes to compress, because smaller
+   * bodies don't get much smaller and might even grow. */
+  static final int MIN_LENGTH = 256;
+
+  /* Maximum number of idle encoders to keep for later responses. */
+  private static final int POOL_SIZE = 16;
+
+  /* Gzip header with deflate compression method, no flags, no modification
+   * time, no extra flags, and unknown operating system. */
+  private static final byte[] GZIP_HEADER = new byte[] {
+      0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+  /* Idle encoders. */
+  private static final BlockingQueue<Encoder> encoders
+      = new ArrayBlockingQueue<>(POOL_SIZE);
+
+  /* Deflater for raw deflate data, checksum, and output buffer, which are
+   * used by one thread at a time. */
+  private static class Encoder {
+
+    private final Deflater deflater
+        = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    private final CRC32 crc = new CRC32();
+
+    private final byte[] buffer = new byte[8192];
+  }
+
+  private ResponseCompression() {
+  }
+
+  /** Return whether the given Accept-Encoding header value, or {@code null},
+   * accepts gzip-compressed responses, where an explicit gzip or x-gzip
+   * entry takes precedence over a wildcard entry. */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (null == acceptEncoding) {
+      return false;
+    }
+    Boolean gzip = null;
+    Boolean wildcard = null;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      String name = parts[0].trim();
+      boolean accepted = true;
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim().replace(" ", "");
+        if (parameter.matches("q=0(\\.0*)?")) {
+          accepted = false;
+        }
+      }
+      if ("gzip".equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+        gzip = Boolean.TRUE.equals(gzip) || accepted;
+      } else if ("*".equals(name)) {
+        wildcard = accepted;
+      }
+    }
+    return null != gzip ? gzip : Boolean.TRUE.equals(wildcard);
+  }
+
+  /** Return the given bytes compressed in gzip format. */
+  static byte[] gzip(byte[] body) {
+    Encoder encoder = encoders.poll();
+    if (null == encoder) {
+      encoder = new Encoder();
+    }
+    try {
+      ByteArrayOutputStream baos
+          = new ByteArrayOutputStream(body.length / 4 + 32);
+      baos.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+      encoder.deflater.setInput(body);
+      encoder.deflater.finish();
+      while (!encoder.deflater.finished()) {
+        int length = encoder.deflater.deflate(encoder.buffer);
+        baos.write(encoder.buffer, 0, length);
+      }
+      encoder.crc.update(body, 0, body.length);
+      writeIntLittleEndian(baos, (int) encoder.crc.getValue());
+      writeIntLittleEndian(baos, body.length);
+      return baos.toByteArray();
+    } finally {
+      encoder.deflater.reset();
+      encoder.crc.reset();
+      if (!encoders.offer(encoder)) {
+        encoder.deflater.end();
+      }
+    }
+  }
+
+  private static void writeIntLittleEndian(ByteArrayOutputStream baos,
+      int value) {
+    baos.write(value);
+    baos.write(value >>> 8);
+    baos.write(value >>> 16);
+    baos.write(value >>> 24);
+  }
+
+  /** Write the given response body, compressed if the client accepts gzip
+   * and if the body is large enough to be worth compressing, after setting
+   * Vary, Content-Encoding, and Content-Length headers and replacing an
+   * already set entity tag with the one of the compressed variant. */
+  static void write(HttpServletRequest request, HttpServletResponse response,
+      byte[] body) throws IOException {
+    response.setHeader("Vary", "Accept-Encoding");
+    if (body.length >= MIN_LENGTH
+        && acceptsGzip(request.getHeader("Accept-Encoding"))) {
+      body = gzip(body);
+      response.setHeader("Content-Encoding", "gzip");
+      String entityTag = response.getHeader("ETag");
+      if (null != entityTag) {
+        response.setHeader("ETag", HttpCaching.gzipEntityTag(entityTag));
+      }
+    }
+    response.setContentLength(body.length);
+    response.getOutputStream().write(body);
+  }
+}
@@ -3,15 +3,30 @@
 
 package org.torproject.metrics.exonerator;
 
+import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.resource.JarResource;
 import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.xml.XmlConfiguration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 
+import javax.servlet.http.HttpServlet;
+import javax.sql.DataSource;
+
 public class ServerMain {
 
   private static final Logger logger
@@ -21,18 +36,160 @@ public class ServerMain {
   public static void main(String[] args) {
     Locale.setDefault(Locale.US);
     TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    /* Set the number of idle backend connections kept per destination,
+     * unless configured otherwise, before the JDK's keep-alive cache is
+     * initialized by the first HTTP connection, after which changing this
+     * property has no effect. */
+    if (null == System.getProperty("http.maxConnections")) {
+      System.setProperty("http.maxConnections",
+          System.getProperty("exonerator.backend.connections", "32"));
+    }
     try {
-      Resource jettyXml = Resource.newSystemResource("jetty.xml");
-      logger.info("Reading configuration from '{}'.", jettyXml);
-      XmlConfiguration configuration
-          = new XmlConfiguration(jettyXml.getInputStream());
-      Server server = (Server) configuration.configure();
+      String bootstrap = System.getProperty("exonerator.jetty.bootstrap",
+          "xml");
+      Server server;
+      if ("programmatic".equals(bootstrap)) {
+        server = createServer();
+      } else if ("xml".equals(bootstrap)) {
+        Resource jettyXml = Resource.newSystemResource("jetty.xml");
+        logger.info("Reading configuration from '{}'.", jettyXml);
+        XmlConfiguration configuration
+            = new XmlConfiguration(jettyXml.getInputStream());
+        server = (Server) configuration.configure();
+      } else {
+        throw new IllegalArgumentException("Unknown bootstrap mode '"
+            + bootstrap + "'.");
+      }
+      boolean warmUp = Boolean.parseBoolean(
+          System.getProperty("exonerator.warmup", "true"));
+      if (warmUp) {
+        setReady(server, false);
+      }
       server.start();
+      if (warmUp) {
+        warmUp(server);
+        setReady(server, true);
+      }
       server.join();
     } catch (Exception ex) {
       logger.error("Exiting, because of: {}.", ex.getMessage(), ex);
       System.exit(1);
     }
   }
-}
 
+  /** Set whether the web applications of the given server are ready to
+   * receive traffic, which is reported by {@link ReadyServlet}. */
+  private static void setReady(Server server, boolean ready) {
+    for (Handler handler
+        : server.getChildHandlersByClass(ContextHandler.class)) {
+      ((ContextHandler) handler).setAttribute(ReadyServlet.READY_ATTRIBUTE,
+          ready);
+    }
+    if (ready) {
+      logger.info("Ready to receive traffic.");
+    }
+  }
+
+  /** Warm up the given, started server by replaying queries from the file
+   * configured in the exonerator.warmup.queries system property, or a
+   * sample of arbitrary queries if no file is configured. */
+  private static void warmUp(Server server) {
+    try {
+      ServerConnector connector = (ServerConnector) server.getConnectors()[0];
+      String host = connector.getHost();
+      if (null == host || "0.0.0.0".equals(host) || "::".equals(host)) {
+        host = "127.0.0.1";
+      } else if (host.contains(":")) {
+        host = "[" + host + "]";
+      }
+      String queriesFile = System.getProperty("exonerator.warmup.queries");
+      List<String[]> queries = null != queriesFile
+          ? WarmUp.readQueries(Paths.get(queriesFile))
+          : WarmUp.sampleQueries(LocalDate.now(ZoneOffset.UTC),
+          Integer.getInteger("exonerator.warmup.samples", 200));
+      new WarmUp("http://" + host + ":" + connector.getLocalPort(), queries,
+          Integer.getInteger("exonerator.db.connections", 8),
+          Long.getLong("exonerator.warmup.timeout", 60000L)).run();
+    } catch (Exception e) {
+      logger.warn("Warm-up failed, continuing anyway.", e);
+    }
+  }
+
+  /** Create a server with the same settings as in jetty.xml and web.xml,
+   * but without reading either of them, without scanning the classpath for
+   * annotations and JSP tag libraries, and without setting up JNDI. Read
+   * replicas are not supported, because they can only be configured in
+   * jetty.xml. */
+  static Server createServer() throws Exception {
+    logger.info("Configuring server programmatically.");
+    Server server = new Server(new QueuedThreadPool(250, 25));
+    ServerConnector connector = new ServerConnector(server);
+    connector.setPort(Integer.getInteger("exonerator.jetty.port", 8080));
+    connector.setHost(System.getProperty("exonerator.jetty.host",
+        "127.0.0.1"));
+    server.addConnector(connector);
+
+    ServletContextHandler context
+        = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+    context.setContextPath("/");
+    Resource war = Resource.newResource(
+        System.getProperty("java.class.path"));
+    context.setBaseResource(war.isDirectory() ? war
+        : JarResource.newJarResource(war));
+    context.setWelcomeFiles(new String[] { "index.html" });
+
+    if (null == System.getProperty("exonerator.index.directory")
+        && null == System.getProperty("exonerator.memory.directory")) {
+      if (!System.getProperty("exonerator.db.replicas", "").isEmpty()) {
+        logger.warn("Ignoring read replicas, which are only supported when "
+            + "reading configuration from jetty.xml.");
+        System.clearProperty("exonerator.db.replicas");
+      }
+      context.setAttribute(QueryEngine.DATA_SOURCE_ATTRIBUTE,
+          createDataSource());
+    }
+
+    Class<? extends HttpServlet> indexServlet
+        = Boolean.parseBoolean(System.getProperty("exonerator.redirect",
+        "true")) ? ExoneraTorRedirectServlet.class : ExoneraTorServlet.class;
+    context.addServlet(indexServlet, "/index.html");
+    ServletHolder queryServlet = new ServletHolder(QueryServlet.class);
+    queryServlet.setAsyncSupported(true);
+    context.addServlet(queryServlet, "/query.json");
+    context.addServlet(MetricsServlet.class, "/metrics");
+    context.addServlet(SlowQueryServlet.class, "/admin/slow-queries");
+    context.addServlet(ReadyServlet.class, "/ready");
+    context.addServlet(RelayServlet.class, "/relay.json");
+    context.addServlet(ExportServlet.class, "/export.ndjson");
+    ServletHolder defaultServlet = new ServletHolder(DefaultServlet.class);
+    defaultServlet.setInitParameter("aliases", "false");
+    defaultServlet.setInitParameter("acceptRanges", "true");
+    defaultServlet.setInitParameter("dirAllowed", "false");
+    defaultServlet.setInitParameter("welcomeServlets", "true");
+    defaultServlet.setInitParameter("redirectWelcome", "false");
+    defaultServlet.setInitParameter("gzip", "true");
+    context.addServlet(defaultServlet, "/");
+    server.setHandler(context);
+    return server;
+  }
+
+  /** Create the pooled data source for the database with the same settings
+   * as in jetty.xml, using the fully qualified name of the deprecated data
+   * source class, because deprecation warnings on imports cannot be
+   * suppressed. */
+  @SuppressWarnings("deprecation")
+  private static DataSource createDataSource() {
+    org.postgresql.ds.PGPoolingDataSource dataSource
+        = new org.postgresql.ds.PGPoolingDataSource();
+    dataSource.setUser(System.getProperty("exonerator.db.user", "metrics"));
+    dataSource.setPassword(System.getProperty("exonerator.db.pw",
+        "password"));
+    dataSource.setDatabaseName("exonerator");
+    dataSource.setServerName("localhost");
+    dataSource.setDataSourceName("exonerator");
+    dataSource.setInitialConnections(2);
+    dataSource.setMaxConnections(Integer.getInteger(
+        "exonerator.db.connections", 8));
+    return dataSource;
+  }
+}
@@ -0,0 +1,146 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Bounded in-memory log of database queries that took longer than a
+ * configurable threshold, including sampled query plans, which is dumped by
+ * {@link SlowQueryServlet}.
+ *
+ * <p>Entries only contain the queried date and /24 prefix, not the full
+ * queried address, so that the log does not reveal which addresses were
+ * looked up.</p> */
+final class SlowQueryLog {
+
+  private static final Logger logger
+      = LoggerFactory.getLogger(SlowQueryLog.class);
+
+  /* Minimum time in milliseconds between requesting a database connection and
+   * reading the last result row for a query to be logged. */
+  private static final long thresholdMillis
+      = Long.getLong("exonerator.slowquery.threshold", 1000L);
+
+  /* Maximum number of logged queries, after which the oldest are dropped. */
+  private static final int capacity
+      = Integer.getInteger("exonerator.slowquery.size", 100);
+
+  /* Fraction of logged queries for which a query plan is obtained. */
+  private static final double explainSampleRate = Double.parseDouble(
+      System.getProperty("exonerator.slowquery.explain", "0.1"));
+
+  private static final ObjectMapper objectMapper = new ObjectMapper()
+      .setPropertyNamingStrategy(PropertyNamingStrategy.SNAKE_CASE)
+      .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+      .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+      .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY);
+
+  /** Logged query. */
+  static class SlowQuery {
+
+    /** ISO-formatted time when the query completed. */
+    String recorded = Instant.now().toString();
+
+    /** Queried date. */
+    String queryDate;
+
+    /** Queried /24 prefix in hex notation. */
+    String address24;
+
+    /** Whether filters showed that only dates needed to be looked up. */
+    boolean filtered;
+
+    /** Number of returned rows until the query completed or failed. */
+    int rows;
+
+    /** Whether the query failed, for example by running out of time. */
+    boolean failed;
+
+    /** Time spent waiting for a pooled connection in milliseconds. */
+    double poolWaitMillis;
+
+    /** Time spent executing the query and reading results in
+     * milliseconds. */
+    double executionMillis;
+
+    /** Output of EXPLAIN (ANALYZE, BUFFERS) of the statements run by the
+     * query, if sampled and available. */
+    volatile String plan;
+  }
+
+  /* Logged queries, oldest first. */
+  private static final Deque<SlowQuery> slowQueries = new ArrayDeque<>();
+
+  /* Executor for obtaining query plans with a single thread and no queue, so
+   * that at most one plan is obtained at a time and further plans are skipped
+   * while that runs. */
+  private static final ThreadPoolExecutor explainExecutor
+      = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(1), (runnable) -> {
+        Thread thread = new Thread(runnable, "exonerator-explain");
+        thread.setDaemon(true);
+        return thread;
+      }, new ThreadPoolExecutor.DiscardPolicy());
+
+  private SlowQueryLog() {
+  }
+
+  /** Return whether a query that took the given time in nanoseconds is slow
+   * enough to be logged. */
+  static boolean isSlow(long nanos) {
+    return nanos >= TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+  }
+
+  /** Log the given query and, if sampled, obtain its query plan using the
+   * given explainer in the background. */
+  static void add(SlowQuery slowQuery, Callable<String> explainer) {
+    synchronized (slowQueries) {
+      while (slowQueries.size() >= capacity) {
+        slowQueries.removeFirst();
+      }
+      slowQueries.addLast(slowQuery);
+    }
+    logger.warn("Slow query for date {} and prefix {} took {} ms.",
+        slowQuery.queryDate, slowQuery.address24,
+        Math.round(slowQuery.poolWaitMillis + slowQuery.executionMillis));
+    if (null != explainer
+        && ThreadLocalRandom.current().nextDouble() < explainSampleRate) {
+      explainExecutor.execute(() -> {
+        try {
+          slowQuery.plan = explainer.call();
+        } catch (Exception e) {
+          logger.warn("Unable to obtain query plan for slow query.", e);
+        }
+      });
+    }
+  }
+
+  /** Return all logged queries as JSON array, oldest first. */
+  static String toJson() throws IOException {
+    List<SlowQuery> snapshot;
+    synchronized (slowQueries) {
+      snapshot = new ArrayList<>(slowQueries);
+    }
+    return objectMapper.writeValueAsString(snapshot);
+  }
+}
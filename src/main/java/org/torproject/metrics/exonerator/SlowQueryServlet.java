@@ -0,0 +1,33 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Servlet that dumps the slow-query log as JSON, but only to local clients
+ * and never to requests that were forwarded by a proxy. */
+public class SlowQueryServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 3861262930349367113L;
+
+  @Override
+  public void doGet(HttpServletRequest request,
+      HttpServletResponse response) throws IOException {
+    if (null != request.getHeader("X-Forwarded-For")
+        || !InetAddress.getByName(request.getRemoteAddr())
+        .isLoopbackAddress()) {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    response.setContentType("application/json");
+    response.setCharacterEncoding("utf-8");
+    response.setHeader("Cache-Control", "no-store");
+    response.getWriter().write(SlowQueryLog.toJson());
+  }
+}
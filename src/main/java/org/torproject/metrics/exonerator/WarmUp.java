@@ -0,0 +1,172 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Warm-up step that replays a sample of queries against the freshly
+ * started server, so that servlets are initialized, page templates and
+ * caches are filled, database connections are opened, database buffers are
+ * populated, and frequently used code is compiled before the server
+ * receives traffic. */
+class WarmUp {
+
+  private static final Logger logger = LoggerFactory.getLogger(WarmUp.class);
+
+  /* Languages to request pages in, in rotation. */
+  private static final String[] LANGUAGES = { "en", "de", "fr", "ro", "sv" };
+
+  /* Base URL of the server without trailing slash. */
+  private final String baseUrl;
+
+  /* Queries to replay, each consisting of IP address and date. */
+  private final List<String[]> queries;
+
+  /* Number of requests to make concurrently, which is also the number of
+   * database connections opened at most. */
+  private final int concurrency;
+
+  /* Maximum time in milliseconds for the whole warm-up. */
+  private final long timeoutMillis;
+
+  WarmUp(String baseUrl, List<String[]> queries, int concurrency,
+      long timeoutMillis) {
+    this.baseUrl = baseUrl;
+    this.queries = queries;
+    this.concurrency = concurrency;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /** Read queries from the given file containing one query per line with IP
+   * address and date separated by whitespace, skipping empty lines and
+   * comments starting with #. */
+  static List<String[]> readQueries(Path path) throws IOException {
+    List<String[]> queries = new ArrayList<>();
+    for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] parts = line.split("\\s+");
+      if (parts.length != 2) {
+        logger.warn("Skipping malformed warm-up query '{}'.", line);
+        continue;
+      }
+      queries.add(parts);
+    }
+    return queries;
+  }
+
+  /** Return the given number of queries for arbitrary IPv4 and IPv6
+   * addresses on dates in the 30 days before the given day, which is used
+   * if no queries file is configured. */
+  static List<String[]> sampleQueries(LocalDate today, int count) {
+    Random random = new Random(today.toEpochDay());
+    List<String[]> queries = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      String address;
+      if (i % 4 == 3) {
+        address = String.format("[2001:db8:%x:%x::%x]",
+            random.nextInt(0x10000), random.nextInt(0x10000),
+            random.nextInt(0x10000));
+      } else {
+        address = String.format("%d.%d.%d.%d", 1 + random.nextInt(223),
+            random.nextInt(256), random.nextInt(256), random.nextInt(256));
+      }
+      String date = today.minusDays(2 + random.nextInt(30)).toString();
+      queries.add(new String[] { address, date });
+    }
+    return queries;
+  }
+
+  /** Replay all queries against the query and page endpoints, and return
+   * whether all of them were made before the timeout. */
+  boolean run() throws InterruptedException {
+    final long started = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(this.concurrency,
+        (runnable) -> {
+          Thread thread = new Thread(runnable, "exonerator-warmup");
+          thread.setDaemon(true);
+          return thread;
+        });
+    AtomicInteger failedRequests = new AtomicInteger();
+    for (int i = 0; i < this.queries.size(); i++) {
+      String relayIp = this.queries.get(i)[0];
+      String timestamp = this.queries.get(i)[1];
+      String lang = LANGUAGES[i % LANGUAGES.length];
+      executor.execute(() -> {
+        if (!this.request("/query.json?ip=" + relayIp + "&timestamp="
+            + timestamp)) {
+          failedRequests.incrementAndGet();
+        }
+        if (!this.request("/index.html?ip=" + relayIp + "&timestamp="
+            + timestamp + "&lang=" + lang)) {
+          failedRequests.incrementAndGet();
+        }
+      });
+    }
+    executor.shutdown();
+    boolean completed = executor.awaitTermination(this.timeoutMillis,
+        TimeUnit.MILLISECONDS);
+    if (!completed) {
+      executor.shutdownNow();
+    }
+    logger.info("Warm-up with {} queries {} after {} ms with {} failed "
+        + "requests.", this.queries.size(),
+        completed ? "completed" : "timed out",
+        System.currentTimeMillis() - started, failedRequests.get());
+    return completed;
+  }
+
+  /* Make a request for the given path and query string, read the response
+   * body, and return whether the request was successful. */
+  private boolean request(String pathAndQuery) {
+    HttpURLConnection connection = null;
+    try {
+      connection = (HttpURLConnection) new URL(this.baseUrl
+          + pathAndQuery.replace("[", "%5B").replace("]", "%5D")
+          .replace(":", "%3A")).openConnection();
+      connection.setConnectTimeout(2000);
+      connection.setReadTimeout((int) Math.min(Integer.MAX_VALUE,
+          this.timeoutMillis));
+      connection.setRequestProperty("Accept-Encoding", "gzip");
+      int responseCode = connection.getResponseCode();
+      InputStream body = responseCode < 400 ? connection.getInputStream()
+          : connection.getErrorStream();
+      if (null != body) {
+        try (InputStream in = body) {
+          byte[] buffer = new byte[8192];
+          while (in.read(buffer) >= 0) {
+            /* Discard the body, which is only read to make sure that it is
+             * written completely. */
+          }
+        }
+      }
+      return responseCode < 500;
+    } catch (IOException e) {
+      logger.debug("Warm-up request for {} failed.", pathAndQuery, e);
+      if (null != connection) {
+        connection.disconnect();
+      }
+      return false;
+    }
+  }
+}
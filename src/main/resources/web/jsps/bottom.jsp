@@ -1,12 +0,0 @@
-    <div class="footer">
-      <div class="container">
-        <div class="row">
-          <div class="col-xs-12">
-            <p class="text-center small">"Tor" and the "Onion Logo" are <a href="https://www.torproject.org/docs/trademark-faq.html.en">registered trademarks</a> of The Tor Project, Inc.</p>
-          </div><!-- col -->
-        </div><!-- row -->
-      </div><!-- container -->
-    </div><!-- footer -->
-  </body>
-</html>
-
@@ -1,4 +0,0 @@
-<jsp:include page="top.jsp"/>
-${body}
-<jsp:include page="bottom.jsp"/>
-
@@ -1,25 +0,0 @@
-<!DOCTYPE html>
-<html lang="${lang}">
-  <head>
-    <meta charset="utf-8">
-    <meta http-equiv="X-UA-Compatible" content="IE=edge">
-    <meta name="viewport" content="width=device-width, initial-scale=1">
-    <title>ExoneraTor</title>
-    <link rel="stylesheet" href="css/bootstrap.min.css">
-    <link rel="stylesheet" href="css/exonerator.css">
-    <link href="images/favicon.ico" type="image/x-icon" rel="icon">
-  </head>
-  <body>
-    <div class="container">
-      <div class="row">
-        <div class="col-xs-12">
-          <div class="page-header">
-            <h1>
-              <div class="text-center">
-                <a href="/?lang=${lang}"><img src="images/exonerator-logo.png" width="334" height="252" alt="ExoneraTor logo"><img src="images/exonerator-wordmark.png" width="428" height="63" alt="ExoneraTor wordmark"></a>
-              </div><!-- text-center -->
-            </h1>
-          </div><!-- page-header -->
-        </div><!-- col -->
-      </div><!-- row -->
-    </div><!-- container -->
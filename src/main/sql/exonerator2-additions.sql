@@ -0,0 +1,304 @@
+-- Copyright 2020 The Tor Project
+-- See LICENSE for licensing information
+
+--------------------------------------------------------------------------------
+-- This script adds functions and indexes to a database that has been
+-- initialized or migrated using exonerator2.sql:
+--  - It only contains statements that can be run repeatedly, so that existing
+--    databases can be updated by running this script again after updating the
+--    Java importer and servlets.
+--  - Functions in this script are only used by newer versions of the Java code,
+--    which fall back to earlier behavior if they are missing.
+--------------------------------------------------------------------------------
+
+-- Return the time of the last imported data, which is the later of the last
+-- valid-after time of a status entry and the last scan time of an exit list
+-- entry, or NULL if the database is empty. This time serves as watermark for
+-- HTTP caching headers of query responses. Both parts use the indexes that are
+-- implicitly created for the unique constraints on statusentry_oraddress and
+-- exitlistentry_exitaddress.
+CREATE OR REPLACE FUNCTION import_watermark()
+    RETURNS TIMESTAMP WITHOUT TIME ZONE AS $$
+  SELECT GREATEST(
+      (SELECT MAX(validafter) FROM statusentry_oraddress),
+      (SELECT MAX(scanned) FROM exitlistentry_exitaddress));
+$$ LANGUAGE SQL STABLE;
+
+-- Return all dates for which data is available, which is used for exporting
+-- the database to lookup index files. This function uses the index
+-- date_address24_date_address24.
+CREATE OR REPLACE FUNCTION export_dates()
+    RETURNS TABLE(date DATE) AS $$
+  SELECT DISTINCT date FROM date_address24 ORDER BY date;
+$$ LANGUAGE SQL STABLE;
+
+-- Return all /24 prefixes and fingerprints of relays listed on the given date,
+-- which is used for exporting the database to lookup index files.
+CREATE OR REPLACE FUNCTION export_date_address24(export_date DATE)
+    RETURNS TABLE(
+      address24 CHARACTER(6),
+      fingerprint_base64 CHARACTER(27)) AS $$
+  SELECT address24, fingerprint_base64
+  FROM date_address24
+  NATURAL JOIN fingerprint
+  WHERE date = export_date;
+$$ LANGUAGE SQL STABLE;
+
+-- Return all status entries with valid-after times on the given date, which is
+-- used for exporting the database to lookup index files. This function uses
+-- the index statusentry_oraddress_date_validafter_fingerprint_id.
+CREATE OR REPLACE FUNCTION export_statusentries(export_date DATE)
+    RETURNS TABLE(
+      fingerprint_base64 CHARACTER(27),
+      validafter TIMESTAMP WITHOUT TIME ZONE,
+      nickname CHARACTER VARYING(19),
+      exit BOOLEAN,
+      oraddress INET) AS $$
+  SELECT fingerprint_base64, validafter, nickname, exit, oraddress
+  FROM statusentry_oraddress
+  NATURAL JOIN fingerprint
+  NATURAL JOIN nickname
+  WHERE DATE(validafter) = export_date;
+$$ LANGUAGE SQL STABLE;
+
+-- Return all exit list entries with scan times on the given date, which is
+-- used for exporting the database to lookup index files. This function uses
+-- the index exitlistentry_exitaddress_date_scanned_fingerprint_id.
+CREATE OR REPLACE FUNCTION export_exitlistentries(export_date DATE)
+    RETURNS TABLE(
+      fingerprint_base64 CHARACTER(27),
+      scanned TIMESTAMP WITHOUT TIME ZONE,
+      exitaddress INET) AS $$
+  SELECT fingerprint_base64, scanned, exitaddress
+  FROM exitlistentry_exitaddress
+  NATURAL JOIN fingerprint
+  WHERE DATE(scanned) = export_date;
+$$ LANGUAGE SQL STABLE;
+
+-- Return status entries with valid-after times between the given dates, both
+-- inclusive, and after the given valid-after time and fingerprint identifier,
+-- ordered by valid-after time, fingerprint identifier, and OR address, which is
+-- used for streaming bulk exports that can be resumed at a given position.
+-- This function is simple enough to be inlined, so that rows can be fetched
+-- through a cursor as the index for the unique constraint on
+-- statusentry_oraddress is scanned.
+CREATE OR REPLACE FUNCTION export_statusentries_after(
+    export_start_date DATE, export_end_date DATE,
+    after_validafter TIMESTAMP WITHOUT TIME ZONE,
+    after_fingerprint_id INTEGER)
+    RETURNS TABLE(
+      validafter TIMESTAMP WITHOUT TIME ZONE,
+      fingerprint_id INTEGER,
+      fingerprint_base64 CHARACTER(27),
+      nickname CHARACTER VARYING(19),
+      exit BOOLEAN,
+      oraddress INET) AS $$
+  SELECT validafter, fingerprint_id, fingerprint_base64, nickname, exit,
+      oraddress
+  FROM statusentry_oraddress
+  NATURAL JOIN fingerprint
+  NATURAL JOIN nickname
+  WHERE validafter >= export_start_date
+  AND validafter < export_end_date + 1
+  AND (validafter, fingerprint_id) > (after_validafter, after_fingerprint_id)
+  ORDER BY validafter, fingerprint_id, oraddress;
+$$ LANGUAGE SQL STABLE;
+
+-- Return exit list entries with scan times between the given dates, both
+-- inclusive, and after the given scan time, fingerprint identifier, and exit
+-- address, ordered by these three columns, which is used for streaming bulk
+-- exports. This function uses the index for the unique constraint on
+-- exitlistentry_exitaddress.
+CREATE OR REPLACE FUNCTION export_exitlistentries_after(
+    export_start_date DATE, export_end_date DATE,
+    after_scanned TIMESTAMP WITHOUT TIME ZONE,
+    after_fingerprint_id INTEGER, after_exitaddress INET)
+    RETURNS TABLE(
+      scanned TIMESTAMP WITHOUT TIME ZONE,
+      fingerprint_id INTEGER,
+      fingerprint_base64 CHARACTER(27),
+      exitaddress INET) AS $$
+  SELECT scanned, fingerprint_id, fingerprint_base64, exitaddress
+  FROM exitlistentry_exitaddress
+  NATURAL JOIN fingerprint
+  WHERE scanned >= export_start_date
+  AND scanned < export_end_date + 1
+  AND (scanned, fingerprint_id, exitaddress)
+      > (after_scanned, after_fingerprint_id, after_exitaddress)
+  ORDER BY scanned, fingerprint_id, exitaddress;
+$$ LANGUAGE SQL STABLE;
+
+-- Create a table for Bloom filters of /24 prefixes of all relays listed or
+-- scanned on a given date, which are built by the importer and used by the
+-- servlet to answer queries for addresses that were definitely not in use by
+-- a relay without looking at status entries or exit list entries.
+CREATE TABLE IF NOT EXISTS date_address24_filter (
+
+  -- The date that this filter was built for.
+  date DATE PRIMARY KEY,
+
+  -- The serialized Bloom filter of all address24 values on this date.
+  filter BYTEA NOT NULL,
+
+  -- The time when this filter was built, which is used to load only
+  -- filters that were built since the last time filters were loaded.
+  built TIMESTAMP WITHOUT TIME ZONE NOT NULL
+);
+
+-- Create an index on build times for loading only recently built filters.
+CREATE INDEX IF NOT EXISTS date_address24_filter_built
+    ON date_address24_filter (built);
+
+-- Return all distinct /24 prefixes of relays listed or scanned on the given
+-- date for building a filter, using the index date_address24_date_address24.
+CREATE OR REPLACE FUNCTION select_address24_by_date(select_date DATE)
+    RETURNS TABLE(address24 CHARACTER(6)) AS $$
+  SELECT DISTINCT address24 FROM date_address24
+  WHERE date = select_date AND address24 IS NOT NULL;
+$$ LANGUAGE SQL STABLE;
+
+-- Return all dates with data that do not have a filter yet, which is the case
+-- for all dates that were imported before filters were introduced.
+CREATE OR REPLACE FUNCTION select_dates_without_address24_filter()
+    RETURNS TABLE(date DATE) AS $$
+  SELECT DISTINCT date FROM date_address24
+  WHERE date NOT IN (SELECT date FROM date_address24_filter);
+$$ LANGUAGE SQL STABLE;
+
+-- Insert or replace the filter for the given date.
+CREATE OR REPLACE FUNCTION upsert_date_address24_filter(
+    upsert_date DATE, upsert_filter BYTEA)
+    RETURNS VOID AS $$
+  INSERT INTO date_address24_filter (date, filter, built)
+  VALUES (upsert_date, upsert_filter, CLOCK_TIMESTAMP() AT TIME ZONE 'UTC')
+  ON CONFLICT (date) DO UPDATE
+  SET filter = EXCLUDED.filter, built = EXCLUDED.built;
+$$ LANGUAGE SQL;
+
+-- Return all filters that were built after the given time.
+CREATE OR REPLACE FUNCTION select_date_address24_filters(
+    built_after TIMESTAMP WITHOUT TIME ZONE)
+    RETURNS TABLE(
+      date DATE,
+      filter BYTEA,
+      built TIMESTAMP WITHOUT TIME ZONE) AS $$
+  SELECT date, filter, built FROM date_address24_filter
+  WHERE built > built_after;
+$$ LANGUAGE SQL STABLE;
+
+-- Return all distinct OR addresses and exit addresses of relays listed or
+-- scanned on the given date, which are kept in memory by the servlet for exact
+-- address lookups. This function uses the indexes
+-- statusentry_oraddress_date_validafter_fingerprint_id and
+-- exitlistentry_exitaddress_date_scanned_fingerprint_id.
+CREATE OR REPLACE FUNCTION select_addresses_by_date(select_date DATE)
+    RETURNS TABLE(address INET) AS $$
+  SELECT oraddress FROM statusentry_oraddress
+  WHERE DATE(validafter) = select_date
+  UNION SELECT exitaddress FROM exitlistentry_exitaddress
+  WHERE DATE(scanned) = select_date;
+$$ LANGUAGE SQL STABLE;
+
+-- Return only the first and last date in the database and the dates within a
+-- day of the given date for which data is available, which is the part of
+-- search_by_date_address24 that is still needed when filters show that there
+-- cannot be any matches.
+CREATE OR REPLACE FUNCTION search_dates(search_date DATE)
+    RETURNS TABLE(date DATE) AS $$
+  SELECT MIN(date) FROM date_address24
+  UNION SELECT MAX(date) FROM date_address24
+  UNION SELECT DISTINCT date FROM date_address24
+  WHERE date >= search_date - 1 AND date <= search_date + 1;
+$$ LANGUAGE SQL STABLE;
+
+-- Return the query plan of the statement run by search_by_date_address24 for
+-- the given date and /24 prefix, obtained using EXPLAIN (ANALYZE, BUFFERS),
+-- which is used for investigating slow queries. The statement below needs to
+-- be kept in sync with search_by_date_address24 in exonerator2.sql.
+CREATE OR REPLACE FUNCTION explain_search_by_date_address24 (
+  search_date DATE, search_address24 CHARACTER(6))
+    RETURNS SETOF TEXT AS $$
+  BEGIN
+  RETURN QUERY EXECUTE
+     'EXPLAIN (ANALYZE, BUFFERS)
+     WITH matching_fingerprint_ids AS (
+          SELECT fingerprint_id FROM date_address24
+          WHERE date_address24.date >= $1 - 2
+          AND date_address24.date <= $1 + 1
+          AND date_address24.address24 = $2)
+     SELECT NULL::DATE AS date, fingerprint_base64, scanned, exitaddress,
+            NULL AS validafter, NULL AS nickname, NULL AS exit,
+            NULL AS oraddress
+     FROM exitlistentry_exitaddress
+     NATURAL JOIN fingerprint
+     WHERE DATE(exitlistentry_exitaddress.scanned) >= $1 - 2
+     AND DATE(exitlistentry_exitaddress.scanned) <= $1 + 1
+     AND exitlistentry_exitaddress.fingerprint_id
+         IN (SELECT fingerprint_id FROM matching_fingerprint_ids)
+     UNION
+     SELECT NULL::DATE AS date, fingerprint_base64, NULL AS scanned,
+            NULL AS exitaddress, validafter, nickname, exit,
+            oraddress
+     FROM statusentry_oraddress
+     NATURAL JOIN fingerprint
+     NATURAL JOIN nickname
+     WHERE DATE(statusentry_oraddress.validafter) >= $1 - 1
+     AND DATE(statusentry_oraddress.validafter) <= $1 + 1
+     AND statusentry_oraddress.fingerprint_id
+         IN (SELECT fingerprint_id FROM matching_fingerprint_ids)
+     UNION
+     SELECT date, NULL AS fingerprint_base64, NULL AS scanned,
+            NULL AS exitaddress, NULL AS validafter, NULL AS nickname,
+            NULL AS exit, NULL AS oraddress
+     FROM date_address24
+     WHERE date IN (SELECT MIN(date) FROM date_address24 UNION
+                    SELECT MAX(date) FROM date_address24 UNION
+                    SELECT date FROM date_address24
+                    WHERE date >= $1 - 1 AND date <= $1 + 1)'
+    USING search_date, search_address24;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Create an index on statusentry_oraddress for looking up all status entries
+-- of a given relay in a time range without scanning entries by date.
+CREATE INDEX IF NOT EXISTS statusentry_oraddress_fingerprint_id_validafter
+    ON statusentry_oraddress (fingerprint_id, validafter);
+
+-- Create an index on exitlistentry_exitaddress for looking up all exit list
+-- entries of a given relay in a time range.
+CREATE INDEX IF NOT EXISTS exitlistentry_exitaddress_fingerprint_id_scanned
+    ON exitlistentry_exitaddress (fingerprint_id, scanned);
+
+-- Return all status entries and exit list entries of the relay with the given
+-- fingerprint with valid-after or scan dates between the given dates, both
+-- inclusive, ordered by time, which is used for looking up the address history
+-- of a relay. Both parts use the fingerprint_id indexes created above.
+CREATE OR REPLACE FUNCTION search_by_fingerprint(
+    search_fingerprint_base64 CHARACTER(27), search_start_date DATE,
+    search_end_date DATE)
+    RETURNS TABLE(
+      scanned TIMESTAMP WITHOUT TIME ZONE,
+      exitaddress INET,
+      validafter TIMESTAMP WITHOUT TIME ZONE,
+      nickname CHARACTER VARYING(19),
+      exit BOOLEAN,
+      oraddress INET) AS $$
+  WITH matching_fingerprint_id AS (
+      SELECT fingerprint_id FROM fingerprint
+      WHERE fingerprint_base64 = search_fingerprint_base64)
+  SELECT NULL::TIMESTAMP AS scanned, NULL::INET AS exitaddress, validafter,
+      nickname, exit, oraddress
+  FROM statusentry_oraddress
+  NATURAL JOIN nickname
+  WHERE fingerprint_id = (SELECT fingerprint_id FROM matching_fingerprint_id)
+  AND validafter >= search_start_date
+  AND validafter < search_end_date + 1
+  UNION ALL
+  SELECT scanned, exitaddress, NULL AS validafter, NULL AS nickname,
+      NULL AS exit, NULL AS oraddress
+  FROM exitlistentry_exitaddress
+  WHERE fingerprint_id = (SELECT fingerprint_id FROM matching_fingerprint_id)
+  AND scanned >= search_start_date
+  AND scanned < search_end_date + 1
+  ORDER BY validafter, scanned, oraddress, exitaddress;
+$$ LANGUAGE SQL STABLE;
@@ -0,0 +1,54 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class AddressFilterTest {
+
+  @Test
+  public void testContainsAddedPrefixes() {
+    AddressFilter addressFilter = AddressFilter.create(1000);
+    for (int i = 0; i < 1000; i++) {
+      addressFilter.add(String.format("%06x", i * 4099));
+    }
+    AddressFilter parsedAddressFilter = AddressFilter.fromBytes(
+        addressFilter.toBytes());
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(addressFilter.mightContain(String.format("%06x", i * 4099)));
+      assertTrue(parsedAddressFilter.mightContain(
+          String.format("%06x", i * 4099)));
+    }
+  }
+
+  @Test
+  public void testFalsePositiveRate() {
+    AddressFilter addressFilter = AddressFilter.create(1000);
+    for (int i = 0; i < 1000; i++) {
+      addressFilter.add(String.format("%06x", 2 * i));
+    }
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (addressFilter.mightContain(String.format("%06x", 2 * i + 1))) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 300);
+  }
+
+  @Test
+  public void testEmptyFilter() {
+    assertFalse(AddressFilter.create(0).mightContain("0a0b0c"));
+  }
+
+  @Test
+  public void testInvalidBytes() {
+    assertNull(AddressFilter.fromBytes(new byte[5]));
+    assertNull(AddressFilter.fromBytes(null));
+  }
+}
@@ -0,0 +1,112 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+  private CircuitBreaker createCircuitBreaker() {
+    return new CircuitBreaker(10000L, 4, 0.5, 5000L, 10000L);
+  }
+
+  private void recordRequests(CircuitBreaker circuitBreaker, int requests,
+      boolean failed, long durationMillis, long nowMillis) {
+    for (int i = 0; i < requests; i++) {
+      long ticket = circuitBreaker.allowRequest(nowMillis);
+      assertNotEquals(CircuitBreaker.REJECTED, ticket);
+      circuitBreaker.record(ticket, failed, durationMillis, nowMillis);
+    }
+  }
+
+  @Test
+  public void testClosedWithFewFailures() {
+    CircuitBreaker circuitBreaker = createCircuitBreaker();
+    recordRequests(circuitBreaker, 3, false, 10L, 1000L);
+    recordRequests(circuitBreaker, 2, true, 10L, 1000L);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    assertNotEquals(CircuitBreaker.REJECTED,
+        circuitBreaker.allowRequest(1000L));
+  }
+
+  @Test
+  public void testClosedWithTooFewRequests() {
+    CircuitBreaker circuitBreaker = createCircuitBreaker();
+    recordRequests(circuitBreaker, 3, true, 10L, 1000L);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testOpenAfterFailures() {
+    CircuitBreaker circuitBreaker = createCircuitBreaker();
+    recordRequests(circuitBreaker, 4, true, 10L, 1000L);
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    assertEquals(CircuitBreaker.REJECTED, circuitBreaker.allowRequest(5000L));
+  }
+
+  @Test
+  public void testOpenAfterSlowRequests() {
+    CircuitBreaker circuitBreaker = createCircuitBreaker();
+    recordRequests(circuitBreaker, 4, false, 6000L, 1000L);
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testFailuresOutsideWindowExpire() {
+    CircuitBreaker circuitBreaker = createCircuitBreaker();
+    recordRequests(circuitBreaker, 3, true, 10L, 1000L);
+    recordRequests(circuitBreaker, 1, true, 10L, 12000L);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenProbeSucceeds() {
+    CircuitBreaker circuitBreaker = createCircuitBreaker();
+    recordRequests(circuitBreaker, 4, true, 10L, 1000L);
+    long probeTicket = circuitBreaker.allowRequest(11000L);
+    assertNotEquals(CircuitBreaker.REJECTED, probeTicket);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    assertEquals(CircuitBreaker.REJECTED,
+        circuitBreaker.allowRequest(11000L));
+    circuitBreaker.record(probeTicket, false, 10L, 11010L);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    recordRequests(circuitBreaker, 3, true, 10L, 11020L);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testHalfOpenProbeFails() {
+    CircuitBreaker circuitBreaker = createCircuitBreaker();
+    recordRequests(circuitBreaker, 4, true, 10L, 1000L);
+    long probeTicket = circuitBreaker.allowRequest(11000L);
+    circuitBreaker.record(probeTicket, true, 10L, 11010L);
+    assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    assertEquals(CircuitBreaker.REJECTED,
+        circuitBreaker.allowRequest(20000L));
+    assertNotEquals(CircuitBreaker.REJECTED,
+        circuitBreaker.allowRequest(21010L));
+  }
+
+  @Test
+  public void testStragglersIgnoredInHalfOpenState() {
+    CircuitBreaker circuitBreaker = createCircuitBreaker();
+    final long stragglerTicket = circuitBreaker.allowRequest(1000L);
+    final long otherStragglerTicket = circuitBreaker.allowRequest(1000L);
+    recordRequests(circuitBreaker, 4, true, 10L, 1000L);
+    final long probeTicket = circuitBreaker.allowRequest(11000L);
+    circuitBreaker.record(stragglerTicket, true, 15000L, 16000L);
+    assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    assertEquals(CircuitBreaker.REJECTED,
+        circuitBreaker.allowRequest(16000L));
+    circuitBreaker.record(probeTicket, false, 10L, 16010L);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    circuitBreaker.record(otherStragglerTicket, true, 15000L, 16020L);
+    recordRequests(circuitBreaker, 3, false, 10L, 16030L);
+    recordRequests(circuitBreaker, 2, true, 10L, 16030L);
+    assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+}
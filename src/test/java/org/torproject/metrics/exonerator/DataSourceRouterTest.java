@@ -0,0 +1,77 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+public class DataSourceRouterTest {
+
+  /** Return a data source that counts obtained connections and fails if
+   * requested. */
+  private static DataSource dataSource(AtomicInteger connections,
+      boolean failing) {
+    return (DataSource) Proxy.newProxyInstance(
+        DataSource.class.getClassLoader(), new Class<?>[] { DataSource.class },
+        (proxy, method, args) -> {
+          if (!"getConnection".equals(method.getName())) {
+            throw new UnsupportedOperationException();
+          } else if (failing) {
+            throw new SQLException("Connection refused.");
+          }
+          connections.incrementAndGet();
+          return Proxy.newProxyInstance(Connection.class.getClassLoader(),
+              new Class<?>[] { Connection.class }, (p, m, a) -> null);
+        });
+  }
+
+  @Test
+  public void testLeastOutstandingReplica() throws SQLException {
+    AtomicInteger primary = new AtomicInteger();
+    AtomicInteger first = new AtomicInteger();
+    AtomicInteger second = new AtomicInteger();
+    Map<String, DataSource> replicas = new LinkedHashMap<>();
+    replicas.put("first", dataSource(first, false));
+    replicas.put("second", dataSource(second, false));
+    DataSourceRouter router = new DataSourceRouter(
+        dataSource(primary, false), replicas);
+    Connection connection = router.getConnection();
+    router.getConnection().close();
+    router.getConnection();
+    connection.close();
+    router.getConnection();
+    assertEquals(0, primary.get());
+    assertEquals(2, first.get());
+    assertEquals(2, second.get());
+  }
+
+  @Test
+  public void testFailoverToPrimary() throws SQLException {
+    AtomicInteger primary = new AtomicInteger();
+    AtomicInteger replica = new AtomicInteger();
+    Map<String, DataSource> replicas = new LinkedHashMap<>();
+    replicas.put("replica", dataSource(replica, true));
+    DataSourceRouter router = new DataSourceRouter(
+        dataSource(primary, false), replicas);
+    router.getConnection();
+    router.getConnection();
+    assertEquals(2, primary.get());
+  }
+
+  @Test(expected = SQLException.class)
+  public void testAllFailing() throws SQLException {
+    new DataSourceRouter(dataSource(new AtomicInteger(), true),
+        new LinkedHashMap<>()).getConnection();
+  }
+}
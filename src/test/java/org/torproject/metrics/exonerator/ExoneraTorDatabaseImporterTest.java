@@ -0,0 +1,45 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.commons.codec.DecoderException;
+import org.junit.Test;
+
+public class ExoneraTorDatabaseImporterTest {
+
+  @Test
+  public void testConvertFingerprintToBase64() throws DecoderException {
+    assertEquals("lpXfw1/+uGEym58asExGOXAgzjE",
+        ExoneraTorDatabaseImporter.convertFingerprintToBase64(
+        "9695DFC35FFEB861329B9F1AB04C46397020CE31"));
+  }
+
+  @Test
+  public void testConvertIpV4AddressToAddress24() {
+    assertEquals("563b15",
+        ExoneraTorDatabaseImporter.convertAddressToAddress24("86.59.21.38"));
+  }
+
+  @Test
+  public void testConvertIpV6AddressToAddress24() {
+    assertEquals("200108",
+        ExoneraTorDatabaseImporter.convertAddressToAddress24(
+        "[2001:858:2:2:aabb:0:563b:1526]"));
+    assertEquals("000000",
+        ExoneraTorDatabaseImporter.convertAddressToAddress24("[::1]"));
+    assertEquals("2a0100",
+        ExoneraTorDatabaseImporter.convertAddressToAddress24("[2a01::]"));
+  }
+
+  @Test
+  public void testConvertInvalidIpV6AddressToAddress24() {
+    assertNull(ExoneraTorDatabaseImporter.convertAddressToAddress24(
+        "[2001:12345::1]"));
+    assertNull(ExoneraTorDatabaseImporter.convertAddressToAddress24(
+        "[1:2:3:4:5:6:7:8:9]"));
+  }
+}
@@ -8,12 +8,11 @@ import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
-import java.io.PrintWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
-import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.Locale;
-import java.util.ResourceBundle;
+import java.util.TreeMap;
 
 public class ExoneraTorServletTest {
 
@@ -44,21 +43,23 @@ public class ExoneraTorServletTest {
   @Test
   public void testNearbyIpV6Response() throws Exception {
     ExoneraTorServlet es = new ExoneraTorServlet();
-    ResourceBundle rb = ResourceBundle
-        .getBundle("ExoneraTor", Locale.forLanguageTag("en"));
+    PageTemplates templates = new PageTemplates("en", new TreeMap<>());
     for (QueryResponse qr : qrs) {
-      StringWriter sw = new StringWriter();
-      es.writeSummaryAddressesInSameNetwork(new PrintWriter(sw), rb,
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      HtmlWriter out = new HtmlWriter(baos);
+      es.writeSummaryAddressesInSameNetwork(out, templates,
           "http://localhost:8080/", qr.queryAddress, qr.queryDate, "en",
           Arrays.asList(qr.nearbyAddresses));
+      out.flush();
+      String written = new String(baos.toByteArray(), StandardCharsets.UTF_8);
       String errorMsg = "Test data:" + QueryResponse.toJson(qr)
-          + "\nresult:\n" + sw.toString();
+          + "\nresult:\n" + written;
       assertTrue(errorMsg,
-          sw.toString().contains("Result is negative"));
+          written.contains("Result is negative"));
       assertTrue(errorMsg,
-          sw.toString().contains("ip=[2a06%3Ae80%3A1%3A%3A10]&"));
+          written.contains("ip=[2a06%3Ae80%3A1%3A%3A10]&"));
       assertTrue(errorMsg,
-          sw.toString().contains("ip=[2a06%3Ae80%3A1%3A%3A15]&"));
+          written.contains("ip=[2a06%3Ae80%3A1%3A%3A15]&"));
     }
   }
 
@@ -0,0 +1,46 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.time.LocalDateTime;
+
+public class ExportPositionTest {
+
+  @Test
+  public void testStatusEntryToken() {
+    ExportPosition position = ExportPosition.afterStatusEntry(
+        LocalDateTime.parse("2020-03-31T22:00:00"), 42);
+    String token = position.toToken();
+    assertTrue(token.matches("[A-Za-z0-9_-]+"));
+    ExportPosition parsed = ExportPosition.fromToken(token);
+    assertEquals(position, parsed);
+    assertFalse(parsed.exitListEntry);
+    assertNull(parsed.exitAddress);
+  }
+
+  @Test
+  public void testExitListEntryToken() {
+    ExportPosition position = ExportPosition.afterExitListEntry(
+        LocalDateTime.parse("2020-03-31T23:30:12"), 7, "1.2.3.5");
+    ExportPosition parsed = ExportPosition.fromToken(position.toToken());
+    assertEquals(position, parsed);
+    assertTrue(parsed.exitListEntry);
+    assertEquals("1.2.3.5", parsed.exitAddress);
+  }
+
+  @Test
+  public void testInvalidTokens() {
+    assertNull(ExportPosition.fromToken(""));
+    assertNull(ExportPosition.fromToken("!!!"));
+    assertNull(ExportPosition.fromToken("eCwyMDIwLTAzLTMxVDIyOjAwLDQy"));
+    assertNull(ExportPosition.fromToken("cywyMDIwLTEzLTMxVDIyOjAwLDQy"));
+  }
+}
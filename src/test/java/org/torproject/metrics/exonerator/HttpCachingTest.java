@@ -0,0 +1,88 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+public class HttpCachingTest {
+
+  private static final Instant watermark
+      = Instant.parse("2020-04-13T12:00:00Z");
+
+  @Test
+  public void testEntityTag() {
+    assertEquals("\"5e945440\"", HttpCaching.entityTag(watermark));
+  }
+
+  @Test
+  public void testVariantEntityTags() {
+    String entityTag = HttpCaching.entityTag(watermark);
+    String variantEntityTag = HttpCaching.variantEntityTag(entityTag, "de");
+    assertEquals("\"5e945440-de\"", variantEntityTag);
+    assertEquals(entityTag,
+        HttpCaching.baseEntityTags(variantEntityTag, "de"));
+    assertEquals(entityTag,
+        HttpCaching.baseEntityTags("W/" + variantEntityTag, "de"));
+    assertNull(HttpCaching.baseEntityTags(variantEntityTag, "en"));
+    assertEquals("\"1\", \"2\"",
+        HttpCaching.baseEntityTags("\"1-en\", \"3-de\", \"2-en\"", "en"));
+    assertEquals("*", HttpCaching.baseEntityTags("*", "en"));
+  }
+
+  @Test
+  public void testGzipEntityTags() {
+    String entityTag = HttpCaching.entityTag(watermark);
+    String gzipEntityTag = HttpCaching.gzipEntityTag(entityTag);
+    assertEquals("\"5e945440-gzip\"", gzipEntityTag);
+    assertEquals(entityTag, HttpCaching.identityEntityTag(gzipEntityTag));
+    assertEquals(entityTag, HttpCaching.identityEntityTag(entityTag));
+    assertNull(HttpCaching.identityEntityTag(null));
+    assertTrue(HttpCaching.matchesEntityTag(gzipEntityTag, entityTag));
+    assertEquals(entityTag, HttpCaching.baseEntityTags(
+        HttpCaching.gzipEntityTag(
+        HttpCaching.variantEntityTag(entityTag, "de")), "de"));
+    assertEquals(gzipEntityTag, HttpCaching.notModifiedEntityTag(
+        "\"a\", W/" + gzipEntityTag, entityTag));
+    assertEquals(entityTag, HttpCaching.notModifiedEntityTag(
+        entityTag, entityTag));
+    assertEquals(entityTag, HttpCaching.notModifiedEntityTag(null,
+        entityTag));
+  }
+
+  @Test
+  public void testMatchesEntityTag() {
+    assertTrue(HttpCaching.matchesEntityTag("\"a\"", "\"a\""));
+    assertTrue(HttpCaching.matchesEntityTag("W/\"a\"", "\"a\""));
+    assertTrue(HttpCaching.matchesEntityTag("\"b\", \"a\"", "\"a\""));
+    assertTrue(HttpCaching.matchesEntityTag("*", "\"a\""));
+    assertFalse(HttpCaching.matchesEntityTag("\"b\"", "\"a\""));
+  }
+
+  @Test
+  public void testCacheControl() {
+    assertTrue(HttpCaching.cacheControl(LocalDate.parse("2020-04-01"),
+        watermark).contains("max-age="));
+    assertEquals("public, no-cache", HttpCaching.cacheControl(
+        LocalDate.parse("2020-04-09"), watermark));
+    assertEquals("public, no-cache", HttpCaching.cacheControl(
+        LocalDate.parse("2020-04-12"), watermark));
+  }
+
+  @Test
+  public void testMaxAgeSeconds() {
+    assertEquals(2592000L,
+        HttpCaching.maxAgeSeconds("public, max-age=2592000"));
+    assertEquals(-1L, HttpCaching.maxAgeSeconds("public, no-cache"));
+    assertEquals(-1L, HttpCaching.maxAgeSeconds("public, max-age=x"));
+    assertEquals(-1L, HttpCaching.maxAgeSeconds(null));
+  }
+}
@@ -0,0 +1,56 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ImportStatisticsTest {
+
+  @Test
+  public void testEmpty() {
+    ImportStatistics statistics = new ImportStatistics();
+    assertEquals(0L, statistics.getDescriptorNanos());
+    assertEquals(0.0, statistics.getConsensusesPerSecond(), 0.0);
+    assertEquals(0.0, statistics.getRowsPerSecond(), 0.0);
+  }
+
+  @Test
+  public void testParseNanos() {
+    ImportStatistics statistics = new ImportStatistics();
+    statistics.addTotalNanos(ImportStatistics.Phase.CONSENSUSES, 300L);
+    statistics.addDatabaseNanos(ImportStatistics.Phase.CONSENSUSES, 200L);
+    statistics.addDatabaseNanos(ImportStatistics.Phase.CONSENSUSES, 50L);
+    assertEquals(50L,
+        statistics.getParseNanos(ImportStatistics.Phase.CONSENSUSES));
+    assertEquals(0L,
+        statistics.getParseNanos(ImportStatistics.Phase.EXIT_LISTS));
+  }
+
+  @Test
+  public void testThroughputExcludesFilters() {
+    ImportStatistics statistics = new ImportStatistics();
+    statistics.addTotalNanos(ImportStatistics.Phase.READING, 500_000_000L);
+    statistics.addTotalNanos(ImportStatistics.Phase.CONSENSUSES,
+        1_000_000_000L);
+    statistics.addTotalNanos(ImportStatistics.Phase.EXIT_LISTS, 500_000_000L);
+    statistics.addTotalNanos(ImportStatistics.Phase.FILTERS,
+        10_000_000_000L);
+    for (int i = 0; i < 4; i++) {
+      statistics.addConsensus();
+    }
+    statistics.addExitList();
+    for (int i = 0; i < 30; i++) {
+      statistics.addRow(ImportStatistics.Phase.CONSENSUSES);
+    }
+    for (int i = 0; i < 10; i++) {
+      statistics.addRow(ImportStatistics.Phase.EXIT_LISTS);
+    }
+    statistics.addRow(ImportStatistics.Phase.FILTERS);
+    assertEquals(2_000_000_000L, statistics.getDescriptorNanos());
+    assertEquals(2.0, statistics.getConsensusesPerSecond(), 1e-9);
+    assertEquals(20.0, statistics.getRowsPerSecond(), 1e-9);
+  }
+}
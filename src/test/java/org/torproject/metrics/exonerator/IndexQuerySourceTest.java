@@ -0,0 +1,106 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+
+public class IndexQuerySourceTest {
+
+  private static final String fingerprintBase64
+      = "AAoQ1DAR6kkoo19hBAX5K0QztNw";
+
+  private static final Instant watermark
+      = Instant.parse("2020-04-01T02:00:00Z");
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private IndexQuerySource querySource;
+
+  /** Write lookup index files for two months with a relay that was running
+   * around midnight between the two months, and load them. */
+  @Before
+  public void writeIndexes() throws Exception {
+    File indexDirectory = temporaryFolder.getRoot();
+    LookupIndexWriter march = new LookupIndexWriter(watermark);
+    LookupIndexWriter april = new LookupIndexWriter(watermark);
+    LocalDateTime validAfter = LocalDateTime.parse("2020-03-31T22:00:00");
+    for (int i = 0; i < 5; i++) {
+      LookupIndexWriter writer = validAfter.getMonthValue() == 3
+          ? march : april;
+      writer.addAddress24(validAfter.toLocalDate(), "010203",
+          fingerprintBase64);
+      writer.addStatusEntry(fingerprintBase64, validAfter, "relay", true,
+          "1.2.3.4");
+      validAfter = validAfter.plusHours(1L);
+    }
+    march.addExitListEntry(fingerprintBase64,
+        LocalDateTime.parse("2020-03-31T23:30:00"), "1.2.3.5");
+    march.write(ExoneraTorIndexExporter.indexFile(indexDirectory,
+        YearMonth.of(2020, 3)));
+    april.write(ExoneraTorIndexExporter.indexFile(indexDirectory,
+        YearMonth.of(2020, 4)));
+    this.querySource = new IndexQuerySource(indexDirectory);
+    assertEquals(watermark, this.querySource.loadImportWatermark());
+  }
+
+  private QueryResponse query(String relayIp, String timestamp) {
+    QueryResponseBuilder builder = new QueryResponseBuilder();
+    LocalDate date = LocalDate.parse(timestamp);
+    assertTrue(this.querySource.search(date, relayIp,
+        QueryServlet.convertIpV4ToHex(relayIp).substring(0, 6), builder,
+        new QueryDeadline(Instant.now().plusSeconds(10L))));
+    return builder.build(relayIp, date);
+  }
+
+  @Test
+  public void testMatchesAcrossMonths() {
+    QueryResponse response = query("1.2.3.4", "2020-04-01");
+    assertEquals("2020-03-31", response.firstDateInDatabase);
+    assertEquals("2020-04-01", response.lastDateInDatabase);
+    assertTrue(response.relevantStatuses);
+    assertEquals(5, response.matches.length);
+    assertEquals("2020-03-31 22:00:00", response.matches[0].timestamp);
+    assertEquals("relay", response.matches[0].nickname);
+    assertTrue(response.matches[0].exit);
+    assertNull(response.nearbyAddresses);
+  }
+
+  @Test
+  public void testExitAddress() {
+    QueryResponse response = query("1.2.3.5", "2020-04-01");
+    assertEquals(3, response.matches.length);
+    assertEquals("2020-04-01 00:00:00", response.matches[0].timestamp);
+  }
+
+  @Test
+  public void testNearbyAddresses() {
+    QueryResponse response = query("1.2.3.6", "2020-03-31");
+    assertNull(response.matches);
+    assertArrayEquals(new String[] { "1.2.3.4", "1.2.3.5" },
+        response.nearbyAddresses);
+  }
+
+  @Test
+  public void testNoData() {
+    QueryResponse response = query("1.2.3.4", "2020-05-10");
+    assertEquals("2020-03-31", response.firstDateInDatabase);
+    assertEquals(false, response.relevantStatuses);
+    assertNull(response.matches);
+  }
+}
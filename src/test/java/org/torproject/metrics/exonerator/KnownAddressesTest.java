@@ -0,0 +1,37 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class KnownAddressesTest {
+
+  private final KnownAddresses knownAddresses = KnownAddresses.of(
+      Arrays.asList("1.2.3.5", "1.2.3.4", "255.1.2.3", "1.2.3.4",
+      "2001:db8::1", "2001:db8:0:1::", "2001:db9::1", "invalid"));
+
+  @Test
+  public void testSize() {
+    assertEquals(6, this.knownAddresses.size());
+  }
+
+  @Test
+  public void testContainsNearbyAddress() {
+    assertTrue(this.knownAddresses.containsNearbyAddress("1.2.3.200"));
+    assertTrue(this.knownAddresses.containsNearbyAddress("255.1.2.3"));
+    assertFalse(this.knownAddresses.containsNearbyAddress("1.2.4.4"));
+    assertFalse(this.knownAddresses.containsNearbyAddress("9.9.9.9"));
+    assertTrue(this.knownAddresses.containsNearbyAddress("2001:db8::ffff"));
+    assertTrue(this.knownAddresses.containsNearbyAddress(
+        "2001:db8:0:ffff::1"));
+    assertFalse(this.knownAddresses.containsNearbyAddress("2001:db8:1::1"));
+    assertFalse(this.knownAddresses.containsNearbyAddress("2001:dba::1"));
+  }
+}
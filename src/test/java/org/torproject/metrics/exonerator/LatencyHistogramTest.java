@@ -0,0 +1,54 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBucketBounds() {
+    for (long micros = 0L; micros < (1L << 20); micros += 7L) {
+      int index = LatencyHistogram.bucketIndex(micros);
+      assertTrue(micros < LatencyHistogram.bucketUpperBoundMicros(index));
+      if (index > 0) {
+        assertTrue(micros
+            >= LatencyHistogram.bucketUpperBoundMicros(index - 1));
+      }
+    }
+    assertEquals(LatencyHistogram.BUCKETS,
+        LatencyHistogram.bucketIndex(1L << LatencyHistogram.MAX_EXPONENT));
+  }
+
+  @Test
+  public void testQuantiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 100; i++) {
+      histogram.recordNanos(i * 1000000L);
+    }
+    assertEquals(100L, histogram.getCount());
+    long median = histogram.getQuantileUpperBoundMicros(0.5);
+    assertTrue(median > 50000L && median <= 50000L * 5 / 4);
+    long p99 = histogram.getQuantileUpperBoundMicros(0.99);
+    assertTrue(p99 > 99000L && p99 <= 99000L * 5 / 4);
+  }
+
+  @Test
+  public void testPrometheus() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.recordNanos(2000000000L);
+    histogram.recordNanos(1000L << (LatencyHistogram.MAX_EXPONENT + 1));
+    StringBuilder sb = new StringBuilder();
+    histogram.appendPrometheus(sb, "test", "endpoint=\"query\"");
+    String text = sb.toString();
+    assertTrue(text.contains(
+        "test_bucket{endpoint=\"query\",le=\"2.097152\"} 1\n"));
+    assertTrue(text.contains(
+        "test_bucket{endpoint=\"query\",le=\"+Inf\"} 2\n"));
+    assertTrue(text.contains("test_count{endpoint=\"query\"} 2\n"));
+  }
+}
@@ -0,0 +1,121 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+public class MemoryStorageTest {
+
+  private static final String fingerprintBase64
+      = "AAoQ1DAR6kkoo19hBAX5K0QztNw";
+
+  private MemoryStorage storage;
+
+  /** Import status entries of a relay that was running around midnight
+   * between two months, with one entry imported twice, and an exit list
+   * entry, and make them visible to queries. */
+  @Before
+  public void importEntries() {
+    this.storage = new MemoryStorage(null);
+    assertNull(this.storage.loadImportWatermark());
+    LocalDateTime validAfter = LocalDateTime.parse("2020-03-31T22:00:00");
+    for (int i = 0; i < 5; i++) {
+      this.storage.importStatusEntry(validAfter, fingerprintBase64, "relay",
+          true, "1.2.3.4", "010203");
+      this.storage.importStatusEntry(validAfter, fingerprintBase64, "relay",
+          true, "2001:db8::1", "20010d");
+      validAfter = validAfter.plusHours(1L);
+    }
+    this.storage.importStatusEntry(LocalDateTime.parse("2020-03-31T22:00:00"),
+        fingerprintBase64, "relay", true, "1.2.3.4", "010203");
+    this.storage.importExitListEntry(fingerprintBase64, "1.2.3.5", "010203",
+        LocalDateTime.parse("2020-03-31T23:30:00"));
+    assertEquals(Instant.parse("2020-04-01T02:00:00Z"),
+        this.storage.loadImportWatermark());
+  }
+
+  private QueryResponse query(String relayIp, String timestamp) {
+    QueryResponseBuilder builder = new QueryResponseBuilder();
+    LocalDate date = LocalDate.parse(timestamp);
+    String address24 = relayIp.contains(":")
+        ? QueryServlet.convertIpV6ToHex(relayIp).substring(0, 6)
+        : QueryServlet.convertIpV4ToHex(relayIp).substring(0, 6);
+    assertTrue(this.storage.search(date, relayIp, address24, builder,
+        new QueryDeadline(Instant.now().plusSeconds(10L))));
+    return builder.build(relayIp, date);
+  }
+
+  @Test
+  public void testMatchesAcrossMonths() {
+    QueryResponse response = query("1.2.3.4", "2020-04-01");
+    assertEquals("2020-03-31", response.firstDateInDatabase);
+    assertEquals("2020-04-01", response.lastDateInDatabase);
+    assertTrue(response.relevantStatuses);
+    assertEquals(5, response.matches.length);
+    assertEquals("2020-03-31 22:00:00", response.matches[0].timestamp);
+    assertEquals("relay", response.matches[0].nickname);
+    assertTrue(response.matches[0].exit);
+    assertNull(response.nearbyAddresses);
+  }
+
+  @Test
+  public void testExitAddress() {
+    QueryResponse response = query("1.2.3.5", "2020-04-01");
+    assertEquals(3, response.matches.length);
+    assertEquals("2020-04-01 00:00:00", response.matches[0].timestamp);
+  }
+
+  @Test
+  public void testIpV6Address() {
+    QueryResponse response = query("2001:db8::1", "2020-03-31");
+    assertEquals(5, response.matches.length);
+    assertTrue(response.matches[0].addresses.contains("[2001:db8::1]"));
+  }
+
+  @Test
+  public void testNearbyAddresses() {
+    QueryResponse response = query("1.2.3.6", "2020-03-31");
+    assertNull(response.matches);
+    assertArrayEquals(new String[] { "1.2.3.4", "1.2.3.5" },
+        response.nearbyAddresses);
+  }
+
+  @Test
+  public void testNoData() {
+    QueryResponse response = query("1.2.3.4", "2020-05-10");
+    assertEquals("2020-03-31", response.firstDateInDatabase);
+    assertEquals(false, response.relevantStatuses);
+    assertNull(response.matches);
+  }
+
+  @Test
+  public void testNotVisibleBeforeReload() {
+    this.storage.importStatusEntry(LocalDateTime.parse("2020-05-10T12:00:00"),
+        fingerprintBase64, "relay", false, "1.2.3.4", "010203");
+    assertNull(query("1.2.3.4", "2020-05-10").matches);
+    this.storage.loadImportWatermark();
+    assertEquals(1, query("1.2.3.4", "2020-05-10").matches.length);
+  }
+
+  @Test
+  public void testSortRecords() {
+    long[] records = new long[] { 3L, 1L, 1L, 2L, 1L, 1L, 0L, 5L };
+    assertArrayEquals(new long[] { 0L, 5L, 1L, 1L, 1L, 2L, 3L, 1L },
+        MemoryStorage.sortRecords(records, 4, 2));
+    assertEquals(1, MemoryStorage.lowerBound(
+        new long[] { 0L, 5L, 1L, 1L, 1L, 2L, 3L, 1L }, 2, 1L));
+    assertEquals(4, MemoryStorage.lowerBound(
+        new long[] { 0L, 5L, 1L, 1L, 1L, 2L, 3L, 1L }, 2, 4L));
+  }
+}
@@ -0,0 +1,55 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PageCacheTest {
+
+  private static PageCache.Page page(int length) {
+    return PageCache.Page.fromBackend(new byte[length], "\"1-en\"", "\"1\"",
+        1000L, "public, max-age=60", 0L);
+  }
+
+  @Test
+  public void testFreshness() {
+    PageCache.Page page = page(100);
+    assertTrue(page.isFresh(59999L));
+    assertFalse(page.isFresh(60000L));
+    assertTrue(page.revalidated(null, 60000L).isFresh(60000L));
+    assertFalse(page.revalidated("public, no-cache", 60000L)
+        .isFresh(60000L));
+    assertTrue(PageCache.Page.fromStatic(new byte[10])
+        .isFresh(Long.MAX_VALUE - 1L));
+  }
+
+  @Test
+  public void testEvictLeastRecentlyUsed() {
+    PageCache.Page page = page(10000);
+    long pageSize = page.body.length + page.gzippedBody.length;
+    PageCache pageCache = new PageCache(pageSize * 16L);
+    for (int i = 0; i < 17; i++) {
+      if (i == 16) {
+        assertNotNull(pageCache.get("0"));
+      }
+      pageCache.put(String.valueOf(i), page);
+    }
+    assertEquals(16, pageCache.size());
+    assertNotNull(pageCache.get("0"));
+    assertNull(pageCache.get("1"));
+  }
+
+  @Test
+  public void testSkipLargePage() {
+    PageCache pageCache = new PageCache(1000L);
+    pageCache.put("a", page(1000));
+    assertNull(pageCache.get("a"));
+  }
+}
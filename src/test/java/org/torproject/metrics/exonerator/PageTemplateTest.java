@@ -0,0 +1,69 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class PageTemplateTest {
+
+  private static String write(PageTemplate template, String... values)
+      throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    HtmlWriter out = new HtmlWriter(baos);
+    template.write(out, values);
+    out.flush();
+    return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testPlaceholders() throws IOException {
+    PageTemplate template = new PageTemplate.Builder().append("<p>")
+        .appendPlaceholder().append("</p>").build();
+    assertEquals(1, template.getPlaceholders());
+    assertEquals("<p>86.59.21.38</p>", write(template, "86.59.21.38"));
+  }
+
+  @Test
+  public void testFormat() throws IOException {
+    PageTemplate template = new PageTemplate.Builder()
+        .appendFormat("%s is not in /%d, see %s.", null, null, "<a>")
+        .build();
+    assertEquals(2, template.getPlaceholders());
+    assertEquals("1.2.3.4 is not in /24, see <a>.",
+        write(template, "1.2.3.4", "24"));
+  }
+
+  @Test
+  public void testEscaping() throws IOException {
+    PageTemplate template = new PageTemplate.Builder().append("<b>")
+        .appendPlaceholder().append("</b>").build();
+    assertEquals("<b>&lt;script&gt;&amp;&quot;&#39;</b>",
+        write(template, "<script>&\"'"));
+    String nonAscii = "Schw" + (char) 0xe4 + "che " + (char) 0x20ac + " "
+        + new String(Character.toChars(0x1f9c5));
+    assertEquals("<b>" + nonAscii + "</b>", write(template, nonAscii));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMissingValue() throws IOException {
+    write(new PageTemplate.Builder().appendPlaceholder().build());
+  }
+
+  @Test
+  public void testLongValue() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      sb.append(i % 2 == 0 ? "a" : String.valueOf((char) 0xe4));
+    }
+    PageTemplate template = new PageTemplate.Builder().appendPlaceholder()
+        .build();
+    assertEquals(sb.toString(), write(template, sb.toString()));
+  }
+}
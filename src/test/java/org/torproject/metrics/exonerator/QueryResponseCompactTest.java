@@ -0,0 +1,102 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+public class QueryResponseCompactTest {
+
+  private static QueryResponse.Match match(String timestamp,
+      String fingerprint, String nickname, String... addresses) {
+    return new QueryResponse.Match(timestamp,
+        new TreeSet<>(Arrays.asList(addresses)), fingerprint, nickname, true);
+  }
+
+  /** Create a response with a relay running for three days with one status
+   * per hour, except for one missing status and a change of addresses, a
+   * second relay with statuses every half hour, and a match with a timestamp
+   * in an unknown format. */
+  private static QueryResponse response() {
+    List<QueryResponse.Match> matches = new ArrayList<>();
+    for (int hour = 0; hour < 72; hour++) {
+      if (hour == 30) {
+        continue;
+      }
+      String timestamp = String.format("2020-03-%02d %02d:00:00",
+          30 + hour / 24, hour % 24).replace("2020-03-32", "2020-04-01");
+      matches.add(match(timestamp, "AAAA", "relay", "1.2.3.4",
+          hour < 60 ? "[2001:db8::1]" : "[2001:db8::2]"));
+      if (hour < 3) {
+        matches.add(match(timestamp.replace(":00:00", ":30:00"), "BBBB",
+            "other", "1.2.3.4"));
+        matches.add(match(timestamp, "BBBB", "other", "1.2.3.4"));
+      }
+    }
+    matches.add(match("2020-04-30", "CCCC", "odd", "1.2.3.4"));
+    matches.sort(QueryResponse.MATCH_ORDER);
+    return new QueryResponse("1.0", "1.2.3.4", "2020-03-31", "2020-01-01",
+        "2020-04-30", true, matches.toArray(new QueryResponse.Match[0]),
+        null);
+  }
+
+  @Test
+  public void testCompactRanges() {
+    QueryResponse compact = QueryResponse.compact(response());
+    assertEquals(QueryResponse.COMPACT_VERSION, compact.version);
+    assertNull(compact.matches);
+    assertEquals(Arrays.asList("1.2.3.4", "[2001:db8::1]", "[2001:db8::2]"),
+        Arrays.asList(compact.addresses));
+    assertEquals(4, compact.relays.length);
+    QueryResponse.Relay relay = compact.relays[0];
+    assertEquals("AAAA", relay.fingerprint);
+    assertEquals(2, relay.ranges.length);
+    assertEquals("2020-03-30 00:00:00", relay.ranges[0].first);
+    assertEquals(Integer.valueOf(3600), relay.ranges[0].interval);
+    assertEquals(Integer.valueOf(30), relay.ranges[0].count);
+    assertEquals(Integer.valueOf(29), relay.ranges[1].count);
+    assertEquals("BBBB", compact.relays[1].fingerprint);
+    assertEquals(1, compact.relays[1].ranges.length);
+    assertEquals(Integer.valueOf(1800), compact.relays[1].ranges[0].interval);
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    QueryResponse response = response();
+    String json = QueryResponse.toJson(response);
+    String compactJson = QueryResponse.toCompactJson(response);
+    assertTrue(compactJson.length() * 10 < json.length());
+    QueryResponse expanded = QueryResponse.fromJson(
+        new StringReader(compactJson));
+    expanded.version = response.version;
+    assertEquals(json, QueryResponse.toJson(expanded));
+  }
+
+  @Test
+  public void testNoMatches() throws IOException {
+    QueryResponse response = new QueryResponse("1.0", "1.2.3.5",
+        "2020-03-31", "2020-01-01", "2020-04-30", true, null,
+        new String[] { "1.2.3.4" });
+    QueryResponse expanded = QueryResponse.fromJson(new StringReader(
+        QueryResponse.toCompactJson(response)));
+    assertNull(expanded.matches);
+    assertEquals("1.2.3.4", expanded.nearbyAddresses[0]);
+  }
+
+  @Test
+  public void testUnrecognizedVersion() {
+    assertNull(QueryResponse.fromJson(new StringReader(
+        "{\"version\":\"3.0\",\"relevant_statuses\":false}")));
+  }
+}
@@ -0,0 +1,77 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+public class RelayHistoryBuilderTest {
+
+  private static final String fingerprint
+      = "000A10D43011EA4928A35F610405F92B4433B4DC";
+
+  private static final LocalDate date = LocalDate.parse("2020-03-31");
+
+  @Test
+  public void testStatusRanges() {
+    RelayHistoryBuilder builder = new RelayHistoryBuilder();
+    LocalDateTime validAfter = date.atStartOfDay();
+    for (int i = 0; i < 24; i++) {
+      builder.addStatusEntry(validAfter, "relay", true, "1.2.3.4");
+      builder.addStatusEntry(validAfter, "relay", true, "2001:db8::1");
+      validAfter = validAfter.plusHours(i == 5 ? 2L : 1L);
+    }
+    builder.addStatusEntry(validAfter.plusHours(4L), "relay", true,
+        "1.2.3.4");
+    builder.addStatusEntry(validAfter.plusHours(5L), "renamed", true,
+        "1.2.3.4");
+    RelayHistory history = builder.build(fingerprint, date, date);
+    assertEquals(3, history.statuses.length);
+    assertEquals("2020-03-31 00:00:00", history.statuses[0].firstValidAfter);
+    assertEquals("2020-04-01 00:00:00", history.statuses[0].lastValidAfter);
+    assertEquals(24, history.statuses[0].statuses);
+    assertTrue(history.statuses[0].addresses.contains("[2001:db8::1]"));
+    assertEquals(1, history.statuses[1].statuses);
+    assertEquals("relay", history.statuses[1].nickname);
+    assertEquals("renamed", history.statuses[2].nickname);
+    assertNull(history.exitAddresses);
+  }
+
+  @Test
+  public void testExitRanges() {
+    RelayHistoryBuilder builder = new RelayHistoryBuilder();
+    LocalDateTime scanned = date.atTime(1, 30);
+    builder.addExitListEntry(scanned, "1.2.3.5");
+    builder.addExitListEntry(scanned.plusHours(6L), "1.2.3.5");
+    builder.addExitListEntry(scanned.plusHours(6L), "1.2.3.6");
+    builder.addExitListEntry(scanned.plusHours(12L), "1.2.3.6");
+    builder.addExitListEntry(scanned.plusHours(18L), "1.2.3.5");
+    RelayHistory history = builder.build(fingerprint, date, date);
+    assertNull(history.statuses);
+    assertEquals(3, history.exitAddresses.length);
+    assertEquals("1.2.3.5", history.exitAddresses[0].address);
+    assertEquals(2, history.exitAddresses[0].scans);
+    assertEquals("2020-03-31 07:30:00", history.exitAddresses[0].lastScanned);
+    assertEquals("1.2.3.6", history.exitAddresses[1].address);
+    assertEquals(2, history.exitAddresses[1].scans);
+    assertEquals("1.2.3.5", history.exitAddresses[2].address);
+    assertEquals(1, history.exitAddresses[2].scans);
+  }
+
+  @Test
+  public void testParseFingerprintParameter() {
+    assertEquals(fingerprint, RelayServlet.parseFingerprintParameter(
+        "$000a10d43011ea4928a35f610405f92b4433b4dc"));
+    assertEquals(fingerprint, RelayServlet.parseFingerprintParameter(
+        "000A 10D4 3011 EA49 28A3 5F61 0405 F92B 4433 B4DC"));
+    assertNull(RelayServlet.parseFingerprintParameter("000A10D4"));
+    assertNull(RelayServlet.parseFingerprintParameter(null));
+  }
+}
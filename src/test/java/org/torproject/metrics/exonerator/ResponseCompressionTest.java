@@ -0,0 +1,69 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+public class ResponseCompressionTest {
+
+  private static byte[] gunzip(byte[] gzipped) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    try (GZIPInputStream gzis = new GZIPInputStream(
+        new ByteArrayInputStream(gzipped))) {
+      byte[] buffer = new byte[1024];
+      int length;
+      while ((length = gzis.read(buffer)) > 0) {
+        baos.write(buffer, 0, length);
+      }
+    }
+    return baos.toByteArray();
+  }
+
+  @Test
+  public void testGzipRoundTrip() throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append("<tr><td>").append(i).append("</td></tr>\n");
+    }
+    byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+    byte[] gzipped = ResponseCompression.gzip(body);
+    assertTrue(gzipped.length < body.length / 4);
+    assertArrayEquals(body, gunzip(gzipped));
+  }
+
+  @Test
+  public void testGzipReusedEncoders() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      byte[] body = new byte[i * 37];
+      for (int j = 0; j < body.length; j++) {
+        body[j] = (byte) (j * i);
+      }
+      assertArrayEquals(body, gunzip(ResponseCompression.gzip(body)));
+    }
+  }
+
+  @Test
+  public void testAcceptsGzip() {
+    assertTrue(ResponseCompression.acceptsGzip("gzip, deflate, br"));
+    assertTrue(ResponseCompression.acceptsGzip("br;q=1.0, gzip;q=0.8"));
+    assertTrue(ResponseCompression.acceptsGzip("*"));
+    assertFalse(ResponseCompression.acceptsGzip("gzip;q=0"));
+    assertTrue(ResponseCompression.acceptsGzip("*;q=0, gzip"));
+    assertTrue(ResponseCompression.acceptsGzip("x-gzip, *;q=0"));
+    assertFalse(ResponseCompression.acceptsGzip("gzip;q=0, *"));
+    assertFalse(ResponseCompression.acceptsGzip("*;q=0"));
+    assertFalse(ResponseCompression.acceptsGzip("identity"));
+    assertFalse(ResponseCompression.acceptsGzip(null));
+  }
+}
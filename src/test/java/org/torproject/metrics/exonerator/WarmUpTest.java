@@ -0,0 +1,54 @@
+/* Copyright 2020 The Tor Project
+ * See LICENSE for licensing information */
+
+package org.torproject.metrics.exonerator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+
+public class WarmUpTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testReadQueries() throws IOException {
+    File queriesFile = this.temporaryFolder.newFile();
+    Files.write(queriesFile.toPath(), Arrays.asList("# comment", "",
+        "86.59.21.38 2020-01-01", "  [2001:db8::1]\t2020-01-02  ",
+        "malformed"), StandardCharsets.UTF_8);
+    List<String[]> queries = WarmUp.readQueries(queriesFile.toPath());
+    assertEquals(2, queries.size());
+    assertArrayEquals(new String[] { "86.59.21.38", "2020-01-01" },
+        queries.get(0));
+    assertArrayEquals(new String[] { "[2001:db8::1]", "2020-01-02" },
+        queries.get(1));
+  }
+
+  @Test
+  public void testSampleQueries() {
+    LocalDate today = LocalDate.parse("2020-06-15");
+    List<String[]> queries = WarmUp.sampleQueries(today, 100);
+    assertEquals(100, queries.size());
+    for (String[] query : queries) {
+      LocalDate date = LocalDate.parse(query[1]);
+      assertTrue(date.isBefore(today.minusDays(1L)));
+      assertTrue(date.isAfter(today.minusDays(33L)));
+    }
+    assertArrayEquals(queries.get(3), WarmUp.sampleQueries(today, 100)
+        .get(3));
+  }
+}